@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fm.last.commons.kyoto.Codec;
+
+/**
+ * Cost of converting values with {@link Codec}. The {@code legacy} benchmarks use the {@link ByteBuffer} views that
+ * Codec used to allocate for each conversion, for comparison with the array and offset forms. Run with {@code -prof gc}
+ * to compare allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+  private double doubleValue;
+  private long longValue;
+  private byte[] fixedPoint;
+  private byte[] eightBytes;
+  private byte[] buffer;
+  private ByteBuffer byteBuffer;
+
+  @Setup
+  public void setup() {
+    doubleValue = -1234.5678d;
+    longValue = 1234567890123L;
+    fixedPoint = Codec.toBytes(doubleValue);
+    eightBytes = Codec.fromLong(longValue);
+    buffer = new byte[32];
+    byteBuffer = ByteBuffer.allocate(32);
+  }
+
+  @Benchmark
+  public double legacyToDouble() {
+    LongBuffer longs = ByteBuffer.wrap(fixedPoint).asLongBuffer();
+    long integerPart = longs.get();
+    long fractionalPart = longs.get();
+    return integerPart + (fractionalPart / 1000000000000000d);
+  }
+
+  @Benchmark
+  public double toDouble() {
+    return Codec.toDouble(fixedPoint);
+  }
+
+  @Benchmark
+  public double toDoubleAtOffset() {
+    return Codec.toDouble(fixedPoint, 0);
+  }
+
+  @Benchmark
+  public byte[] legacyDoubleToBytes() {
+    double fractionalPart = doubleValue % 1;
+    double integerPart = doubleValue - fractionalPart;
+    ByteBuffer bytes = ByteBuffer.allocate(16);
+    bytes.asLongBuffer().put(new long[] { (long) integerPart, (long) (fractionalPart * 1000000000000000d) });
+    return bytes.array();
+  }
+
+  @Benchmark
+  public byte[] doubleToBytes() {
+    return Codec.toBytes(doubleValue);
+  }
+
+  @Benchmark
+  public byte[] putDoubleAtOffset() {
+    Codec.putDouble(doubleValue, buffer, 8);
+    return buffer;
+  }
+
+  @Benchmark
+  public ByteBuffer putDoubleToByteBuffer() {
+    byteBuffer.clear();
+    Codec.putDouble(doubleValue, byteBuffer);
+    return byteBuffer;
+  }
+
+  @Benchmark
+  public long legacyToLong() {
+    return ByteBuffer.wrap(eightBytes).getLong();
+  }
+
+  @Benchmark
+  public long toLong() {
+    return Codec.toLong(eightBytes);
+  }
+
+  @Benchmark
+  public byte[] legacyFromLong() {
+    return ByteBuffer.allocate(8).putLong(longValue).array();
+  }
+
+  @Benchmark
+  public byte[] putLongAtOffset() {
+    Codec.putLong(longValue, buffer, 8);
+    return buffer;
+  }
+
+  @Benchmark
+  public long varLongRoundTrip() {
+    Codec.putVarLong(Codec.encodeZigZag(longValue), buffer, 0);
+    return Codec.decodeZigZag(Codec.toVarLong(buffer, 0));
+  }
+
+  @Benchmark
+  public double orderedDoubleRoundTrip() {
+    Codec.putOrderedDouble(doubleValue, buffer, 0);
+    return Codec.toOrderedDouble(buffer, 0);
+  }
+
+  @Benchmark
+  public long orderedCompositeKeyRoundTrip() {
+    Codec.putOrderedInt((int) longValue, buffer, 0);
+    Codec.putOrderedLong(longValue, buffer, 4);
+    return Codec.toOrderedInt(buffer, 0) + Codec.toOrderedLong(buffer, 4);
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.factory.KyotoDbBuilder;
+
+/**
+ * The cost of {@link KyotoDbBuilder#instrumented()} on cheap in-memory operations, from several threads so that
+ * contention on the metric counters would show.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+public class InstrumentationBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class InstrumentedState {
+
+    @Param({ "false", "true" })
+    public boolean instrumented;
+
+    @Param({ "100000" })
+    public int records;
+
+    KyotoDb db;
+    byte[][] keys;
+    byte[] value;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      KyotoDbBuilder builder = new KyotoDbBuilder(DbType.PROTOTYPE_HASH).modes(
+          fm.last.commons.kyoto.factory.Mode.CREATE, fm.last.commons.kyoto.factory.Mode.READ_WRITE);
+      if (instrumented) {
+        builder.instrumented();
+      }
+      db = builder.buildAndOpen();
+      keys = new byte[records][];
+      value = new byte[64];
+      for (int i = 0; i < records; i++) {
+        keys[i] = KyotoDbState.key(i).getBytes(KyotoDbState.UTF_8);
+        db.set(keys[i], value);
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+      db.close();
+    }
+  }
+
+  @Benchmark
+  public byte[] get(InstrumentedState state, KeyIndex index) {
+    return state.db.get(state.keys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public void set(InstrumentedState state, KeyIndex index) {
+    state.db.set(state.keys[index.next(state.records)], state.value);
+  }
+
+}
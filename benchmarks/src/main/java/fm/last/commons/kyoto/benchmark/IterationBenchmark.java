@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import kyotocabinet.Visitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * Full scans of the database with each visitor type and with a {@link KyotoCursor}. Each invocation visits every record
+ * so scores are per scan, not per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IterationBenchmark {
+
+  private static final int BATCH_SIZE = 128;
+
+  @Benchmark
+  public void iterateReadOnlyVisitor(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new ReadOnlyVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+      }
+
+      @Override
+      public void emptyRecord(byte[] key) {
+        blackhole.consume(key);
+      }
+    });
+  }
+
+  @Benchmark
+  public void iterateReadOnlyStringVisitor(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new ReadOnlyStringVisitor() {
+      @Override
+      public void record(String key, String value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+      }
+
+      @Override
+      public void emptyRecord(String key) {
+        blackhole.consume(key);
+      }
+    });
+  }
+
+  @Benchmark
+  public void iterateWritableVisitor(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new WritableVisitor() {
+      @Override
+      public byte[] record(byte[] key, byte[] value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+        return NOP;
+      }
+
+      @Override
+      public byte[] emptyRecord(byte[] key) {
+        blackhole.consume(key);
+        return NOP;
+      }
+    });
+  }
+
+  @Benchmark
+  public void iterateWritableStringVisitor(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new WritableStringVisitor() {
+      @Override
+      public String record(String key, String value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+        return NOP;
+      }
+
+      @Override
+      public String emptyRecord(String key) {
+        blackhole.consume(key);
+        return NOP;
+      }
+    });
+  }
+
+  @Benchmark
+  public void rawIterate(KyotoDbState state, final Blackhole blackhole) {
+    state.rawDb.iterate(new Visitor() {
+      @Override
+      public byte[] visit_full(byte[] key, byte[] value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+        return NOP;
+      }
+
+      @Override
+      public byte[] visit_empty(byte[] key) {
+        blackhole.consume(key);
+        return NOP;
+      }
+    }, false);
+  }
+
+  @Benchmark
+  public void cursorScanEntries(KyotoDbState state, Blackhole blackhole) throws IOException {
+    KyotoCursor cursor = state.db.cursor();
+    try {
+      cursor.scanForwardFromStart();
+      byte[][] entry;
+      while ((entry = cursor.getEntry(CursorStep.NEXT_RECORD)) != null) {
+        blackhole.consume(entry);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Benchmark
+  public void cursorScanBatches(KyotoDbState state, Blackhole blackhole) throws IOException {
+    KyotoCursor cursor = state.db.cursor();
+    try {
+      cursor.scanForwardFromStart();
+      List<byte[][]> batch;
+      while (!(batch = cursor.nextBatch(BATCH_SIZE)).isEmpty()) {
+        for (byte[][] entry : batch) {
+          blackhole.consume(entry);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Benchmark
+  public void entriesIterator(KyotoDbState state, Blackhole blackhole) {
+    RecordIterator<byte[][]> entries = state.db.entries();
+    try {
+      while (entries.hasNext()) {
+        blackhole.consume(entries.next());
+      }
+    } finally {
+      entries.close();
+    }
+  }
+
+  @Benchmark
+  public void cursorScanStringEntries(KyotoDbState state, Blackhole blackhole) throws IOException {
+    KyotoCursor cursor = state.db.cursor();
+    try {
+      cursor.scanForwardFromStart();
+      String[] entry;
+      while ((entry = cursor.getEntryAsString(CursorStep.NEXT_RECORD)) != null) {
+        blackhole.consume(entry);
+      }
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Benchmark
+  public void rawCursorScanEntries(KyotoDbState state, Blackhole blackhole) {
+    kyotocabinet.Cursor cursor = state.rawDb.cursor();
+    try {
+      cursor.jump();
+      byte[][] entry;
+      while ((entry = cursor.get(true)) != null) {
+        blackhole.consume(entry);
+      }
+    } finally {
+      cursor.disable();
+    }
+  }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread position in the key space so that concurrent benchmark threads do not all hit the same record.
+ */
+@State(Scope.Thread)
+public class KeyIndex {
+
+  private int next = (int) (Thread.currentThread().getId() * 7919);
+
+  int next(int records) {
+    next = (next + 1) % records;
+    if (next < 0) {
+      next += records;
+    }
+    return next;
+  }
+
+}
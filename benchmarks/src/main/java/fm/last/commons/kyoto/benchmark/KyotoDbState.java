@@ -0,0 +1,161 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import kyotocabinet.DB;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.DbType.StorageType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.factory.KyotoDbBuilder;
+import fm.last.commons.kyoto.factory.Mode;
+
+/**
+ * A populated {@link KyotoDb} of each {@link DbType} together with a raw {@link DB} of the same type, so that the
+ * wrapper overhead can be compared directly with the JNI bindings.
+ */
+@State(Scope.Benchmark)
+public class KyotoDbState {
+
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final int BULK_SIZE = 100;
+  static final int COUNTERS = 100;
+
+  @Param({ "PROTOTYPE_HASH", "PROTOTYPE_TREE", "STASH", "CACHE_HASH", "CACHE_TREE", "FILE_HASH", "DIRECTORY_HASH",
+    "FILE_TREE" })
+  public DbType dbType;
+
+  @Param({ "100000" })
+  public int records;
+
+  @Param({ "64" })
+  public int valueSize;
+
+  KyotoDb db;
+  DB rawDb;
+  byte[][] keys;
+  String[] stringKeys;
+  byte[] value;
+  String stringValue;
+  byte[][] longCounters;
+  String[] doubleCounters;
+
+  private File file;
+  private File rawFile;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    keys = new byte[records][];
+    stringKeys = new String[records];
+    for (int i = 0; i < records; i++) {
+      stringKeys[i] = key(i);
+      keys[i] = stringKeys[i].getBytes(UTF_8);
+    }
+    longCounters = new byte[COUNTERS][];
+    doubleCounters = new String[COUNTERS];
+    for (int i = 0; i < COUNTERS; i++) {
+      longCounters[i] = ("long-counter-" + i).getBytes(UTF_8);
+      doubleCounters[i] = "double-counter-" + i;
+    }
+    value = new byte[valueSize];
+    for (int i = 0; i < valueSize; i++) {
+      value[i] = (byte) ('a' + i % 26);
+    }
+    stringValue = new String(value, UTF_8);
+
+    if (dbType.storageType() == StorageType.MEMORY) {
+      db = new KyotoDbBuilder(dbType).modes(Mode.CREATE, Mode.READ_WRITE).buildAndOpen();
+      rawDb = openRawDb(dbType.identifier());
+    } else {
+      file = dbType.createTempFile("kyoto-benchmark");
+      rawFile = dbType.createTempFile("kyoto-benchmark-raw");
+      db = new KyotoDbBuilder(file).modes(Mode.CREATE, Mode.READ_WRITE, Mode.TRUNCATE).buildAndOpen();
+      rawDb = openRawDb(rawFile.getAbsolutePath());
+    }
+
+    for (int i = 0; i < records; i++) {
+      db.set(keys[i], value);
+      rawDb.set(keys[i], value);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() throws IOException {
+    db.close();
+    rawDb.close();
+    delete(file);
+    delete(rawFile);
+  }
+
+  byte[][] bulkKeys(int offset) {
+    byte[][] bulk = new byte[BULK_SIZE][];
+    for (int i = 0; i < BULK_SIZE; i++) {
+      bulk[i] = keys[(offset + i) % records];
+    }
+    return bulk;
+  }
+
+  byte[][] bulkKeyValues(int offset) {
+    byte[][] bulk = new byte[BULK_SIZE * 2][];
+    for (int i = 0; i < BULK_SIZE; i++) {
+      bulk[i * 2] = keys[(offset + i) % records];
+      bulk[i * 2 + 1] = value;
+    }
+    return bulk;
+  }
+
+  Atomicity atomicity() {
+    return Atomicity.NONE;
+  }
+
+  static String key(int index) {
+    return String.format("key-%08d", index);
+  }
+
+  private static DB openRawDb(String path) throws IOException {
+    DB rawDb = new DB();
+    if (!rawDb.open(path, DB.OCREATE | DB.OWRITER | DB.OTRUNCATE)) {
+      throw new IOException("Could not open raw database '" + path + "': " + rawDb.error());
+    }
+    return rawDb;
+  }
+
+  private static void delete(File file) {
+    if (file == null) {
+      return;
+    }
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.factory.KyotoDbBuilder;
+
+/**
+ * Read throughput of a file hash database from several threads through a single read only handle and through
+ * {@link KyotoDbBuilder#readReplicas(int)}. Run with {@code -t} to vary the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(8)
+public class ReadReplicaBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class ReplicaState {
+
+    @Param({ "1", "2", "4", "8" })
+    public int replicas;
+
+    @Param({ "100000" })
+    public int records;
+
+    KyotoDb db;
+    byte[][] keys;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      file = DbType.FILE_HASH.createTempFile("kyoto-benchmark-replicas");
+      KyotoDb writer = new KyotoDbBuilder(file).modes(fm.last.commons.kyoto.factory.Mode.CREATE,
+          fm.last.commons.kyoto.factory.Mode.READ_WRITE, fm.last.commons.kyoto.factory.Mode.TRUNCATE).buildAndOpen();
+      keys = new byte[records][];
+      byte[] value = new byte[64];
+      try {
+        for (int i = 0; i < records; i++) {
+          keys[i] = KyotoDbState.key(i).getBytes(KyotoDbState.UTF_8);
+          writer.set(keys[i], value);
+        }
+      } finally {
+        writer.close();
+      }
+      KyotoDbBuilder builder = new KyotoDbBuilder(file).modes(fm.last.commons.kyoto.factory.Mode.READ_ONLY);
+      if (replicas > 1) {
+        builder.readReplicas(replicas);
+      }
+      db = builder.buildAndOpen();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException {
+      db.close();
+      file.delete();
+    }
+  }
+
+  @Benchmark
+  public byte[] get(ReplicaState state, KeyIndex index) {
+    return state.db.get(state.keys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public boolean exists(ReplicaState state, KeyIndex index) {
+    return state.db.exists(state.keys[index.next(state.records)]);
+  }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Single record and bulk record operations, for both the {@code byte[]} and {@code String} overloads. The {@code raw*}
+ * benchmarks call {@link kyotocabinet.DB} directly and are the baseline for the wrapper overhead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RecordAccessBenchmark {
+
+  @Benchmark
+  public byte[] getBytes(KyotoDbState state, KeyIndex index) {
+    return state.db.get(state.keys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public String getString(KyotoDbState state, KeyIndex index) {
+    return state.db.get(state.stringKeys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public byte[] getMissing(KyotoDbState state) {
+    return state.db.get(state.value);
+  }
+
+  @Benchmark
+  public byte[] rawGetBytes(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.get(state.keys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public String rawGetString(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.get(state.stringKeys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  public void setBytes(KyotoDbState state, KeyIndex index) {
+    state.db.set(state.keys[index.next(state.records)], state.value);
+  }
+
+  @Benchmark
+  public void setString(KyotoDbState state, KeyIndex index) {
+    state.db.set(state.stringKeys[index.next(state.records)], state.stringValue);
+  }
+
+  @Benchmark
+  public boolean rawSetBytes(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.set(state.keys[index.next(state.records)], state.value);
+  }
+
+  @Benchmark
+  public boolean rawSetString(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.set(state.stringKeys[index.next(state.records)], state.stringValue);
+  }
+
+  /**
+   * Removes a record and puts it back so that the key space stays populated for the other benchmarks.
+   */
+  @Benchmark
+  public void removeAndReinsertBytes(KyotoDbState state, KeyIndex index, Blackhole blackhole) {
+    byte[] key = state.keys[index.next(state.records)];
+    blackhole.consume(state.db.remove(key));
+    state.db.set(key, state.value);
+  }
+
+  @Benchmark
+  public void removeAndReinsertString(KyotoDbState state, KeyIndex index, Blackhole blackhole) {
+    String key = state.stringKeys[index.next(state.records)];
+    blackhole.consume(state.db.remove(key));
+    state.db.set(key, state.stringValue);
+  }
+
+  @Benchmark
+  public boolean removeMissing(KyotoDbState state) {
+    return state.db.remove(state.value);
+  }
+
+  @Benchmark
+  public void rawRemoveAndReinsertBytes(KyotoDbState state, KeyIndex index, Blackhole blackhole) {
+    byte[] key = state.keys[index.next(state.records)];
+    blackhole.consume(state.rawDb.remove(key));
+    state.rawDb.set(key, state.value);
+  }
+
+  @Benchmark
+  public boolean existsBytes(KyotoDbState state, KeyIndex index) {
+    return state.db.exists(state.keys[index.next(state.records)]);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[][] bulkGet(KyotoDbState state, KeyIndex index) {
+    return state.db.get(state.bulkKeys(index.next(state.records)), state.atomicity());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public byte[][] rawBulkGet(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.get_bulk(state.bulkKeys(index.next(state.records)), state.atomicity().value());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long bulkSet(KyotoDbState state, KeyIndex index) {
+    return state.db.set(state.bulkKeyValues(index.next(state.records)), state.atomicity());
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public long rawBulkSet(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.set_bulk(state.bulkKeyValues(index.next(state.records)), state.atomicity().value());
+  }
+
+  @Benchmark
+  public long incrementLong(KyotoDbState state, KeyIndex index) {
+    return state.db.incrementWithDefault(state.longCounters[index.next(KyotoDbState.COUNTERS)], 1L, 0L);
+  }
+
+  @Benchmark
+  public double incrementDouble(KyotoDbState state, KeyIndex index) {
+    return state.db.incrementWithDefault(state.doubleCounters[index.next(KyotoDbState.COUNTERS)], 0.5d, 0d);
+  }
+
+  @Benchmark
+  public long rawIncrementLong(KyotoDbState state, KeyIndex index) {
+    return state.rawDb.increment(state.longCounters[index.next(KyotoDbState.COUNTERS)], 1L, 0L);
+  }
+
+}
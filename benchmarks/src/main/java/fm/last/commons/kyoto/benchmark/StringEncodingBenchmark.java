@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import kyotocabinet.Visitor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+
+/**
+ * Cost of turning records into text during a full scan. The {@code stringConstructor} benchmarks decode every key and
+ * value with {@code new String(byte[], Charset)}, as the String visitors used to, for comparison with the String and
+ * CharSequence visitors. Run with {@code -prof gc} to compare allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringEncodingBenchmark {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Benchmark
+  public void stringConstructorDecode(KyotoDbState state, final Blackhole blackhole) {
+    state.rawDb.iterate(new Visitor() {
+      @Override
+      public byte[] visit_full(byte[] key, byte[] value) {
+        blackhole.consume(new String(key, UTF_8));
+        blackhole.consume(new String(value, UTF_8));
+        return NOP;
+      }
+
+      @Override
+      public byte[] visit_empty(byte[] key) {
+        blackhole.consume(new String(key, UTF_8));
+        return NOP;
+      }
+    }, false);
+  }
+
+  @Benchmark
+  public void stringVisitorDecode(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new ReadOnlyStringVisitor() {
+      @Override
+      public void record(String key, String value) {
+        blackhole.consume(key);
+        blackhole.consume(value);
+      }
+
+      @Override
+      public void emptyRecord(String key) {
+        blackhole.consume(key);
+      }
+    });
+  }
+
+  @Benchmark
+  public void stringConstructorKeyFirstChar(KyotoDbState state, final Blackhole blackhole) {
+    state.rawDb.iterate(new Visitor() {
+      @Override
+      public byte[] visit_full(byte[] key, byte[] value) {
+        blackhole.consume(new String(key, UTF_8).charAt(0));
+        return NOP;
+      }
+
+      @Override
+      public byte[] visit_empty(byte[] key) {
+        return NOP;
+      }
+    }, false);
+  }
+
+  @Benchmark
+  public void charSequenceVisitorKeyFirstChar(KyotoDbState state, final Blackhole blackhole) {
+    state.db.iterate(new ReadOnlyCharSequenceVisitor() {
+      @Override
+      public void record(CharSequence key, CharSequence value) {
+        blackhole.consume(key.charAt(0));
+      }
+
+      @Override
+      public void emptyRecord(CharSequence key) {
+      }
+    });
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void stringConstructorAccept(KyotoDbState state, KeyIndex index, final Blackhole blackhole) {
+    byte[] key = state.stringKeys[index.next(state.records)].getBytes(UTF_8);
+    state.rawDb.accept(key, new Visitor() {
+      @Override
+      public byte[] visit_full(byte[] key, byte[] value) {
+        blackhole.consume(new String(value, UTF_8));
+        return NOP;
+      }
+
+      @Override
+      public byte[] visit_empty(byte[] key) {
+        return NOP;
+      }
+    }, false);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public void stringVisitorAccept(KyotoDbState state, KeyIndex index, final Blackhole blackhole) {
+    state.db.accept(state.stringKeys[index.next(state.records)], new ReadOnlyStringVisitor() {
+      @Override
+      public void record(String key, String value) {
+        blackhole.consume(value);
+      }
+
+      @Override
+      public void emptyRecord(String key) {
+      }
+    });
+  }
+
+}
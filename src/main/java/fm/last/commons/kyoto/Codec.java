@@ -1,13 +1,25 @@
 package fm.last.commons.kyoto;
 
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.LongBuffer;
+import java.nio.ByteOrder;
 
 /**
- * Methods for converting kyotocabinet's primitive representations.
+ * Methods for converting kyotocabinet's primitive representations, and allocation-free encodings for building binary
+ * keys and values.
+ * <p/>
+ * Each encoding can be read from or written to a caller-supplied {@code byte[]} at an offset, or a {@link ByteBuffer}
+ * at its position, which is then advanced. Fixed width encodings are big-endian whatever the {@link ByteBuffer#order()}
+ * of the buffer. The {@code Ordered} encodings sort in numerical order when compared byte by byte as unsigned values,
+ * as a tree database with the default {@link fm.last.commons.kyoto.factory.PageComparator#LEXICAL LEXICAL} comparator
+ * does, so they can be concatenated to build composite keys. Variable length encodings do not preserve order.
  */
 public final class Codec {
 
+  private static final int FIXED_POINT_BYTES = 16;
+  private static final double FIXED_POINT_SCALE = 1000000000000000d;
+  private static final int MAXIMUM_VAR_LONG_BYTES = 10;
+
   private Codec() {
   }
 
@@ -19,13 +31,29 @@ public final class Codec {
    * @return value representation as a double.
    */
   public static double toDouble(byte[] value) {
-    if (value == null || value.length != 16) {
+    if (value == null || value.length != FIXED_POINT_BYTES) {
       throw new IllegalArgumentException("Not a 16 byte fixed point number - array does not contain exactly 16 bytes.");
     }
-    LongBuffer buffer = ByteBuffer.wrap(value).asLongBuffer();
-    long integerPart = buffer.get();
-    long fractionalPart = buffer.get();
-    return integerPart + (fractionalPart / 1000000000000000d);
+    return toDouble(value, 0);
+  }
+
+  /**
+   * Reads a 16 byte fixed point decimal, as written by {@link KyotoDb#increment(byte[], double)}.
+   * 
+   * @see #toDouble(byte[])
+   */
+  public static double toDouble(byte[] bytes, int offset) {
+    return fromFixedPoint(readLong(bytes, offset), readLong(bytes, offset + 8));
+  }
+
+  /**
+   * Reads a 16 byte fixed point decimal, as written by {@link KyotoDb#increment(byte[], double)}.
+   * 
+   * @see #toDouble(byte[])
+   */
+  public static double toDouble(ByteBuffer buffer) {
+    long integerPart = getLong(buffer);
+    return fromFixedPoint(integerPart, getLong(buffer));
   }
 
   /**
@@ -35,15 +63,358 @@ public final class Codec {
    * @return Array of 16 bytes that represents a decimal value.
    */
   public static byte[] toBytes(double value) {
+    byte[] bytes = new byte[FIXED_POINT_BYTES];
+    putDouble(value, bytes, 0);
+    return bytes;
+  }
+
+  /**
+   * Writes a double as a 16 byte fixed point decimal.
+   * 
+   * @see #toBytes(double)
+   */
+  public static void putDouble(double value, byte[] bytes, int offset) {
     double fractionalPart = value % 1;
-    double integerPart = value - fractionalPart;
-    ByteBuffer bytes = ByteBuffer.allocate(16);
-    bytes.asLongBuffer().put(new long[] { (long) integerPart, (long) (fractionalPart * 1000000000000000d) });
-    return bytes.array();
+    writeLong((long) (value - fractionalPart), bytes, offset);
+    writeLong((long) (fractionalPart * FIXED_POINT_SCALE), bytes, offset + 8);
   }
 
+  /**
+   * Writes a double as a 16 byte fixed point decimal.
+   * 
+   * @see #toBytes(double)
+   */
+  public static void putDouble(double value, ByteBuffer buffer) {
+    double fractionalPart = value % 1;
+    putLong((long) (value - fractionalPart), buffer);
+    putLong((long) (fractionalPart * FIXED_POINT_SCALE), buffer);
+  }
+
+  /**
+   * Converts the 8 byte big-endian representation used by {@link KyotoDb#increment(byte[], long)} to a long. Bytes
+   * after the first 8 are ignored.
+   * 
+   * @param bytes Array of at least 8 bytes.
+   * @return value representation as a long.
+   * @throws BufferUnderflowException if the array holds fewer than 8 bytes.
+   */
   public static long toLong(byte[] bytes) {
-    return ByteBuffer.wrap(bytes).getLong();
+    if (bytes.length < 8) {
+      throw new BufferUnderflowException();
+    }
+    return readLong(bytes, 0);
+  }
+
+  /**
+   * Reads an 8 byte big-endian long, as written by {@link KyotoDb#increment(byte[], long)}.
+   */
+  public static long toLong(byte[] bytes, int offset) {
+    return readLong(bytes, offset);
+  }
+
+  /**
+   * Reads an 8 byte big-endian long, as written by {@link KyotoDb#increment(byte[], long)}.
+   */
+  public static long toLong(ByteBuffer buffer) {
+    return getLong(buffer);
+  }
+
+  /**
+   * Converts a long to the 8 byte big-endian representation used by {@link KyotoDb#increment(byte[], long)}.
+   * 
+   * @param value Integer value.
+   * @return Array of 8 bytes that represents an integer value.
+   */
+  public static byte[] fromLong(long value) {
+    byte[] bytes = new byte[8];
+    writeLong(value, bytes, 0);
+    return bytes;
+  }
+
+  /**
+   * Writes an 8 byte big-endian long, as read by {@link KyotoDb#increment(byte[], long)}.
+   */
+  public static void putLong(long value, byte[] bytes, int offset) {
+    writeLong(value, bytes, offset);
+  }
+
+  /**
+   * Writes an 8 byte big-endian long, as read by {@link KyotoDb#increment(byte[], long)}.
+   */
+  public static void putLong(long value, ByteBuffer buffer) {
+    buffer.putLong(buffer.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value));
+  }
+
+  /**
+   * Reads a 4 byte big-endian int.
+   */
+  public static int toInt(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8
+        | bytes[offset + 3] & 0xFF;
+  }
+
+  /**
+   * Reads a 4 byte big-endian int.
+   */
+  public static int toInt(ByteBuffer buffer) {
+    int value = buffer.getInt();
+    return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+  }
+
+  /**
+   * Writes a 4 byte big-endian int.
+   */
+  public static void putInt(int value, byte[] bytes, int offset) {
+    bytes[offset] = (byte) (value >>> 24);
+    bytes[offset + 1] = (byte) (value >>> 16);
+    bytes[offset + 2] = (byte) (value >>> 8);
+    bytes[offset + 3] = (byte) value;
+  }
+
+  /**
+   * Writes a 4 byte big-endian int.
+   */
+  public static void putInt(int value, ByteBuffer buffer) {
+    buffer.putInt(buffer.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value));
+  }
+
+  /**
+   * Reads a 2 byte big-endian short.
+   */
+  public static short toShort(byte[] bytes, int offset) {
+    return (short) ((bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF);
+  }
+
+  /**
+   * Reads a 2 byte big-endian short.
+   */
+  public static short toShort(ByteBuffer buffer) {
+    short value = buffer.getShort();
+    return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value);
+  }
+
+  /**
+   * Writes a 2 byte big-endian short.
+   */
+  public static void putShort(short value, byte[] bytes, int offset) {
+    bytes[offset] = (byte) (value >>> 8);
+    bytes[offset + 1] = (byte) value;
+  }
+
+  /**
+   * Writes a 2 byte big-endian short.
+   */
+  public static void putShort(short value, ByteBuffer buffer) {
+    buffer.putShort(buffer.order() == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value));
+  }
+
+  /**
+   * Reads an 8 byte long written by {@link #putOrderedLong(long, byte[], int)}.
+   */
+  public static long toOrderedLong(byte[] bytes, int offset) {
+    return readLong(bytes, offset) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Reads an 8 byte long written by {@link #putOrderedLong(long, ByteBuffer)}.
+   */
+  public static long toOrderedLong(ByteBuffer buffer) {
+    return getLong(buffer) ^ Long.MIN_VALUE;
+  }
+
+  /**
+   * Writes a long as 8 big-endian bytes with the sign bit flipped, so that negative values sort before positive ones.
+   */
+  public static void putOrderedLong(long value, byte[] bytes, int offset) {
+    writeLong(value ^ Long.MIN_VALUE, bytes, offset);
+  }
+
+  /**
+   * Writes a long as 8 big-endian bytes with the sign bit flipped, so that negative values sort before positive ones.
+   */
+  public static void putOrderedLong(long value, ByteBuffer buffer) {
+    putLong(value ^ Long.MIN_VALUE, buffer);
+  }
+
+  /**
+   * Reads a 4 byte int written by {@link #putOrderedInt(int, byte[], int)}.
+   */
+  public static int toOrderedInt(byte[] bytes, int offset) {
+    return toInt(bytes, offset) ^ Integer.MIN_VALUE;
+  }
+
+  /**
+   * Reads a 4 byte int written by {@link #putOrderedInt(int, ByteBuffer)}.
+   */
+  public static int toOrderedInt(ByteBuffer buffer) {
+    return toInt(buffer) ^ Integer.MIN_VALUE;
+  }
+
+  /**
+   * Writes an int as 4 big-endian bytes with the sign bit flipped, so that negative values sort before positive ones.
+   */
+  public static void putOrderedInt(int value, byte[] bytes, int offset) {
+    putInt(value ^ Integer.MIN_VALUE, bytes, offset);
+  }
+
+  /**
+   * Writes an int as 4 big-endian bytes with the sign bit flipped, so that negative values sort before positive ones.
+   */
+  public static void putOrderedInt(int value, ByteBuffer buffer) {
+    putInt(value ^ Integer.MIN_VALUE, buffer);
+  }
+
+  /**
+   * Reads an 8 byte double written by {@link #putOrderedDouble(double, byte[], int)}.
+   */
+  public static double toOrderedDouble(byte[] bytes, int offset) {
+    return Double.longBitsToDouble(unorderDoubleBits(readLong(bytes, offset)));
+  }
+
+  /**
+   * Reads an 8 byte double written by {@link #putOrderedDouble(double, ByteBuffer)}.
+   */
+  public static double toOrderedDouble(ByteBuffer buffer) {
+    return Double.longBitsToDouble(unorderDoubleBits(getLong(buffer)));
+  }
+
+  /**
+   * Writes the IEEE 754 bits of a double as 8 big-endian bytes, with all bits of negative values flipped and the sign
+   * bit of positive values flipped, so that values sort numerically: negative infinity first, then {@code -0.0} before
+   * {@code 0.0}, positive infinity and finally NaN. Unlike {@link #putDouble(double, byte[], int)} the value is exact.
+   */
+  public static void putOrderedDouble(double value, byte[] bytes, int offset) {
+    writeLong(orderDoubleBits(Double.doubleToLongBits(value)), bytes, offset);
+  }
+
+  /**
+   * Writes an order-preserving double.
+   * 
+   * @see #putOrderedDouble(double, byte[], int)
+   */
+  public static void putOrderedDouble(double value, ByteBuffer buffer) {
+    putLong(orderDoubleBits(Double.doubleToLongBits(value)), buffer);
+  }
+
+  /**
+   * Maps signed values to unsigned ones so that values of small magnitude have short variable length encodings: 0, -1,
+   * 1, -2, 2... become 0, 1, 2, 3, 4...
+   */
+  public static long encodeZigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  /**
+   * Reverses {@link #encodeZigZag(long)}.
+   */
+  public static long decodeZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * @return the number of bytes written by {@link #putVarLong(long, byte[], int)} for the value, from 1 to 10.
+   */
+  public static int varLongSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes a long in 7 bit groups, least significant first, with the high bit of each byte set if more follow. Values
+   * below 128 take one byte, negative values take ten - use {@link #encodeZigZag(long)} for signed values.
+   * 
+   * @return the number of bytes written.
+   */
+  public static int putVarLong(long value, byte[] bytes, int offset) {
+    int position = offset;
+    while ((value & ~0x7FL) != 0) {
+      bytes[position++] = (byte) (value & 0x7F | 0x80);
+      value >>>= 7;
+    }
+    bytes[position++] = (byte) value;
+    return position - offset;
+  }
+
+  /**
+   * Writes a variable length long.
+   * 
+   * @see #putVarLong(long, byte[], int)
+   */
+  public static void putVarLong(long value, ByteBuffer buffer) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) (value & 0x7F | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Reads a long written by {@link #putVarLong(long, byte[], int)}. The number of bytes read is
+   * {@link #varLongSize(long)} of the result.
+   * 
+   * @throws IllegalArgumentException if the encoding is longer than 10 bytes.
+   */
+  public static long toVarLong(byte[] bytes, int offset) {
+    long value = 0;
+    for (int index = 0; index < MAXIMUM_VAR_LONG_BYTES; index++) {
+      byte next = bytes[offset + index];
+      value |= (next & 0x7FL) << (7 * index);
+      if (next >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed variable length long at offset " + offset);
+  }
+
+  /**
+   * Reads a long written by {@link #putVarLong(long, ByteBuffer)}.
+   * 
+   * @throws IllegalArgumentException if the encoding is longer than 10 bytes.
+   */
+  public static long toVarLong(ByteBuffer buffer) {
+    long value = 0;
+    for (int index = 0; index < MAXIMUM_VAR_LONG_BYTES; index++) {
+      byte next = buffer.get();
+      value |= (next & 0x7FL) << (7 * index);
+      if (next >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed variable length long before position " + buffer.position());
+  }
+
+  private static double fromFixedPoint(long integerPart, long fractionalPart) {
+    return integerPart + (fractionalPart / FIXED_POINT_SCALE);
+  }
+
+  private static long orderDoubleBits(long bits) {
+    return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+  }
+
+  private static long unorderDoubleBits(long bits) {
+    return bits < 0 ? bits ^ Long.MIN_VALUE : ~bits;
+  }
+
+  private static long getLong(ByteBuffer buffer) {
+    long value = buffer.getLong();
+    return buffer.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
+  }
+
+  private static long readLong(byte[] bytes, int offset) {
+    return (bytes[offset] & 0xFFL) << 56 | (bytes[offset + 1] & 0xFFL) << 48 | (bytes[offset + 2] & 0xFFL) << 40
+        | (bytes[offset + 3] & 0xFFL) << 32 | (bytes[offset + 4] & 0xFFL) << 24 | (bytes[offset + 5] & 0xFFL) << 16
+        | (bytes[offset + 6] & 0xFFL) << 8 | bytes[offset + 7] & 0xFFL;
+  }
+
+  private static void writeLong(long value, byte[] bytes, int offset) {
+    for (int index = 7; index >= 0; index--) {
+      bytes[offset + index] = (byte) value;
+      value >>>= 8;
+    }
   }
 
 }
@@ -75,6 +75,22 @@ public enum DbType {
     return storageType;
   }
 
+  /**
+   * @return true if records are stored in key order (the tree types), so that cursors can be positioned at an
+   *         arbitrary key and scan a range of keys.
+   */
+  public boolean isOrdered() {
+    switch (this) {
+      case PROTOTYPE_TREE:
+      case CACHE_TREE:
+      case FILE_TREE:
+      case DIRECTORY_TREE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
   public void validateFileForType(File file) {
     switch (storageType) {
       case FILE:
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+/**
+ * Receives keys one at a time as they are found by a streaming key match, such as
+ * {@link KyotoDb#matchKeysByPrefix(byte[], KeyVisitor)}, and may stop the match early.
+ */
+public interface KeyVisitor {
+
+  /**
+   * Visit a matching key.
+   * 
+   * @param key the key.
+   * @return {@code true} to continue matching, {@code false} to stop.
+   */
+  boolean key(byte[] key);
+
+}
@@ -139,6 +139,21 @@ public interface KyotoDb extends Closeable {
    */
   public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit);
 
+  /**
+   * Pass keys similar to a query string in terms of the <a
+   * href="http://en.wikipedia.org/wiki/Levenshtein_distance">Levenshtein distance</a> to a visitor as they are found,
+   * without collecting them. Every key in the database is read. Distances are measured in characters if the key
+   * character set is UTF-8, otherwise in bytes.
+   * 
+   * @param query The query string.
+   * @param maxLevenshteinDistance The maximum distance of keys to adopt.
+   * @param keyCharset The character encoding of the keys and query string.
+   * @param visitor receives the matching keys and may stop the match.
+   * @throws KyotoException on failure.
+   * @see #matchKeysByLevenshtein(String, long, Charset)
+   */
+  void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, KeyStringVisitor visitor);
+
   /**
    * Accept a read-only visitor to a single record. The visit operation on the record is performed atomically and other
    * threads accessing the same record are blocked.
@@ -227,6 +242,50 @@ public interface KyotoDb extends Closeable {
    */
   void accept(List<String> keys, WritableStringVisitor visitor);
 
+  /**
+   * Accept a read-only visitor of long values to a batch of records. The operation on each record is performed atomically
+   * and other threads accessing the same record are blocked.
+   * 
+   * @param keys the record keys.
+   * @param visitor a read-only visitor that implements {@link ReadOnlyLongVisitor}.
+   * @throws KyotoException on failure.
+   * @see #accept(byte[][], ReadOnlyVisitor)
+   */
+  void accept(byte[][] keys, ReadOnlyLongVisitor visitor);
+
+  /**
+   * Accept a read-only visitor of double values to a batch of records. The operation on each record is performed atomically
+   * and other threads accessing the same record are blocked.
+   * 
+   * @param keys the record keys.
+   * @param visitor a read-only visitor that implements {@link ReadOnlyDoubleVisitor}.
+   * @throws KyotoException on failure.
+   * @see #accept(byte[][], ReadOnlyVisitor)
+   */
+  void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor);
+
+  /**
+   * Accept a read-write visitor of long values to a batch of records. The operation on each record is performed atomically
+   * and other threads accessing the same record are blocked.
+   * 
+   * @param keys the record keys.
+   * @param visitor a read-write visitor that implements {@link WritableLongVisitor}.
+   * @throws KyotoException on failure.
+   * @see #accept(byte[][], WritableVisitor)
+   */
+  void accept(byte[][] keys, WritableLongVisitor visitor);
+
+  /**
+   * Accept a read-write visitor of double values to a batch of records. The operation on each record is performed atomically
+   * and other threads accessing the same record are blocked.
+   * 
+   * @param keys the record keys.
+   * @param visitor a read-write visitor that implements {@link WritableDoubleVisitor}.
+   * @throws KyotoException on failure.
+   * @see #accept(byte[][], WritableVisitor)
+   */
+  void accept(byte[][] keys, WritableDoubleVisitor visitor);
+
   /**
    * Create a record if it does not already exist in the database. If the record already exists, the record is not
    * modified and {@code false} is returned.
@@ -291,7 +350,9 @@ public interface KyotoDb extends Closeable {
   void clear();
 
   /**
-   * Close the database file.
+   * Close the database file. Calls in progress on other threads, including cursor operations, are allowed to finish
+   * first, and calls made after closing has begun throw {@link IllegalStateException}. Must not be called from within
+   * a visitor or file processor of the same database.
    * 
    * @throws IllegalStateException if the connection has already been closed.
    * @throws IOException on failure.
@@ -422,6 +483,31 @@ public interface KyotoDb extends Closeable {
    */
   String get(String key);
 
+  /**
+   * Retrieve the value of a record, or a default if it doesn't exist. Unlike {@link #get(byte[])} a miss is not
+   * confirmed by reading the database error, so it costs a single native call. The trade-off is that any other failure
+   * of the underlying lookup also returns the default.
+   * 
+   * @param key the record key.
+   * @param defaultValue returned when the record is not found, may be null.
+   * @return the value of the record, or {@code defaultValue}.
+   * @throws IllegalStateException if the database is not open.
+   * @see kyotocabinet.DB#get(byte[])
+   */
+  byte[] getOrDefault(byte[] key, byte[] defaultValue);
+
+  /**
+   * Retrieve the value of a record, or a default if it doesn't exist. Unlike {@link #get(String)} a miss is not
+   * confirmed by reading the database error, so it costs a single native call.
+   * 
+   * @param key the record key.
+   * @param defaultValue returned when the record is not found, may be null.
+   * @return the value of the record, or {@code defaultValue}.
+   * @throws IllegalStateException if the database is not open.
+   * @see #getOrDefault(byte[], byte[])
+   */
+  String getOrDefault(String key, String defaultValue);
+
   /**
    * Retrieve the double value of a record.
    * 
@@ -637,6 +723,17 @@ public interface KyotoDb extends Closeable {
    */
   void iterate(ReadOnlyStringVisitor visitor);
 
+  /**
+   * Visit all records with a read-only {@link ReadOnlyCharSequenceVisitor}. All records are visited in a single atomic
+   * block and other threads are blocked until the operation completes. Keys and values are only decoded when the
+   * visitor reads them.
+   * 
+   * @param visitor a read-only visitor that implements {@link ReadOnlyCharSequenceVisitor}.
+   * @throws KyotoException on failure.
+   * @see kyotocabinet.DB#iterate(kyotocabinet.Visitor, boolean)
+   */
+  void iterate(ReadOnlyCharSequenceVisitor visitor);
+
   /**
    * Visit all records with a read-write {@link WritableVisitor}. All records are visited in a single atomic block and
    * other threads are blocked until the operation completes. The {@link WritableVisitor} can mutate records.
@@ -657,6 +754,189 @@ public interface KyotoDb extends Closeable {
    */
   void iterate(WritableStringVisitor visitor);
 
+  /**
+   * Visit all records with a read-only visitor of long values. All records are visited in a single atomic block and
+   * other threads are blocked until the operation completes.
+   * 
+   * @param visitor a read-only visitor that implements {@link ReadOnlyLongVisitor}.
+   * @throws KyotoException on failure.
+   * @see #iterate(ReadOnlyVisitor)
+   */
+  void iterate(ReadOnlyLongVisitor visitor);
+
+  /**
+   * Visit all records with a read-only visitor of double values. All records are visited in a single atomic block and
+   * other threads are blocked until the operation completes.
+   * 
+   * @param visitor a read-only visitor that implements {@link ReadOnlyDoubleVisitor}.
+   * @throws KyotoException on failure.
+   * @see #iterate(ReadOnlyVisitor)
+   */
+  void iterate(ReadOnlyDoubleVisitor visitor);
+
+  /**
+   * Visit all records with a read-write visitor of long values. All records are visited in a single atomic block and
+   * other threads are blocked until the operation completes.
+   * 
+   * @param visitor a read-write visitor that implements {@link WritableLongVisitor}.
+   * @throws KyotoException on failure.
+   * @see #iterate(WritableVisitor)
+   */
+  void iterate(WritableLongVisitor visitor);
+
+  /**
+   * Visit all records with a read-write visitor of double values. All records are visited in a single atomic block and
+   * other threads are blocked until the operation completes.
+   * 
+   * @param visitor a read-write visitor that implements {@link WritableDoubleVisitor}.
+   * @throws KyotoException on failure.
+   * @see #iterate(WritableVisitor)
+   */
+  void iterate(WritableDoubleVisitor visitor);
+
+  /**
+   * Visit all records with a read-only {@link ReadOnlyVisitor} on several threads. Ordered databases that use the
+   * default lexical comparator are split into key ranges that are read by separate cursors, sharded databases are also
+   * split by shard. Other databases are read by a single cursor and the records handed to the visiting threads. Key
+   * ranges are interpolated between the first and last keys rather than sampled, so they hold similar numbers of
+   * records only if keys are evenly spread.
+   * Unlike {@link #iterate(ReadOnlyVisitor)} records are not visited in an atomic block, so writes made during the
+   * iteration may or may not be seen.
+   * 
+   * @param visitor a read-only visitor that must be safe to call from several threads at once.
+   * @param parallelism the number of threads that visit records.
+   * @throws KyotoException on failure, or if the calling thread is interrupted - the remaining records are not visited.
+   * @see #partitionedEntries(int)
+   */
+  void iterateParallel(ReadOnlyVisitor visitor, int parallelism);
+
+  /**
+   * Visit all records with a read-only {@link ReadOnlyStringVisitor} on several threads.
+   * 
+   * @param visitor a read-only visitor that must be safe to call from several threads at once.
+   * @param parallelism the number of threads that visit records.
+   * @throws KyotoException on failure, or if the calling thread is interrupted - the remaining records are not visited.
+   * @see #iterateParallel(ReadOnlyVisitor, int)
+   */
+  void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism);
+
+  /**
+   * Iterate over all records with a cursor. Unlike {@link #iterate(ReadOnlyVisitor)} other threads are not blocked
+   * while records are read, but the iterator does not see a consistent snapshot if records are modified concurrently.
+   * 
+   * @return an iterator of {@code [key, value]} pairs that must be closed if it is not read to the end.
+   * @throws KyotoException on failure.
+   * @see #cursor()
+   */
+  RecordIterator<byte[][]> entries();
+
+  /**
+   * Iterate over all record keys with a cursor.
+   * 
+   * @return an iterator of keys that must be closed if it is not read to the end.
+   * @throws KyotoException on failure.
+   * @see #entries()
+   */
+  RecordIterator<byte[]> keys();
+
+  /**
+   * Iterate over all record values with a cursor.
+   * 
+   * @return an iterator of values that must be closed if it is not read to the end.
+   * @throws KyotoException on failure.
+   * @see #entries()
+   */
+  RecordIterator<byte[]> values();
+
+  /**
+   * Divide the records into disjoint partitions that can be iterated concurrently, each with its own cursor. Ordered
+   * databases that use the default lexical comparator are split into key ranges, sharded databases by shard. Other
+   * databases cannot be split and return a single partition. Key ranges are of equal width between the first and last
+   * keys, so they are only balanced if keys are evenly spread.
+   * 
+   * @param maximumPartitions the maximum number of partitions to return.
+   * @return iterators of {@code [key, value]} pairs that together cover all records. Each must be closed if it is not
+   *         read to the end.
+   * @throws KyotoException on failure.
+   * @see DbType#isOrdered()
+   */
+  List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions);
+
+  /**
+   * Visit the records of an ordered database whose keys fall in the range {@code [fromKey, toKey)}, in the order of
+   * the database's comparator. The cursor jumps straight to {@code fromKey} and stops at the first key outside the
+   * range. Sharded databases visit shards one after another, in order within each shard.
+   * 
+   * @param fromKey the inclusive lower bound, or {@code null} to start at the first record.
+   * @param toKey the exclusive upper bound, or {@code null} to end at the last record.
+   * @param visitor receives each record in the range.
+   * @throws KyotoException on failure.
+   * @throws UnsupportedOperationException if the database is not ordered.
+   * @see DbType#isOrdered()
+   */
+  void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor);
+
+  /**
+   * Visit the records whose keys fall in the range {@code [fromKey, toKey)}, in the order of the database's comparator.
+   * 
+   * @see #scanRange(byte[], byte[], ReadOnlyVisitor)
+   */
+  void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor);
+
+  /**
+   * Visit the records of an ordered database whose keys fall in the range {@code [fromKey, toKey)} in reverse order,
+   * starting at the greatest key before {@code toKey}.
+   * 
+   * @param fromKey the inclusive lower bound, or {@code null} to end at the first record.
+   * @param toKey the exclusive upper bound, or {@code null} to start at the last record.
+   * @param visitor receives each record in the range.
+   * @throws KyotoException on failure.
+   * @throws UnsupportedOperationException if the database is not ordered.
+   * @see #scanRange(byte[], byte[], ReadOnlyVisitor)
+   */
+  void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor);
+
+  /**
+   * Visit the records whose keys fall in the range {@code [fromKey, toKey)} in reverse order.
+   * 
+   * @see #scanRangeDescending(byte[], byte[], ReadOnlyVisitor)
+   */
+  void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor);
+
+  /**
+   * Count the records of an ordered database whose keys fall in the range {@code [fromKey, toKey)}. Only keys are read.
+   * 
+   * @param fromKey the inclusive lower bound, or {@code null} for no lower bound.
+   * @param toKey the exclusive upper bound, or {@code null} for no upper bound.
+   * @return the number of records in the range.
+   * @throws KyotoException on failure.
+   * @throws UnsupportedOperationException if the database is not ordered.
+   */
+  long countRange(byte[] fromKey, byte[] toKey);
+
+  /**
+   * @see #countRange(byte[], byte[])
+   */
+  long countRange(String fromKey, String toKey);
+
+  /**
+   * Remove the records of an ordered database whose keys fall in the range {@code [fromKey, toKey)} with a cursor, in
+   * a series of transactions of a bounded number of records so that large ranges do not build one large transaction.
+   * Must not be called within a transaction.
+   * 
+   * @param fromKey the inclusive lower bound, or {@code null} for no lower bound.
+   * @param toKey the exclusive upper bound, or {@code null} for no upper bound.
+   * @return the number of records removed.
+   * @throws KyotoException on failure - records removed by transactions already committed stay removed.
+   * @throws UnsupportedOperationException if the database is not ordered.
+   */
+  long removeRange(byte[] fromKey, byte[] toKey);
+
+  /**
+   * @see #removeRange(byte[], byte[])
+   */
+  long removeRange(String fromKey, String toKey);
+
   /**
    * Load records from a snapshot file.
    * 
@@ -688,6 +968,27 @@ public interface KyotoDb extends Closeable {
    */
   List<String> matchKeysByPrefix(String prefix);
 
+  /**
+   * Pass all keys starting with a prefix to a visitor as they are found, without collecting them. Ordered databases
+   * with a {@code LEXICAL} comparator scan only the range of matching keys, other databases scan every key.
+   * 
+   * @param prefix the key prefix to match.
+   * @param visitor receives the matching keys and may stop the match.
+   * @throws KyotoException on failure.
+   * @see #matchKeysByPrefix(String)
+   */
+  void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor);
+
+  /**
+   * Pass all keys starting with a prefix to a visitor as they are found, without collecting them.
+   * 
+   * @param prefix the key prefix to match.
+   * @param visitor receives the matching keys and may stop the match.
+   * @throws KyotoException on failure.
+   * @see #matchKeysByPrefix(byte[], KeyVisitor)
+   */
+  void matchKeysByPrefix(String prefix, KeyStringVisitor visitor);
+
   /**
    * Get keys matching a regular expression.
    * 
@@ -710,6 +1011,18 @@ public interface KyotoDb extends Closeable {
    */
   List<String> matchKeysByRegex(String regex);
 
+  /**
+   * Pass all keys containing a match of a regular expression to a visitor as they are found, without collecting them.
+   * Every key in the database is read. Unlike {@link #matchKeysByRegex(String)} the expression is a Java
+   * {@link java.util.regex.Pattern}.
+   * 
+   * @param regex the regular expression to find in keys.
+   * @param visitor receives the matching keys and may stop the match.
+   * @throws KyotoException on failure.
+   * @throws java.util.regex.PatternSyntaxException if the expression is invalid.
+   */
+  void matchKeysByRegex(String regex, KeyStringVisitor visitor);
+
   /**
    * Merge records from other {@link KyotoDb} databases.
    * 
@@ -753,6 +1066,28 @@ public interface KyotoDb extends Closeable {
    */
   boolean remove(String key);
 
+  /**
+   * Removes a record if it exists. Unlike {@link #remove(byte[])} a false result is not confirmed by reading the
+   * database error, so removing an absent record costs a single native call. The trade-off is that any other failure
+   * of the underlying remove also returns false.
+   * 
+   * @param key the record key.
+   * @return true if the record was removed.
+   * @throws IllegalStateException if the database is not open.
+   * @see kyotocabinet.DB#remove(byte[])
+   */
+  boolean removeIfPresent(byte[] key);
+
+  /**
+   * Removes a record if it exists, without reading the database error when it doesn't.
+   * 
+   * @param key the record key.
+   * @return true if the record was removed.
+   * @throws IllegalStateException if the database is not open.
+   * @see #removeIfPresent(byte[])
+   */
+  boolean removeIfPresent(String key);
+
   /**
    * Bulk remove records.
    * 
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+/**
+ * Record visitor that cannot modify records and receives keys and values as {@link CharSequence}s that are only
+ * decoded when they are read. Visitors that look at a few characters of each key, or skip most records, avoid
+ * creating a {@code String} per record. ASCII text can be read with {@link CharSequence#charAt(int)} without being
+ * decoded at all. Call {@code toString()} to obtain a {@code String} that can be held on to.
+ * 
+ * @see kyotocabinet.Visitor
+ */
+public interface ReadOnlyCharSequenceVisitor {
+
+  /**
+   * Visit a record.
+   * 
+   * @param key the record key.
+   * @param value the record value.
+   * @see kyotocabinet.Visitor#visit_full(byte[], byte[])
+   */
+  void record(CharSequence key, CharSequence value);
+
+  /**
+   * Visit an empty record.
+   * 
+   * @param key the record key.
+   * @see kyotocabinet.Visitor#visit_empty(byte[])
+   */
+  void emptyRecord(CharSequence key);
+
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+/**
+ * Record visitor that cannot modify records and receives values decoded from the 8 byte integer representation written
+ * by {@link KyotoDb#increment(byte[], long)}, without allocating a buffer per record.
+ * 
+ * @see Codec#toLong(byte[])
+ */
+public interface ReadOnlyLongVisitor {
+
+  /**
+   * Visit a record.
+   * 
+   * @param key the record key.
+   * @param value the decoded record value.
+   */
+  void record(byte[] key, long value);
+
+  /**
+   * Visit an empty record.
+   * 
+   * @param key the record key.
+   */
+  void emptyRecord(byte[] key);
+
+}
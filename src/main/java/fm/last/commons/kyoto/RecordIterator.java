@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} over database records that is backed by a {@link KyotoCursor}. The cursor is released when the
+ * iterator is exhausted or closed - always close iterators that are not read to the end:
+ * 
+ * <pre>
+ * RecordIterator&lt;byte[]&gt; keys = db.keys();
+ * try {
+ *   while (keys.hasNext()) {
+ *     ...
+ *   }
+ * } finally {
+ *   keys.close();
+ * }
+ * </pre>
+ * 
+ * Instances are not thread safe. {@link #remove()} is not supported.
+ */
+public interface RecordIterator<T> extends Iterator<T>, Closeable {
+
+  /**
+   * Releases the underlying cursor. Calling this method more than once has no effect.
+   */
+  @Override
+  void close();
+
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+/**
+ * Changes the record being visited by a {@link WritableLongVisitor} or {@link WritableDoubleVisitor}. The record is
+ * left unchanged if no method is called. An update is only valid during the visit it was passed to, and the last call
+ * made wins.
+ */
+public interface ValueUpdate {
+
+  /**
+   * Replace the record value with the 8 byte integer representation read by {@link KyotoDb#increment(byte[], long)}.
+   * 
+   * @param value the new value.
+   * @see Codec#fromLong(long)
+   */
+  void set(long value);
+
+  /**
+   * Replace the record value with the 16 byte fixed point representation read by
+   * {@link KyotoDb#increment(byte[], double)}.
+   * 
+   * @param value the new value.
+   * @see Codec#toBytes(double)
+   */
+  void set(double value);
+
+  /**
+   * Remove the record.
+   */
+  void remove();
+
+}
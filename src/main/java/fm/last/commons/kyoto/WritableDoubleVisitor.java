@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+/**
+ * Record visitor that can modify records and receives values decoded from the 16 byte fixed point representation
+ * written by {@link KyotoDb#increment(byte[], double)}. New values are written back through a {@link ValueUpdate}.
+ * 
+ * @see Codec#toDouble(byte[])
+ */
+public interface WritableDoubleVisitor {
+
+  /**
+   * Visit a record.
+   * 
+   * @param key the record key.
+   * @param value the decoded record value.
+   * @param update replaces or removes the record, leaves it unchanged if not called.
+   */
+  void record(byte[] key, double value, ValueUpdate update);
+
+  /**
+   * Visit an empty record.
+   * 
+   * @param key the record key.
+   * @param update creates the record, leaves it absent if not called.
+   */
+  void emptyRecord(byte[] key, ValueUpdate update);
+
+}
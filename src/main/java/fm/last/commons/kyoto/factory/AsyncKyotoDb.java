@@ -0,0 +1,330 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+
+/**
+ * Runs {@link KyotoDb} calls on a dedicated pool of threads so that callers are not blocked by disk I/O. Each call
+ * returns a {@link KyotoFuture} to which {@link KyotoCallback}s can be added.
+ * <p/>
+ * At most {@code maximumPending} operations may be queued or running at once. When that many are pending further
+ * submissions either block until one completes or are rejected, depending on the {@link Backpressure}. Operations may
+ * run concurrently and so in any order - chain dependent operations with callbacks.
+ * <p/>
+ * {@link #close()} waits for pending operations and stops the threads but does not close the database.
+ */
+public class AsyncKyotoDb implements Closeable {
+
+  /** What to do when an operation is submitted while {@code maximumPending} operations are pending. */
+  public enum Backpressure {
+    /** Block the submitting thread until an operation completes. */
+    BLOCK,
+    /** Throw a {@link RejectedExecutionException}. */
+    REJECT;
+  }
+
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_MAXIMUM_PENDING = 1024;
+
+  private static final long TERMINATION_SECONDS = 60;
+
+  private final KyotoDb db;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int maximumPending;
+  private final Semaphore permits;
+  private final Backpressure backpressure;
+  private volatile boolean closed;
+
+  /**
+   * Uses {@value #DEFAULT_MAXIMUM_PENDING} pending operations, one thread per processor and blocks when full.
+   */
+  public AsyncKyotoDb(KyotoDb db) {
+    this(db, DEFAULT_THREADS, DEFAULT_MAXIMUM_PENDING, Backpressure.BLOCK);
+  }
+
+  public AsyncKyotoDb(KyotoDb db, int threads, int maximumPending, Backpressure backpressure) {
+    this(db, Executors.newFixedThreadPool(checkPositive(threads, "threads"), new DaemonThreadFactory("kyoto-async")),
+        true, maximumPending, backpressure);
+  }
+
+  /**
+   * Runs operations on the given executor, which is not shut down by {@link #close()}. The executor must not reject
+   * tasks - it is the number of pending operations that is bounded.
+   */
+  public AsyncKyotoDb(KyotoDb db, ExecutorService executor, int maximumPending, Backpressure backpressure) {
+    this(db, executor, false, maximumPending, backpressure);
+  }
+
+  private AsyncKyotoDb(KyotoDb db, ExecutorService executor, boolean ownsExecutor, int maximumPending,
+      Backpressure backpressure) {
+    this.db = db;
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+    this.maximumPending = checkPositive(maximumPending, "maximumPending");
+    this.backpressure = backpressure;
+    permits = new Semaphore(maximumPending);
+  }
+
+  public KyotoDb getDb() {
+    return db;
+  }
+
+  /**
+   * @return the number of operations queued or running.
+   */
+  public int getPendingCount() {
+    return maximumPending - permits.availablePermits();
+  }
+
+  public KyotoFuture<byte[]> get(final byte[] key) {
+    return submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() {
+        return db.get(key);
+      }
+    });
+  }
+
+  public KyotoFuture<String> get(final String key) {
+    return submit(new Callable<String>() {
+      @Override
+      public String call() {
+        return db.get(key);
+      }
+    });
+  }
+
+  public KyotoFuture<byte[][]> get(final byte[][] keys, final Atomicity atomicity) {
+    return submit(new Callable<byte[][]>() {
+      @Override
+      public byte[][] call() {
+        return db.get(keys, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Map<String, String>> get(final List<String> keys, final Atomicity atomicity) {
+    return submit(new Callable<Map<String, String>>() {
+      @Override
+      public Map<String, String> call() {
+        return db.get(keys, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Void> set(final byte[] key, final byte[] value) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        db.set(key, value);
+        return null;
+      }
+    });
+  }
+
+  public KyotoFuture<Void> set(final String key, final String value) {
+    return submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        db.set(key, value);
+        return null;
+      }
+    });
+  }
+
+  public KyotoFuture<Long> set(final byte[][] keyValues, final Atomicity atomicity) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.set(keyValues, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Long> set(final Map<String, String> keyValues, final Atomicity atomicity) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.set(keyValues, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Boolean> remove(final byte[] key) {
+    return submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return db.remove(key);
+      }
+    });
+  }
+
+  public KyotoFuture<Boolean> remove(final String key) {
+    return submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return db.remove(key);
+      }
+    });
+  }
+
+  public KyotoFuture<Long> remove(final byte[][] keys, final Atomicity atomicity) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.remove(keys, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Long> remove(final List<String> keys, final Atomicity atomicity) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.remove(keys, atomicity);
+      }
+    });
+  }
+
+  public KyotoFuture<Long> increment(final byte[] key, final long delta) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.increment(key, delta);
+      }
+    });
+  }
+
+  public KyotoFuture<Long> increment(final String key, final long delta) {
+    return submit(new Callable<Long>() {
+      @Override
+      public Long call() {
+        return db.increment(key, delta);
+      }
+    });
+  }
+
+  public KyotoFuture<Double> increment(final byte[] key, final double delta) {
+    return submit(new Callable<Double>() {
+      @Override
+      public Double call() {
+        return db.increment(key, delta);
+      }
+    });
+  }
+
+  public KyotoFuture<Double> increment(final String key, final double delta) {
+    return submit(new Callable<Double>() {
+      @Override
+      public Double call() {
+        return db.increment(key, delta);
+      }
+    });
+  }
+
+  /**
+   * Runs any other operation on the database threads, subject to the same limit on pending operations.
+   * 
+   * @throws RejectedExecutionException if closed, or if full and the {@link Backpressure} is {@link Backpressure#REJECT}
+   *           or the caller is interrupted while waiting.
+   */
+  public <T> KyotoFuture<T> submit(Callable<T> operation) {
+    acquirePermit();
+    KyotoFuture<T> future = new KyotoFuture<T>(operation) {
+      @Override
+      protected void done() {
+        permits.release();
+        super.done();
+      }
+    };
+    try {
+      executor.execute(future);
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+    return future;
+  }
+
+  /**
+   * Stops accepting operations and waits for pending operations to complete. The database is not closed.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    if (!ownsExecutor) {
+      permits.acquireUninterruptibly(maximumPending);
+      permits.release(maximumPending);
+      return;
+    }
+    executor.shutdown();
+    try {
+      executor.awaitTermination(TERMINATION_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void acquirePermit() {
+    if (closed) {
+      throw new RejectedExecutionException(this + " is closed.");
+    }
+    if (backpressure == Backpressure.REJECT) {
+      if (!permits.tryAcquire()) {
+        throw new RejectedExecutionException(maximumPending + " operations are already pending.");
+      }
+      return;
+    }
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for a pending operation to complete.", e);
+    }
+  }
+
+  private static int checkPositive(int value, String name) {
+    if (value < 1) {
+      throw new IllegalArgumentException(name + " must be > 0");
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("AsyncKyotoDb [db=");
+    builder.append(db);
+    builder.append(", pending=");
+    builder.append(getPendingCount());
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread safe blocked Bloom filter: each key maps to one 512 bit block - a cache line - and all of its bits are set
+ * within that block, so a lookup touches a single cache line. This costs a slightly higher false positive rate than a
+ * classic Bloom filter of the same size, which the sizing does not compensate for.
+ */
+final class BloomFilter {
+
+  static final int BLOCK_BITS = 512;
+  static final int BLOCK_LONGS = BLOCK_BITS / 64;
+  static final int MAXIMUM_HASHES = 16;
+
+  private static final double LN_2 = Math.log(2);
+  private static final int MAXIMUM_BLOCKS = Integer.MAX_VALUE / BLOCK_LONGS;
+
+  private final AtomicLongArray words;
+  private final int blocks;
+  private final int hashes;
+  private final long capacity;
+
+  private BloomFilter(int blocks, int hashes, long capacity) {
+    this.blocks = blocks;
+    this.hashes = hashes;
+    this.capacity = capacity;
+    words = new AtomicLongArray(blocks * BLOCK_LONGS);
+  }
+
+  /**
+   * Sizes a filter so that it has the given false positive probability once {@code capacity} keys have been added.
+   */
+  static BloomFilter create(long capacity, double falsePositiveProbability) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be > 0");
+    }
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be > 0 and < 1");
+    }
+    double bits = -capacity * Math.log(falsePositiveProbability) / (LN_2 * LN_2);
+    long blocks = Math.min(MAXIMUM_BLOCKS, Math.max(1, (long) Math.ceil(bits / BLOCK_BITS)));
+    int hashes = (int) Math.max(1, Math.min(MAXIMUM_HASHES, Math.round(bits / capacity * LN_2)));
+    return new BloomFilter((int) blocks, hashes, capacity);
+  }
+
+  /**
+   * @return true if the key was probably not in the filter before.
+   */
+  boolean add(byte[] key) {
+    long hash = hash(key);
+    int offset = blockOffset(hash);
+    int first = (int) hash;
+    int step = (int) mix(hash) | 1;
+    boolean changed = false;
+    for (int index = 0; index < hashes; index++) {
+      int bit = (first + index * step) & (BLOCK_BITS - 1);
+      int word = offset + (bit >>> 6);
+      long mask = 1L << bit;
+      while (true) {
+        long value = words.get(word);
+        if ((value & mask) != 0) {
+          break;
+        }
+        if (words.compareAndSet(word, value, value | mask)) {
+          changed = true;
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  boolean mightContain(byte[] key) {
+    long hash = hash(key);
+    int offset = blockOffset(hash);
+    int first = (int) hash;
+    int step = (int) mix(hash) | 1;
+    for (int index = 0; index < hashes; index++) {
+      int bit = (first + index * step) & (BLOCK_BITS - 1);
+      if ((words.get(offset + (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of keys the filter was sized for.
+   */
+  long capacity() {
+    return capacity;
+  }
+
+  long sizeInBytes() {
+    return words.length() * 8L;
+  }
+
+  /**
+   * Estimates the current false positive probability from the fraction of bits set. Reads every word.
+   */
+  double expectedFalsePositiveProbability() {
+    long set = 0;
+    for (int index = 0; index < words.length(); index++) {
+      set += Long.bitCount(words.get(index));
+    }
+    return Math.pow((double) set / (words.length() * 64L), hashes);
+  }
+
+  void writeTo(DataOutput output) throws IOException {
+    output.writeInt(blocks);
+    output.writeInt(hashes);
+    output.writeLong(capacity);
+    for (int index = 0; index < words.length(); index++) {
+      output.writeLong(words.get(index));
+    }
+  }
+
+  static BloomFilter readFrom(DataInput input) throws IOException {
+    int blocks = input.readInt();
+    int hashes = input.readInt();
+    long capacity = input.readLong();
+    if (blocks < 1 || blocks > MAXIMUM_BLOCKS || hashes < 1 || hashes > MAXIMUM_HASHES || capacity < 1) {
+      throw new IOException("Not a Bloom filter: blocks=" + blocks + ", hashes=" + hashes + ", capacity=" + capacity);
+    }
+    BloomFilter filter = new BloomFilter(blocks, hashes, capacity);
+    for (int index = 0; index < filter.words.length(); index++) {
+      filter.words.set(index, input.readLong());
+    }
+    return filter;
+  }
+
+  private int blockOffset(long hash) {
+    return (int) (((hash >>> 32) * blocks) >>> 32) * BLOCK_LONGS;
+  }
+
+  /**
+   * A 64 bit hash of the key: 8 byte little-endian words are mixed in with the MurmurHash3 finalizer.
+   */
+  static long hash(byte[] key) {
+    long hash = 0x9E3779B97F4A7C15L ^ key.length;
+    int index = 0;
+    for (; index + 8 <= key.length; index += 8) {
+      long word = (key[index] & 0xFFL) | (key[index + 1] & 0xFFL) << 8 | (key[index + 2] & 0xFFL) << 16
+          | (key[index + 3] & 0xFFL) << 24 | (key[index + 4] & 0xFFL) << 32 | (key[index + 5] & 0xFFL) << 40
+          | (key[index + 6] & 0xFFL) << 48 | (key[index + 7] & 0xFFL) << 56;
+      hash = Long.rotateLeft(hash ^ mix(word), 27) * 5 + 0x52DCE729;
+    }
+    long tail = 0;
+    for (int shift = 0; index < key.length; index++, shift += 8) {
+      tail |= (key[index] & 0xFFL) << shift;
+    }
+    return mix(hash ^ mix(tail));
+  }
+
+  private static long mix(long value) {
+    value ^= value >>> 33;
+    value *= 0xFF51AFD7ED558CCDL;
+    value ^= value >>> 33;
+    value *= 0xC4CEB9FE1A85EC53L;
+    value ^= value >>> 33;
+    return value;
+  }
+
+}
@@ -0,0 +1,802 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that keeps a Bloom filter of its keys on the heap, so that lookups of keys that are not in the
+ * database return without a JNI call. {@link #get(byte[])}, {@link #exists(byte[])}, {@link #valueSize(byte[])},
+ * {@link #getAndRemove(byte[])}, {@link #remove(byte[])} and {@link #replace(byte[], byte[])}, their {@link String}
+ * equivalents and bulk gets consult the filter first.
+ * <p/>
+ * Every operation that may create a record adds its key to the filter before the record is written. Removed keys stay
+ * in the filter, so when more keys have been added than it was sized for the filter is rebuilt, twice as large, in the
+ * background. Clearing the database, merging into it and loading a snapshot rebuild the filter straight away.
+ * <p/>
+ * On {@link #open()} the filter is read from a sidecar file next to the database file - {@code <file>.bloom} - if it
+ * was written when the database was last closed and the database has not changed since, otherwise it is built by
+ * iterating over all records. The sidecar is deleted once read, so that a crash cannot leave a stale one behind, and
+ * written again by {@link #close()}. Memory based databases have no sidecar.
+ * <p/>
+ * The filter is only correct if all writes are made through this instance - do not use it if the database is also
+ * modified by other processes or through other {@link KyotoDb} instances.
+ * 
+ * @see KyotoDbBuilder#bloomFilter(double)
+ */
+public class BloomFilteredKyotoDb extends ForwardingKyotoDb {
+
+  static final String SIDECAR_SUFFIX = ".bloom";
+  /** Keys the filter is sized for, as a multiple of the records in the database when it is built. */
+  static final int GROWTH_FACTOR = 2;
+  static final long MINIMUM_CAPACITY = 1024;
+
+  private static final int SIDECAR_MAGIC = 0x4B424631;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb delegate;
+  private final double falsePositiveProbability;
+  /**
+   * Writers hold the read lock while they add keys and write records, the write lock is held only to start a rebuild.
+   * This guarantees that a record is either written before a rebuild starts iterating or its key is added to the new
+   * filter.
+   */
+  private final ReadWriteLock rebuildGate = new ReentrantReadWriteLock();
+  private final AtomicLong insertions = new AtomicLong();
+  private final AtomicBoolean rebuilding = new AtomicBoolean();
+  private final StripedCounter shortCircuitedLookups = new StripedCounter();
+  private volatile BloomFilter filter;
+  private volatile BloomFilter nextFilter;
+  private volatile Thread rebuilder;
+  private volatile StringCodec codec;
+
+  BloomFilteredKyotoDb(KyotoDb delegate, double falsePositiveProbability) {
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be > 0 and < 1");
+    }
+    this.delegate = delegate;
+    this.falsePositiveProbability = falsePositiveProbability;
+    codec = new StringCodec(UTF_8);
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  /**
+   * @return the number of lookups answered by the filter without consulting the database.
+   */
+  public long getShortCircuitedLookupCount() {
+    return shortCircuitedLookups.sum();
+  }
+
+  /**
+   * @return the false positive probability of the filter as it is now, estimated from the fraction of its bits set, or
+   *         1 if the database is not open.
+   */
+  public double getExpectedFalsePositiveProbability() {
+    BloomFilter current = filter;
+    return current == null ? 1 : current.expectedFalsePositiveProbability();
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    return isAbsent(key) ? null : delegate.get(key);
+  }
+
+  @Override
+  public String get(String key) {
+    return isAbsent(key) ? null : delegate.get(key);
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    return isAbsent(key) ? defaultValue : delegate.getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    return isAbsent(key) ? defaultValue : delegate.getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    List<byte[]> candidates = new ArrayList<byte[]>(keys.length);
+    for (byte[] key : keys) {
+      if (!isAbsent(key)) {
+        candidates.add(key);
+      }
+    }
+    if (candidates.size() == keys.length) {
+      return delegate.get(keys, atomicity);
+    }
+    if (candidates.isEmpty()) {
+      return new byte[0][];
+    }
+    return delegate.get(candidates.toArray(new byte[candidates.size()][]), atomicity);
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    List<String> candidates = new ArrayList<String>(keys.size());
+    for (String key : keys) {
+      if (!isAbsent(key)) {
+        candidates.add(key);
+      }
+    }
+    if (candidates.size() == keys.size()) {
+      return delegate.get(keys, atomicity);
+    }
+    if (candidates.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    return delegate.get(candidates, atomicity);
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    return !isAbsent(key) && delegate.exists(key);
+  }
+
+  @Override
+  public boolean exists(String key) {
+    return !isAbsent(key) && delegate.exists(key);
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    return isAbsent(key) ? -1 : delegate.valueSize(key);
+  }
+
+  @Override
+  public int valueSize(String key) {
+    return isAbsent(key) ? -1 : delegate.valueSize(key);
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    return isAbsent(key) ? null : delegate.getAndRemove(key);
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    return isAbsent(key) ? null : delegate.getAndRemove(key);
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    return !isAbsent(key) && delegate.remove(key);
+  }
+
+  @Override
+  public boolean remove(String key) {
+    return !isAbsent(key) && delegate.remove(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    return !isAbsent(key) && delegate.removeIfPresent(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    return !isAbsent(key) && delegate.removeIfPresent(key);
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    return !isAbsent(key) && delegate.replace(key, newValue);
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    return !isAbsent(key) && delegate.replace(key, newValue);
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void set(String key, String value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    Lock lock = admitAll(keyValues, 2);
+    try {
+      return delegate.set(keyValues, atomicity);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    Lock lock = admitAll(keyValues.keySet());
+    try {
+      return delegate.set(keyValues, atomicity);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    Lock lock = admit(key);
+    try {
+      return delegate.putIfAbsent(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    Lock lock = admit(key);
+    try {
+      return delegate.putIfAbsent(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    Lock lock = admit(key);
+    try {
+      delegate.append(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void append(String key, String value) {
+    Lock lock = admit(key);
+    try {
+      delegate.append(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    Lock lock = admit(key);
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    Lock lock = admit(key);
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    Lock lock = admit(key);
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void set(String key, double value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    Lock lock = admit(key);
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    Lock lock = admit(key);
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void set(String key, long value) {
+    Lock lock = admit(key);
+    try {
+      delegate.set(key, value);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The key is added to the filter whether or not the visitor creates the record.
+   */
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    Lock lock = admit(key);
+    try {
+      delegate.accept(key, visitor);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The keys are added to the filter whether or not the visitor creates the records.
+   */
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    Lock lock = admitAll(keys, 1);
+    try {
+      delegate.accept(keys, visitor);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The key is added to the filter whether or not the visitor creates the record.
+   */
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    Lock lock = admit(key);
+    try {
+      delegate.accept(key, visitor);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The keys are added to the filter whether or not the visitor creates the records.
+   */
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    Lock lock = admitAll(keys);
+    try {
+      delegate.accept(keys, visitor);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void clear() {
+    Lock lock = rebuildGate.writeLock();
+    lock.lock();
+    try {
+      delegate.clear();
+      insertions.set(0);
+      filter = BloomFilter.create(MINIMUM_CAPACITY, falsePositiveProbability);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    try {
+      delegate.loadSnapshotFrom(source);
+    } finally {
+      rebuild();
+    }
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    try {
+      delegate.mergeWith(mergeType, dbs);
+    } finally {
+      rebuild();
+    }
+  }
+
+  @Override
+  public void open() throws IOException {
+    delegate.open();
+    BloomFilter loaded = readSidecar();
+    if (loaded != null) {
+      insertions.set(delegate.recordCount());
+      filter = loaded;
+      log.debug("Read Bloom filter of {} from {}", delegate, sidecarFile());
+    } else {
+      buildOnOpen();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    Thread running = rebuilder;
+    if (running != null) {
+      try {
+        running.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    BloomFilter current = filter;
+    long recordCount = delegate.recordCount();
+    long sizeInBytes = delegate.sizeInBytes();
+    delegate.close();
+    filter = null;
+    if (current != null && nextFilter == null) {
+      writeSidecar(current, recordCount, sizeInBytes);
+    }
+  }
+
+  @Override
+  public void setEncoding(String encoding) {
+    delegate.setEncoding(encoding);
+    codec = new StringCodec(Charset.forName(encoding));
+  }
+
+  private boolean isAbsent(byte[] key) {
+    BloomFilter current = filter;
+    if (current != null && !current.mightContain(key)) {
+      shortCircuitedLookups.increment();
+      return true;
+    }
+    return false;
+  }
+
+  private boolean isAbsent(String key) {
+    return filter != null && isAbsent(codec.encode(key));
+  }
+
+  /**
+   * Adds a key to the filter and returns the held read lock, which must be released once the record is written.
+   */
+  private Lock admit(byte[] key) {
+    Lock lock = rebuildGate.readLock();
+    lock.lock();
+    add(key);
+    return lock;
+  }
+
+  private Lock admit(String key) {
+    return admit(codec.encode(key));
+  }
+
+  private Lock admitAll(byte[][] keys, int step) {
+    Lock lock = rebuildGate.readLock();
+    lock.lock();
+    for (int index = 0; index < keys.length; index += step) {
+      add(keys[index]);
+    }
+    return lock;
+  }
+
+  private Lock admitAll(Iterable<String> keys) {
+    Lock lock = rebuildGate.readLock();
+    lock.lock();
+    for (String key : keys) {
+      add(codec.encode(key));
+    }
+    return lock;
+  }
+
+  private void add(byte[] key) {
+    BloomFilter current = filter;
+    if (current == null) {
+      return;
+    }
+    BloomFilter next = nextFilter;
+    if (next != null) {
+      next.add(key);
+    }
+    if (current.add(key) && insertions.incrementAndGet() > current.capacity()) {
+      startBackgroundRebuild();
+    }
+  }
+
+  private void buildOnOpen() {
+    long recordCount = delegate.recordCount();
+    final BloomFilter built = BloomFilter.create(capacity(recordCount), falsePositiveProbability);
+    long start = System.currentTimeMillis();
+    delegate.iterate(new ReadOnlyVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        built.add(key);
+      }
+
+      @Override
+      public void emptyRecord(byte[] key) {
+      }
+    });
+    insertions.set(recordCount);
+    filter = built;
+    log.info("Built Bloom filter of {} records of {} in {}ms", new Object[] { recordCount, delegate,
+      System.currentTimeMillis() - start });
+  }
+
+  private void startBackgroundRebuild() {
+    if (!rebuilding.compareAndSet(false, true)) {
+      return;
+    }
+    Thread thread = new DaemonThreadFactory("kyoto-bloom-rebuild").newThread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          rebuild();
+        } catch (RuntimeException e) {
+          log.error("Could not rebuild Bloom filter of " + delegate, e);
+        } finally {
+          rebuilder = null;
+          rebuilding.set(false);
+        }
+      }
+    });
+    rebuilder = thread;
+    thread.start();
+  }
+
+  /**
+   * Builds a new filter from the keys in the database while writes continue. Writes made after the new filter is
+   * published to writers are added to it directly.
+   */
+  private synchronized void rebuild() {
+    BloomFilter next = BloomFilter.create(capacity(Math.max(delegate.recordCount(), insertions.get())),
+        falsePositiveProbability);
+    Lock lock = rebuildGate.writeLock();
+    lock.lock();
+    try {
+      nextFilter = next;
+    } finally {
+      lock.unlock();
+    }
+    long recordCount = 0;
+    boolean built = false;
+    try {
+      RecordIterator<byte[]> keys = delegate.keys();
+      try {
+        while (keys.hasNext()) {
+          next.add(keys.next());
+          recordCount++;
+        }
+      } finally {
+        keys.close();
+      }
+      built = true;
+    } finally {
+      // Writers add to both filters under the read lock - publishing under the write lock means none can add a key
+      // only to the filter being replaced
+      lock.lock();
+      try {
+        if (built) {
+          insertions.set(recordCount);
+          filter = next;
+        }
+        nextFilter = null;
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private BloomFilter readSidecar() {
+    File sidecar = sidecarFile();
+    if (sidecar == null || !sidecar.isFile()) {
+      return null;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+      if (input.readInt() != SIDECAR_MAGIC) {
+        log.warn("Ignoring {}, it is not a Bloom filter sidecar", sidecar);
+        return null;
+      }
+      long recordCount = input.readLong();
+      long sizeInBytes = input.readLong();
+      if (recordCount != delegate.recordCount() || sizeInBytes != delegate.sizeInBytes()) {
+        log.info("Ignoring {}, {} has changed since it was written", sidecar, delegate);
+        return null;
+      }
+      return BloomFilter.readFrom(input);
+    } catch (IOException e) {
+      log.warn("Could not read Bloom filter sidecar " + sidecar, e);
+      return null;
+    } finally {
+      closeQuietly(input);
+      if (!sidecar.delete()) {
+        log.warn("Could not delete Bloom filter sidecar {}, it may become stale", sidecar);
+      }
+    }
+  }
+
+  private void writeSidecar(BloomFilter current, long recordCount, long sizeInBytes) {
+    File sidecar = sidecarFile();
+    if (sidecar == null) {
+      return;
+    }
+    File temporary = new File(sidecar.getPath() + ".tmp");
+    DataOutputStream output = null;
+    try {
+      output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+      output.writeInt(SIDECAR_MAGIC);
+      output.writeLong(recordCount);
+      output.writeLong(sizeInBytes);
+      current.writeTo(output);
+      output.close();
+      output = null;
+      if (!temporary.renameTo(sidecar)) {
+        throw new IOException("Could not rename " + temporary + " to " + sidecar);
+      }
+    } catch (IOException e) {
+      log.warn("Could not write Bloom filter sidecar " + sidecar + ", it will be rebuilt on open", e);
+      temporary.delete();
+    } finally {
+      closeQuietly(output);
+    }
+  }
+
+  private File sidecarFile() {
+    File file = delegate.getFile();
+    return file == null ? null : new File(file.getPath() + SIDECAR_SUFFIX);
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+      // already failed or finished with the stream
+    }
+  }
+
+  private static long capacity(long recordCount) {
+    return Math.max(MINIMUM_CAPACITY, recordCount * GROWTH_FACTOR);
+  }
+
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.mapreduce.Reducer;
+
+/**
+ * Loads a large number of records given in any order into a tree database by sorting them first, so that the database
+ * is written in key order and its B+ tree pages are filled one after another rather than split at random. Records are
+ * buffered in memory, spilled to temporary files as sorted runs when the buffer is full and merged by {@link #load()}
+ * in the order of the database's {@link PageComparator}, then written in bulk within large transactions. When a key is
+ * added more than once the last value added is stored.
+ * <p/>
+ * Build the database with a generous {@link KyotoDbBuilder#pageCacheSize(long) page cache} - pages are only written
+ * once, but a large cache lets Kyoto Cabinet write them in big sequential chunks.
+ * 
+ * <pre>
+ * BulkLoader loader = new BulkLoader(db, PageComparator.LEXICAL);
+ * for (...) {
+ *   loader.add(key, value);
+ * }
+ * loader.load();
+ * </pre>
+ */
+public class BulkLoader implements Closeable {
+
+  /** Receives progress reports from {@link BulkLoader#load()}. */
+  public interface ProgressListener {
+
+    /**
+     * Called after each transaction is committed, or every {@value BulkLoader#DEFAULT_TRANSACTION_SIZE} records when
+     * not using transactions, and once all records are loaded.
+     * 
+     * @param loadedRecords the number of records written to the database so far.
+     * @param addedRecords the number of records that were added, including repeated keys.
+     */
+    void progress(long loadedRecords, long addedRecords);
+
+  }
+
+  public static final long DEFAULT_BUFFER_SIZE = 64L * 1024 * 1024;
+  public static final int DEFAULT_TRANSACTION_SIZE = 100000;
+
+  /** Records written by each bulk {@link KyotoDb#set(byte[][], Atomicity)} call. */
+  static final int WRITE_BATCH_SIZE = 1000;
+  /** Approximate heap used by a buffered record in addition to its key and value. */
+  private static final int PAIR_OVERHEAD = 64;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb db;
+  private final Comparator<byte[]> keyOrder;
+  private final List<SortedRun> runs = new ArrayList<SortedRun>();
+  private List<byte[][]> buffer = new ArrayList<byte[][]>();
+  private long bufferedBytes;
+  private long addedRecords;
+  private boolean loaded;
+  private File temporaryFolder = new File(System.getProperty("java.io.tmpdir"));
+  private long bufferSize = DEFAULT_BUFFER_SIZE;
+  private boolean compressRuns;
+  private int transactionSize = DEFAULT_TRANSACTION_SIZE;
+  private ProgressListener progressListener;
+
+  /**
+   * Loads records into a database that uses the {@link PageComparator#LEXICAL lexical} comparator.
+   */
+  public BulkLoader(KyotoDb db) {
+    this(db, PageComparator.LEXICAL);
+  }
+
+  /**
+   * @param comparator the comparator the tree database was built with.
+   */
+  public BulkLoader(KyotoDb db, PageComparator comparator) {
+    this.db = db;
+    keyOrder = comparator.keyOrder();
+  }
+
+  public File getTemporaryFolder() {
+    return temporaryFolder;
+  }
+
+  /**
+   * The folder sorted runs are spilled to. Defaults to {@code java.io.tmpdir}.
+   */
+  public void setTemporaryFolder(File temporaryFolder) {
+    this.temporaryFolder = temporaryFolder;
+  }
+
+  public long getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The approximate size in bytes of the records held in memory before they are spilled as a sorted run.
+   */
+  public void setBufferSize(long bufferSize) {
+    if (bufferSize < 1) {
+      throw new IllegalArgumentException("bufferSize must be > 0");
+    }
+    this.bufferSize = bufferSize;
+  }
+
+  public boolean getCompressRuns() {
+    return compressRuns;
+  }
+
+  /**
+   * Whether to compress spilled runs, trading CPU for temporary disk space.
+   */
+  public void setCompressRuns(boolean compressRuns) {
+    this.compressRuns = compressRuns;
+  }
+
+  public int getTransactionSize() {
+    return transactionSize;
+  }
+
+  /**
+   * The number of records written in each transaction, or 0 to write without transactions.
+   */
+  public void setTransactionSize(int transactionSize) {
+    if (transactionSize < 0) {
+      throw new IllegalArgumentException("transactionSize must be >= 0");
+    }
+    this.transactionSize = transactionSize;
+  }
+
+  public void setProgressListener(ProgressListener progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  public void add(byte[] key, byte[] value) throws IOException {
+    if (loaded) {
+      throw new IllegalStateException("Records have already been loaded.");
+    }
+    buffer.add(new byte[][] { key, value });
+    bufferedBytes += key.length + value.length + PAIR_OVERHEAD;
+    addedRecords++;
+    if (bufferedBytes >= bufferSize) {
+      spill();
+    }
+  }
+
+  public void add(String key, String value) throws IOException {
+    add(key.getBytes(UTF_8), value.getBytes(UTF_8));
+  }
+
+  /**
+   * @return the number of records added so far, including repeated keys.
+   */
+  public long getAddedRecords() {
+    return addedRecords;
+  }
+
+  /**
+   * Merges the added records and writes them to the database in key order, then synchronizes the database with the
+   * file system. May only be called once.
+   * 
+   * @return the number of records written.
+   * @throws KyotoException if a record could not be written - records already committed remain in the database.
+   */
+  public long load() throws IOException {
+    if (loaded) {
+      throw new IllegalStateException("Records have already been loaded.");
+    }
+    loaded = true;
+    long start = System.currentTimeMillis();
+    if (!buffer.isEmpty()) {
+      runs.add(SortedRun.inMemory(buffer, keyOrder));
+      buffer = null;
+    }
+    log.info("Loading {} records from {} sorted runs into {}", new Object[] { addedRecords, runs.size(), db });
+    RunWriter writer = new RunWriter();
+    try {
+      RunMerger merger = new RunMerger(runs, keyOrder);
+      try {
+        merger.reduceAll(writer);
+      } finally {
+        merger.close();
+      }
+      writer.finish();
+    } finally {
+      writer.abandon();
+      deleteRuns();
+    }
+    db.synchronize(Synchronization.PHYSICAL, null);
+    log.info("Loaded {} records into {} in {}ms", new Object[] { writer.written, db,
+      System.currentTimeMillis() - start });
+    return writer.written;
+  }
+
+  /**
+   * Deletes any spilled runs. The database is not closed.
+   */
+  @Override
+  public void close() {
+    loaded = true;
+    buffer = null;
+    deleteRuns();
+  }
+
+  private void spill() throws IOException {
+    runs.add(SortedRun.spill(buffer, temporaryFolder, compressRuns, keyOrder));
+    log.debug("Spilled run {} of {} records", runs.size(), buffer.size());
+    buffer = new ArrayList<byte[][]>();
+    bufferedBytes = 0;
+  }
+
+  private void deleteRuns() {
+    for (SortedRun run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  /**
+   * Writes the last value of each key in batches, within transactions if configured.
+   */
+  private class RunWriter implements Reducer {
+
+    private final List<byte[]> batch = new ArrayList<byte[]>(WRITE_BATCH_SIZE * 2);
+    private long written;
+    private long uncommitted;
+    private boolean inTransaction;
+
+    @Override
+    public void reduce(byte[] key, Iterable<byte[]> values) {
+      byte[] value = null;
+      for (byte[] next : values) {
+        value = next;
+      }
+      batch.add(key);
+      batch.add(value);
+      if (batch.size() >= WRITE_BATCH_SIZE * 2) {
+        writeBatch();
+      }
+    }
+
+    void finish() {
+      writeBatch();
+      commit();
+      report();
+    }
+
+    /**
+     * Rolls back an open transaction after a failure.
+     */
+    void abandon() {
+      if (inTransaction) {
+        inTransaction = false;
+        try {
+          db.rollback();
+        } catch (RuntimeException e) {
+          log.warn("Could not roll back failed bulk load transaction.", e);
+        }
+      }
+    }
+
+    private void writeBatch() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      if (transactionSize > 0 && !inTransaction) {
+        db.begin(Synchronization.LOGICAL);
+        inTransaction = true;
+      }
+      db.set(batch.toArray(new byte[batch.size()][]), Atomicity.NONE);
+      int records = batch.size() / 2;
+      batch.clear();
+      written += records;
+      uncommitted += records;
+      if (uncommitted >= (transactionSize > 0 ? transactionSize : DEFAULT_TRANSACTION_SIZE)) {
+        commit();
+        report();
+      }
+    }
+
+    private void commit() {
+      if (inTransaction) {
+        db.commit();
+        inTransaction = false;
+      }
+      uncommitted = 0;
+    }
+
+    private void report() {
+      if (progressListener != null) {
+        progressListener.progress(written, addedRecords);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.Arrays;
+
+/**
+ * A record key usable as a hash map key. Wraps the given array without copying it - use {@link #copy()} before holding
+ * on to a key that is owned by the caller.
+ */
+final class ByteArrayKey {
+
+  private final byte[] bytes;
+  private final int hashCode;
+
+  ByteArrayKey(byte[] bytes) {
+    this.bytes = bytes;
+    hashCode = Arrays.hashCode(bytes);
+  }
+
+  byte[] bytes() {
+    return bytes;
+  }
+
+  int length() {
+    return bytes.length;
+  }
+
+  ByteArrayKey copy() {
+    return new ByteArrayKey(bytes.clone());
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ByteArrayKey)) {
+      return false;
+    }
+    ByteArrayKey other = (ByteArrayKey) obj;
+    return hashCode == other.hashCode && Arrays.equals(bytes, other.bytes);
+  }
+
+}
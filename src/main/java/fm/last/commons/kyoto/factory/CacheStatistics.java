@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * A snapshot of the statistics of the read cache of a {@link CachingKyotoDb}.
+ */
+public final class CacheStatistics {
+
+  private final long hitCount;
+  private final long missCount;
+  private final long evictionCount;
+  private final long rejectionCount;
+  private final long entryCount;
+  private final long sizeInBytes;
+  private final long maximumEntries;
+  private final long maximumBytes;
+
+  CacheStatistics(long hitCount, long missCount, long evictionCount, long rejectionCount, long entryCount,
+      long sizeInBytes, long maximumEntries, long maximumBytes) {
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.evictionCount = evictionCount;
+    this.rejectionCount = rejectionCount;
+    this.entryCount = entryCount;
+    this.sizeInBytes = sizeInBytes;
+    this.maximumEntries = maximumEntries;
+    this.maximumBytes = maximumBytes;
+  }
+
+  /**
+   * @return the number of lookups that were answered from the cache.
+   */
+  public long hitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return the number of lookups that went to the database.
+   */
+  public long missCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the ratio of hits to lookups, or 1.0 if there have been no lookups.
+   */
+  public double hitRate() {
+    long requests = hitCount + missCount;
+    return requests == 0 ? 1.0d : (double) hitCount / requests;
+  }
+
+  /**
+   * @return the number of entries that were evicted to make room for more frequently used entries.
+   */
+  public long evictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * @return the number of values that were not cached because they were used less often than the entries they would
+   *         have evicted, or were larger than the cache.
+   */
+  public long rejectionCount() {
+    return rejectionCount;
+  }
+
+  /**
+   * @return the number of entries currently cached.
+   */
+  public long entryCount() {
+    return entryCount;
+  }
+
+  /**
+   * @return the combined size of the keys and values currently cached.
+   */
+  public long sizeInBytes() {
+    return sizeInBytes;
+  }
+
+  public long maximumEntries() {
+    return maximumEntries;
+  }
+
+  public long maximumBytes() {
+    return maximumBytes;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("CacheStatistics [hitCount=");
+    builder.append(hitCount);
+    builder.append(", missCount=");
+    builder.append(missCount);
+    builder.append(", evictionCount=");
+    builder.append(evictionCount);
+    builder.append(", rejectionCount=");
+    builder.append(rejectionCount);
+    builder.append(", entryCount=");
+    builder.append(entryCount);
+    builder.append(", sizeInBytes=");
+    builder.append(sizeInBytes);
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
@@ -0,0 +1,715 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that keeps recently read record values in a bounded on-heap cache so that hot keys do not need a
+ * JNI round trip. Values are cached on read, never on write, and every write made through this instance invalidates
+ * the affected keys. Operations that may touch any record (clearing, writable iteration, cursor writes, merges,
+ * snapshot loads and transaction roll backs) invalidate the whole cache.
+ * <p/>
+ * The cache is only coherent with writes made through this instance - do not use it if the database is also modified
+ * by other processes or through other {@link KyotoDb} instances. Counter values read with {@link #getLong(byte[])} and
+ * {@link #getDouble(byte[])} are not cached.
+ * 
+ * @see KyotoDbBuilder#readCache(long, long)
+ */
+public class CachingKyotoDb extends ForwardingKyotoDb {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final KyotoDb delegate;
+  private final ReadCache cache;
+  private volatile StringCodec codec;
+
+  CachingKyotoDb(KyotoDb delegate, long maximumEntries, long maximumBytes) {
+    this.delegate = delegate;
+    cache = new ReadCache(maximumEntries, maximumBytes);
+    codec = new StringCodec(UTF_8);
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  /**
+   * @return a snapshot of the cache statistics.
+   */
+  public CacheStatistics getCacheStatistics() {
+    return cache.statistics();
+  }
+
+  /**
+   * Discards all cached values.
+   */
+  public void invalidateCache() {
+    cache.invalidateAll();
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    ByteArrayKey cacheKey = new ByteArrayKey(key);
+    byte[] value = cache.get(cacheKey);
+    if (value != null) {
+      return value.clone();
+    }
+    long token = cache.invalidationToken(cacheKey);
+    value = delegate.get(key);
+    if (value != null) {
+      cache.put(cacheKey.copy(), value.clone(), token);
+    }
+    return value;
+  }
+
+  @Override
+  public String get(String key) {
+    return decode(get(encode(key)));
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    ByteArrayKey cacheKey = new ByteArrayKey(key);
+    byte[] value = cache.get(cacheKey);
+    if (value != null) {
+      return value.clone();
+    }
+    long token = cache.invalidationToken(cacheKey);
+    value = delegate.getOrDefault(key, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    cache.put(cacheKey.copy(), value.clone(), token);
+    return value;
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    byte[] value = getOrDefault(encode(key), null);
+    return value == null ? defaultValue : decode(value);
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    if (atomicity == Atomicity.ATOMIC) {
+      return delegate.get(keys, atomicity);
+    }
+    List<byte[]> results = new ArrayList<byte[]>(keys.length * 2);
+    List<byte[]> misses = new ArrayList<byte[]>();
+    Map<ByteArrayKey, Long> tokens = new HashMap<ByteArrayKey, Long>();
+    for (byte[] key : keys) {
+      ByteArrayKey cacheKey = new ByteArrayKey(key);
+      byte[] value = cache.get(cacheKey);
+      if (value != null) {
+        results.add(key);
+        results.add(value.clone());
+      } else {
+        misses.add(key);
+        tokens.put(cacheKey, cache.invalidationToken(cacheKey));
+      }
+    }
+    if (!misses.isEmpty()) {
+      byte[][] fetched = delegate.get(misses.toArray(new byte[misses.size()][]), atomicity);
+      for (int index = 0; index + 1 < fetched.length; index += 2) {
+        ByteArrayKey cacheKey = new ByteArrayKey(fetched[index]);
+        Long token = tokens.get(cacheKey);
+        if (token != null) {
+          cache.put(cacheKey.copy(), fetched[index + 1].clone(), token);
+        }
+        results.add(fetched[index]);
+        results.add(fetched[index + 1]);
+      }
+    }
+    return results.toArray(new byte[results.size()][]);
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    if (atomicity == Atomicity.ATOMIC) {
+      return delegate.get(keys, atomicity);
+    }
+    Map<String, String> results = new HashMap<String, String>();
+    List<String> misses = new ArrayList<String>();
+    Map<String, Long> tokens = new HashMap<String, Long>();
+    for (String key : keys) {
+      ByteArrayKey cacheKey = new ByteArrayKey(encode(key));
+      byte[] value = cache.get(cacheKey);
+      if (value != null) {
+        results.put(key, decode(value));
+      } else {
+        misses.add(key);
+        tokens.put(key, cache.invalidationToken(cacheKey));
+      }
+    }
+    if (!misses.isEmpty()) {
+      Map<String, String> fetched = delegate.get(misses, atomicity);
+      for (Map.Entry<String, String> entry : fetched.entrySet()) {
+        Long token = tokens.get(entry.getKey());
+        if (token != null && entry.getValue() != null) {
+          cache.put(new ByteArrayKey(encode(entry.getKey())), encode(entry.getValue()), token);
+        }
+      }
+      results.putAll(fetched);
+    }
+    return results;
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    if (cache.peek(new ByteArrayKey(key)) != null) {
+      return true;
+    }
+    return delegate.exists(key);
+  }
+
+  @Override
+  public boolean exists(String key) {
+    return exists(encode(key));
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    byte[] value = cache.peek(new ByteArrayKey(key));
+    if (value != null) {
+      return value.length;
+    }
+    return delegate.valueSize(key);
+  }
+
+  @Override
+  public int valueSize(String key) {
+    return valueSize(encode(key));
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void set(String key, String value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    try {
+      return delegate.set(keyValues, atomicity);
+    } finally {
+      for (int index = 0; index < keyValues.length; index += 2) {
+        invalidate(keyValues[index]);
+      }
+    }
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    try {
+      return delegate.set(keyValues, atomicity);
+    } finally {
+      for (String key : keyValues.keySet()) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    try {
+      return delegate.remove(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean remove(String key) {
+    try {
+      return delegate.remove(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    try {
+      return delegate.removeIfPresent(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    try {
+      return delegate.removeIfPresent(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    try {
+      return delegate.remove(keys, atomicity);
+    } finally {
+      for (byte[] key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    try {
+      return delegate.remove(keys, atomicity);
+    } finally {
+      for (String key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    try {
+      return delegate.getAndRemove(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    try {
+      return delegate.getAndRemove(key);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    try {
+      return delegate.putIfAbsent(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    try {
+      return delegate.putIfAbsent(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    try {
+      return delegate.replace(key, newValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    try {
+      return delegate.replace(key, newValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    try {
+      delegate.append(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void append(String key, String value) {
+    try {
+      delegate.append(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void set(String key, double value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    try {
+      return delegate.increment(key, delta);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void set(String key, long value) {
+    try {
+      delegate.set(key, value);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    try {
+      delegate.accept(key, visitor);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    try {
+      delegate.accept(keys, visitor);
+    } finally {
+      for (byte[] key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    try {
+      delegate.accept(key, visitor);
+    } finally {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    try {
+      delegate.accept(keys, visitor);
+    } finally {
+      for (String key : keys) {
+        invalidate(key);
+      }
+    }
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    try {
+      delegate.iterate(visitor);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    try {
+      delegate.iterate(visitor);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    return new InvalidatingCursor(delegate.cursor());
+  }
+
+  @Override
+  public void clear() {
+    try {
+      delegate.clear();
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    try {
+      return delegate.removeRange(fromKey, toKey);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    try {
+      return delegate.removeRange(fromKey, toKey);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void rollback() {
+    try {
+      delegate.rollback();
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    try {
+      delegate.loadSnapshotFrom(source);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    try {
+      delegate.mergeWith(mergeType, dbs);
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void open() throws IOException {
+    cache.invalidateAll();
+    delegate.open();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      delegate.close();
+    } finally {
+      cache.invalidateAll();
+    }
+  }
+
+  @Override
+  public void setEncoding(String encoding) {
+    delegate.setEncoding(encoding);
+    codec = new StringCodec(Charset.forName(encoding));
+    cache.invalidateAll();
+  }
+
+  private void invalidate(byte[] key) {
+    cache.invalidate(new ByteArrayKey(key));
+  }
+
+  private void invalidate(String key) {
+    invalidate(encode(key));
+  }
+
+  private byte[] encode(String value) {
+    return codec.encode(value);
+  }
+
+  private String decode(byte[] value) {
+    return codec.decode(value);
+  }
+
+  private class InvalidatingCursor extends ForwardingKyotoCursor {
+
+    private final KyotoCursor delegate;
+
+    InvalidatingCursor(KyotoCursor delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    protected KyotoCursor delegate() {
+      return delegate;
+    }
+
+    @Override
+    public void accept(WritableVisitor visitor, CursorStep step) {
+      try {
+        delegate.accept(visitor, step);
+      } finally {
+        cache.invalidateAll();
+      }
+    }
+
+    @Override
+    public void setValue(byte[] value, CursorStep step) {
+      try {
+        delegate.setValue(value, step);
+      } finally {
+        cache.invalidateAll();
+      }
+    }
+
+    @Override
+    public void setValue(String value, CursorStep step) {
+      try {
+        delegate.setValue(value, step);
+      } finally {
+        cache.invalidateAll();
+      }
+    }
+
+    @Override
+    public void remove() {
+      try {
+        delegate.remove();
+      } finally {
+        cache.invalidateAll();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fm.last.commons.kyoto.mapreduce.Combiner;
+import fm.last.commons.kyoto.mapreduce.Context;
+
+/**
+ * A {@link Context} that collects values by key and passes them through a {@link Combiner} to another
+ * {@link Context} once the buffered pairs reach a size limit, and on {@link #flush()}. Not thread safe.
+ */
+class CombiningBuffer implements Context {
+
+  /** Approximate heap used by a buffered key or value in addition to its bytes. */
+  private static final int OVERHEAD = 48;
+
+  private final Combiner combiner;
+  private final long maximumBytes;
+  private final Context output;
+  private final Map<ByteArrayKey, List<byte[]>> buffer = new HashMap<ByteArrayKey, List<byte[]>>();
+  private long bufferedBytes;
+
+  CombiningBuffer(Combiner combiner, long maximumBytes, Context output) {
+    this.combiner = combiner;
+    this.maximumBytes = maximumBytes;
+    this.output = output;
+  }
+
+  @Override
+  public void write(byte[] key, byte[] value) {
+    List<byte[]> values = buffer.get(new ByteArrayKey(key));
+    if (values == null) {
+      values = new ArrayList<byte[]>(2);
+      buffer.put(new ByteArrayKey(key).copy(), values);
+      bufferedBytes += key.length + OVERHEAD;
+    }
+    values.add(value.clone());
+    bufferedBytes += value.length + OVERHEAD;
+    if (bufferedBytes >= maximumBytes) {
+      flush();
+    }
+  }
+
+  /**
+   * Combines and writes all buffered pairs.
+   */
+  void flush() {
+    for (Map.Entry<ByteArrayKey, List<byte[]>> entry : buffer.entrySet()) {
+      combiner.combine(entry.getKey().bytes(), entry.getValue(), output);
+    }
+    buffer.clear();
+    bufferedBytes = 0;
+  }
+
+  /**
+   * Combines pairs that are sorted by key, keeping the output in a list.
+   * 
+   * @return the combined pairs, in the order written by the combiner.
+   */
+  static List<byte[][]> combineSorted(List<byte[][]> sortedPairs, Combiner combiner) {
+    final List<byte[][]> combined = new ArrayList<byte[][]>();
+    Context collector = new Context() {
+      @Override
+      public void write(byte[] key, byte[] value) {
+        combined.add(new byte[][] { key.clone(), value.clone() });
+      }
+    };
+    int start = 0;
+    while (start < sortedPairs.size()) {
+      byte[] key = sortedPairs.get(start)[0];
+      int end = start + 1;
+      while (end < sortedPairs.size() && CursorRecordIterator.compareLexically(sortedPairs.get(end)[0], key) == 0) {
+        end++;
+      }
+      List<byte[]> values = new ArrayList<byte[]>(end - start);
+      for (int index = start; index < end; index++) {
+        values.add(sortedPairs.get(index)[1]);
+      }
+      combiner.combine(key, values, collector);
+      start = end;
+    }
+    return combined;
+  }
+
+}
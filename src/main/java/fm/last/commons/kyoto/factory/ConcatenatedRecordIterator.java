@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import fm.last.commons.kyoto.RecordIterator;
+
+/**
+ * Reads a number of {@link RecordIterator}s one after the other.
+ */
+class ConcatenatedRecordIterator<T> implements RecordIterator<T> {
+
+  private final List<RecordIterator<T>> iterators;
+  private int current;
+
+  ConcatenatedRecordIterator(List<RecordIterator<T>> iterators) {
+    this.iterators = iterators;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (current < iterators.size()) {
+      if (iterators.get(current).hasNext()) {
+        return true;
+      }
+      iterators.get(current).close();
+      current++;
+    }
+    return false;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return iterators.get(current).next();
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove() not supported by this Iterator.");
+  }
+
+  @Override
+  public void close() {
+    RuntimeException failure = null;
+    for (; current < iterators.size(); current++) {
+      try {
+        iterators.get(current).close();
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+}
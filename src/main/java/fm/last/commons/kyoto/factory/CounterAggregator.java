@@ -0,0 +1,478 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.Closeable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * Accumulates counter increments in memory and applies them to a {@link KyotoDb} periodically, so that thousands of
+ * increments of a hot key cost a single update. Each flush applies the accumulated deltas with one
+ * {@link KyotoDb#accept(byte[][], WritableVisitor)} call per batch of keys, storing values in the same format as
+ * {@link KyotoDb#increment(byte[], long)} and {@link KyotoDb#increment(byte[], double)}. Records that do not exist are
+ * created with the delta as their value.
+ * <p/>
+ * Deltas are kept per key in striped cells, so threads incrementing the same key rarely contend. The number of keys
+ * held is bounded: when it is exceeded the keys that have been idle longest are flushed early and dropped. Keys that
+ * are not incremented for a whole flush period are dropped too.
+ * <p/>
+ * {@code String} keys are encoded as UTF-8, the database's default; call {@link #setEncoding(String)} with the
+ * encoding given to {@link KyotoDb#setEncoding(String)} if it was changed.
+ * <p/>
+ * A key must always be incremented by longs or always by doubles. Increments are not visible in the database until they
+ * are flushed, and are lost if the process dies first. {@link #close()} flushes but does not close the database.
+ */
+public class CounterAggregator implements Closeable {
+
+  public static final int DEFAULT_MAXIMUM_KEYS = 100000;
+  public static final long DEFAULT_FLUSH_PERIOD_MILLISECONDS = 1000;
+
+  /** Keys passed to each {@link KyotoDb#accept(byte[][], WritableVisitor)} call. */
+  static final int FLUSH_BATCH_SIZE = 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb db;
+  private final int maximumKeys;
+  private final ConcurrentMap<ByteArrayKey, Cell> longCells = new ConcurrentHashMap<ByteArrayKey, Cell>();
+  private final ConcurrentMap<ByteArrayKey, Cell> doubleCells = new ConcurrentHashMap<ByteArrayKey, Cell>();
+  private final AtomicInteger keyCount = new AtomicInteger();
+  /** Serializes flushes. */
+  private final ReentrantLock flushLock = new ReentrantLock();
+  private final ScheduledExecutorService flusher;
+  private final AtomicLong flushCount = new AtomicLong();
+  private final AtomicLong flushedKeyCount = new AtomicLong();
+  /** Advanced by every flush - cells record the epoch of their last increment so that idle keys can be found. */
+  private volatile long epoch;
+  private volatile boolean closed;
+  private volatile StringCodec codec = new StringCodec(UTF_8);
+
+  /**
+   * Holds up to {@value #DEFAULT_MAXIMUM_KEYS} keys and flushes every {@value #DEFAULT_FLUSH_PERIOD_MILLISECONDS}
+   * milliseconds.
+   */
+  public CounterAggregator(KyotoDb db) {
+    this(db, DEFAULT_MAXIMUM_KEYS, DEFAULT_FLUSH_PERIOD_MILLISECONDS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param maximumKeys the number of keys to hold before flushing the least recently incremented ones.
+   * @param flushPeriod how often to flush all accumulated increments.
+   */
+  public CounterAggregator(KyotoDb db, int maximumKeys, long flushPeriod, TimeUnit unit) {
+    if (maximumKeys < 1) {
+      throw new IllegalArgumentException("maximumKeys must be > 0");
+    }
+    if (flushPeriod < 1) {
+      throw new IllegalArgumentException("flushPeriod must be > 0");
+    }
+    this.db = db;
+    this.maximumKeys = maximumKeys;
+    flusher = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("kyoto-counters"));
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          log.error("Could not flush counters to " + CounterAggregator.this.db + ", will retry.", e);
+        }
+      }
+    }, flushPeriod, flushPeriod, unit);
+  }
+
+  public void increment(byte[] key, long delta) {
+    add(longCells, new ByteArrayKey(key.clone()), delta);
+  }
+
+  public void increment(String key, long delta) {
+    add(longCells, new ByteArrayKey(codec.encode(key)), delta);
+  }
+
+  public void increment(byte[] key, double delta) {
+    add(doubleCells, new ByteArrayKey(key.clone()), Double.doubleToRawLongBits(delta));
+  }
+
+  public void increment(String key, double delta) {
+    add(doubleCells, new ByteArrayKey(codec.encode(key)), Double.doubleToRawLongBits(delta));
+  }
+
+  /**
+   * Set the encoding of {@code String} keys, which must match the encoding of the database. The default encoding is
+   * UTF-8.
+   * 
+   * @param encoding the name of the encoding.
+   * @see KyotoDb#setEncoding(String)
+   */
+  public void setEncoding(String encoding) {
+    codec = new StringCodec(Charset.forName(encoding));
+  }
+
+  /**
+   * @return the number of keys with increments held in memory.
+   */
+  public int getKeyCount() {
+    return keyCount.get();
+  }
+
+  /**
+   * @return the number of times increments have been written to the database, including early flushes.
+   */
+  public long getFlushCount() {
+    return flushCount.get();
+  }
+
+  /**
+   * @return the number of record updates made by all flushes.
+   */
+  public long getFlushedKeyCount() {
+    return flushedKeyCount.get();
+  }
+
+  /**
+   * Applies all accumulated increments to the database now.
+   * 
+   * @throws KyotoException if the database could not be updated - the increments are kept and retried by the next
+   *           flush.
+   */
+  public void flush() {
+    flushLock.lock();
+    try {
+      long idleEpoch = epoch++;
+      write(drain(longCells, idleEpoch), false);
+      write(drain(doubleCells, idleEpoch), true);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Stops the background flush and flushes the accumulated increments. The database is not closed. Increments made
+   * concurrently with or after closing are rejected or may be lost.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    flusher.shutdownNow();
+    flush();
+  }
+
+  private void add(ConcurrentMap<ByteArrayKey, Cell> cells, ByteArrayKey key, long delta) {
+    if (closed) {
+      throw new IllegalStateException(this + " is closed.");
+    }
+    addDelta(cells, key, delta);
+  }
+
+  private void addDelta(ConcurrentMap<ByteArrayKey, Cell> cells, ByteArrayKey key, long delta) {
+    boolean floating = cells == doubleCells;
+    Cell cell = cells.get(key);
+    if (cell == null) {
+      Cell created = new Cell(floating);
+      cell = cells.putIfAbsent(key, created);
+      if (cell == null) {
+        cell = created;
+        if (keyCount.incrementAndGet() > maximumKeys) {
+          evictIdle();
+        }
+      }
+    }
+    long current = epoch;
+    if (cell.epoch != current) {
+      cell.epoch = current;
+    }
+    cell.add(delta);
+    if (cell.retired) {
+      // The cell was flushed and dropped while we held it - whatever it still holds must go to a new one.
+      long remainder = cell.drain();
+      if (!cell.isZero(remainder)) {
+        addDelta(cells, key, remainder);
+      }
+    }
+  }
+
+  /**
+   * Flushes and drops the least recently incremented keys until a quarter of the maximum is free. Skipped if a flush is
+   * already running, as the limit is only approximate.
+   */
+  private void evictIdle() {
+    if (flushLock.isHeldByCurrentThread() || !flushLock.tryLock()) {
+      return;
+    }
+    try {
+      int excess = keyCount.get() - maximumKeys + maximumKeys / 4;
+      if (excess <= 0) {
+        return;
+      }
+      epoch++;
+      List<Candidate> candidates = new ArrayList<Candidate>(keyCount.get());
+      for (Map.Entry<ByteArrayKey, Cell> entry : longCells.entrySet()) {
+        candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+      }
+      for (Map.Entry<ByteArrayKey, Cell> entry : doubleCells.entrySet()) {
+        candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+      }
+      Collections.sort(candidates);
+      Map<ByteArrayKey, Long> longDeltas = new HashMap<ByteArrayKey, Long>();
+      Map<ByteArrayKey, Long> doubleDeltas = new HashMap<ByteArrayKey, Long>();
+      for (Candidate candidate : candidates.subList(0, Math.min(excess, candidates.size()))) {
+        Cell cell = candidate.cell;
+        long delta = retire(cell.floating ? doubleCells : longCells, candidate.key, cell);
+        if (!cell.isZero(delta)) {
+          (cell.floating ? doubleDeltas : longDeltas).put(candidate.key, delta);
+        }
+      }
+      try {
+        write(longDeltas, false);
+      } catch (RuntimeException e) {
+        // The double deltas were retired too - put them back rather than drop them with the local map
+        requeue(new ArrayList<ByteArrayKey>(doubleDeltas.keySet()), doubleDeltas, true);
+        throw e;
+      }
+      write(doubleDeltas, true);
+    } finally {
+      flushLock.unlock();
+    }
+  }
+
+  /**
+   * Takes the deltas of all cells and drops cells that have not been incremented since the given epoch.
+   */
+  private Map<ByteArrayKey, Long> drain(ConcurrentMap<ByteArrayKey, Cell> cells, long idleEpoch) {
+    Map<ByteArrayKey, Long> deltas = new HashMap<ByteArrayKey, Long>();
+    for (Map.Entry<ByteArrayKey, Cell> entry : cells.entrySet()) {
+      Cell cell = entry.getValue();
+      long delta;
+      if (cell.epoch < idleEpoch) {
+        delta = retire(cells, entry.getKey(), cell);
+      } else {
+        delta = cell.drain();
+      }
+      if (!cell.isZero(delta)) {
+        deltas.put(entry.getKey(), delta);
+      }
+    }
+    return deltas;
+  }
+
+  private long retire(ConcurrentMap<ByteArrayKey, Cell> cells, ByteArrayKey key, Cell cell) {
+    if (cells.remove(key, cell)) {
+      keyCount.decrementAndGet();
+    }
+    cell.retired = true;
+    return cell.drain();
+  }
+
+  private void write(Map<ByteArrayKey, Long> deltas, boolean floating) {
+    if (deltas.isEmpty()) {
+      return;
+    }
+    List<ByteArrayKey> keys = new ArrayList<ByteArrayKey>(deltas.keySet());
+    DeltaVisitor visitor = new DeltaVisitor(deltas, floating);
+    for (int start = 0; start < keys.size(); start += FLUSH_BATCH_SIZE) {
+      List<ByteArrayKey> batch = keys.subList(start, Math.min(keys.size(), start + FLUSH_BATCH_SIZE));
+      byte[][] batchKeys = new byte[batch.size()][];
+      for (int index = 0; index < batchKeys.length; index++) {
+        batchKeys[index] = batch.get(index).bytes();
+      }
+      try {
+        db.accept(batchKeys, visitor);
+      } catch (RuntimeException e) {
+        requeue(keys.subList(start, keys.size()), deltas, floating);
+        throw e;
+      }
+      flushCount.incrementAndGet();
+      flushedKeyCount.addAndGet(batchKeys.length);
+    }
+    if (!visitor.incompatibleKeys.isEmpty()) {
+      throw new KyotoException("Increments were dropped for " + visitor.incompatibleKeys.size()
+          + " records whose values are not " + (floating ? "decimal" : "integer") + " counters, for example "
+          + codec.decode(visitor.incompatibleKeys.get(0).bytes()));
+    }
+  }
+
+  private void requeue(List<ByteArrayKey> keys, Map<ByteArrayKey, Long> deltas, boolean floating) {
+    for (ByteArrayKey key : keys) {
+      addDelta(floating ? doubleCells : longCells, key, deltas.get(key));
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("CounterAggregator [db=");
+    builder.append(db);
+    builder.append(", maximumKeys=");
+    builder.append(maximumKeys);
+    builder.append("]");
+    return builder.toString();
+  }
+
+  /** A cell and the epoch of its last increment when eviction started - cells are sorted on a stable snapshot. */
+  private static final class Candidate implements Comparable<Candidate> {
+
+    private final ByteArrayKey key;
+    private final Cell cell;
+    private final long epoch;
+
+    private Candidate(ByteArrayKey key, Cell cell) {
+      this.key = key;
+      this.cell = cell;
+      epoch = cell.epoch;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      return epoch < other.epoch ? -1 : (epoch == other.epoch ? 0 : 1);
+    }
+
+  }
+
+  /**
+   * Applies deltas to the records it visits. Visits happen within the native accept call, so problems are recorded
+   * rather than thrown.
+   */
+  private static final class DeltaVisitor implements WritableVisitor {
+
+    private final Map<ByteArrayKey, Long> deltas;
+    private final boolean floating;
+    private final List<ByteArrayKey> incompatibleKeys = new ArrayList<ByteArrayKey>();
+
+    private DeltaVisitor(Map<ByteArrayKey, Long> deltas, boolean floating) {
+      this.deltas = deltas;
+      this.floating = floating;
+    }
+
+    @Override
+    public byte[] record(byte[] key, byte[] value) {
+      ByteArrayKey deltaKey = new ByteArrayKey(key);
+      long delta = deltas.get(deltaKey);
+      if (floating) {
+        if (value.length != 16) {
+          incompatibleKeys.add(deltaKey);
+          return NOP;
+        }
+        return Codec.toBytes(Codec.toDouble(value) + Double.longBitsToDouble(delta));
+      }
+      if (value.length != 8) {
+        incompatibleKeys.add(deltaKey);
+        return NOP;
+      }
+      return Codec.fromLong(Codec.toLong(value) + delta);
+    }
+
+    @Override
+    public byte[] emptyRecord(byte[] key) {
+      long delta = deltas.get(new ByteArrayKey(key));
+      return floating ? Codec.toBytes(Double.longBitsToDouble(delta)) : Codec.fromLong(delta);
+    }
+
+  }
+
+  /**
+   * The accumulated delta of one key. Starts as a single value and spreads over cache line padded stripes once
+   * concurrent increments contend for it. Double deltas are held as their raw long bits and added with compare and set.
+   */
+  static final class Cell {
+
+    private final boolean floating;
+    /** Zero is also the raw bits of 0.0. */
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray stripes;
+    private volatile long epoch;
+    private volatile boolean retired;
+
+    Cell(boolean floating) {
+      this.floating = floating;
+    }
+
+    void add(long delta) {
+      AtomicLongArray current = stripes;
+      if (current == null) {
+        long value = base.get();
+        if (base.compareAndSet(value, combine(value, delta))) {
+          return;
+        }
+        current = inflate();
+      }
+      int index = (StripedCounter.stripe() & (StripedCounter.STRIPES - 1)) * StripedCounter.PADDING;
+      while (true) {
+        long value = current.get(index);
+        if (current.compareAndSet(index, value, combine(value, delta))) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return the delta accumulated since the last drain.
+     */
+    long drain() {
+      long sum = base.getAndSet(0L);
+      AtomicLongArray current = stripes;
+      if (current != null) {
+        for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+          sum = combine(sum, current.getAndSet(stripe * StripedCounter.PADDING, 0L));
+        }
+      }
+      return sum;
+    }
+
+    boolean isZero(long delta) {
+      return floating ? Double.longBitsToDouble(delta) == 0d : delta == 0L;
+    }
+
+    private long combine(long value, long delta) {
+      if (floating) {
+        return Double.doubleToRawLongBits(Double.longBitsToDouble(value) + Double.longBitsToDouble(delta));
+      }
+      return value + delta;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+      if (stripes == null) {
+        stripes = new AtomicLongArray(StripedCounter.STRIPES * StripedCounter.PADDING);
+      }
+      return stripes;
+    }
+
+  }
+
+}
@@ -16,6 +16,8 @@
 package fm.last.commons.kyoto.factory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import kyotocabinet.Cursor;
 import kyotocabinet.Error;
@@ -28,6 +30,8 @@ import fm.last.commons.kyoto.factory.ErrorHandler.ErrorSource;
 
 class CursorAdapter implements KyotoCursor {
 
+  private static final int MAXIMUM_BATCH_CAPACITY = 1024;
+
   private final Cursor delegate;
   private final ErrorHandler errorHandler;
   private final KyotoDbImpl kyotoDb;
@@ -50,118 +54,213 @@ class CursorAdapter implements KyotoCursor {
 
   @Override
   public void accept(ReadOnlyVisitor visitor, CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(new ReadOnlyVisitorAdapter(visitor), AccessType.READ_ONLY.value(),
-        step.value()));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(new ReadOnlyVisitorAdapter(visitor), AccessType.READ_ONLY.value(),
+          step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void accept(WritableVisitor visitor, CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(new WritableVisitorAdapter(visitor), AccessType.READ_WRITE.value(),
-        step.value()));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(new WritableVisitorAdapter(visitor), AccessType.READ_WRITE.value(),
+          step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void setValue(byte[] value, CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.set_value(value, step.value()));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.set_value(value, step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void setValue(String value, CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.set_value(value, step.value()));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.set_value(value, step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void remove() {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.remove());
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.remove());
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public byte[] getKey(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_key(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_key(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public String getKeyAsString(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_key_str(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_key_str(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public byte[] getValue(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_value(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_value(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public String getValueAsString(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_value_str(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_value_str(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public byte[][] getEntry(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
+  }
+
+  @Override
+  public List<byte[][]> nextBatch(int maximumRecords) {
+    kyotoDb.enter();
+    try {
+      List<byte[][]> batch = new ArrayList<byte[][]>(Math.min(maximumRecords, MAXIMUM_BATCH_CAPACITY));
+      for (int count = 0; count < maximumRecords; count++) {
+        byte[][] entry = delegate.get(true);
+        if (entry == null) {
+          errorHandler.processError();
+          break;
+        }
+        batch.add(entry);
+      }
+      return batch;
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public String[] getEntryAsString(CursorStep step) {
-    kyotoDb.checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_str(step.value()));
+    kyotoDb.enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_str(step.value()));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanForwardFromStart() {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump());
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump());
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanForwardFromKey(byte[] key) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump(key));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump(key));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanForwardFromKey(String key) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump(key));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump(key));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanBackwardsFromEnd() {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump_back());
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump_back());
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanBackwardsFromKey(byte[] key) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump_back(key));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump_back(key));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void scanBackwardsFromKey(String key) {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.jump_back(key));
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.jump_back(key));
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void stepForwards() {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.step());
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.step());
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
   @Override
   public void stepBackwards() {
-    kyotoDb.checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.step_back());
+    kyotoDb.enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.step_back());
+    } finally {
+      kyotoDb.exit();
+    }
   }
 
 }
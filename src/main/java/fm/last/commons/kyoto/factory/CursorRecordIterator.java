@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.RecordIterator;
+
+/**
+ * A {@link RecordIterator} that scans forwards with a {@link KyotoCursor}, optionally limited to the key range
+ * {@code [fromKey, toKey)}. Range limits are only meaningful for ordered databases with a lexical comparator.
+ */
+abstract class CursorRecordIterator<T> implements RecordIterator<T> {
+
+  /** Records read from the cursor at a time by iterators that read whole entries. */
+  static final int BATCH_SIZE = 128;
+
+  private final KyotoCursor cursor;
+  private final byte[] fromKey;
+  private final byte[] toKey;
+  private final int batchSize;
+  private List<byte[][]> batch = Collections.emptyList();
+  private int batchIndex;
+  private T next;
+  private boolean positioned;
+  private boolean closed;
+
+  /**
+   * @param batchSize the number of entries to read at a time, or 0 to read records with {@link #fetch(KyotoCursor)}.
+   */
+  CursorRecordIterator(KyotoCursor cursor, byte[] fromKey, byte[] toKey, int batchSize) {
+    this.cursor = cursor;
+    this.fromKey = fromKey;
+    this.toKey = toKey;
+    this.batchSize = batchSize;
+  }
+
+  static RecordIterator<byte[][]> entries(KyotoCursor cursor) {
+    return entries(cursor, null, null);
+  }
+
+  static RecordIterator<byte[][]> entries(KyotoCursor cursor, byte[] fromKey, byte[] toKey) {
+    return new CursorRecordIterator<byte[][]>(cursor, fromKey, toKey, BATCH_SIZE) {
+      @Override
+      byte[][] project(byte[][] entry) {
+        return entry;
+      }
+    };
+  }
+
+  /**
+   * Keys are read one at a time so that values are not copied out of the database.
+   */
+  static RecordIterator<byte[]> keys(KyotoCursor cursor) {
+    return new CursorRecordIterator<byte[]>(cursor, null, null, 0) {
+      @Override
+      byte[] fetch(KyotoCursor cursor) {
+        return cursor.getKey(CursorStep.NEXT_RECORD);
+      }
+
+      @Override
+      byte[] project(byte[][] entry) {
+        return entry[0];
+      }
+    };
+  }
+
+  static RecordIterator<byte[]> values(KyotoCursor cursor) {
+    return new CursorRecordIterator<byte[]>(cursor, null, null, BATCH_SIZE) {
+      @Override
+      byte[] project(byte[][] entry) {
+        return entry[1];
+      }
+    };
+  }
+
+  /**
+   * Reads the next record of an unbatched iterator without regard to the range limits.
+   * 
+   * @return the record or null if there are no more records.
+   */
+  T fetch(KyotoCursor cursor) {
+    byte[][] entry = cursor.getEntry(CursorStep.NEXT_RECORD);
+    return entry == null ? null : project(entry);
+  }
+
+  abstract T project(byte[][] entry);
+
+  @Override
+  public boolean hasNext() {
+    if (next != null) {
+      return true;
+    }
+    if (closed) {
+      return false;
+    }
+    if (!positioned) {
+      position();
+    }
+    if (batchSize == 0 && toKey == null) {
+      next = fetch(cursor);
+    } else {
+      byte[][] entry = nextEntry();
+      if (entry != null && (toKey == null || compareLexically(entry[0], toKey) < 0)) {
+        next = project(entry);
+      }
+    }
+    if (next == null) {
+      close();
+      return false;
+    }
+    return true;
+  }
+
+  private byte[][] nextEntry() {
+    if (batchSize == 0) {
+      return cursor.getEntry(CursorStep.NEXT_RECORD);
+    }
+    if (batchIndex == batch.size()) {
+      batch = cursor.nextBatch(batchSize);
+      batchIndex = 0;
+      if (batch.isEmpty()) {
+        return null;
+      }
+    }
+    return batch.get(batchIndex++);
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    T result = next;
+    next = null;
+    return result;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException("remove() not supported by this Iterator.");
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    batch = Collections.emptyList();
+    try {
+      cursor.close();
+    } catch (IOException e) {
+      throw new KyotoException("Could not close cursor", e);
+    }
+  }
+
+  private void position() {
+    positioned = true;
+    if (fromKey == null) {
+      cursor.scanForwardFromStart();
+    } else {
+      cursor.scanForwardFromKey(fromKey);
+    }
+  }
+
+  /**
+   * Compares keys in the order of {@link PageComparator#LEXICAL}: byte by byte as unsigned values, shorter keys first.
+   */
+  static int compareLexically(byte[] a, byte[] b) {
+    int length = Math.min(a.length, b.length);
+    for (int index = 0; index < length; index++) {
+      int difference = (a[index] & 0xFF) - (b[index] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return a.length - b.length;
+  }
+
+}
@@ -27,12 +27,22 @@ class ErrorHandler {
     Error getError();
   }
 
+  /** Notified of every recognised error, including those that are not thrown. */
+  interface ErrorListener {
+    void error(ErrorType errorType);
+  }
+
   private final ErrorSource source;
+  private volatile ErrorListener listener;
 
   ErrorHandler(ErrorSource source) {
     this.source = source;
   }
 
+  void setErrorListener(ErrorListener listener) {
+    this.listener = listener;
+  }
+
   boolean wrapBooleanCall(boolean success) {
     if (!success) {
       processError();
@@ -87,65 +97,65 @@ class ErrorHandler {
   }
 
   void processError() {
-    Error error = source.getError();
-    if (error == null) {
-      throw new KyotoException(new UnexpectedException("Could not read error code."));
-    } else {
-      ErrorType errorType = ErrorType.valueOf(error);
-      if (errorType == null) {
-        throw new KyotoException(new UnexpectedException("Unrecognized error code: " + error.code() + " : "
-            + getErrorMessage(error)));
-      }
-      Throwable toThrow = errorType.newException(error);
-      if (toThrow != null) {
-        throw new KyotoException(toThrow);
-      }
+    Throwable toThrow = resolveError(null);
+    if (toThrow != null) {
+      throw newKyotoException(null, toThrow);
     }
   }
 
-  private String getErrorMessage(Error error) {
-    String message = error.getMessage();
-    if (message == null) {
-      message = "null - (this is often due to the database being closed)";
+  void processError(String message) {
+    Throwable toThrow = resolveError(message);
+    if (toThrow != null) {
+      throw newKyotoException(message, toThrow);
     }
-    return message;
   }
 
   void processIoError(String message) throws IOException {
-    Error error = source.getError();
-    if (error == null) {
-      throw new KyotoException(message, new UnexpectedException("Could not read error code."));
-    } else {
-      ErrorType errorType = ErrorType.valueOf(error);
-      if (errorType == null) {
-        throw new KyotoException(message, new UnexpectedException("Unrecognized error code: " + error.code() + " : "
-            + getErrorMessage(error)));
-      }
-      Throwable toThrow = errorType.newException(error);
-      if (toThrow != null) {
-        if (toThrow instanceof IOException) {
-          throw (IOException) toThrow;
-        }
-        throw new KyotoException(message, toThrow);
+    Throwable toThrow = resolveError(message);
+    if (toThrow != null) {
+      if (toThrow instanceof IOException) {
+        throw (IOException) toThrow;
       }
+      throw newKyotoException(message, toThrow);
     }
   }
 
-  void processError(String message) {
+  /**
+   * Reads the last error from the source, notifies the listener and returns the exception it maps to. Missing and
+   * duplicate records map to null, so callers expecting those outcomes pay for the error read but never build an
+   * exception.
+   */
+  private Throwable resolveError(String message) {
     Error error = source.getError();
     if (error == null) {
-      throw new KyotoException(message, new UnexpectedException("Could not read error code."));
-    } else {
-      ErrorType errorType = ErrorType.valueOf(error);
-      if (errorType == null) {
-        throw new KyotoException(message, new UnexpectedException("Unrecognized error code: " + error.code() + " : "
-            + getErrorMessage(error)));
-      }
-      Throwable toThrow = errorType.newException(error);
-      if (toThrow != null) {
-        throw new KyotoException(message, toThrow);
-      }
+      throw newKyotoException(message, new UnexpectedException("Could not read error code."));
+    }
+    ErrorType errorType = ErrorType.valueOf(error.code());
+    if (errorType == null) {
+      throw newKyotoException(message, new UnexpectedException("Unrecognized error code: " + error.code() + " : "
+          + getErrorMessage(error)));
+    }
+    notifyListener(errorType);
+    return errorType.newException(error);
+  }
+
+  private static KyotoException newKyotoException(String message, Throwable cause) {
+    return message == null ? new KyotoException(cause) : new KyotoException(message, cause);
+  }
+
+  private void notifyListener(ErrorType errorType) {
+    ErrorListener listener = this.listener;
+    if (listener != null) {
+      listener.error(errorType);
     }
   }
 
+  private String getErrorMessage(Error error) {
+    String message = error.getMessage();
+    if (message == null) {
+      message = "null - (this is often due to the database being closed)";
+    }
+    return message;
+  }
+
 }
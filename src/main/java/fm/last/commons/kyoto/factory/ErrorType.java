@@ -16,13 +16,15 @@
 package fm.last.commons.kyoto.factory;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 
 import kyotocabinet.Error;
 
-enum ErrorType {
+/**
+ * The error codes reported by Kyoto Cabinet.
+ * 
+ * @see MetricsSnapshot#errorCount(ErrorType)
+ */
+public enum ErrorType {
 
   /** error code: success */
   SUCCESS() {
@@ -157,14 +159,18 @@ enum ErrorType {
     }
   };
 
-  private static Map<Integer, ErrorType> errorTypeByCode;
+  /** Indexed by error code; the codes are small and dense so this avoids boxing on every failed call. */
+  private static final ErrorType[] ERROR_TYPE_BY_CODE;
 
   static {
-    Map<Integer, ErrorType> build = new HashMap<Integer, ErrorType>();
+    int maximumCode = 0;
+    for (ErrorType error : ErrorType.values()) {
+      maximumCode = Math.max(maximumCode, error.code());
+    }
+    ERROR_TYPE_BY_CODE = new ErrorType[maximumCode + 1];
     for (ErrorType error : ErrorType.values()) {
-      build.put(error.code(), error);
+      ERROR_TYPE_BY_CODE[error.code()] = error;
     }
-    errorTypeByCode = Collections.unmodifiableMap(build);
   }
 
   abstract int code();
@@ -172,7 +178,17 @@ enum ErrorType {
   abstract Throwable newException(Error error);
 
   static ErrorType valueOf(Error error) {
-    return errorTypeByCode.get(error.code());
+    return valueOf(error.code());
+  }
+
+  /**
+   * @return the error type with the given code, or null if the code is not recognised.
+   */
+  static ErrorType valueOf(int code) {
+    if (code < 0 || code >= ERROR_TYPE_BY_CODE.length) {
+      return null;
+    }
+    return ERROR_TYPE_BY_CODE[code];
   }
 
 }
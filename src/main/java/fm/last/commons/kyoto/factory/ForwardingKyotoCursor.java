@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.List;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoCursor} that forwards all calls to another cursor. Subclasses override the calls they wish to decorate.
+ */
+public abstract class ForwardingKyotoCursor implements KyotoCursor {
+
+  protected abstract KyotoCursor delegate();
+
+  @Override
+  public void close() throws IOException {
+    delegate().close();
+  }
+
+  @Override
+  public void accept(ReadOnlyVisitor visitor, CursorStep step) {
+    delegate().accept(visitor, step);
+  }
+
+  @Override
+  public void accept(WritableVisitor visitor, CursorStep step) {
+    delegate().accept(visitor, step);
+  }
+
+  @Override
+  public void setValue(byte[] value, CursorStep step) {
+    delegate().setValue(value, step);
+  }
+
+  @Override
+  public void setValue(String value, CursorStep step) {
+    delegate().setValue(value, step);
+  }
+
+  @Override
+  public void remove() {
+    delegate().remove();
+  }
+
+  @Override
+  public byte[] getKey(CursorStep step) {
+    return delegate().getKey(step);
+  }
+
+  @Override
+  public String getKeyAsString(CursorStep step) {
+    return delegate().getKeyAsString(step);
+  }
+
+  @Override
+  public byte[] getValue(CursorStep step) {
+    return delegate().getValue(step);
+  }
+
+  @Override
+  public String getValueAsString(CursorStep step) {
+    return delegate().getValueAsString(step);
+  }
+
+  @Override
+  public byte[][] getEntry(CursorStep step) {
+    return delegate().getEntry(step);
+  }
+
+  @Override
+  public List<byte[][]> nextBatch(int maximumRecords) {
+    return delegate().nextBatch(maximumRecords);
+  }
+
+  @Override
+  public String[] getEntryAsString(CursorStep step) {
+    return delegate().getEntryAsString(step);
+  }
+
+  @Override
+  public void scanForwardFromStart() {
+    delegate().scanForwardFromStart();
+  }
+
+  @Override
+  public void scanForwardFromKey(byte[] key) {
+    delegate().scanForwardFromKey(key);
+  }
+
+  @Override
+  public void scanForwardFromKey(String key) {
+    delegate().scanForwardFromKey(key);
+  }
+
+  @Override
+  public void scanBackwardsFromEnd() {
+    delegate().scanBackwardsFromEnd();
+  }
+
+  @Override
+  public void scanBackwardsFromKey(byte[] key) {
+    delegate().scanBackwardsFromKey(key);
+  }
+
+  @Override
+  public void scanBackwardsFromKey(String key) {
+    delegate().scanBackwardsFromKey(key);
+  }
+
+  @Override
+  public void stepForwards() {
+    delegate().stepForwards();
+  }
+
+  @Override
+  public void stepBackwards() {
+    delegate().stepBackwards();
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " [delegate=" + delegate() + "]";
+  }
+
+}
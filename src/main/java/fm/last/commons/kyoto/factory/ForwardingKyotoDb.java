@@ -0,0 +1,632 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableLongVisitor;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that forwards all calls to another {@link KyotoDb}. Subclasses override the methods they wish to
+ * decorate. Visitors of long and double values are adapted to {@link fm.last.commons.kyoto.ReadOnlyVisitor} or
+ * {@link fm.last.commons.kyoto.WritableVisitor} and passed to this database's own {@code accept} and {@code iterate}
+ * methods, so subclasses see them there.
+ */
+public abstract class ForwardingKyotoDb implements KyotoDb {
+
+  /**
+   * @return the {@link KyotoDb} to which calls are forwarded.
+   */
+  protected abstract KyotoDb delegate();
+
+  /**
+   * Finds a database of the given type in a chain of decorators, for example the {@link SwappableKyotoDb} under the
+   * decorators added by {@link KyotoDbBuilder#jmx()} or {@link KyotoDbBuilder#instrumented()}.
+   * 
+   * @return {@code db} if it is of the type, otherwise the first database of the type that calls are forwarded to.
+   * @throws IllegalArgumentException if there is no database of the type in the chain.
+   */
+  public static <T extends KyotoDb> T unwrap(KyotoDb db, Class<T> type) {
+    KyotoDb current = db;
+    while (!type.isInstance(current)) {
+      if (!(current instanceof ForwardingKyotoDb)) {
+        throw new IllegalArgumentException("No " + type.getSimpleName() + " found in " + db);
+      }
+      current = ((ForwardingKyotoDb) current).delegate();
+    }
+    return type.cast(current);
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    return delegate().exists(key);
+  }
+
+  @Override
+  public boolean exists(String key) {
+    return delegate().exists(key);
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    return delegate().valueSize(key);
+  }
+
+  @Override
+  public int valueSize(String key) {
+    return delegate().valueSize(key);
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    return delegate().getAndRemove(key);
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    return delegate().getAndRemove(key);
+  }
+
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    return delegate().occupy(accessType, fileProcessor);
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    return delegate().matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset);
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit) {
+    return delegate().matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit);
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    delegate().accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    delegate().accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    delegate().accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    delegate().accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    delegate().accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    delegate().accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    delegate().accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    delegate().accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyLongVisitor visitor) {
+    accept(keys, new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor) {
+    accept(keys, new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableLongVisitor visitor) {
+    accept(keys, new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableDoubleVisitor visitor) {
+    accept(keys, new WritableDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    return delegate().putIfAbsent(key, value);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    return delegate().putIfAbsent(key, value);
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    delegate().append(key, value);
+  }
+
+  @Override
+  public void append(String key, String value) {
+    delegate().append(key, value);
+  }
+
+  @Override
+  public void begin(Synchronization synchronization) {
+    delegate().begin(synchronization);
+  }
+
+  @Override
+  public void clear() {
+    delegate().clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate().close();
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    return delegate().compareAndSwap(key, oldValue, newValue);
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    return delegate().compareAndSwap(key, oldValue, newValue);
+  }
+
+  @Override
+  public void copyTo(File destination) throws IOException {
+    delegate().copyTo(destination);
+  }
+
+  @Override
+  public long recordCount() {
+    return delegate().recordCount();
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    return delegate().cursor();
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    return delegate().entries();
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    return delegate().keys();
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    return delegate().values();
+  }
+
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    return delegate().partitionedEntries(maximumPartitions);
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    delegate().scanRange(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    delegate().scanRange(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    delegate().scanRangeDescending(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    delegate().scanRangeDescending(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    return delegate().countRange(fromKey, toKey);
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    return delegate().countRange(fromKey, toKey);
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    return delegate().removeRange(fromKey, toKey);
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    return delegate().removeRange(fromKey, toKey);
+  }
+
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    delegate().dumpSnapshotTo(destination);
+  }
+
+  @Override
+  public void commit() {
+    delegate().commit();
+  }
+
+  @Override
+  public void rollback() {
+    delegate().rollback();
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    return delegate().get(key);
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    return delegate().get(keys, atomicity);
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    return delegate().get(keys, atomicity);
+  }
+
+  @Override
+  public String get(String key) {
+    return delegate().get(key);
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    return delegate().getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    return delegate().getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    return delegate().getDouble(key);
+  }
+
+  @Override
+  public double getDouble(String key) {
+    return delegate().getDouble(key);
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    return delegate().getLong(key);
+  }
+
+  @Override
+  public long getLong(String key) {
+    return delegate().getLong(key);
+  }
+
+  @Override
+  public File getFile() {
+    return delegate().getFile();
+  }
+
+  @Override
+  public DbType getType() {
+    return delegate().getType();
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    return delegate().increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    return delegate().incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    return delegate().increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    return delegate().incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    return delegate().increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, double value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    return delegate().incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    return delegate().increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, long value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    return delegate().incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    delegate().iterate(visitor);
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    delegate().iterate(visitor);
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    delegate().iterate(visitor);
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    delegate().iterate(visitor);
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    delegate().iterate(visitor);
+  }
+
+  @Override
+  public void iterate(ReadOnlyLongVisitor visitor) {
+    iterate(new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(ReadOnlyDoubleVisitor visitor) {
+    iterate(new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableLongVisitor visitor) {
+    iterate(new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableDoubleVisitor visitor) {
+    iterate(new WritableDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    delegate().iterateParallel(visitor, parallelism);
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    delegate().iterateParallel(visitor, parallelism);
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    delegate().loadSnapshotFrom(source);
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    return delegate().matchKeysByPrefix(prefix, limit);
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    return delegate().matchKeysByPrefix(prefix);
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    return delegate().matchKeysByRegex(regex, limit);
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    return delegate().matchKeysByRegex(regex);
+  }
+
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    delegate().matchKeysByPrefix(prefix, visitor);
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    delegate().matchKeysByPrefix(prefix, visitor);
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    delegate().matchKeysByRegex(regex, visitor);
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    delegate().matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, visitor);
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    delegate().mergeWith(mergeType, dbs);
+  }
+
+  @Override
+  public void open() throws IOException {
+    delegate().open();
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    return delegate().remove(key);
+  }
+
+  @Override
+  public boolean remove(String key) {
+    return delegate().remove(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    return delegate().removeIfPresent(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    return delegate().removeIfPresent(key);
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    return delegate().remove(keys, atomicity);
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    return delegate().remove(keys, atomicity);
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    return delegate().replace(key, newValue);
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    return delegate().replace(key, newValue);
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    return delegate().set(keyValues, atomicity);
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    return delegate().set(keyValues, atomicity);
+  }
+
+  @Override
+  public void set(String key, String value) {
+    delegate().set(key, value);
+  }
+
+  @Override
+  public long sizeInBytes() {
+    return delegate().sizeInBytes();
+  }
+
+  @Override
+  public Map<String, String> status() {
+    return delegate().status();
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    delegate().synchronize(synchronization, fileProcessor);
+  }
+
+  @Override
+  public void setEncoding(String encoding) {
+    delegate().setEncoding(encoding);
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + " [delegate=" + delegate() + "]";
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * A count-min sketch of 4 bit counters that estimates how often a key has been seen recently. Counters are halved once
+ * the number of recorded events reaches ten times the capacity so that old popularity fades away (TinyLFU). Not thread
+ * safe.
+ */
+final class FrequencySketch {
+
+  private static final int DEPTH = 4;
+  private static final int MAXIMUM_COUNT = 15;
+  private static final int[] SEEDS = { 0x97cb3127, 0x8f2c5c4b, 0x6f1b6e37, 0xc3a5c85c };
+
+  private final byte[] counters;
+  private final int widthMask;
+  private final long sampleSize;
+  private long events;
+
+  FrequencySketch(long capacity) {
+    int width = Integer.highestOneBit((int) Math.max(16, Math.min(capacity, 1 << 24)) - 1) << 1;
+    counters = new byte[width * DEPTH];
+    widthMask = width - 1;
+    sampleSize = Math.max(10L * capacity, 16);
+  }
+
+  void increment(int hash) {
+    boolean added = false;
+    for (int row = 0; row < DEPTH; row++) {
+      int index = index(hash, row);
+      if (counters[index] < MAXIMUM_COUNT) {
+        counters[index]++;
+        added = true;
+      }
+    }
+    if (added && ++events >= sampleSize) {
+      age();
+    }
+  }
+
+  int frequency(int hash) {
+    int frequency = MAXIMUM_COUNT;
+    for (int row = 0; row < DEPTH; row++) {
+      frequency = Math.min(frequency, counters[index(hash, row)]);
+    }
+    return frequency;
+  }
+
+  private int index(int hash, int row) {
+    int mixed = (hash ^ SEEDS[row]) * 0x9e3779b9;
+    mixed ^= mixed >>> 16;
+    return row * (widthMask + 1) + (mixed & widthMask);
+  }
+
+  private void age() {
+    for (int index = 0; index < counters.length; index++) {
+      counters[index] = (byte) (counters[index] >>> 1);
+    }
+    events /= 2;
+  }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Counts the operations in progress on a resource so that it can be closed while other threads are using it. Entering
+ * and exiting update a {@link StripedCounter}, so concurrent callers do not contend with each other. Closing rejects
+ * new entries and then waits for those in progress to exit.
+ * <p>
+ * An entering thread increments its cell before reading the open flag, and a closing thread clears the flag before
+ * summing the cells, so at least one of them sees the other: either the entry is rejected or the close waits for it.
+ */
+final class InFlightGate {
+
+  private static final long MINIMUM_BACKOFF_NANOSECONDS = TimeUnit.MICROSECONDS.toNanos(1);
+  private static final long MAXIMUM_BACKOFF_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final StripedCounter inFlight = new StripedCounter();
+  private volatile boolean open;
+
+  /**
+   * @return true if the caller may proceed and must later {@link #exit()}, false if the gate is closed.
+   */
+  boolean enter() {
+    inFlight.increment();
+    if (open) {
+      return true;
+    }
+    inFlight.add(-1);
+    return false;
+  }
+
+  /** Must be called by the thread that entered. */
+  void exit() {
+    inFlight.add(-1);
+  }
+
+  void open() {
+    open = true;
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  /**
+   * Rejects new entries and waits for those in progress to exit. Must not be called by a thread that has entered, as it
+   * would wait for itself.
+   */
+  void close() {
+    open = false;
+    long backoff = MINIMUM_BACKOFF_NANOSECONDS;
+    while (inFlight.sum() > 0) {
+      LockSupport.parkNanos(backoff);
+      backoff = Math.min(backoff << 1, MAXIMUM_BACKOFF_NANOSECONDS);
+    }
+  }
+
+  long inFlightCount() {
+    return inFlight.sum();
+  }
+
+}
@@ -0,0 +1,1560 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static fm.last.commons.kyoto.factory.MetricsRecorder.length;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that measures the calls made to it: a latency histogram, call count and failure count for each
+ * {@link OperationType}, the number of bytes read and written, and the number of errors reported by Kyoto Cabinet by
+ * {@link ErrorType}. Counters are striped and updated without locks so the overhead is a couple of
+ * {@link System#nanoTime()} calls and atomic increments per call - cheap enough to leave on in production.
+ * <p/>
+ * Metrics can be read with {@link #getMetricsSnapshot()} or pushed to a {@link MetricsSink} periodically while the
+ * database is open. Records read through {@link #entries()}, {@link #keys()}, {@link #values()} and
+ * {@link #partitionedEntries(int)} are not measured.
+ * 
+ * @see KyotoDbBuilder#instrumented()
+ */
+public class InstrumentedKyotoDb extends ForwardingKyotoDb {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb delegate;
+  private final MetricsRecorder metrics;
+  private final MetricsSink sink;
+  private final long reportingPeriodMilliseconds;
+  private ScheduledExecutorService reporter;
+
+  InstrumentedKyotoDb(KyotoDb delegate) {
+    this(delegate, null, 0);
+  }
+
+  InstrumentedKyotoDb(KyotoDb delegate, MetricsSink sink, long reportingPeriodMilliseconds) {
+    this.delegate = delegate;
+    this.sink = sink;
+    this.reportingPeriodMilliseconds = reportingPeriodMilliseconds;
+    metrics = new MetricsRecorder();
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  /**
+   * @return the metrics recorded since this instance was built.
+   */
+  public MetricsSnapshot getMetricsSnapshot() {
+    return metrics.snapshot();
+  }
+
+  /**
+   * @return the listener that counts errors reported by the {@link KyotoDbImpl} instances behind this database.
+   */
+  ErrorHandler.ErrorListener getErrorListener() {
+    return metrics;
+  }
+
+  @Override
+  public void open() throws IOException {
+    long start = System.nanoTime();
+    try {
+      delegate.open();
+    } catch (IOException e) {
+      throw metrics.failed(OperationType.OPEN, e);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.OPEN, e);
+    } finally {
+      metrics.record(OperationType.OPEN, start);
+    }
+    startReporting();
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopReporting();
+    long start = System.nanoTime();
+    try {
+      delegate.close();
+    } catch (IOException e) {
+      throw metrics.failed(OperationType.CLOSE, e);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.CLOSE, e);
+    } finally {
+      metrics.record(OperationType.CLOSE, start);
+      if (sink != null) {
+        publish();
+      }
+    }
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    return new InstrumentedCursor(delegate.cursor());
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.exists(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.EXISTS, e);
+    } finally {
+      metrics.record(OperationType.EXISTS, start);
+    }
+  }
+
+  @Override
+  public boolean exists(String key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.exists(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.EXISTS, e);
+    } finally {
+      metrics.record(OperationType.EXISTS, start);
+    }
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.valueSize(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.EXISTS, e);
+    } finally {
+      metrics.record(OperationType.EXISTS, start);
+    }
+  }
+
+  @Override
+  public int valueSize(String key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.valueSize(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.EXISTS, e);
+    } finally {
+      metrics.record(OperationType.EXISTS, start);
+    }
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.getAndRemove(key));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET_AND_REMOVE, e);
+    } finally {
+      metrics.record(OperationType.GET_AND_REMOVE, start);
+    }
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.getAndRemove(key));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET_AND_REMOVE, e);
+    } finally {
+      metrics.record(OperationType.GET_AND_REMOVE, start);
+    }
+  }
+
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    long start = System.nanoTime();
+    try {
+      return delegate.occupy(accessType, fileProcessor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SYNCHRONIZE, e);
+    } finally {
+      metrics.record(OperationType.SYNCHRONIZE, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(key, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(keys, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(key, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(keys, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(key, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(keys, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(key, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.accept(keys, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ACCEPT, e);
+    } finally {
+      metrics.record(OperationType.ACCEPT, start);
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      return delegate.putIfAbsent(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ADD, e);
+    } finally {
+      metrics.record(OperationType.ADD, start);
+    }
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      return delegate.putIfAbsent(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ADD, e);
+    } finally {
+      metrics.record(OperationType.ADD, start);
+    }
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      delegate.append(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.APPEND, e);
+    } finally {
+      metrics.record(OperationType.APPEND, start);
+    }
+  }
+
+  @Override
+  public void append(String key, String value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      delegate.append(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.APPEND, e);
+    } finally {
+      metrics.record(OperationType.APPEND, start);
+    }
+  }
+
+  @Override
+  public void begin(Synchronization synchronization) {
+    long start = System.nanoTime();
+    try {
+      delegate.begin(synchronization);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.TRANSACTION, e);
+    } finally {
+      metrics.record(OperationType.TRANSACTION, start);
+    }
+  }
+
+  @Override
+  public void clear() {
+    long start = System.nanoTime();
+    try {
+      delegate.clear();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.CLEAR, e);
+    } finally {
+      metrics.record(OperationType.CLEAR, start);
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    metrics.written(length(key) + length(newValue));
+    long start = System.nanoTime();
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COMPARE_AND_SWAP, e);
+    } finally {
+      metrics.record(OperationType.COMPARE_AND_SWAP, start);
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    metrics.written(length(key) + length(newValue));
+    long start = System.nanoTime();
+    try {
+      return delegate.compareAndSwap(key, oldValue, newValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COMPARE_AND_SWAP, e);
+    } finally {
+      metrics.record(OperationType.COMPARE_AND_SWAP, start);
+    }
+  }
+
+  @Override
+  public void copyTo(File destination) throws IOException {
+    long start = System.nanoTime();
+    try {
+      delegate.copyTo(destination);
+    } catch (IOException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } finally {
+      metrics.record(OperationType.COPY, start);
+    }
+  }
+
+  @Override
+  public long recordCount() {
+    long start = System.nanoTime();
+    try {
+      return delegate.recordCount();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.STATUS, e);
+    } finally {
+      metrics.record(OperationType.STATUS, start);
+    }
+  }
+
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    long start = System.nanoTime();
+    try {
+      delegate.dumpSnapshotTo(destination);
+    } catch (IOException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } finally {
+      metrics.record(OperationType.COPY, start);
+    }
+  }
+
+  @Override
+  public void commit() {
+    long start = System.nanoTime();
+    try {
+      delegate.commit();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.TRANSACTION, e);
+    } finally {
+      metrics.record(OperationType.TRANSACTION, start);
+    }
+  }
+
+  @Override
+  public void rollback() {
+    long start = System.nanoTime();
+    try {
+      delegate.rollback();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.TRANSACTION, e);
+    } finally {
+      metrics.record(OperationType.TRANSACTION, start);
+    }
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.get(key));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.get(keys, atomicity));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET_BULK, e);
+    } finally {
+      metrics.record(OperationType.GET_BULK, start);
+    }
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.get(keys, atomicity));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET_BULK, e);
+    } finally {
+      metrics.record(OperationType.GET_BULK, start);
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    long start = System.nanoTime();
+    try {
+      return metrics.read(delegate.get(key));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    long start = System.nanoTime();
+    try {
+      byte[] value = metrics.read(delegate.getOrDefault(key, null));
+      return value == null ? defaultValue : value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    long start = System.nanoTime();
+    try {
+      String value = metrics.read(delegate.getOrDefault(key, null));
+      return value == null ? defaultValue : value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      double value = delegate.getDouble(key);
+      metrics.read(8);
+      return value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public double getDouble(String key) {
+    long start = System.nanoTime();
+    try {
+      double value = delegate.getDouble(key);
+      metrics.read(8);
+      return value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      long value = delegate.getLong(key);
+      metrics.read(8);
+      return value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public long getLong(String key) {
+    long start = System.nanoTime();
+    try {
+      long value = delegate.getLong(key);
+      metrics.read(8);
+      return value;
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.GET, e);
+    } finally {
+      metrics.record(OperationType.GET, start);
+    }
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    long start = System.nanoTime();
+    try {
+      return delegate.increment(key, delta);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    metrics.written(length(key) + 8);
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    long start = System.nanoTime();
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    long start = System.nanoTime();
+    try {
+      return delegate.increment(key, delta);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    metrics.written(length(key) + 8);
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    long start = System.nanoTime();
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    long start = System.nanoTime();
+    try {
+      return delegate.increment(key, delta);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public void set(String key, double value) {
+    metrics.written(length(key) + 8);
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    long start = System.nanoTime();
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    long start = System.nanoTime();
+    try {
+      return delegate.increment(key, delta);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public void set(String key, long value) {
+    metrics.written(length(key) + 8);
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    long start = System.nanoTime();
+    try {
+      return delegate.incrementWithDefault(key, delta, defaultValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.INCREMENT, e);
+    } finally {
+      metrics.record(OperationType.INCREMENT, start);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterate(visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterate(visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterate(visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterate(visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterate(visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterateParallel(visitor, parallelism);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    long start = System.nanoTime();
+    try {
+      delegate.iterateParallel(visitor, parallelism);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.scanRange(fromKey, toKey, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.scanRange(fromKey, toKey, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.scanRangeDescending(fromKey, toKey, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.scanRangeDescending(fromKey, toKey, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    long start = System.nanoTime();
+    try {
+      return delegate.countRange(fromKey, toKey);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    long start = System.nanoTime();
+    try {
+      return delegate.countRange(fromKey, toKey);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.ITERATE, e);
+    } finally {
+      metrics.record(OperationType.ITERATE, start);
+    }
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    long start = System.nanoTime();
+    try {
+      return delegate.removeRange(fromKey, toKey);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE_BULK, e);
+    } finally {
+      metrics.record(OperationType.REMOVE_BULK, start);
+    }
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    long start = System.nanoTime();
+    try {
+      return delegate.removeRange(fromKey, toKey);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE_BULK, e);
+    } finally {
+      metrics.record(OperationType.REMOVE_BULK, start);
+    }
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    long start = System.nanoTime();
+    try {
+      delegate.loadSnapshotFrom(source);
+    } catch (IOException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } finally {
+      metrics.record(OperationType.COPY, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByPrefix(prefix, limit));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByPrefix(prefix));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByRegex(regex, limit));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    long start = System.nanoTime();
+    try {
+      return metrics.readStrings(delegate.matchKeysByRegex(regex));
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.matchKeysByPrefix(prefix, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.matchKeysByPrefix(prefix, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.matchKeysByRegex(regex, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    long start = System.nanoTime();
+    try {
+      delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, visitor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.MATCH, e);
+    } finally {
+      metrics.record(OperationType.MATCH, start);
+    }
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    long start = System.nanoTime();
+    try {
+      delegate.mergeWith(mergeType, dbs);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.COPY, e);
+    } finally {
+      metrics.record(OperationType.COPY, start);
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.remove(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE, e);
+    } finally {
+      metrics.record(OperationType.REMOVE, start);
+    }
+  }
+
+  @Override
+  public boolean remove(String key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.remove(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE, e);
+    } finally {
+      metrics.record(OperationType.REMOVE, start);
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.removeIfPresent(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE, e);
+    } finally {
+      metrics.record(OperationType.REMOVE, start);
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    long start = System.nanoTime();
+    try {
+      return delegate.removeIfPresent(key);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE, e);
+    } finally {
+      metrics.record(OperationType.REMOVE, start);
+    }
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    long start = System.nanoTime();
+    try {
+      return delegate.remove(keys, atomicity);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE_BULK, e);
+    } finally {
+      metrics.record(OperationType.REMOVE_BULK, start);
+    }
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    long start = System.nanoTime();
+    try {
+      return delegate.remove(keys, atomicity);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REMOVE_BULK, e);
+    } finally {
+      metrics.record(OperationType.REMOVE_BULK, start);
+    }
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    metrics.written(length(key) + length(newValue));
+    long start = System.nanoTime();
+    try {
+      return delegate.replace(key, newValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REPLACE, e);
+    } finally {
+      metrics.record(OperationType.REPLACE, start);
+    }
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    metrics.written(length(key) + length(newValue));
+    long start = System.nanoTime();
+    try {
+      return delegate.replace(key, newValue);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.REPLACE, e);
+    } finally {
+      metrics.record(OperationType.REPLACE, start);
+    }
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    metrics.written(length(keyValues));
+    long start = System.nanoTime();
+    try {
+      return delegate.set(keyValues, atomicity);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET_BULK, e);
+    } finally {
+      metrics.record(OperationType.SET_BULK, start);
+    }
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    metrics.written(length(keyValues));
+    long start = System.nanoTime();
+    try {
+      return delegate.set(keyValues, atomicity);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET_BULK, e);
+    } finally {
+      metrics.record(OperationType.SET_BULK, start);
+    }
+  }
+
+  @Override
+  public void set(String key, String value) {
+    metrics.written(length(key) + length(value));
+    long start = System.nanoTime();
+    try {
+      delegate.set(key, value);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SET, e);
+    } finally {
+      metrics.record(OperationType.SET, start);
+    }
+  }
+
+  @Override
+  public long sizeInBytes() {
+    long start = System.nanoTime();
+    try {
+      return delegate.sizeInBytes();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.STATUS, e);
+    } finally {
+      metrics.record(OperationType.STATUS, start);
+    }
+  }
+
+  @Override
+  public Map<String, String> status() {
+    long start = System.nanoTime();
+    try {
+      return delegate.status();
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.STATUS, e);
+    } finally {
+      metrics.record(OperationType.STATUS, start);
+    }
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    long start = System.nanoTime();
+    try {
+      delegate.synchronize(synchronization, fileProcessor);
+    } catch (RuntimeException e) {
+      throw metrics.failed(OperationType.SYNCHRONIZE, e);
+    } finally {
+      metrics.record(OperationType.SYNCHRONIZE, start);
+    }
+  }
+
+  private synchronized void startReporting() {
+    if (sink == null || reporter != null) {
+      return;
+    }
+    reporter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("kyoto-metrics"));
+    reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        publish();
+      }
+    }, reportingPeriodMilliseconds, reportingPeriodMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopReporting() {
+    if (reporter != null) {
+      reporter.shutdownNow();
+      reporter = null;
+    }
+  }
+
+  private void publish() {
+    try {
+      sink.publish(metrics.snapshot());
+    } catch (RuntimeException e) {
+      log.warn("Could not publish metrics to " + sink, e);
+    }
+  }
+
+  private class InstrumentedCursor extends ForwardingKyotoCursor {
+
+    private final KyotoCursor cursor;
+
+    InstrumentedCursor(KyotoCursor cursor) {
+      this.cursor = cursor;
+    }
+
+    @Override
+    protected KyotoCursor delegate() {
+      return cursor;
+    }
+
+    @Override
+    public void accept(ReadOnlyVisitor visitor, CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        cursor.accept(visitor, step);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void accept(WritableVisitor visitor, CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        cursor.accept(visitor, step);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_WRITE, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_WRITE, start);
+      }
+    }
+
+    @Override
+    public void setValue(byte[] value, CursorStep step) {
+      metrics.written(length(value));
+      long start = System.nanoTime();
+      try {
+        cursor.setValue(value, step);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_WRITE, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_WRITE, start);
+      }
+    }
+
+    @Override
+    public void setValue(String value, CursorStep step) {
+      metrics.written(length(value));
+      long start = System.nanoTime();
+      try {
+        cursor.setValue(value, step);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_WRITE, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_WRITE, start);
+      }
+    }
+
+    @Override
+    public void remove() {
+      long start = System.nanoTime();
+      try {
+        cursor.remove();
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_WRITE, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_WRITE, start);
+      }
+    }
+
+    @Override
+    public byte[] getKey(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getKey(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public String getKeyAsString(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getKeyAsString(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public byte[] getValue(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getValue(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public String getValueAsString(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getValueAsString(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public byte[][] getEntry(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getEntry(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public List<byte[][]> nextBatch(int maximumRecords) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.nextBatch(maximumRecords));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public String[] getEntryAsString(CursorStep step) {
+      long start = System.nanoTime();
+      try {
+        return metrics.read(cursor.getEntryAsString(step));
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanForwardFromStart() {
+      long start = System.nanoTime();
+      try {
+        cursor.scanForwardFromStart();
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanForwardFromKey(byte[] key) {
+      long start = System.nanoTime();
+      try {
+        cursor.scanForwardFromKey(key);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanForwardFromKey(String key) {
+      long start = System.nanoTime();
+      try {
+        cursor.scanForwardFromKey(key);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanBackwardsFromEnd() {
+      long start = System.nanoTime();
+      try {
+        cursor.scanBackwardsFromEnd();
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanBackwardsFromKey(byte[] key) {
+      long start = System.nanoTime();
+      try {
+        cursor.scanBackwardsFromKey(key);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void scanBackwardsFromKey(String key) {
+      long start = System.nanoTime();
+      try {
+        cursor.scanBackwardsFromKey(key);
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void stepForwards() {
+      long start = System.nanoTime();
+      try {
+        cursor.stepForwards();
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+    @Override
+    public void stepBackwards() {
+      long start = System.nanoTime();
+      try {
+        cursor.stepBackwards();
+      } catch (RuntimeException e) {
+        throw metrics.failed(OperationType.CURSOR_STEP, e);
+      } finally {
+        metrics.record(OperationType.CURSOR_STEP, start);
+      }
+    }
+
+  }
+
+}
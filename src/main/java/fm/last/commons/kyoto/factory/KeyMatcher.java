@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoException;
+
+/**
+ * Streams the keys of a database that match a prefix, regular expression or query string to a visitor by scanning
+ * with a cursor, rather than collecting the matches in native code. Keys are read one at a time and values are never
+ * read. Each method closes the cursor it is given.
+ */
+final class KeyMatcher {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private KeyMatcher() {
+  }
+
+  /**
+   * @param rangeScan true if the database stores keys in lexical order, so that only the range of keys starting with
+   *          the prefix need be scanned.
+   * @return false if the visitor stopped the match.
+   */
+  static boolean matchPrefix(KyotoCursor cursor, byte[] prefix, boolean rangeScan, KeyVisitor visitor) {
+    try {
+      if (rangeScan) {
+        cursor.scanForwardFromKey(prefix);
+      } else {
+        cursor.scanForwardFromStart();
+      }
+      byte[] key;
+      while ((key = cursor.getKey(CursorStep.NEXT_RECORD)) != null) {
+        if (startsWith(key, prefix)) {
+          if (!visitor.key(key)) {
+            return false;
+          }
+        } else if (rangeScan) {
+          break;
+        }
+      }
+      return true;
+    } finally {
+      close(cursor);
+    }
+  }
+
+  /**
+   * @return false if the visitor stopped the match.
+   */
+  static boolean matchRegex(KyotoCursor cursor, Pattern pattern, StringCodec codec, KeyStringVisitor visitor) {
+    try {
+      cursor.scanForwardFromStart();
+      Matcher matcher = pattern.matcher("");
+      byte[] key;
+      while ((key = cursor.getKey(CursorStep.NEXT_RECORD)) != null) {
+        String decoded = codec.decode(key);
+        if (matcher.reset(decoded).find() && !visitor.key(decoded)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      close(cursor);
+    }
+  }
+
+  /**
+   * Distances are measured between code points if the key character set is UTF-8, as Kyoto Cabinet does, otherwise
+   * between bytes.
+   * 
+   * @return false if the visitor stopped the match.
+   */
+  static boolean matchLevenshtein(KyotoCursor cursor, String query, long maximumDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    boolean characters = keyCharset.equals(UTF_8);
+    int[] target = characters ? codePoints(query) : unsigned(query.getBytes(keyCharset));
+    int bound = (int) Math.min(Integer.MAX_VALUE, maximumDistance);
+    StringCodec codec = new StringCodec(keyCharset);
+    try {
+      cursor.scanForwardFromStart();
+      byte[] key;
+      while ((key = cursor.getKey(CursorStep.NEXT_RECORD)) != null) {
+        String decoded = codec.decode(key);
+        int[] candidate = characters ? codePoints(decoded) : unsigned(key);
+        if (distance(candidate, target, bound) <= bound && !visitor.key(decoded)) {
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      close(cursor);
+    }
+  }
+
+  /**
+   * @return a visitor that decodes keys and passes them to the given visitor.
+   */
+  static KeyVisitor decoding(final KeyStringVisitor visitor, final StringCodec codec) {
+    return new KeyVisitor() {
+      @Override
+      public boolean key(byte[] key) {
+        return visitor.key(codec.decode(key));
+      }
+    };
+  }
+
+  /**
+   * @return the Levenshtein distance between the sequences if it is no greater than the bound, otherwise a value
+   *         greater than the bound.
+   */
+  static int distance(int[] a, int[] b, int bound) {
+    if (Math.abs(a.length - b.length) > bound) {
+      return bound + 1;
+    }
+    int[] previous = new int[b.length + 1];
+    int[] current = new int[b.length + 1];
+    for (int column = 0; column <= b.length; column++) {
+      previous[column] = column;
+    }
+    for (int row = 1; row <= a.length; row++) {
+      current[0] = row;
+      int rowMinimum = row;
+      for (int column = 1; column <= b.length; column++) {
+        int cost = a[row - 1] == b[column - 1] ? 0 : 1;
+        current[column] = Math.min(Math.min(previous[column] + 1, current[column - 1] + 1),
+            previous[column - 1] + cost);
+        rowMinimum = Math.min(rowMinimum, current[column]);
+      }
+      if (rowMinimum > bound) {
+        return bound + 1;
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return previous[b.length];
+  }
+
+  static boolean startsWith(byte[] key, byte[] prefix) {
+    if (key.length < prefix.length) {
+      return false;
+    }
+    for (int index = 0; index < prefix.length; index++) {
+      if (key[index] != prefix[index]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int[] codePoints(String value) {
+    int[] codePoints = new int[value.codePointCount(0, value.length())];
+    for (int index = 0, offset = 0; offset < value.length(); index++) {
+      codePoints[index] = value.codePointAt(offset);
+      offset += Character.charCount(codePoints[index]);
+    }
+    return codePoints;
+  }
+
+  private static int[] unsigned(byte[] value) {
+    int[] unsigned = new int[value.length];
+    for (int index = 0; index < value.length; index++) {
+      unsigned[index] = value[index] & 0xFF;
+    }
+    return unsigned;
+  }
+
+  private static void close(KyotoCursor cursor) {
+    try {
+      cursor.close();
+    } catch (IOException e) {
+      throw new KyotoException("Could not close cursor", e);
+    }
+  }
+
+}
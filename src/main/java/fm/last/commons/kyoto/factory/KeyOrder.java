@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.Comparator;
+
+/**
+ * Java equivalents of the key comparators Kyoto Cabinet uses to order the records of tree databases, so that records
+ * can be sorted the way a database will store them.
+ * 
+ * @see PageComparator
+ */
+final class KeyOrder {
+
+  static final Comparator<byte[]> LEXICAL = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      return CursorRecordIterator.compareLexically(a, b);
+    }
+  };
+
+  /**
+   * Compares the decimal numbers at the start of the keys, ignoring leading white space, then their fractional parts,
+   * then the keys lexically - as {@code kyotocabinet::DecimalComparator} does.
+   */
+  static final Comparator<byte[]> DECIMAL = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      DecimalKey first = new DecimalKey(a);
+      DecimalKey second = new DecimalKey(b);
+      if (first.integer != second.integer) {
+        return first.integer < second.integer ? -1 : 1;
+      }
+      if (first.hasFraction() || second.hasFraction()) {
+        int comparison = Double.compare(first.fraction(), second.fraction());
+        if (comparison != 0) {
+          return comparison;
+        }
+      }
+      return CursorRecordIterator.compareLexically(a, b);
+    }
+  };
+
+  static final Comparator<byte[]> LEXICAL_DESCENDING = descending(LEXICAL);
+  static final Comparator<byte[]> DECIMAL_DESCENDING = descending(DECIMAL);
+
+  /** Digits of a fraction that are significant, as in Kyoto Cabinet. */
+  private static final int FRACTION_DIGITS = 16;
+
+  private KeyOrder() {
+  }
+
+  private static Comparator<byte[]> descending(final Comparator<byte[]> ascending) {
+    return new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        return ascending.compare(b, a);
+      }
+    };
+  }
+
+  /** The integer part of a decimal key and the position of its fractional part. */
+  private static final class DecimalKey {
+
+    private final byte[] key;
+    private final long integer;
+    private final int sign;
+    private final int position;
+
+    DecimalKey(byte[] key) {
+      this.key = key;
+      int index = 0;
+      while (index < key.length && ((key[index] & 0xFF) <= ' ' || key[index] == 0x7F)) {
+        index++;
+      }
+      int sign = 1;
+      if (index < key.length && key[index] == '-') {
+        sign = -1;
+        index++;
+      }
+      long integer = 0;
+      while (index < key.length && key[index] >= '0' && key[index] <= '9') {
+        integer = integer * 10 + key[index] - '0';
+        index++;
+      }
+      this.integer = integer * sign;
+      this.sign = sign;
+      position = index;
+    }
+
+    boolean hasFraction() {
+      return key.length - position > 1 && key[position] == '.';
+    }
+
+    double fraction() {
+      if (!hasFraction()) {
+        return 0;
+      }
+      double fraction = 0;
+      double base = 10;
+      int end = Math.min(key.length, position + 1 + FRACTION_DIGITS);
+      for (int index = position + 1; index < end && key[index] >= '0' && key[index] <= '9'; index++) {
+        fraction += (key[index] - '0') / base;
+        base *= 10;
+      }
+      return fraction * sign;
+    }
+
+  }
+
+}
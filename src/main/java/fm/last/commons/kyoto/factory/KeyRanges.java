@@ -0,0 +1,116 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoException;
+
+/**
+ * Divides the key space of an ordered database with a {@link PageComparator#LEXICAL lexical} comparator into ranges.
+ * Split points are interpolated between the first and last keys, so ranges are of equal width but hold an equal number
+ * of records only if keys are evenly distributed.
+ */
+final class KeyRanges {
+
+  private KeyRanges() {
+  }
+
+  /**
+   * @return up to {@code parts - 1} ascending split points, empty if the database holds fewer than two distinct keys.
+   */
+  static List<byte[]> splitPoints(KyotoCursor cursor, int parts) {
+    if (parts < 2) {
+      return Collections.emptyList();
+    }
+    byte[] first;
+    byte[] last;
+    try {
+      cursor.scanForwardFromStart();
+      first = cursor.getKey(CursorStep.NO_STEP);
+      cursor.scanBackwardsFromEnd();
+      last = cursor.getKey(CursorStep.NO_STEP);
+    } finally {
+      try {
+        cursor.close();
+      } catch (IOException e) {
+        throw new KyotoException("Could not close cursor", e);
+      }
+    }
+    if (first == null || last == null) {
+      return Collections.emptyList();
+    }
+    return interpolate(first, last, parts);
+  }
+
+  /**
+   * Interpolates split points between two keys by reading them as unsigned big-endian fractions.
+   */
+  static List<byte[]> interpolate(byte[] first, byte[] last, int parts) {
+    int width = Math.max(first.length, last.length) + 1;
+    BigInteger low = new BigInteger(1, pad(first, width));
+    BigInteger high = new BigInteger(1, pad(last, width));
+    List<byte[]> points = new ArrayList<byte[]>(parts - 1);
+    if (high.compareTo(low) <= 0) {
+      return points;
+    }
+    BigInteger range = high.subtract(low);
+    BigInteger divisor = BigInteger.valueOf(parts);
+    byte[] previous = first;
+    for (int part = 1; part < parts; part++) {
+      BigInteger point = low.add(range.multiply(BigInteger.valueOf(part)).divide(divisor));
+      byte[] key = trim(unpad(point, width));
+      if (CursorRecordIterator.compareLexically(key, previous) > 0
+          && CursorRecordIterator.compareLexically(key, last) <= 0) {
+        points.add(key);
+        previous = key;
+      }
+    }
+    return points;
+  }
+
+  private static byte[] pad(byte[] key, int width) {
+    byte[] padded = new byte[width];
+    System.arraycopy(key, 0, padded, 0, key.length);
+    return padded;
+  }
+
+  private static byte[] unpad(BigInteger value, int width) {
+    byte[] bytes = value.toByteArray();
+    byte[] key = new byte[width];
+    int length = Math.min(bytes.length, width);
+    System.arraycopy(bytes, bytes.length - length, key, width - length, length);
+    return key;
+  }
+
+  /** Trailing zero bytes only lengthen the key, they do not change where it falls between other keys. */
+  private static byte[] trim(byte[] key) {
+    int length = key.length;
+    while (length > 1 && key[length - 1] == 0) {
+      length--;
+    }
+    byte[] trimmed = new byte[length];
+    System.arraycopy(key, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+}
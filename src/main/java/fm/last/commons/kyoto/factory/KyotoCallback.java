@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * Receives the outcome of an operation submitted to an {@link AsyncKyotoDb}. Called on the thread that completed the
+ * operation, or on the thread that adds the callback if the operation has already completed, so implementations
+ * should be quick and must not block.
+ * 
+ * @see KyotoFuture#addCallback(KyotoCallback)
+ */
+public interface KyotoCallback<T> {
+
+  void onSuccess(T result);
+
+  /**
+   * @param cause the exception thrown by the operation, or a {@link java.util.concurrent.CancellationException} if it
+   *          was cancelled.
+   */
+  void onFailure(Throwable cause);
+
+}
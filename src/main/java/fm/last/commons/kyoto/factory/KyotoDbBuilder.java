@@ -34,11 +34,14 @@ import static fm.last.commons.kyoto.factory.Argument.PAGE_SIZE;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 import kyotocabinet.DB;
 
@@ -48,6 +51,10 @@ import org.slf4j.LoggerFactory;
 import fm.last.commons.kyoto.DbType;
 import fm.last.commons.kyoto.DbType.StorageType;
 import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+import fm.last.commons.kyoto.factory.ReadReplicaKyotoDb.ReplicaFactory;
+import fm.last.commons.kyoto.factory.SwappableKyotoDb.DbFactory;
 import fm.last.commons.lang.units.ByteUnit;
 import fm.last.commons.lang.units.MetricUnit;
 
@@ -59,6 +66,8 @@ import fm.last.commons.lang.units.MetricUnit;
 public class KyotoDbBuilder {
 
   private static final File NO_FILE = null;
+  private static final Set<Mode> WRITE_MODES = EnumSet.of(Mode.READ_WRITE, Mode.CREATE, Mode.TRUNCATE,
+      Mode.AUTO_TRANSACTION);
 
   private final Logger log = LoggerFactory.getLogger(getClass());
   private final Set<Option> options;
@@ -67,6 +76,25 @@ public class KyotoDbBuilder {
   private final InternalKyotoFactory dbFactory;
   private final DbType dbType;
   private final File file;
+  private int shards = 1;
+  private int readReplicas = 1;
+  private boolean swappable;
+  private PageComparator pageComparator = PageComparator.LEXICAL;
+  private long readCacheEntries;
+  private long readCacheBytes;
+  private boolean instrumented;
+  private MetricsSink metricsSink;
+  private long metricsPeriodMilliseconds;
+  private boolean jmx;
+  private String jmxName;
+  private long jmxRefreshPeriodMilliseconds = ManagedKyotoDb.DEFAULT_REFRESH_PERIOD_MILLISECONDS;
+  private double bloomFilterProbability;
+  private int writeBehindRecords;
+  private long writeBehindBytes;
+  private long writeBehindDelayNanoseconds;
+  private Synchronization writeBehindSynchronization;
+  private WarmingKyotoDb.Warmup warmup;
+  private WarmupListener warmupListener;
 
   /**
    * Create a builder for a memory based {@link KyotoDb}.
@@ -144,11 +172,59 @@ public class KyotoDbBuilder {
    * @return an unopened {@link KyotoDb}.
    */
   public final KyotoDb build() {
-    String descriptor = buildDbDescriptor();
-    log.info("Creating Kyoto '{}' DB with descriptor '{}' to open with modes '{}'", new Object[] { dbType, descriptor,
-      modes });
-    DB delegate = dbFactory.newDb();
-    KyotoDb db = new KyotoDbImpl(dbType, delegate, descriptor, modes, file);
+    validateCombinations();
+    List<KyotoDbImpl> dbs = new ArrayList<KyotoDbImpl>(shards);
+    KyotoDb db;
+    ReadReplicaKyotoDb readReplicaDb = null;
+    SwappableKyotoDb swappableDb = null;
+    if (swappable) {
+      swappableDb = buildSwappable();
+      db = swappableDb;
+    } else if (shards > 1) {
+      db = buildSharded(dbs);
+    } else if (readReplicas > 1) {
+      readReplicaDb = buildReadReplicas();
+      db = readReplicaDb;
+    } else {
+      db = buildDb(file, dbs);
+    }
+    if (warmup != null) {
+      db = new WarmingKyotoDb(db, warmup, warmupListener);
+    }
+    ManagedKyotoDb managedDb = null;
+    if (jmx) {
+      managedDb = new ManagedKyotoDb(db, jmxName(db), jmxRefreshPeriodMilliseconds);
+      db = managedDb;
+    }
+    if (bloomFilterProbability > 0) {
+      db = new BloomFilteredKyotoDb(db, bloomFilterProbability);
+    }
+    if (writeBehindRecords > 0) {
+      db = new WriteBehindKyotoDb(db, writeBehindRecords, writeBehindBytes, writeBehindDelayNanoseconds,
+          TimeUnit.NANOSECONDS, writeBehindSynchronization);
+    }
+    CachingKyotoDb cachingDb = null;
+    if (readCacheEntries > 0) {
+      cachingDb = new CachingKyotoDb(db, readCacheEntries, readCacheBytes);
+      db = cachingDb;
+    }
+    InstrumentedKyotoDb instrumentedDb = null;
+    if (instrumented) {
+      instrumentedDb = new InstrumentedKyotoDb(db, metricsSink, metricsPeriodMilliseconds);
+      for (KyotoDbImpl impl : dbs) {
+        impl.getErrorHandler().setErrorListener(instrumentedDb.getErrorListener());
+      }
+      if (readReplicaDb != null) {
+        readReplicaDb.setErrorListener(instrumentedDb.getErrorListener());
+      }
+      if (swappableDb != null) {
+        swappableDb.setErrorListener(instrumentedDb.getErrorListener());
+      }
+      db = instrumentedDb;
+    }
+    if (managedDb != null) {
+      managedDb.setMetricSources(instrumentedDb, cachingDb);
+    }
     return db;
   }
 
@@ -165,6 +241,245 @@ public class KyotoDbBuilder {
     return db;
   }
 
+  /**
+   * Stripe records across a number of databases by a hash of the key. {@link #build()} will return a
+   * {@link ShardedKyotoDb}. For file based types each shard is stored in a file named after the builder's file with the
+   * shard number appended, for example {@code name.kch} becomes {@code name-00.kch}, {@code name-01.kch} and so on. The
+   * builder's own file is not used. The same number of shards must be used every time the database is opened.
+   * 
+   * @param shards the number of shards - 1 builds a regular unsharded database.
+   */
+  public KyotoDbBuilder shards(int shards) {
+    if (shards < 1) {
+      throw new IllegalArgumentException("shards must be > 0");
+    }
+    this.shards = shards;
+    return this;
+  }
+
+  /**
+   * Open the file several times read only and spread reads over the handles, each of which has its own locks.
+   * {@link #build()} will return a {@link ReadReplicaKyotoDb}, or decorators over one when options such as
+   * {@link #jmx()} or {@link #instrumented()} are also set; {@link ForwardingKyotoDb#unwrap(KyotoDb, Class)} finds it
+   * under them. It rejects writes and can switch to a new version of the file with
+   * {@link ReadReplicaKyotoDb#reopen()}. {@link Mode#READ_ONLY} is added to the modes and modes that write are not
+   * allowed. Cannot be combined with {@link #shards(int)}, {@link #writeBehind(int, long, long, TimeUnit)},
+   * {@link #readCache(long, long)} or {@link #bloomFilter(double)}, which would go stale after a reopen.
+   * 
+   * @param replicas the number of handles - 1 builds a regular database.
+   */
+  public KyotoDbBuilder readReplicas(int replicas) {
+    if (replicas < 1) {
+      throw new IllegalArgumentException("replicas must be > 0");
+    }
+    if (dbType.storageType() == StorageType.MEMORY) {
+      throw new IllegalStateException("Read replicas require a file system resource: " + dbType);
+    }
+    readReplicas = replicas;
+    return this;
+  }
+
+  /**
+   * Allow the database file to be replaced while the database is in use. {@link #build()} will return a
+   * {@link SwappableKyotoDb}, or decorators over one when options such as {@link #jmx()} or {@link #instrumented()}
+   * are also set; {@link ForwardingKyotoDb#unwrap(KyotoDb, Class)} finds it under them.
+   * {@link SwappableKyotoDb#swap(File, boolean)} opens another file with the same arguments and modes and switches to
+   * it. Writes and transactions are rejected, {@link Mode#READ_ONLY} is added to the modes and modes that write are not
+   * allowed. Cannot be combined with {@link #shards(int)}, {@link #readReplicas(int)}, {@link #readCache(long, long)},
+   * {@link #bloomFilter(double)} or {@link #writeBehind(int, long, long, TimeUnit)}, which would keep state about the
+   * file being replaced.
+   */
+  public KyotoDbBuilder swappable() {
+    if (dbType.storageType() == StorageType.MEMORY) {
+      throw new IllegalStateException("Swapping requires a file system resource: " + dbType);
+    }
+    swappable = true;
+    return this;
+  }
+
+  /**
+   * Keep recently read record values in an on-heap cache in front of the database. {@link #build()} will return a
+   * {@link CachingKyotoDb}. Values are only admitted if they are requested more often than the values they would
+   * evict. Unlike {@link #pageCacheSize(long)} this avoids the JNI call entirely on a hit, but it is only coherent
+   * with writes made through the returned instance. Cannot be combined with {@link #readReplicas(int)}.
+   * 
+   * @param maximumEntries the maximum number of values to cache.
+   * @param maximumBytes the maximum combined size of the cached keys and values.
+   */
+  public KyotoDbBuilder readCache(long maximumEntries, long maximumBytes) {
+    if (maximumEntries < 1) {
+      throw new IllegalArgumentException("maximumEntries must be > 0");
+    }
+    if (maximumBytes < 1) {
+      throw new IllegalArgumentException("maximumBytes must be > 0");
+    }
+    readCacheEntries = maximumEntries;
+    readCacheBytes = maximumBytes;
+    return this;
+  }
+
+  /**
+   * @see #readCache(long, long)
+   */
+  public KyotoDbBuilder readCache(long maximumEntries, long maximumSize, ByteUnit unit) {
+    return readCache(maximumEntries, unit.toBytes(maximumSize));
+  }
+
+  /**
+   * Read the database files into the operating system's page cache on a background thread each time the database is
+   * opened, so that the first reads after a restart do not fault on disk. This suits types that are memory mapped, see
+   * {@link #memoryMapSizeFromFile()}. The database can be used while it is warming; use the listener to hold back
+   * traffic, or a health check, until it has finished.
+   * 
+   * @param maximumBytesPerSecond the maximum read rate, or 0 for no limit.
+   * @param listener told of progress after each 1MB read, and of completion.
+   */
+  public KyotoDbBuilder warmup(long maximumBytesPerSecond, WarmupListener listener) {
+    if (dbType.storageType() == StorageType.MEMORY) {
+      throw new IllegalStateException("Page cache warmup requires a file system resource: " + dbType);
+    }
+    setWarmup(new WarmingKyotoDb.FileWarmup(maximumBytesPerSecond), maximumBytesPerSecond, listener);
+    return this;
+  }
+
+  /**
+   * @see #warmup(long, WarmupListener)
+   */
+  public KyotoDbBuilder warmup(long maximumSizePerSecond, ByteUnit unit, WarmupListener listener) {
+    return warmup(unit.toBytes(maximumSizePerSecond), listener);
+  }
+
+  /**
+   * Replay a recorded list of hot keys through {@link KyotoDb#getOrDefault(String, String)} on a background thread each
+   * time the database is opened, so that the pages and caches holding them are warm before traffic arrives. This only
+   * touches the records that matter, where {@link #warmup(long, WarmupListener)} reads whole files.
+   * 
+   * @param keyFile a UTF-8 text file with one key per line.
+   * @param maximumKeysPerSecond the maximum replay rate, or 0 for no limit.
+   * @param listener told of progress every 1000 keys, and of completion.
+   */
+  public KyotoDbBuilder warmupKeys(File keyFile, long maximumKeysPerSecond, WarmupListener listener) {
+    if (keyFile == null) {
+      throw new IllegalArgumentException("keyFile must not be null");
+    }
+    setWarmup(new WarmingKyotoDb.KeyWarmup(keyFile, maximumKeysPerSecond), maximumKeysPerSecond, listener);
+    return this;
+  }
+
+  /**
+   * Keep a Bloom filter of the keys on the heap so that lookups of absent keys do not need a JNI call.
+   * {@link #build()} will return a {@link BloomFilteredKyotoDb}. The filter is sized from the number of records when the
+   * database is opened and persisted next to the database file when it is closed. It is only correct if the database
+   * is not modified by other processes or through other instances, so it cannot be combined with
+   * {@link #readReplicas(int)}.
+   * 
+   * @param falsePositiveProbability the rate at which the filter should report absent keys as possibly present.
+   */
+  public KyotoDbBuilder bloomFilter(double falsePositiveProbability) {
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException("falsePositiveProbability must be > 0 and < 1");
+    }
+    bloomFilterProbability = falsePositiveProbability;
+    return this;
+  }
+
+  /**
+   * Buffer single record writes and removes in memory and write them to the database in batches on a background
+   * thread. {@link #build()} will return a {@link WriteBehindKyotoDb}. Reads of single records see pending writes, all
+   * other operations flush them first. Pending writes are lost if the process dies before they are flushed.
+   * 
+   * @param maximumBatchRecords flush when this many distinct keys have pending writes.
+   * @param maximumBatchBytes flush when the pending keys and values take up this many bytes.
+   * @param maximumDelay flush when the oldest pending write has waited this long.
+   */
+  public KyotoDbBuilder writeBehind(int maximumBatchRecords, long maximumBatchBytes, long maximumDelay, TimeUnit unit) {
+    if (maximumBatchRecords < 1) {
+      throw new IllegalArgumentException("maximumBatchRecords must be > 0");
+    }
+    if (maximumBatchBytes < 1) {
+      throw new IllegalArgumentException("maximumBatchBytes must be > 0");
+    }
+    if (maximumDelay < 1) {
+      throw new IllegalArgumentException("maximumDelay must be > 0");
+    }
+    writeBehindRecords = maximumBatchRecords;
+    writeBehindBytes = maximumBatchBytes;
+    writeBehindDelayNanoseconds = unit.toNanos(maximumDelay);
+    return this;
+  }
+
+  /**
+   * Write each {@link #writeBehind(int, long, long, TimeUnit) write-behind} batch in a transaction so that a batch is
+   * either written completely or not at all.
+   */
+  public KyotoDbBuilder writeBehindTransactions(Synchronization synchronization) {
+    if (synchronization == null) {
+      throw new IllegalArgumentException("synchronization must not be null");
+    }
+    writeBehindSynchronization = synchronization;
+    return this;
+  }
+
+  /**
+   * Measure the latency, throughput and errors of the calls made to the database. {@link #build()} will return an
+   * {@link InstrumentedKyotoDb}, from which a {@link MetricsSnapshot} can be taken at any time.
+   */
+  public KyotoDbBuilder instrumented() {
+    instrumented = true;
+    return this;
+  }
+
+  /**
+   * Measure the calls made to the database as {@link #instrumented()} does and publish the metrics to a sink every
+   * period while the database is open, and once more when it is closed.
+   */
+  public KyotoDbBuilder instrumented(MetricsSink sink, long period, TimeUnit unit) {
+    if (sink == null) {
+      throw new IllegalArgumentException("sink must not be null");
+    }
+    if (period < 1) {
+      throw new IllegalArgumentException("period must be > 0");
+    }
+    instrumented = true;
+    metricsSink = sink;
+    metricsPeriodMilliseconds = Math.max(1, unit.toMillis(period));
+    return this;
+  }
+
+  /**
+   * Register a {@link KyotoDbMXBean} with the platform MBean server while the database is open, named after the
+   * database file or, for memory based types, the type and an identity hash code.
+   */
+  public KyotoDbBuilder jmx() {
+    jmx = true;
+    return this;
+  }
+
+  /**
+   * Register a {@link KyotoDbMXBean} with the platform MBean server while the database is open, as
+   * {@code fm.last.commons.kyoto:type=KyotoDb,name="<name>"}.
+   */
+  public KyotoDbBuilder jmx(String name) {
+    if (name == null) {
+      throw new IllegalArgumentException("name must not be null");
+    }
+    jmx = true;
+    jmxName = name;
+    return this;
+  }
+
+  /**
+   * How often the status attributes of the {@link #jmx() MBean} are refreshed in the background. Defaults to 10
+   * seconds.
+   */
+  public KyotoDbBuilder jmxStatusRefreshPeriod(long period, TimeUnit unit) {
+    if (period < 1) {
+      throw new IllegalArgumentException("period must be > 0");
+    }
+    jmxRefreshPeriodMilliseconds = Math.max(1, unit.toMillis(period));
+    return this;
+  }
+
   /**
    * Database options: <b>#opts</b>. Supported by {@link DbType#CACHE_HASH}, {@link DbType#CACHE_TREE},
    * {@link DbType#FILE_HASH}, {@link DbType#FILE_TREE}, {@link DbType#DIRECTORY_HASH}, {@link DbType#DIRECTORY_TREE}.
@@ -314,6 +629,7 @@ public class KyotoDbBuilder {
    */
   public KyotoDbBuilder pageComparator(PageComparator comparator) {
     addArgument(PAGE_COMPARATOR, comparator.value());
+    pageComparator = comparator;
     return this;
   }
 
@@ -418,6 +734,20 @@ public class KyotoDbBuilder {
     return this;
   }
 
+  private void setWarmup(WarmingKyotoDb.Warmup warmup, long maximumPerSecond, WarmupListener listener) {
+    if (maximumPerSecond < 0) {
+      throw new IllegalArgumentException("maximumPerSecond must be >= 0");
+    }
+    if (listener == null) {
+      throw new IllegalArgumentException("listener must not be null");
+    }
+    if (this.warmup != null) {
+      throw new IllegalStateException("A warmup has already been configured.");
+    }
+    this.warmup = warmup;
+    warmupListener = listener;
+  }
+
   private void addArgument(Argument argument, String value) {
     validateArgumentForType(argument);
     arguments.put(argument, value);
@@ -429,15 +759,129 @@ public class KyotoDbBuilder {
     }
   }
 
-  private String buildDbDescriptor() {
+  private KyotoDbImpl buildDb(File file, List<KyotoDbImpl> dbs) {
+    String descriptor = buildDbDescriptor(file);
+    log.info("Creating Kyoto '{}' DB with descriptor '{}' to open with modes '{}'", new Object[] { dbType, descriptor,
+      modes });
+    DB delegate = dbFactory.newDb();
+    KyotoDbImpl db = new KyotoDbImpl(dbType, delegate, descriptor, modes, file, pageComparator);
+    dbs.add(db);
+    return db;
+  }
+
+  private ShardedKyotoDb buildSharded(List<KyotoDbImpl> dbs) {
+    List<KyotoDb> shardDbs = new ArrayList<KyotoDb>(shards);
+    for (int index = 0; index < shards; index++) {
+      File shardFile = NO_FILE;
+      if (file != NO_FILE) {
+        shardFile = shardFile(file, index, shards);
+      }
+      shardDbs.add(buildDb(shardFile, dbs));
+    }
+    return new ShardedKyotoDb(dbType, file, shardDbs);
+  }
+
+  private void validateCombinations() {
+    if (swappable && (shards > 1 || readReplicas > 1 || readCacheEntries > 0 || bloomFilterProbability > 0
+        || writeBehindRecords > 0)) {
+      throw new IllegalStateException("A swappable database cannot be combined with shards, read replicas, a read "
+          + "cache, a Bloom filter or write behind.");
+    }
+    if (readReplicas > 1) {
+      if (shards > 1 || writeBehindRecords > 0 || readCacheEntries > 0 || bloomFilterProbability > 0) {
+        throw new IllegalStateException("Read replicas cannot be combined with shards, write behind, a read cache or "
+            + "a Bloom filter.");
+      }
+      validateReadOnlyModes("Read replicas");
+    }
+    if (swappable) {
+      validateReadOnlyModes("Swappable databases");
+    }
+  }
+
+  private void validateReadOnlyModes(String description) {
+    for (Mode mode : WRITE_MODES) {
+      if (modes.contains(mode)) {
+        throw new IllegalStateException(description + " are opened read only, mode not allowed: " + mode);
+      }
+    }
+  }
+
+  private ReadReplicaKyotoDb buildReadReplicas() {
+    final String descriptor = buildDbDescriptor(file);
+    final Set<Mode> replicaModes = EnumSet.copyOf(modes);
+    replicaModes.add(Mode.READ_ONLY);
+    final PageComparator replicaComparator = pageComparator;
+    log.info("Creating {} read only replicas of Kyoto '{}' DB with descriptor '{}'", new Object[] { readReplicas,
+      dbType, descriptor });
+    return new ReadReplicaKyotoDb(dbType, file, readReplicas, new ReplicaFactory() {
+      @Override
+      public KyotoDb newReplica(ErrorListener errorListener) {
+        KyotoDbImpl db = new KyotoDbImpl(dbType, dbFactory.newDb(), descriptor, replicaModes, file, replicaComparator);
+        db.getErrorHandler().setErrorListener(errorListener);
+        return db;
+      }
+    });
+  }
+
+  private SwappableKyotoDb buildSwappable() {
+    final String argumentList = buildArgumentList();
+    final Set<Mode> dbModes = EnumSet.copyOf(modes);
+    dbModes.add(Mode.READ_ONLY);
+    final PageComparator dbComparator = pageComparator;
+    return new SwappableKyotoDb(dbType, file, new DbFactory() {
+      @Override
+      public KyotoDb newDb(File dbFile, ErrorListener errorListener) {
+        String descriptor = buildFilePath(dbFile) + argumentList;
+        log.info("Creating swappable Kyoto '{}' DB with descriptor '{}' to open with modes '{}'", new Object[] {
+          dbType, descriptor, dbModes });
+        KyotoDbImpl db = new KyotoDbImpl(dbType, dbFactory.newDb(), descriptor, dbModes, dbFile, dbComparator);
+        db.getErrorHandler().setErrorListener(errorListener);
+        return db;
+      }
+    });
+  }
+
+  private String jmxName(KyotoDb db) {
+    if (jmxName != null) {
+      return jmxName;
+    }
+    if (file != NO_FILE) {
+      return file.getAbsolutePath();
+    }
+    return dbType.name() + "@" + Integer.toHexString(System.identityHashCode(db));
+  }
+
+  /**
+   * Derives the file of a shard from a template file: {@code name.kch} becomes {@code name-07.kch}. Shard numbers are
+   * zero padded to at least two digits.
+   */
+  static File shardFile(File template, int index, int shards) {
+    String name = template.getName();
+    String suffix = "";
+    int suffixStart = name.lastIndexOf('.');
+    if (suffixStart > 0) {
+      suffix = name.substring(suffixStart);
+      name = name.substring(0, suffixStart);
+    }
+    int digits = Math.max(2, String.valueOf(shards - 1).length());
+    String number = String.format("%0" + digits + "d", index);
+    return new File(template.getParentFile(), name + "-" + number + suffix);
+  }
+
+  private String buildDbDescriptor(File file) {
+    return buildFilePath(file) + buildArgumentList();
+  }
+
+  private String buildArgumentList() {
     StringBuilder argsList = new StringBuilder();
     for (Map.Entry<Argument, String> entry : arguments.entrySet()) {
       argsList.append('#').append(entry.getKey().key()).append('=').append(entry.getValue());
     }
-    return buildFilePath() + argsList.toString();
+    return argsList.toString();
   }
 
-  private String buildFilePath() {
+  private String buildFilePath(File file) {
     if (dbType.storageType() == StorageType.MEMORY) {
       return dbType.identifier();
     }
@@ -21,10 +21,14 @@ import static fm.last.commons.kyoto.factory.IncrementBehaviour.ERROR_ON_KEY_MISS
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import kyotocabinet.DB;
 import kyotocabinet.Error;
@@ -33,13 +37,21 @@ import fm.last.commons.kyoto.AccessType;
 import fm.last.commons.kyoto.Atomicity;
 import fm.last.commons.kyoto.Codec;
 import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
 import fm.last.commons.kyoto.KyotoCursor;
 import fm.last.commons.kyoto.KyotoDb;
 import fm.last.commons.kyoto.KyotoFileProcessor;
 import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
 import fm.last.commons.kyoto.ReadOnlyStringVisitor;
 import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
 import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableLongVisitor;
 import fm.last.commons.kyoto.WritableStringVisitor;
 import fm.last.commons.kyoto.WritableVisitor;
 import fm.last.commons.kyoto.factory.ErrorHandler.ErrorSource;
@@ -54,11 +66,19 @@ class KyotoDbImpl implements KyotoDb {
   private final DbType dbType;
   private final File file;
   private final ErrorHandler errorHandler;
-  private Charset encoding;
-  private volatile boolean open;
+  private final PageComparator pageComparator;
+  private volatile StringCodec codec;
+  /** Tracks the calls in progress so that {@link #close()} can wait for them before closing the native handle. */
+  private final InFlightGate gate = new InFlightGate();
 
   KyotoDbImpl(DbType dbType, final DB delegate, String descriptor, Set<Mode> modes, File file) {
+    this(dbType, delegate, descriptor, modes, file, PageComparator.LEXICAL);
+  }
+
+  KyotoDbImpl(DbType dbType, final DB delegate, String descriptor, Set<Mode> modes, File file,
+      PageComparator pageComparator) {
     this.dbType = dbType;
+    this.pageComparator = pageComparator;
     this.delegate = delegate;
     this.descriptor = descriptor;
     this.modes = modes;
@@ -71,130 +91,226 @@ class KyotoDbImpl implements KyotoDb {
     });
     if (delegate.count() != -1) {
       // We do this only to facilitate testing
-      open = true;
-    } else {
-      open = false;
+      gate.open();
     }
-    encoding = UTF_8;
+    codec = new StringCodec(UTF_8);
   }
 
   @Override
   public void accept(byte[] key, ReadOnlyVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(key, new ReadOnlyVisitorAdapter(visitor), AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(key, new ReadOnlyVisitorAdapter(visitor),
+          AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept_bulk(keys, new ReadOnlyVisitorAdapter(visitor),
-        AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept_bulk(keys, new ReadOnlyVisitorAdapter(visitor),
+          AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(String key, ReadOnlyStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(stringToByteArray(key), new ReadOnlyStringVisitorAdapter(visitor, this),
-        AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(stringToByteArray(key), new ReadOnlyStringVisitorAdapter(visitor, this),
+          AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept_bulk(stringListTo2DByteArray(keys), new ReadOnlyStringVisitorAdapter(
-        visitor, this), AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept_bulk(stringListTo2DByteArray(keys), new ReadOnlyStringVisitorAdapter(
+          visitor, this), AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(byte[] key, WritableVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(key, new WritableVisitorAdapter(visitor), AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(key, new WritableVisitorAdapter(visitor),
+          AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(byte[][] keys, WritableVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept_bulk(keys, new WritableVisitorAdapter(visitor),
-        AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept_bulk(keys, new WritableVisitorAdapter(visitor),
+          AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(String key, WritableStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept(stringToByteArray(key), new WritableStringVisitorAdapter(visitor, this),
-        AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept(stringToByteArray(key), new WritableStringVisitorAdapter(visitor, this),
+          AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void accept(List<String> keys, WritableStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.accept_bulk(stringListTo2DByteArray(keys), new WritableStringVisitorAdapter(
-        visitor, this), AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.accept_bulk(stringListTo2DByteArray(keys), new WritableStringVisitorAdapter(
+          visitor, this), AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyLongVisitor visitor) {
+    accept(keys, new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor) {
+    accept(keys, new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableLongVisitor visitor) {
+    accept(keys, new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableDoubleVisitor visitor) {
+    accept(keys, new WritableDoubleVisitorAdapter(visitor));
   }
 
   @Override
   public boolean putIfAbsent(byte[] key, byte[] value) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.add(key, value));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.add(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public boolean putIfAbsent(String key, String value) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.add(key, value));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.add(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void append(byte[] key, byte[] value) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.append(key, value));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.append(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void append(String key, String value) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.append(key, value));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.append(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void begin(Synchronization synchronization) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.begin_transaction(synchronization.value()),
-        "Could not begin transaction with synchronization: " + synchronization);
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.begin_transaction(synchronization.value()),
+          "Could not begin transaction with synchronization: " + synchronization);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void clear() {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.clear());
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.clear());
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public synchronized void close() throws IOException {
-    if (!open) {
+    if (!gate.isOpen()) {
       throw new IOException("Connection already closed: " + this);
     }
-    errorHandler.wrapVoidIoCall(delegate.close(), "Could not close db: " + descriptor);
-    open = false;
+    gate.close();
+    boolean closed = false;
+    try {
+      errorHandler.wrapVoidIoCall(delegate.close(), "Could not close db: " + descriptor);
+      closed = true;
+    } finally {
+      if (!closed) {
+        gate.open();
+      }
+    }
   }
 
   @Override
   public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.cas(key, oldValue, newValue));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.cas(key, oldValue, newValue));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public boolean compareAndSwap(String key, String oldValue, String newValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.cas(key, oldValue, newValue));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.cas(key, oldValue, newValue));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void copyTo(File destination) throws IOException {
-    checkDbIsOpen();
-    errorHandler.wrapVoidIoCall(delegate.copy(destination.getAbsolutePath()),
-        "Could not copy db to " + destination.getAbsolutePath());
+    enter();
+    try {
+      errorHandler.wrapVoidIoCall(delegate.copy(destination.getAbsolutePath()),
+          "Could not copy db to " + destination.getAbsolutePath());
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -209,69 +325,228 @@ class KyotoDbImpl implements KyotoDb {
 
   @Override
   public long recordCount() {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.count(), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.count(), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public KyotoCursor cursor() {
-    checkDbIsOpen();
-    return new CursorAdapter(delegate.cursor(), this);
+    enter();
+    try {
+      return new CursorAdapter(delegate.cursor(), this);
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    return CursorRecordIterator.entries(cursor());
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    return CursorRecordIterator.keys(cursor());
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    return CursorRecordIterator.values(cursor());
+  }
+
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    if (!dbType.isOrdered() || pageComparator != PageComparator.LEXICAL || maximumPartitions < 2) {
+      return Collections.singletonList(entries());
+    }
+    List<byte[]> splitPoints = KeyRanges.splitPoints(cursor(), maximumPartitions);
+    List<RecordIterator<byte[][]>> partitions = new ArrayList<RecordIterator<byte[][]>>(splitPoints.size() + 1);
+    byte[] fromKey = null;
+    for (byte[] toKey : splitPoints) {
+      partitions.add(CursorRecordIterator.entries(cursor(), fromKey, toKey));
+      fromKey = toKey;
+    }
+    partitions.add(CursorRecordIterator.entries(cursor(), fromKey, null));
+    return partitions;
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Comparator<byte[]> order = rangeOrder();
+    RangeScanner.scan(cursor(), fromKey, toKey, order, visitor);
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Comparator<byte[]> order = rangeOrder();
+    StringCodec keyCodec = codec;
+    RangeScanner.scan(cursor(), encode(keyCodec, fromKey), encode(keyCodec, toKey), order,
+        RangeScanner.decoding(visitor, keyCodec));
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Comparator<byte[]> order = rangeOrder();
+    RangeScanner.scanDescending(cursor(), fromKey, toKey, order, visitor);
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Comparator<byte[]> order = rangeOrder();
+    StringCodec keyCodec = codec;
+    RangeScanner.scanDescending(cursor(), encode(keyCodec, fromKey), encode(keyCodec, toKey), order,
+        RangeScanner.decoding(visitor, keyCodec));
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    Comparator<byte[]> order = rangeOrder();
+    return RangeScanner.count(cursor(), fromKey, toKey, order);
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    StringCodec keyCodec = codec;
+    return countRange(encode(keyCodec, fromKey), encode(keyCodec, toKey));
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    return RangeScanner.remove(this, fromKey, toKey, rangeOrder(), RangeScanner.REMOVE_TRANSACTION_SIZE);
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    StringCodec keyCodec = codec;
+    return removeRange(encode(keyCodec, fromKey), encode(keyCodec, toKey));
+  }
+
+  private Comparator<byte[]> rangeOrder() {
+    if (!dbType.isOrdered()) {
+      throw new UnsupportedOperationException("Range operations require an ordered database: " + dbType);
+    }
+    return pageComparator.keyOrder();
+  }
+
+  private static byte[] encode(StringCodec keyCodec, String key) {
+    return key == null ? null : keyCodec.encode(key);
   }
 
   @Override
   public void dumpSnapshotTo(File destination) throws IOException {
-    checkDbIsOpen();
-    errorHandler.wrapVoidIoCall(!delegate.dump_snapshot(destination.getAbsolutePath()), "Could not dump to snapshot: "
-        + destination.getAbsolutePath());
+    enter();
+    try {
+      errorHandler.wrapVoidIoCall(!delegate.dump_snapshot(destination.getAbsolutePath()), "Could not dump to snapshot: "
+          + destination.getAbsolutePath());
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void commit() {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.end_transaction(true), "Could not commit transaction");
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.end_transaction(true), "Could not commit transaction");
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void rollback() {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.end_transaction(false), "Could not rollback transaction");
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.end_transaction(false), "Could not rollback transaction");
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public byte[] get(byte[] key) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get(key));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get(key));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public byte[][] get(byte[][] keys, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_bulk(keys, atomicity.value()));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_bulk(keys, atomicity.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public Map<String, String> get(List<String> keys, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get_bulk(keys, atomicity.value()));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get_bulk(keys, atomicity.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public String get(String key) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.get(key));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.get(key));
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    enter();
+    try {
+      byte[] value = delegate.get(key);
+      return value == null ? defaultValue : value;
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    enter();
+    try {
+      String value = delegate.get(key);
+      return value == null ? defaultValue : value;
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public byte[] getAndRemove(byte[] key) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.seize(key));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.seize(key));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public String getAndRemove(String key) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.seize(key));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.seize(key));
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -286,114 +561,230 @@ class KyotoDbImpl implements KyotoDb {
 
   @Override
   public double increment(byte[] key, double delta) {
-    checkDbIsOpen();
-    return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, ERROR_ON_KEY_MISS.asDouble()), Double.NaN);
+    enter();
+    try {
+      return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, ERROR_ON_KEY_MISS.asDouble()),
+          Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public double increment(String key, double delta) {
-    checkDbIsOpen();
-    return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, ERROR_ON_KEY_MISS.asDouble()), Double.NaN);
+    enter();
+    try {
+      return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, ERROR_ON_KEY_MISS.asDouble()),
+          Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long increment(byte[] key, long delta) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.increment(key, delta, ERROR_ON_KEY_MISS.asLong()), Long.MIN_VALUE);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.increment(key, delta, ERROR_ON_KEY_MISS.asLong()), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long increment(String key, long delta) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.increment(key, delta, ERROR_ON_KEY_MISS.asLong()), Long.MIN_VALUE);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.increment(key, delta, ERROR_ON_KEY_MISS.asLong()), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(byte[] key, double value) {
-    checkDbIsOpen();
-    errorHandler.wrapDoubleCall(delegate.increment_double(key, value, ALWAYS_SET_VALUE.asDouble()), Double.NaN);
+    enter();
+    try {
+      errorHandler.wrapDoubleCall(delegate.increment_double(key, value, ALWAYS_SET_VALUE.asDouble()), Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(String key, double value) {
-    checkDbIsOpen();
-    errorHandler.wrapDoubleCall(delegate.increment_double(key, value, ALWAYS_SET_VALUE.asDouble()), Double.NaN);
+    enter();
+    try {
+      errorHandler.wrapDoubleCall(delegate.increment_double(key, value, ALWAYS_SET_VALUE.asDouble()), Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, defaultValue), Double.NaN);
+    enter();
+    try {
+      return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, defaultValue), Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public double incrementWithDefault(String key, double delta, double defaultValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, defaultValue), Double.NaN);
+    enter();
+    try {
+      return errorHandler.wrapDoubleCall(delegate.increment_double(key, delta, defaultValue), Double.NaN);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(byte[] key, long value) {
-    checkDbIsOpen();
-    errorHandler.wrapLongCall(delegate.increment(key, value, ALWAYS_SET_VALUE.asLong()), Long.MIN_VALUE);
+    enter();
+    try {
+      errorHandler.wrapLongCall(delegate.increment(key, value, ALWAYS_SET_VALUE.asLong()), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(String key, long value) {
-    checkDbIsOpen();
-    errorHandler.wrapLongCall(delegate.increment(key, value, ALWAYS_SET_VALUE.asLong()), Long.MIN_VALUE);
+    enter();
+    try {
+      errorHandler.wrapLongCall(delegate.increment(key, value, ALWAYS_SET_VALUE.asLong()), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.increment(key, delta, defaultValue), Long.MIN_VALUE);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.increment(key, delta, defaultValue), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long incrementWithDefault(String key, long delta, long defaultValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.increment(key, delta, defaultValue), Long.MIN_VALUE);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.increment(key, delta, defaultValue), Long.MIN_VALUE);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void iterate(ReadOnlyVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.iterate(new ReadOnlyVisitorAdapter(visitor), AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.iterate(new ReadOnlyVisitorAdapter(visitor), AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void iterate(ReadOnlyStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.iterate(new ReadOnlyStringVisitorAdapter(visitor, this),
-        AccessType.READ_ONLY.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.iterate(new ReadOnlyStringVisitorAdapter(visitor, this),
+          AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.iterate(new ReadOnlyCharSequenceVisitorAdapter(visitor, codec),
+          AccessType.READ_ONLY.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void iterate(WritableVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.iterate(new WritableVisitorAdapter(visitor), AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.iterate(new WritableVisitorAdapter(visitor), AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void iterate(WritableStringVisitor visitor) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.iterate(new WritableStringVisitorAdapter(visitor, this),
-        AccessType.READ_WRITE.value()));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.iterate(new WritableStringVisitorAdapter(visitor, this),
+          AccessType.READ_WRITE.value()));
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyLongVisitor visitor) {
+    iterate(new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(ReadOnlyDoubleVisitor visitor) {
+    iterate(new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableLongVisitor visitor) {
+    iterate(new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableDoubleVisitor visitor) {
+    iterate(new WritableDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    ParallelIteration.iterate(partitionedEntries(parallelism * ParallelIteration.PARTITIONS_PER_THREAD), visitor,
+        parallelism);
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    iterateParallel(RangeScanner.decoding(visitor, codec), parallelism);
   }
 
   @Override
   public void loadSnapshotFrom(File source) throws IOException {
-    checkDbIsOpen();
-    errorHandler.wrapVoidIoCall(delegate.load_snapshot(source.getAbsolutePath()), "Could not load snapshot from: "
-        + source.getAbsolutePath());
+    enter();
+    try {
+      errorHandler.wrapVoidIoCall(delegate.load_snapshot(source.getAbsolutePath()), "Could not load snapshot from: "
+          + source.getAbsolutePath());
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_similar(query, maxLevenshteinDistance, keyCharset.equals(UTF_8),
-        NO_LIMIT));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_similar(query, maxLevenshteinDistance, keyCharset.equals(UTF_8),
+          NO_LIMIT));
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -401,9 +792,13 @@ class KyotoDbImpl implements KyotoDb {
     if (limit < 1) {
       throw new IllegalArgumentException("limit must be > 0");
     }
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_similar(query, maxLevenshteinDistance, keyCharset.equals(UTF_8),
-        limit));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_similar(query, maxLevenshteinDistance, keyCharset.equals(UTF_8),
+          limit));
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -411,14 +806,22 @@ class KyotoDbImpl implements KyotoDb {
     if (limit < 1) {
       throw new IllegalArgumentException("limit must be > 0");
     }
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_prefix(prefix, limit));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_prefix(prefix, limit));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public List<String> matchKeysByPrefix(String prefix) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_prefix(prefix, NO_LIMIT));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_prefix(prefix, NO_LIMIT));
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -426,105 +829,220 @@ class KyotoDbImpl implements KyotoDb {
     if (limit < 1) {
       throw new IllegalArgumentException("limit must be > 0");
     }
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_regex(regex, limit));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_regex(regex, limit));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public List<String> matchKeysByRegex(String regex) {
-    checkDbIsOpen();
-    return errorHandler.wrapObjectCall(delegate.match_regex(regex, NO_LIMIT));
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.match_regex(regex, NO_LIMIT));
+    } finally {
+      exit();
+    }
   }
 
   @Override
-  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
-    checkDbIsOpen();
-    DB[] internal = new DB[dbs.length];
-    for (int index = 0; index < dbs.length; index++) {
-      internal[index] = ((KyotoDbImpl) dbs[index]).getDelegate();
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    KeyMatcher.matchPrefix(cursor(), prefix, isLexicallyOrdered(), visitor);
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    StringCodec keyCodec = codec;
+    KeyMatcher.matchPrefix(cursor(), keyCodec.encode(prefix), isLexicallyOrdered(), KeyMatcher.decoding(visitor,
+        keyCodec));
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    Pattern pattern = Pattern.compile(regex);
+    KeyMatcher.matchRegex(cursor(), pattern, codec, visitor);
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    KeyMatcher.matchLevenshtein(cursor(), query, maxLevenshteinDistance, keyCharset, visitor);
+  }
+
+  private boolean isLexicallyOrdered() {
+    return dbType.isOrdered() && pageComparator == PageComparator.LEXICAL;
+  }
 
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    enter();
+    try {
+      List<DB> internal = new ArrayList<DB>(dbs.length);
+      for (KyotoDb db : dbs) {
+        if (db instanceof ShardedKyotoDb) {
+          for (KyotoDb shard : ((ShardedKyotoDb) db).getShards()) {
+            internal.add(((KyotoDbImpl) shard).getDelegate());
+          }
+        } else {
+          internal.add(((KyotoDbImpl) db).getDelegate());
+        }
+      }
+      errorHandler.wrapVoidCall(delegate.merge(internal.toArray(new DB[internal.size()]), mergeType.value()),
+          "Could not merge DBs: " + Arrays.toString(dbs));
+    } finally {
+      exit();
     }
-    errorHandler.wrapVoidCall(delegate.merge(internal, mergeType.value()),
-        "Could not merge DBs: " + Arrays.toString(dbs));
   }
 
   @Override
   public synchronized void open() throws IOException {
-    if (open) {
+    if (gate.isOpen()) {
       throw new IllegalStateException("Connection already open: " + this);
     }
     errorHandler.wrapVoidIoCall(delegate.open(descriptor, buildModeMask()), "Could not open database: " + descriptor);
-    open = true;
+    gate.open();
   }
 
   @Override
   public boolean remove(byte[] key) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.remove(key));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.remove(key));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long remove(byte[][] keys, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.remove_bulk(keys, atomicity.value()), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.remove_bulk(keys, atomicity.value()), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long remove(List<String> keys, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.remove_bulk(keys, atomicity.value()), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.remove_bulk(keys, atomicity.value()), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public boolean remove(String key) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.remove(key));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.remove(key));
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    enter();
+    try {
+      return delegate.remove(key);
+    } finally {
+      exit();
+    }
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    enter();
+    try {
+      return delegate.remove(key);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public boolean replace(byte[] key, byte[] newValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.replace(key, newValue));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.replace(key, newValue));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public boolean replace(String key, String newValue) {
-    checkDbIsOpen();
-    return errorHandler.wrapBooleanCall(delegate.replace(key, newValue));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.replace(key, newValue));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(byte[] key, byte[] value) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.set(key, value));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.set(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long set(byte[][] keyValues, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.set_bulk(keyValues, atomicity.value()), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.set_bulk(keyValues, atomicity.value()), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long set(Map<String, String> keyValues, Atomicity atomicity) {
-    checkDbIsOpen();
-    return errorHandler.wrapLongCall(delegate.set_bulk(keyValues, atomicity.value()), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.set_bulk(keyValues, atomicity.value()), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void set(String key, String value) {
-    checkDbIsOpen();
-    errorHandler.wrapVoidCall(delegate.set(key, value));
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.set(key, value));
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public long sizeInBytes() {
-    return errorHandler.wrapLongCall(delegate.size(), -1);
+    enter();
+    try {
+      return errorHandler.wrapLongCall(delegate.size(), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public Map<String, String> status() {
-    return errorHandler.wrapObjectCall(delegate.status());
+    enter();
+    try {
+      return errorHandler.wrapObjectCall(delegate.status());
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -533,7 +1051,12 @@ class KyotoDbImpl implements KyotoDb {
     if (fileProcessor != null) {
       adapted = new FileProcessorAdapter(fileProcessor);
     }
-    return errorHandler.wrapBooleanCall(delegate.occupy(accessType.value(), adapted));
+    enter();
+    try {
+      return errorHandler.wrapBooleanCall(delegate.occupy(accessType.value(), adapted));
+    } finally {
+      exit();
+    }
   }
 
   @Override
@@ -542,26 +1065,39 @@ class KyotoDbImpl implements KyotoDb {
     if (fileProcessor != null) {
       adapted = new FileProcessorAdapter(fileProcessor);
     }
-    errorHandler.wrapVoidCall(delegate.synchronize(synchronization.value(), adapted), "Could not " + synchronization
-        + " synchronize DB " + descriptor + " with " + fileProcessor);
+    enter();
+    try {
+      errorHandler.wrapVoidCall(delegate.synchronize(synchronization.value(), adapted), "Could not "
+          + synchronization + " synchronize DB " + descriptor + " with " + fileProcessor);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public int valueSize(byte[] key) {
-    checkDbIsOpen();
-    return errorHandler.wrapIntCall(delegate.check(key), -1);
+    enter();
+    try {
+      return errorHandler.wrapIntCall(delegate.check(key), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public int valueSize(String key) {
-    checkDbIsOpen();
-    return errorHandler.wrapIntCall(delegate.check(key), -1);
+    enter();
+    try {
+      return errorHandler.wrapIntCall(delegate.check(key), -1);
+    } finally {
+      exit();
+    }
   }
 
   @Override
   public void setEncoding(String encoding) {
     errorHandler.wrapVoidCall(delegate.tune_encoding(encoding), "Could not set encoding: " + encoding);
-    this.encoding = Charset.forName(encoding);
+    codec = new StringCodec(Charset.forName(encoding));
   }
 
   @Override
@@ -640,17 +1176,15 @@ class KyotoDbImpl implements KyotoDb {
   }
 
   String byteArrayToString(byte[] value) {
-    if (value == null) {
-      return null;
-    }
-    return new String(value, encoding);
+    return codec.decode(value);
+  }
+
+  StringCodec getCodec() {
+    return codec;
   }
 
   byte[] stringToByteArray(String str) {
-    if (str == null) {
-      return null;
-    }
-    return str.getBytes(encoding);
+    return codec.encode(str);
   }
 
   private byte[][] stringListTo2DByteArray(List<String> values) {
@@ -673,12 +1207,21 @@ class KyotoDbImpl implements KyotoDb {
     return mask;
   }
 
-  void checkDbIsOpen() {
-    if (!open) {
+  /**
+   * Must be paired with {@link #exit()} in a finally block, so that a concurrent {@link #close()} waits for the call.
+   * 
+   * @throws IllegalStateException if the database is not open or is closing.
+   */
+  void enter() {
+    if (!gate.enter()) {
       throw new IllegalStateException("Database is not open: " + this);
     }
   }
 
+  void exit() {
+    gate.exit();
+  }
+
   @Override
   public double getDouble(byte[] key) {
     return Codec.toDouble(get(key));
@@ -686,7 +1229,7 @@ class KyotoDbImpl implements KyotoDb {
 
   @Override
   public double getDouble(String key) {
-    return Codec.toDouble(get(key.getBytes(encoding)));
+    return Codec.toDouble(get(stringToByteArray(key)));
   }
 
   @Override
@@ -696,7 +1239,7 @@ class KyotoDbImpl implements KyotoDb {
 
   @Override
   public long getLong(String key) {
-    return Codec.toLong(get(key.getBytes(encoding)));
+    return Codec.toLong(get(stringToByteArray(key)));
   }
 
 }
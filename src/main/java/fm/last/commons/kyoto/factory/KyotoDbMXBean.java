@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.Map;
+
+import fm.last.commons.kyoto.KyotoDb;
+
+/**
+ * The JMX view of an open {@link KyotoDb}, registered as {@code fm.last.commons.kyoto:type=KyotoDb,name=<name>}.
+ * Status attributes are read from a copy of {@link KyotoDb#status()} that is refreshed in the background, so reading
+ * them never calls into Kyoto Cabinet. Figures that the database type does not report are -1. The metric attributes
+ * are empty, or -1, unless the database was built {@link KyotoDbBuilder#instrumented() instrumented} or with a
+ * {@link KyotoDbBuilder#readCache(long, long) read cache}.
+ * 
+ * @see KyotoDbBuilder#jmx()
+ * @see KyotoStatus
+ */
+public interface KyotoDbMXBean {
+
+  String getName();
+
+  String getType();
+
+  /**
+   * @return when the status attributes were last refreshed, in milliseconds since the epoch.
+   */
+  long getStatusTimestamp();
+
+  Map<String, String> getStatus();
+
+  long getRecordCount();
+
+  long getSizeInBytes();
+
+  long getRealSizeInBytes();
+
+  long getBucketCount();
+
+  long getMemoryMapSize();
+
+  long getFragmentCount();
+
+  long getPageCacheCapacity();
+
+  long getPageCacheUsage();
+
+  long getBytesRead();
+
+  long getBytesWritten();
+
+  Map<String, Long> getOperationCounts();
+
+  Map<String, Long> getOperationFailureCounts();
+
+  Map<String, Double> getMeanLatencyMicros();
+
+  Map<String, Double> get99thPercentileLatencyMicros();
+
+  Map<String, Long> getErrorCounts();
+
+  double getReadCacheHitRate();
+
+  /**
+   * Reads the status now rather than waiting for the next background refresh.
+   */
+  void refreshStatus();
+
+  /**
+   * @param hard true to synchronize with the device, false to synchronize with the file system only.
+   */
+  void synchronize(boolean hard);
+
+  /**
+   * @param path the file to copy the database file to.
+   */
+  void copyTo(String path) throws IOException;
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The pending result of an operation submitted to an {@link AsyncKyotoDb}. As well as blocking with {@link #get()}
+ * callers can register {@link KyotoCallback}s to be told when the operation completes.
+ */
+public class KyotoFuture<T> extends FutureTask<T> {
+
+  private static final Logger log = LoggerFactory.getLogger(KyotoFuture.class);
+
+  private final List<KyotoCallback<? super T>> callbacks = new ArrayList<KyotoCallback<? super T>>(1);
+
+  KyotoFuture(Callable<T> operation) {
+    super(operation);
+  }
+
+  /**
+   * Calls back when the operation completes, or immediately on the calling thread if it already has.
+   */
+  public void addCallback(KyotoCallback<? super T> callback) {
+    synchronized (callbacks) {
+      // get() can return before done() has run, so the task's own state decides rather than a flag set in done()
+      if (!isDone()) {
+        callbacks.add(callback);
+        return;
+      }
+    }
+    notify(callback);
+  }
+
+  /**
+   * Notifies the callbacks that were queued before the operation completed. Those added since have been notified by
+   * {@link #addCallback(KyotoCallback)}.
+   */
+  @Override
+  protected void done() {
+    List<KyotoCallback<? super T>> toNotify;
+    synchronized (callbacks) {
+      toNotify = new ArrayList<KyotoCallback<? super T>>(callbacks);
+      callbacks.clear();
+    }
+    for (KyotoCallback<? super T> callback : toNotify) {
+      notify(callback);
+    }
+  }
+
+  private void notify(KyotoCallback<? super T> callback) {
+    T result;
+    try {
+      result = get();
+    } catch (ExecutionException e) {
+      failed(callback, e.getCause());
+      return;
+    } catch (CancellationException e) {
+      failed(callback, e);
+      return;
+    } catch (InterruptedException e) {
+      // Cannot happen once done - but preserve the interrupt if it somehow does
+      Thread.currentThread().interrupt();
+      failed(callback, e);
+      return;
+    }
+    try {
+      callback.onSuccess(result);
+    } catch (RuntimeException e) {
+      log.warn("Exception thrown by callback " + callback, e);
+    }
+  }
+
+  private void failed(KyotoCallback<? super T> callback, Throwable cause) {
+    try {
+      callback.onFailure(cause);
+    } catch (RuntimeException e) {
+      log.warn("Exception thrown by callback " + callback, e);
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import fm.last.commons.kyoto.KyotoDb;
+
+/**
+ * Typed access to the {@link KyotoDb#status()} map. Which figures are reported depends on the database type; absent or
+ * unparseable figures are returned as -1.
+ */
+public final class KyotoStatus {
+
+  /** Returned for a figure that the database does not report. */
+  public static final long UNKNOWN = -1;
+
+  private final Map<String, String> status;
+
+  public KyotoStatus(Map<String, String> status) {
+    this.status = Collections.unmodifiableMap(new HashMap<String, String>(status));
+  }
+
+  /**
+   * @return the raw value of a status field, or null if it is not reported.
+   */
+  public String get(String name) {
+    return status.get(name);
+  }
+
+  public Map<String, String> asMap() {
+    return status;
+  }
+
+  /**
+   * @return the database type reported by Kyoto Cabinet: <b>realtype</b>.
+   */
+  public String type() {
+    return status.get("realtype");
+  }
+
+  /**
+   * @return the number of records: <b>count</b>.
+   */
+  public long recordCount() {
+    return getLong("count");
+  }
+
+  /**
+   * @return the size of the database: <b>size</b>.
+   */
+  public long sizeInBytes() {
+    return getLong("size");
+  }
+
+  /**
+   * @return the size of the database file including free blocks: <b>realsize</b>.
+   */
+  public long realSizeInBytes() {
+    return getLong("realsize");
+  }
+
+  /**
+   * @return the number of hash buckets: <b>bnum</b>.
+   */
+  public long bucketCount() {
+    return getLong("bnum");
+  }
+
+  /**
+   * @return the size of the memory mapped region: <b>msiz</b>.
+   */
+  public long memoryMapSize() {
+    return getLong("msiz");
+  }
+
+  /**
+   * @return the number of free fragments left by reallocated or removed records: <b>frgcnt</b>.
+   */
+  public long fragmentCount() {
+    return getLong("frgcnt");
+  }
+
+  /**
+   * @return the unit of automatic defragmentation: <b>dfunit</b>.
+   */
+  public long defragUnitSize() {
+    return getLong("dfunit");
+  }
+
+  /**
+   * @return the capacity of the page cache of a tree database: <b>pccap</b>.
+   */
+  public long pageCacheCapacity() {
+    return getLong("pccap");
+  }
+
+  /**
+   * @return the memory used by the page cache of a tree database: <b>cusage</b>.
+   */
+  public long pageCacheUsage() {
+    return getLong("cusage");
+  }
+
+  /**
+   * @return the number of pages of a tree database: <b>pnum</b>.
+   */
+  public long pageCount() {
+    return getLong("pnum");
+  }
+
+  private long getLong(String name) {
+    String value = status.get(name);
+    if (value == null) {
+      return UNKNOWN;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return UNKNOWN;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "KyotoStatus " + status;
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds. Buckets are log-linear: each power of two is divided into
+ * {@value #SUB_BUCKETS} buckets, so a recorded latency is known to within 12.5%. Like {@link StripedCounter} the
+ * buckets are striped by thread to avoid contention.
+ */
+final class LatencyHistogram {
+
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** Latencies of 2^41 nanoseconds (about 36 minutes) or more are counted in the last bucket. */
+  private static final int MAXIMUM_EXPONENT = 40;
+  static final int BUCKETS = (MAXIMUM_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+  /** Each stripe holds the buckets, then the total of the recorded latencies, then padding. */
+  private static final int STRIDE = BUCKETS + StripedCounter.PADDING;
+  private static final int STRIPES = StripedCounter.stripeCount(4);
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+  void record(long nanoseconds) {
+    if (nanoseconds < 0) {
+      nanoseconds = 0;
+    }
+    int base = (StripedCounter.stripe() & (STRIPES - 1)) * STRIDE;
+    cells.incrementAndGet(base + bucketFor(nanoseconds));
+    cells.addAndGet(base + BUCKETS, nanoseconds);
+  }
+
+  long[] bucketCounts() {
+    long[] counts = new long[BUCKETS];
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      int base = stripe * STRIDE;
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        counts[bucket] += cells.get(base + bucket);
+      }
+    }
+    return counts;
+  }
+
+  long totalNanoseconds() {
+    long total = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      total += cells.get(stripe * STRIDE + BUCKETS);
+    }
+    return total;
+  }
+
+  static int bucketFor(long nanoseconds) {
+    if (nanoseconds < SUB_BUCKETS) {
+      return (int) nanoseconds;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanoseconds);
+    if (exponent > MAXIMUM_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int subBucket = (int) (nanoseconds >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return the largest latency in nanoseconds that is counted in the bucket.
+   */
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * A {@link CharSequence} view of record bytes that decodes them on first use. Single byte text is read directly from
+ * the bytes and is never decoded unless {@link #toString()} is called.
+ */
+final class LazyCharSequence implements CharSequence {
+
+  private final byte[] bytes;
+  private final StringCodec codec;
+  private int singleByte = -1;
+  private String decoded;
+
+  LazyCharSequence(byte[] bytes, StringCodec codec) {
+    this.bytes = bytes;
+    this.codec = codec;
+  }
+
+  @Override
+  public int length() {
+    if (isSingleByte()) {
+      return bytes.length;
+    }
+    return toString().length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (isSingleByte()) {
+      if (index < 0 || index >= bytes.length) {
+        throw new IndexOutOfBoundsException("index: " + index + ", length: " + bytes.length);
+      }
+      return (char) (bytes[index] & 0xFF);
+    }
+    return toString().charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    if (decoded == null) {
+      decoded = codec.decode(bytes);
+    }
+    return decoded;
+  }
+
+  private boolean isSingleByte() {
+    if (singleByte < 0) {
+      singleByte = codec.isSingleByte(bytes) ? 1 : 0;
+    }
+    return singleByte == 1;
+  }
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.Synchronization;
+
+/**
+ * A {@link KyotoDb} that registers a {@link KyotoDbMXBean} while it is open. The status of the database is refreshed
+ * on a shared background thread.
+ * 
+ * @see KyotoDbBuilder#jmx()
+ */
+class ManagedKyotoDb extends ForwardingKyotoDb {
+
+  static final String DOMAIN = "fm.last.commons.kyoto";
+  static final long DEFAULT_REFRESH_PERIOD_MILLISECONDS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final ScheduledExecutorService STATUS_REFRESHER = Executors
+      .newSingleThreadScheduledExecutor(new DaemonThreadFactory("kyoto-status"));
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb delegate;
+  private final String name;
+  private final ObjectName objectName;
+  private final long refreshPeriodMilliseconds;
+  private final MBeanServer server;
+  /** Held while the status is read so that the delegate is not closed under a refresh already in progress. */
+  private final Object statusLock = new Object();
+  private volatile KyotoStatus status = new KyotoStatus(Collections.<String, String> emptyMap());
+  private volatile long statusTimestamp;
+  private volatile InstrumentedKyotoDb instrumentedDb;
+  private volatile CachingKyotoDb cachingDb;
+  private ScheduledFuture<?> refresh;
+  private boolean open;
+
+  ManagedKyotoDb(KyotoDb delegate, String name, long refreshPeriodMilliseconds) {
+    this(delegate, name, refreshPeriodMilliseconds, ManagementFactory.getPlatformMBeanServer());
+  }
+
+  ManagedKyotoDb(KyotoDb delegate, String name, long refreshPeriodMilliseconds, MBeanServer server) {
+    this.delegate = delegate;
+    this.name = name;
+    this.refreshPeriodMilliseconds = refreshPeriodMilliseconds;
+    this.server = server;
+    objectName = objectName(name);
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  /**
+   * Sets the decorators whose metrics are exposed - they wrap this instance so cannot be passed to the constructor.
+   */
+  void setMetricSources(InstrumentedKyotoDb instrumentedDb, CachingKyotoDb cachingDb) {
+    this.instrumentedDb = instrumentedDb;
+    this.cachingDb = cachingDb;
+  }
+
+  ObjectName getObjectName() {
+    return objectName;
+  }
+
+  @Override
+  public void open() throws IOException {
+    delegate.open();
+    synchronized (statusLock) {
+      open = true;
+    }
+    refreshStatus();
+    register();
+  }
+
+  @Override
+  public void close() throws IOException {
+    unregister();
+    synchronized (statusLock) {
+      open = false;
+    }
+    delegate.close();
+  }
+
+  static ObjectName objectName(String name) {
+    try {
+      return new ObjectName(DOMAIN + ":type=KyotoDb,name=" + ObjectName.quote(name));
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Invalid MBean name: " + name, e);
+    }
+  }
+
+  private synchronized void register() {
+    try {
+      server.registerMBean(new StandardMBean(new Bean(), KyotoDbMXBean.class, true), objectName);
+    } catch (JMException e) {
+      log.warn("Could not register MBean " + objectName, e);
+      return;
+    }
+    refresh = STATUS_REFRESHER.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        refreshStatus();
+      }
+    }, refreshPeriodMilliseconds, refreshPeriodMilliseconds, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void unregister() {
+    if (refresh == null) {
+      return;
+    }
+    refresh.cancel(false);
+    refresh = null;
+    try {
+      server.unregisterMBean(objectName);
+    } catch (JMException e) {
+      log.warn("Could not unregister MBean " + objectName, e);
+    }
+  }
+
+  private void refreshStatus() {
+    synchronized (statusLock) {
+      if (!open) {
+        return;
+      }
+      try {
+        status = new KyotoStatus(delegate.status());
+        statusTimestamp = System.currentTimeMillis();
+      } catch (RuntimeException e) {
+        log.debug("Could not read status of {}: {}", name, e);
+      }
+    }
+  }
+
+  private MetricsSnapshot metrics() {
+    InstrumentedKyotoDb instrumentedDb = this.instrumentedDb;
+    return instrumentedDb == null ? null : instrumentedDb.getMetricsSnapshot();
+  }
+
+  private class Bean implements KyotoDbMXBean {
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public String getType() {
+      return delegate.getType().name();
+    }
+
+    @Override
+    public long getStatusTimestamp() {
+      return statusTimestamp;
+    }
+
+    @Override
+    public Map<String, String> getStatus() {
+      return new TreeMap<String, String>(status.asMap());
+    }
+
+    @Override
+    public long getRecordCount() {
+      return status.recordCount();
+    }
+
+    @Override
+    public long getSizeInBytes() {
+      return status.sizeInBytes();
+    }
+
+    @Override
+    public long getRealSizeInBytes() {
+      return status.realSizeInBytes();
+    }
+
+    @Override
+    public long getBucketCount() {
+      return status.bucketCount();
+    }
+
+    @Override
+    public long getMemoryMapSize() {
+      return status.memoryMapSize();
+    }
+
+    @Override
+    public long getFragmentCount() {
+      return status.fragmentCount();
+    }
+
+    @Override
+    public long getPageCacheCapacity() {
+      return status.pageCacheCapacity();
+    }
+
+    @Override
+    public long getPageCacheUsage() {
+      return status.pageCacheUsage();
+    }
+
+    @Override
+    public long getBytesRead() {
+      MetricsSnapshot metrics = metrics();
+      return metrics == null ? KyotoStatus.UNKNOWN : metrics.bytesRead();
+    }
+
+    @Override
+    public long getBytesWritten() {
+      MetricsSnapshot metrics = metrics();
+      return metrics == null ? KyotoStatus.UNKNOWN : metrics.bytesWritten();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      MetricsSnapshot metrics = metrics();
+      if (metrics != null) {
+        for (OperationStatistics statistics : metrics.operations().values()) {
+          counts.put(statistics.operationType().name(), statistics.count());
+        }
+      }
+      return counts;
+    }
+
+    @Override
+    public Map<String, Long> getOperationFailureCounts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      MetricsSnapshot metrics = metrics();
+      if (metrics != null) {
+        for (OperationStatistics statistics : metrics.operations().values()) {
+          counts.put(statistics.operationType().name(), statistics.failureCount());
+        }
+      }
+      return counts;
+    }
+
+    @Override
+    public Map<String, Double> getMeanLatencyMicros() {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      MetricsSnapshot metrics = metrics();
+      if (metrics != null) {
+        for (OperationStatistics statistics : metrics.operations().values()) {
+          latencies.put(statistics.operationType().name(), statistics.meanLatency(TimeUnit.MICROSECONDS));
+        }
+      }
+      return latencies;
+    }
+
+    @Override
+    public Map<String, Double> get99thPercentileLatencyMicros() {
+      Map<String, Double> latencies = new TreeMap<String, Double>();
+      MetricsSnapshot metrics = metrics();
+      if (metrics != null) {
+        for (OperationStatistics statistics : metrics.operations().values()) {
+          latencies.put(statistics.operationType().name(), statistics.latencyPercentile(99, TimeUnit.MICROSECONDS));
+        }
+      }
+      return latencies;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+      Map<String, Long> counts = new TreeMap<String, Long>();
+      MetricsSnapshot metrics = metrics();
+      if (metrics != null) {
+        for (Map.Entry<ErrorType, Long> entry : metrics.errorCounts().entrySet()) {
+          counts.put(entry.getKey().name(), entry.getValue());
+        }
+      }
+      return counts;
+    }
+
+    @Override
+    public double getReadCacheHitRate() {
+      CachingKyotoDb cachingDb = ManagedKyotoDb.this.cachingDb;
+      return cachingDb == null ? KyotoStatus.UNKNOWN : cachingDb.getCacheStatistics().hitRate();
+    }
+
+    @Override
+    public void refreshStatus() {
+      ManagedKyotoDb.this.refreshStatus();
+    }
+
+    @Override
+    public void synchronize(boolean hard) {
+      delegate.synchronize(hard ? Synchronization.PHYSICAL : Synchronization.LOGICAL, null);
+    }
+
+    @Override
+    public void copyTo(String path) throws IOException {
+      delegate.copyTo(new File(path));
+    }
+
+  }
+
+}
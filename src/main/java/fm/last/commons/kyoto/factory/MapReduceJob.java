@@ -24,6 +24,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.mapreduce.Combiner;
 import fm.last.commons.kyoto.mapreduce.Context;
 import fm.last.commons.kyoto.mapreduce.Job;
 import fm.last.commons.kyoto.mapreduce.Mapper;
@@ -31,6 +32,9 @@ import fm.last.commons.kyoto.mapreduce.Reducer;
 
 public class MapReduceJob implements Job {
 
+  /** Default size of the buffer holding map output waiting to be combined: 16MB. */
+  public static final long DEFAULT_COMBINER_BUFFER_SIZE = 16L * 1024 * 1024;
+
   private final Logger LOG = LoggerFactory.getLogger(getClass());
 
   private final Mapper mapper;
@@ -38,6 +42,8 @@ public class MapReduceJob implements Job {
   private File temporaryDbFolder;
   private boolean useLocks;
   private boolean compressTemporaryDb;
+  private Combiner combiner;
+  private long combinerBufferSize = DEFAULT_COMBINER_BUFFER_SIZE;
 
   public MapReduceJob(Mapper mapper, Reducer reducer) {
     this.mapper = mapper;
@@ -51,13 +57,17 @@ public class MapReduceJob implements Job {
     }
     KyotoDbImpl databaseImpl = (KyotoDbImpl) database;
     final ErrorHandler errorHandler = databaseImpl.getErrorHandler();
+    final Combiner combiner = this.combiner;
     MapReduce mapDelegate = new MapReduce() {
-      private final Context context = new Context() {
+      private final Context output = new Context() {
         @Override
         public void write(byte[] key, byte[] value) {
           errorHandler.wrapBooleanCall(emit(key, value));
         }
       };
+      private final CombiningBuffer combiningBuffer = combiner == null ? null : new CombiningBuffer(combiner,
+          combinerBufferSize, output);
+      private final Context context = combiningBuffer == null ? output : combiningBuffer;
 
       @Override
       public boolean map(byte[] key, byte[] value) {
@@ -70,6 +80,19 @@ public class MapReduceJob implements Job {
         return true;
       }
 
+      @Override
+      public boolean midprocess() {
+        if (combiningBuffer != null) {
+          try {
+            combiningBuffer.flush();
+          } catch (Throwable t) {
+            LOG.error("Exception thrown in combine invocation.", t);
+            return false;
+          }
+        }
+        return true;
+      }
+
       @Override
       public boolean reduce(byte[] key, ValueIterator valueIterator) {
         try {
@@ -95,6 +118,31 @@ public class MapReduceJob implements Job {
     return reducer;
   }
 
+  @Override
+  public Combiner getCombiner() {
+    return combiner;
+  }
+
+  @Override
+  public void setCombiner(Combiner combiner) {
+    this.combiner = combiner;
+  }
+
+  /**
+   * Sets the approximate number of bytes of map output to hold in memory for the {@link Combiner} before it is
+   * combined and written to the temporary database. Has no effect unless a combiner is set.
+   */
+  public void setCombinerBufferSize(long combinerBufferSize) {
+    if (combinerBufferSize <= 0) {
+      throw new IllegalArgumentException("combinerBufferSize must be positive: " + combinerBufferSize);
+    }
+    this.combinerBufferSize = combinerBufferSize;
+  }
+
+  public long getCombinerBufferSize() {
+    return combinerBufferSize;
+  }
+
   @Override
   public File getTemporaryDbFolder() {
     return temporaryDbFolder;
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+
+/**
+ * Accumulates the metrics of an {@link InstrumentedKyotoDb}. All updates are lock-free.
+ */
+final class MetricsRecorder implements ErrorListener {
+
+  private static final OperationType[] OPERATION_TYPES = OperationType.values();
+  private static final ErrorType[] ERROR_TYPES = ErrorType.values();
+
+  private final LatencyHistogram[] latencies = new LatencyHistogram[OPERATION_TYPES.length];
+  private final StripedCounter[] failures = new StripedCounter[OPERATION_TYPES.length];
+  private final StripedCounter[] errors = new StripedCounter[ERROR_TYPES.length];
+  private final StripedCounter bytesRead = new StripedCounter();
+  private final StripedCounter bytesWritten = new StripedCounter();
+
+  MetricsRecorder() {
+    for (int index = 0; index < OPERATION_TYPES.length; index++) {
+      latencies[index] = new LatencyHistogram();
+      failures[index] = new StripedCounter();
+    }
+    for (int index = 0; index < ERROR_TYPES.length; index++) {
+      errors[index] = new StripedCounter();
+    }
+  }
+
+  /**
+   * @param startNanoseconds the value of {@link System#nanoTime()} when the call started.
+   */
+  void record(OperationType operationType, long startNanoseconds) {
+    latencies[operationType.ordinal()].record(System.nanoTime() - startNanoseconds);
+  }
+
+  <T extends Throwable> T failed(OperationType operationType, T cause) {
+    failures[operationType.ordinal()].increment();
+    return cause;
+  }
+
+  @Override
+  public void error(ErrorType errorType) {
+    errors[errorType.ordinal()].increment();
+  }
+
+  void written(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  void read(long bytes) {
+    bytesRead.add(bytes);
+  }
+
+  byte[] read(byte[] value) {
+    if (value != null) {
+      bytesRead.add(value.length);
+    }
+    return value;
+  }
+
+  String read(String value) {
+    if (value != null) {
+      bytesRead.add(length(value));
+    }
+    return value;
+  }
+
+  byte[][] read(byte[][] values) {
+    if (values != null) {
+      bytesRead.add(length(values));
+    }
+    return values;
+  }
+
+  String[] read(String[] values) {
+    if (values != null) {
+      bytesRead.add(length(values));
+    }
+    return values;
+  }
+
+  List<byte[][]> read(List<byte[][]> records) {
+    long length = 0;
+    for (byte[][] record : records) {
+      length += length(record);
+    }
+    bytesRead.add(length);
+    return records;
+  }
+
+  List<String> readStrings(List<String> values) {
+    if (values != null) {
+      bytesRead.add(length(values));
+    }
+    return values;
+  }
+
+  Map<String, String> read(Map<String, String> records) {
+    if (records != null) {
+      bytesRead.add(length(records));
+    }
+    return records;
+  }
+
+  MetricsSnapshot snapshot() {
+    Map<OperationType, OperationStatistics> operations = new EnumMap<OperationType, OperationStatistics>(
+        OperationType.class);
+    for (OperationType operationType : OPERATION_TYPES) {
+      int index = operationType.ordinal();
+      LatencyHistogram histogram = latencies[index];
+      operations.put(operationType, new OperationStatistics(operationType, histogram.bucketCounts(), histogram
+          .totalNanoseconds(), failures[index].sum()));
+    }
+    Map<ErrorType, Long> errorCounts = new EnumMap<ErrorType, Long>(ErrorType.class);
+    for (ErrorType errorType : ERROR_TYPES) {
+      errorCounts.put(errorType, errors[errorType.ordinal()].sum());
+    }
+    return new MetricsSnapshot(System.currentTimeMillis(), operations, errorCounts, bytesRead.sum(), bytesWritten
+        .sum());
+  }
+
+  static long length(byte[] value) {
+    return value == null ? 0 : value.length;
+  }
+
+  /**
+   * @return the length of the value encoded as UTF-8, the default encoding of a database, computed without encoding it.
+   */
+  static long length(String value) {
+    if (value == null) {
+      return 0;
+    }
+    int length = value.length();
+    long bytes = length;
+    for (int index = 0; index < length; index++) {
+      char c = value.charAt(index);
+      if (c < 0x80) {
+        continue;
+      }
+      if (c < 0x800 || Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+        // A surrogate pair encodes as 4 bytes, so 2 for each half
+        bytes++;
+      } else {
+        bytes += 2;
+      }
+    }
+    return bytes;
+  }
+
+  static long length(byte[][] values) {
+    long length = 0;
+    for (byte[] value : values) {
+      length += length(value);
+    }
+    return length;
+  }
+
+  static long length(String[] values) {
+    long length = 0;
+    for (String value : values) {
+      length += length(value);
+    }
+    return length;
+  }
+
+  static long length(List<String> values) {
+    long length = 0;
+    for (String value : values) {
+      length += length(value);
+    }
+    return length;
+  }
+
+  static long length(Map<String, String> records) {
+    long length = 0;
+    for (Map.Entry<String, String> record : records.entrySet()) {
+      length += length(record.getKey()) + length(record.getValue());
+    }
+    return length;
+  }
+
+}
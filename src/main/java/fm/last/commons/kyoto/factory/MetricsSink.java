@@ -0,0 +1,29 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * Receives the metrics of an {@link InstrumentedKyotoDb} periodically, for example to forward them to a monitoring
+ * system. Snapshots are cumulative - use {@link MetricsSnapshot#since(MetricsSnapshot)} to obtain the activity of a
+ * single period. Called on a background thread.
+ * 
+ * @see KyotoDbBuilder#instrumented(MetricsSink, long, java.util.concurrent.TimeUnit)
+ */
+public interface MetricsSink {
+
+  void publish(MetricsSnapshot snapshot);
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics of an {@link InstrumentedKyotoDb}, cumulative since it was built.
+ */
+public final class MetricsSnapshot {
+
+  private final long timestamp;
+  private final Map<OperationType, OperationStatistics> operations;
+  private final Map<ErrorType, Long> errorCounts;
+  private final long bytesRead;
+  private final long bytesWritten;
+
+  MetricsSnapshot(long timestamp, Map<OperationType, OperationStatistics> operations,
+      Map<ErrorType, Long> errorCounts, long bytesRead, long bytesWritten) {
+    this.timestamp = timestamp;
+    this.operations = Collections.unmodifiableMap(operations);
+    this.errorCounts = Collections.unmodifiableMap(errorCounts);
+    this.bytesRead = bytesRead;
+    this.bytesWritten = bytesWritten;
+  }
+
+  /**
+   * @return when the snapshot was taken, in milliseconds since the epoch.
+   */
+  public long timestamp() {
+    return timestamp;
+  }
+
+  public OperationStatistics operation(OperationType operationType) {
+    return operations.get(operationType);
+  }
+
+  /**
+   * @return the statistics of every {@link OperationType}.
+   */
+  public Map<OperationType, OperationStatistics> operations() {
+    return operations;
+  }
+
+  /**
+   * @return the number of times Kyoto Cabinet reported the error. {@link ErrorType#NO_RECORD} and
+   *         {@link ErrorType#RECORD_DUPLICATION} are included even though they are not thrown as exceptions.
+   */
+  public long errorCount(ErrorType errorType) {
+    return errorCounts.get(errorType);
+  }
+
+  public Map<ErrorType, Long> errorCounts() {
+    return errorCounts;
+  }
+
+  /**
+   * @return the combined size of the keys and values returned by reads. {@link String} keys and values are counted by
+   *         their length in UTF-8, which is exact unless
+   *         {@link fm.last.commons.kyoto.KyotoDb#setEncoding(String)} chose another encoding.
+   */
+  public long bytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return the combined size of the keys and values passed to writes. {@link String} keys and values are counted by
+   *         their length in UTF-8, which is exact unless
+   *         {@link fm.last.commons.kyoto.KyotoDb#setEncoding(String)} chose another encoding.
+   */
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return the activity between an earlier snapshot of the same database and this one.
+   */
+  public MetricsSnapshot since(MetricsSnapshot earlier) {
+    Map<OperationType, OperationStatistics> operationsSince = new EnumMap<OperationType, OperationStatistics>(
+        OperationType.class);
+    for (Map.Entry<OperationType, OperationStatistics> entry : operations.entrySet()) {
+      operationsSince.put(entry.getKey(), entry.getValue().since(earlier.operation(entry.getKey())));
+    }
+    Map<ErrorType, Long> errorCountsSince = new EnumMap<ErrorType, Long>(ErrorType.class);
+    for (Map.Entry<ErrorType, Long> entry : errorCounts.entrySet()) {
+      errorCountsSince.put(entry.getKey(), entry.getValue() - earlier.errorCount(entry.getKey()));
+    }
+    return new MetricsSnapshot(timestamp, operationsSince, errorCountsSince, bytesRead - earlier.bytesRead,
+        bytesWritten - earlier.bytesWritten);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("MetricsSnapshot [timestamp=");
+    builder.append(timestamp);
+    builder.append(", bytesRead=");
+    builder.append(bytesRead);
+    builder.append(", bytesWritten=");
+    builder.append(bytesWritten);
+    for (OperationStatistics statistics : operations.values()) {
+      if (statistics.count() > 0) {
+        builder.append(", ");
+        builder.append(statistics);
+      }
+    }
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
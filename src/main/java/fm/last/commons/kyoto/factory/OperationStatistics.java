@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the number and latency of the calls of one {@link OperationType}. Latencies are measured with
+ * {@link System#nanoTime()} and held in a histogram, so percentiles and the maximum are accurate to within 12.5%.
+ */
+public final class OperationStatistics {
+
+  private final OperationType operationType;
+  private final long[] bucketCounts;
+  private final long count;
+  private final long totalNanoseconds;
+  private final long failureCount;
+
+  OperationStatistics(OperationType operationType, long[] bucketCounts, long totalNanoseconds, long failureCount) {
+    this.operationType = operationType;
+    this.bucketCounts = bucketCounts;
+    this.totalNanoseconds = totalNanoseconds;
+    this.failureCount = failureCount;
+    long count = 0;
+    for (long bucketCount : bucketCounts) {
+      count += bucketCount;
+    }
+    this.count = count;
+  }
+
+  public OperationType operationType() {
+    return operationType;
+  }
+
+  /**
+   * @return the number of calls, including those that failed.
+   */
+  public long count() {
+    return count;
+  }
+
+  /**
+   * @return the number of calls that threw an exception.
+   */
+  public long failureCount() {
+    return failureCount;
+  }
+
+  /**
+   * @return the combined duration of all calls.
+   */
+  public double totalTime(TimeUnit unit) {
+    return (double) totalNanoseconds / unit.toNanos(1);
+  }
+
+  /**
+   * @return the mean latency, or 0 if there have been no calls.
+   */
+  public double meanLatency(TimeUnit unit) {
+    return count == 0 ? 0.0d : totalTime(unit) / count;
+  }
+
+  /**
+   * @param percentile the percentage of calls, greater than 0 and no greater than 100.
+   * @return the latency within which the given percentage of calls completed, or 0 if there have been no calls.
+   */
+  public double latencyPercentile(double percentile, TimeUnit unit) {
+    if (percentile <= 0 || percentile > 100) {
+      throw new IllegalArgumentException("percentile must be > 0 and <= 100: " + percentile);
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int bucket = 0; bucket < bucketCounts.length; bucket++) {
+      seen += bucketCounts[bucket];
+      if (seen >= rank && seen > 0) {
+        return (double) LatencyHistogram.upperBound(bucket) / unit.toNanos(1);
+      }
+    }
+    return 0.0d;
+  }
+
+  /**
+   * @return the latency of the slowest call, or 0 if there have been no calls.
+   */
+  public double maximumLatency(TimeUnit unit) {
+    return latencyPercentile(100, unit);
+  }
+
+  /**
+   * @return the statistics of the calls made since an earlier snapshot of the same operation was taken.
+   */
+  public OperationStatistics since(OperationStatistics earlier) {
+    if (earlier.operationType != operationType) {
+      throw new IllegalArgumentException("Cannot compare " + operationType + " with " + earlier.operationType);
+    }
+    long[] counts = new long[bucketCounts.length];
+    for (int bucket = 0; bucket < counts.length; bucket++) {
+      counts[bucket] = bucketCounts[bucket] - earlier.bucketCounts[bucket];
+    }
+    return new OperationStatistics(operationType, counts, totalNanoseconds - earlier.totalNanoseconds, failureCount
+        - earlier.failureCount);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("OperationStatistics [operationType=");
+    builder.append(operationType);
+    builder.append(", count=");
+    builder.append(count);
+    builder.append(", failureCount=");
+    builder.append(failureCount);
+    builder.append(", meanMicros=");
+    builder.append(meanLatency(TimeUnit.MICROSECONDS));
+    builder.append(", p99Micros=");
+    builder.append(count == 0 ? 0.0d : latencyPercentile(99, TimeUnit.MICROSECONDS));
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
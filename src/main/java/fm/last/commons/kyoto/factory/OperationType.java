@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+
+/**
+ * The groups of {@link KyotoDb} and {@link KyotoCursor} calls measured by an {@link InstrumentedKyotoDb}.
+ */
+public enum OperationType {
+  /** get, getLong and getDouble */
+  GET,
+  /** get of many keys */
+  GET_BULK,
+  /** set of a value, long or double */
+  SET,
+  /** set of many records */
+  SET_BULK,
+  /** putIfAbsent */
+  ADD,
+  /** replace */
+  REPLACE,
+  /** append */
+  APPEND,
+  /** compareAndSwap */
+  COMPARE_AND_SWAP,
+  /** remove */
+  REMOVE,
+  /** remove of many keys and removeRange */
+  REMOVE_BULK,
+  /** getAndRemove */
+  GET_AND_REMOVE,
+  /** exists and valueSize */
+  EXISTS,
+  /** increment and incrementWithDefault */
+  INCREMENT,
+  /** accept of one or many keys */
+  ACCEPT,
+  /** iterate, iterateParallel, scanRange, scanRangeDescending and countRange */
+  ITERATE,
+  /** cursor reads, jumps and steps */
+  CURSOR_STEP,
+  /** cursor writes and removes */
+  CURSOR_WRITE,
+  /** matchKeysByPrefix, matchKeysByRegex and matchKeysByLevenshtein */
+  MATCH,
+  /** begin, commit and rollback */
+  TRANSACTION,
+  /** synchronize and occupy */
+  SYNCHRONIZE,
+  /** clear */
+  CLEAR,
+  /** copyTo, dumpSnapshotTo, loadSnapshotFrom and mergeWith */
+  COPY,
+  /** recordCount, sizeInBytes and status */
+  STATUS,
+  /** open */
+  OPEN,
+  /** close */
+  CLOSE;
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps background work to a maximum rate by sleeping whenever it gets ahead of schedule. Not thread safe.
+ */
+final class Pacer {
+
+  /** Do not sleep for less than this - shorter sleeps are mostly overhead. */
+  private static final long MINIMUM_SLEEP_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final double nanosecondsPerUnit;
+  private final long start;
+  private long completed;
+
+  /**
+   * @param maximumPerSecond units of work per second, or 0 for no limit.
+   */
+  Pacer(long maximumPerSecond) {
+    if (maximumPerSecond < 0) {
+      throw new IllegalArgumentException("maximumPerSecond must be >= 0");
+    }
+    nanosecondsPerUnit = maximumPerSecond == 0 ? 0 : (double) TimeUnit.SECONDS.toNanos(1) / maximumPerSecond;
+    start = System.nanoTime();
+  }
+
+  /**
+   * Records completed work and sleeps until the rate is back under the maximum.
+   */
+  void completed(long units) throws InterruptedException {
+    completed += units;
+    if (nanosecondsPerUnit == 0) {
+      return;
+    }
+    long ahead = (long) (completed * nanosecondsPerUnit) - (System.nanoTime() - start);
+    if (ahead >= MINIMUM_SLEEP_NANOSECONDS) {
+      TimeUnit.NANOSECONDS.sleep(ahead);
+    }
+  }
+
+  long completed() {
+    return completed;
+  }
+
+}
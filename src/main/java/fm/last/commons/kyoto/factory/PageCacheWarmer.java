@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads database files sequentially so that their pages are in the operating system's page cache before they are
+ * used. The memory map Kyoto creates over a file is backed by the same pages, so mapped reads do not fault on disk.
+ */
+final class PageCacheWarmer {
+
+  static final int READ_SIZE = 1 << 20;
+
+  private PageCacheWarmer() {
+  }
+
+  /**
+   * Reads a database file, or every file in a database directory.
+   * 
+   * @return the number of bytes read.
+   */
+  static long warm(File file) throws IOException {
+    return warm(file, new Pacer(0), null, -1);
+  }
+
+  /**
+   * Reads a database file, or every file in a database directory, no faster than the pacer allows and reporting the
+   * bytes read so far after each read. The pacer may be shared across files to warm them at a combined rate.
+   * 
+   * @param listener receives progress, may be null.
+   * @param total the total passed on to the listener.
+   * @return the number of bytes read from this file.
+   * @throws InterruptedIOException if the thread is interrupted while waiting for the pacer.
+   */
+  static long warm(File file, Pacer pacer, WarmupListener listener, long total) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+    return warm(file, buffer, pacer, listener, total);
+  }
+
+  /**
+   * @return the number of bytes in a file, or in all the files in a directory.
+   */
+  static long size(File file) {
+    if (!file.isDirectory()) {
+      return file.length();
+    }
+    long total = 0;
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        total += size(child);
+      }
+    }
+    return total;
+  }
+
+  private static long warm(File file, ByteBuffer buffer, Pacer pacer, WarmupListener listener, long total)
+      throws IOException {
+    if (file.isDirectory()) {
+      long read = 0;
+      File[] children = file.listFiles();
+      if (children != null) {
+        for (File child : children) {
+          read += warm(child, buffer, pacer, listener, total);
+        }
+      }
+      return read;
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      long fileTotal = 0;
+      int read;
+      buffer.clear();
+      while ((read = channel.read(buffer)) >= 0) {
+        fileTotal += read;
+        buffer.clear();
+        pace(pacer, read);
+        if (listener != null) {
+          listener.progress(pacer.completed(), total);
+        }
+      }
+      return fileTotal;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void pace(Pacer pacer, int read) throws InterruptedIOException {
+    try {
+      pacer.completed(read);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while warming the page cache");
+    }
+  }
+
+}
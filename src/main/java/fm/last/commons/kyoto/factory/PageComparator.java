@@ -15,6 +15,8 @@
  */
 package fm.last.commons.kyoto.factory;
 
+import java.util.Comparator;
+
 public enum PageComparator {
   LEXICAL("lex"),
   DECIMAL("dec"),
@@ -30,4 +32,20 @@ public enum PageComparator {
   String value() {
     return value;
   }
+
+  /**
+   * @return a comparator that orders keys as a tree database using this comparator stores them.
+   */
+  Comparator<byte[]> keyOrder() {
+    switch (this) {
+      case DECIMAL:
+        return KeyOrder.DECIMAL;
+      case LEXICAL_DESCENDING:
+        return KeyOrder.LEXICAL_DESCENDING;
+      case DECIMAL_DESCENDING:
+        return KeyOrder.DECIMAL_DESCENDING;
+      default:
+        return KeyOrder.LEXICAL;
+    }
+  }
 }
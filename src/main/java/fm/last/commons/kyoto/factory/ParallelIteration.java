@@ -0,0 +1,270 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+
+/**
+ * Visits the records of a set of disjoint partitions, such as those returned by
+ * {@link fm.last.commons.kyoto.KyotoDb#partitionedEntries(int)}, on several threads. When there are at least as many
+ * partitions as threads each thread takes whole partitions in turn and visits records as its own cursor reads them.
+ * When there are fewer, as for hash databases which cannot be split, one thread per partition reads records in batches
+ * and hands them to the visiting threads, so that the visitor's work is still spread across all threads.
+ */
+final class ParallelIteration {
+
+  /** Partitions to request per thread, so that threads finishing short key ranges can take more work. */
+  static final int PARTITIONS_PER_THREAD = 4;
+
+  private static final int READ_BATCH_SIZE = CursorRecordIterator.BATCH_SIZE;
+  private static final int QUEUED_BATCHES_PER_VISITOR = 4;
+  private static final long POLL_MILLISECONDS = 100;
+  private static final long TERMINATION_SECONDS = 10;
+
+  private static final Logger log = LoggerFactory.getLogger(ParallelIteration.class);
+
+  private final List<RecordIterator<byte[][]>> partitions;
+  private final ReadOnlyVisitor visitor;
+  private final int parallelism;
+  private volatile boolean readingDone;
+
+  private ParallelIteration(List<RecordIterator<byte[][]>> partitions, ReadOnlyVisitor visitor, int parallelism) {
+    this.partitions = partitions;
+    this.visitor = visitor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Visits every record of the partitions and closes them.
+   * 
+   * @param visitor must be safe to call from several threads at once.
+   * @throws KyotoException if reading or visiting a record failed - the remaining records are not visited.
+   */
+  static void iterate(List<RecordIterator<byte[][]>> partitions, ReadOnlyVisitor visitor, int parallelism) {
+    new ParallelIteration(partitions, visitor, Math.max(1, parallelism)).run();
+  }
+
+  private void run() {
+    if (parallelism == 1) {
+      visitOnCallingThread();
+      return;
+    }
+    boolean partitioned = partitions.size() >= parallelism;
+    int threads = partitioned ? parallelism : parallelism + partitions.size();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("kyoto-iterate"));
+    try {
+      if (partitioned) {
+        visitPartitions(executor);
+      } else {
+        visitBatches(executor);
+      }
+    } finally {
+      executor.shutdownNow();
+      try {
+        if (!executor.awaitTermination(TERMINATION_SECONDS, TimeUnit.SECONDS)) {
+          log.warn("Iteration threads did not terminate.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (RecordIterator<byte[][]> partition : partitions) {
+        partition.close();
+      }
+    }
+  }
+
+  private void visitOnCallingThread() {
+    try {
+      for (RecordIterator<byte[][]> partition : partitions) {
+        visitAll(partition);
+      }
+    } catch (KyotoException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw new KyotoException("Iteration failed.", e);
+    } finally {
+      for (RecordIterator<byte[][]> partition : partitions) {
+        partition.close();
+      }
+    }
+  }
+
+  private void visitPartitions(ExecutorService executor) {
+    final Queue<RecordIterator<byte[][]>> pending = new ConcurrentLinkedQueue<RecordIterator<byte[][]>>(partitions);
+    List<Future<Void>> workers = new ArrayList<Future<Void>>(parallelism);
+    for (int index = 0; index < parallelism; index++) {
+      workers.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          RecordIterator<byte[][]> partition;
+          while ((partition = pending.poll()) != null) {
+            visitAll(partition);
+          }
+          return null;
+        }
+      }));
+    }
+    awaitAll(workers, workers);
+  }
+
+  private void visitBatches(ExecutorService executor) {
+    BlockingQueue<List<byte[][]>> queue = new ArrayBlockingQueue<List<byte[][]>>(parallelism
+        * QUEUED_BATCHES_PER_VISITOR);
+    List<Future<Void>> readers = new ArrayList<Future<Void>>(partitions.size());
+    for (RecordIterator<byte[][]> partition : partitions) {
+      readers.add(executor.submit(new Reader(partition, queue)));
+    }
+    List<Future<Void>> workers = new ArrayList<Future<Void>>(parallelism);
+    for (int index = 0; index < parallelism; index++) {
+      workers.add(executor.submit(new Worker(queue)));
+    }
+    List<Future<Void>> all = new ArrayList<Future<Void>>(readers);
+    all.addAll(workers);
+    // workers only finish early if they fail - readers could otherwise block forever on a full queue
+    awaitAll(readers, all);
+    readingDone = true;
+    awaitAll(workers, all);
+  }
+
+  private void visitAll(RecordIterator<byte[][]> partition) {
+    try {
+      while (partition.hasNext()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new KyotoException("Interrupted while iterating.", new InterruptedException());
+        }
+        byte[][] entry = partition.next();
+        visitor.record(entry[0], entry[1]);
+      }
+    } finally {
+      partition.close();
+    }
+  }
+
+  /**
+   * Waits for the tasks while watching others, so that the first failure of any watched task is reported at once.
+   */
+  private static void awaitAll(List<Future<Void>> futures, List<Future<Void>> watched) {
+    for (Future<Void> future : futures) {
+      while (!await(future, POLL_MILLISECONDS)) {
+        for (Future<Void> other : watched) {
+          if (other.isDone()) {
+            await(other, 0);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return {@code false} if the task has not completed within the timeout.
+   * @throws KyotoException if the task failed.
+   */
+  private static boolean await(Future<Void> future, long timeoutMilliseconds) {
+    try {
+      future.get(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KyotoException("Interrupted while waiting for iteration.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof KyotoException) {
+        throw (KyotoException) cause;
+      }
+      throw new KyotoException("Parallel iteration failed.", cause);
+    }
+  }
+
+  private static class Reader implements Callable<Void> {
+
+    private final RecordIterator<byte[][]> partition;
+    private final BlockingQueue<List<byte[][]>> queue;
+
+    Reader(RecordIterator<byte[][]> partition, BlockingQueue<List<byte[][]>> queue) {
+      this.partition = partition;
+      this.queue = queue;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      try {
+        List<byte[][]> batch = new ArrayList<byte[][]>(READ_BATCH_SIZE);
+        while (partition.hasNext()) {
+          batch.add(partition.next());
+          if (batch.size() == READ_BATCH_SIZE) {
+            queue.put(batch);
+            batch = new ArrayList<byte[][]>(READ_BATCH_SIZE);
+          }
+        }
+        if (!batch.isEmpty()) {
+          queue.put(batch);
+        }
+      } finally {
+        partition.close();
+      }
+      return null;
+    }
+
+  }
+
+  private class Worker implements Callable<Void> {
+
+    private final BlockingQueue<List<byte[][]>> queue;
+
+    Worker(BlockingQueue<List<byte[][]>> queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      while (true) {
+        List<byte[][]> batch = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+        if (batch == null) {
+          if (readingDone && queue.isEmpty()) {
+            return null;
+          }
+          continue;
+        }
+        for (byte[][] entry : batch) {
+          visitor.record(entry[0], entry[1]);
+        }
+      }
+    }
+
+  }
+
+}
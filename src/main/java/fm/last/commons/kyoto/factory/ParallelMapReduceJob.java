@@ -0,0 +1,459 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.mapreduce.Combiner;
+import fm.last.commons.kyoto.mapreduce.Context;
+import fm.last.commons.kyoto.mapreduce.Job;
+import fm.last.commons.kyoto.mapreduce.Mapper;
+import fm.last.commons.kyoto.mapreduce.Reducer;
+
+/**
+ * A {@link Job} that runs in the JVM on all available cores, unlike {@link MapReduceJob} which runs map and reduce on
+ * a single thread within Kyoto Cabinet.
+ * <ol>
+ * <li>The input is read with {@link KyotoDb#partitionedEntries(int)}, so tree databases are read by key range and
+ * sharded databases by shard, each on its own thread.</li>
+ * <li>{@link Mapper#map(byte[], byte[], Context)} is called on {@link #setParallelism(int) parallelism} threads. Map
+ * output is hash partitioned by key and buffered on the heap. When a thread's buffer exceeds the
+ * {@link #setMapBufferSize(long) map buffer size} it is sorted and spilled to a file in the
+ * {@link #setTemporaryDbFolder(File) temporary folder}. If a {@link #setCombiner(Combiner) combiner} is set each
+ * partition's buffer is combined before it is spilled or handed to the reducers.</li>
+ * <li>Each partition is reduced on its own thread by merging its sorted runs, so
+ * {@link Reducer#reduce(byte[], Iterable)} is called in key order within a partition but partitions are reduced
+ * concurrently.</li>
+ * </ol>
+ * The {@link Mapper}, {@link Combiner} and {@link Reducer} must therefore be thread safe. Records are read with cursors and other
+ * threads may modify the database while the job runs, so {@link #setUseLocks(boolean)} has no effect. If
+ * {@link #setCompressTemporaryDb(boolean)} is set spill files are compressed.
+ */
+public class ParallelMapReduceJob implements Job {
+
+  /** Default size of the map output buffer of each map thread. */
+  public static final long DEFAULT_MAP_BUFFER_SIZE = 32L * 1024 * 1024;
+
+  private static final int READ_BATCH_SIZE = 256;
+  private static final int QUEUED_BATCHES_PER_MAPPER = 4;
+  private static final long POLL_MILLISECONDS = 50;
+  private static final long TERMINATION_SECONDS = 60;
+  /** Approximate heap used by a buffered pair in addition to its key and value. */
+  private static final int PAIR_OVERHEAD = 64;
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final Mapper mapper;
+  private final Reducer reducer;
+  private File temporaryDbFolder;
+  private boolean useLocks;
+  private boolean compressTemporaryDb;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+  private int partitions;
+  private long mapBufferSize = DEFAULT_MAP_BUFFER_SIZE;
+  private Combiner combiner;
+
+  public ParallelMapReduceJob(Mapper mapper, Reducer reducer) {
+    this.mapper = mapper;
+    this.reducer = reducer;
+  }
+
+  @Override
+  public void executeWith(KyotoDb database) {
+    new Execution(database.partitionedEntries(parallelism), getPartitions()).run();
+  }
+
+  @Override
+  public Mapper getMapper() {
+    return mapper;
+  }
+
+  @Override
+  public Reducer getReducer() {
+    return reducer;
+  }
+
+  @Override
+  public Combiner getCombiner() {
+    return combiner;
+  }
+
+  @Override
+  public void setCombiner(Combiner combiner) {
+    this.combiner = combiner;
+  }
+
+  @Override
+  public File getTemporaryDbFolder() {
+    return temporaryDbFolder;
+  }
+
+  @Override
+  public void setTemporaryDbFolder(File temporaryDbFolder) {
+    this.temporaryDbFolder = temporaryDbFolder;
+  }
+
+  @Override
+  public void setUseLocks(boolean useLocks) {
+    this.useLocks = useLocks;
+  }
+
+  @Override
+  public boolean getUseLocks() {
+    return useLocks;
+  }
+
+  @Override
+  public void setCompressTemporaryDb(boolean compressTemporaryDb) {
+    this.compressTemporaryDb = compressTemporaryDb;
+  }
+
+  @Override
+  public boolean getCompressTemporaryDb() {
+    return compressTemporaryDb;
+  }
+
+  /**
+   * @param parallelism the number of threads that run the {@link Mapper}, and the number of input partitions
+   *          requested. Defaults to the number of available processors.
+   */
+  public void setParallelism(int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be > 0");
+    }
+    this.parallelism = parallelism;
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * @param partitions the number of partitions into which map output is divided, each of which is reduced by a single
+   *          thread. Defaults to the parallelism.
+   */
+  public void setPartitions(int partitions) {
+    if (partitions < 1) {
+      throw new IllegalArgumentException("partitions must be > 0");
+    }
+    this.partitions = partitions;
+  }
+
+  public int getPartitions() {
+    return partitions > 0 ? partitions : parallelism;
+  }
+
+  /**
+   * @param mapBufferSize the approximate number of bytes of map output that each map thread holds before spilling it
+   *          to disk.
+   */
+  public void setMapBufferSize(long mapBufferSize) {
+    if (mapBufferSize < 1) {
+      throw new IllegalArgumentException("mapBufferSize must be > 0");
+    }
+    this.mapBufferSize = mapBufferSize;
+  }
+
+  public long getMapBufferSize() {
+    return mapBufferSize;
+  }
+
+  static int partitionFor(byte[] key, int partitionCount) {
+    int hash = Arrays.hashCode(key);
+    hash ^= hash >>> 16;
+    return (hash & Integer.MAX_VALUE) % partitionCount;
+  }
+
+  /** The state of a single run of the job. */
+  private class Execution {
+
+    private final List<RecordIterator<byte[][]>> inputs;
+    private final int partitionCount;
+    private final Combiner combiner = getCombiner();
+    private final BlockingQueue<List<byte[][]>> queue;
+    private final List<List<SortedRun>> runs;
+    private volatile boolean readingDone;
+
+    Execution(List<RecordIterator<byte[][]>> inputs, int partitionCount) {
+      this.inputs = inputs;
+      this.partitionCount = partitionCount;
+      queue = new ArrayBlockingQueue<List<byte[][]>>(parallelism * QUEUED_BATCHES_PER_MAPPER);
+      runs = new ArrayList<List<SortedRun>>(partitionCount);
+      for (int partition = 0; partition < partitionCount; partition++) {
+        runs.add(new ArrayList<SortedRun>());
+      }
+    }
+
+    void run() {
+      ExecutorService executor = Executors.newFixedThreadPool(inputs.size() + parallelism, new DaemonThreadFactory(
+          "kyoto-mapreduce"));
+      try {
+        List<Future<Void>> readers = new ArrayList<Future<Void>>(inputs.size());
+        for (RecordIterator<byte[][]> input : inputs) {
+          readers.add(executor.submit(new InputReader(input)));
+        }
+        List<Future<Void>> mappers = new ArrayList<Future<Void>>(parallelism);
+        for (int index = 0; index < parallelism; index++) {
+          mappers.add(executor.submit(new MapWorker()));
+        }
+        awaitInput(readers, mappers);
+        readingDone = true;
+        awaitAll(mappers);
+
+        List<Future<Void>> reducers = new ArrayList<Future<Void>>(partitionCount);
+        for (int partition = 0; partition < partitionCount; partition++) {
+          reducers.add(executor.submit(new ReduceWorker(partition)));
+        }
+        awaitAll(reducers);
+      } finally {
+        executor.shutdownNow();
+        try {
+          if (!executor.awaitTermination(TERMINATION_SECONDS, TimeUnit.SECONDS)) {
+            log.warn("MapReduce threads did not terminate.");
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        for (RecordIterator<byte[][]> input : inputs) {
+          input.close();
+        }
+        for (List<SortedRun> partitionRuns : runs) {
+          synchronized (partitionRuns) {
+            for (SortedRun run : partitionRuns) {
+              run.delete();
+            }
+            partitionRuns.clear();
+          }
+        }
+      }
+    }
+
+    private void addRun(int partition, SortedRun run) {
+      List<SortedRun> partitionRuns = runs.get(partition);
+      synchronized (partitionRuns) {
+        partitionRuns.add(run);
+      }
+    }
+
+    /**
+     * Waits for the readers while watching the mappers, which only finish early if they fail - readers could
+     * otherwise block forever on a full queue.
+     */
+    private void awaitInput(List<Future<Void>> readers, List<Future<Void>> mappers) {
+      for (Future<Void> reader : readers) {
+        while (!await(reader, POLL_MILLISECONDS)) {
+          for (Future<Void> mapper : mappers) {
+            if (mapper.isDone()) {
+              await(mapper, 0);
+            }
+          }
+        }
+      }
+    }
+
+    private void awaitAll(List<Future<Void>> futures) {
+      for (Future<Void> future : futures) {
+        await(future, Long.MAX_VALUE);
+      }
+    }
+
+    /**
+     * @return {@code false} if the task has not completed within the timeout.
+     * @throws KyotoException if the task failed.
+     */
+    private boolean await(Future<Void> future, long timeoutMilliseconds) {
+      try {
+        future.get(timeoutMilliseconds, TimeUnit.MILLISECONDS);
+        return true;
+      } catch (TimeoutException e) {
+        return false;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KyotoException("Interrupted while waiting for MapReduce.", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof KyotoException) {
+          throw (KyotoException) cause;
+        }
+        throw new KyotoException("MapReduce failed.", cause);
+      }
+    }
+
+    private class InputReader implements Callable<Void> {
+
+      private final RecordIterator<byte[][]> input;
+
+      InputReader(RecordIterator<byte[][]> input) {
+        this.input = input;
+      }
+
+      @Override
+      public Void call() throws InterruptedException {
+        try {
+          List<byte[][]> batch = new ArrayList<byte[][]>(READ_BATCH_SIZE);
+          while (input.hasNext()) {
+            batch.add(input.next());
+            if (batch.size() == READ_BATCH_SIZE) {
+              queue.put(batch);
+              batch = new ArrayList<byte[][]>(READ_BATCH_SIZE);
+            }
+          }
+          if (!batch.isEmpty()) {
+            queue.put(batch);
+          }
+        } finally {
+          input.close();
+        }
+        return null;
+      }
+
+    }
+
+    private class MapWorker implements Callable<Void>, Context {
+
+      private final List<List<byte[][]>> buffers;
+      private long bufferedBytes;
+
+      MapWorker() {
+        buffers = new ArrayList<List<byte[][]>>(partitionCount);
+        for (int partition = 0; partition < partitionCount; partition++) {
+          buffers.add(new ArrayList<byte[][]>());
+        }
+      }
+
+      @Override
+      public Void call() throws InterruptedException, IOException {
+        while (true) {
+          List<byte[][]> batch = queue.poll(POLL_MILLISECONDS, TimeUnit.MILLISECONDS);
+          if (batch == null) {
+            if (readingDone && queue.isEmpty()) {
+              break;
+            }
+            continue;
+          }
+          for (byte[][] entry : batch) {
+            try {
+              mapper.map(entry[0], entry[1], this);
+            } catch (RuntimeException e) {
+              log.error("Exception thrown in map invocation.", e);
+              throw e;
+            }
+          }
+        }
+        for (int partition = 0; partition < partitionCount; partition++) {
+          List<byte[][]> buffer = buffers.get(partition);
+          if (!buffer.isEmpty()) {
+            addRun(partition, SortedRun.inMemory(combine(buffer)));
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public void write(byte[] key, byte[] value) {
+        if (key == null || value == null) {
+          throw new IllegalArgumentException("key and value must not be null");
+        }
+        buffers.get(partitionFor(key, partitionCount)).add(new byte[][] { key.clone(), value.clone() });
+        bufferedBytes += key.length + value.length + PAIR_OVERHEAD;
+        if (bufferedBytes >= mapBufferSize) {
+          spill();
+        }
+      }
+
+      private void spill() {
+        try {
+          for (int partition = 0; partition < partitionCount; partition++) {
+            List<byte[][]> buffer = buffers.get(partition);
+            if (!buffer.isEmpty()) {
+              addRun(partition, SortedRun.spill(combine(buffer), temporaryDbFolder, compressTemporaryDb));
+              buffers.set(partition, new ArrayList<byte[][]>());
+            }
+          }
+        } catch (IOException e) {
+          throw new KyotoException("Could not spill map output to " + temporaryDbFolder, e);
+        }
+        bufferedBytes = 0;
+      }
+
+      private List<byte[][]> combine(List<byte[][]> buffer) {
+        if (combiner == null) {
+          return buffer;
+        }
+        Collections.sort(buffer, SortedRun.KEY_ORDER);
+        try {
+          return CombiningBuffer.combineSorted(buffer, combiner);
+        } catch (RuntimeException e) {
+          log.error("Exception thrown in combine invocation.", e);
+          throw e;
+        }
+      }
+
+    }
+
+    private class ReduceWorker implements Callable<Void> {
+
+      private final int partition;
+
+      ReduceWorker(int partition) {
+        this.partition = partition;
+      }
+
+      @Override
+      public Void call() throws IOException {
+        List<SortedRun> partitionRuns = runs.get(partition);
+        synchronized (partitionRuns) {
+          if (partitionRuns.isEmpty()) {
+            return null;
+          }
+        }
+        RunMerger merger = new RunMerger(partitionRuns);
+        try {
+          merger.reduceAll(reducer);
+        } catch (RuntimeException e) {
+          log.error("Exception thrown in reduce invocation.", e);
+          throw e;
+        } finally {
+          merger.close();
+        }
+        return null;
+      }
+
+    }
+
+  }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.Synchronization;
+
+/**
+ * Visits, counts and removes the records of an ordered database whose keys fall in the range {@code [fromKey, toKey)}
+ * of the database's key order, by positioning a cursor at one end of the range and stepping until it leaves the range.
+ * A {@code null} bound leaves that end of the range open.
+ */
+final class RangeScanner {
+
+  /** Records removed in each transaction by {@link #remove(KyotoDb, byte[], byte[], Comparator, int)}. */
+  static final int REMOVE_TRANSACTION_SIZE = 10000;
+
+  private static final Logger log = LoggerFactory.getLogger(RangeScanner.class);
+
+  private RangeScanner() {
+  }
+
+  static void scan(KyotoCursor cursor, byte[] fromKey, byte[] toKey, Comparator<byte[]> order,
+      ReadOnlyVisitor visitor) {
+    try {
+      position(cursor, fromKey);
+      while (true) {
+        List<byte[][]> batch = cursor.nextBatch(CursorRecordIterator.BATCH_SIZE);
+        if (batch.isEmpty()) {
+          return;
+        }
+        for (byte[][] entry : batch) {
+          if (!before(entry[0], toKey, order)) {
+            return;
+          }
+          visitor.record(entry[0], entry[1]);
+        }
+      }
+    } finally {
+      close(cursor);
+    }
+  }
+
+  /**
+   * Visits the range from the greatest key to the least.
+   */
+  static void scanDescending(KyotoCursor cursor, byte[] fromKey, byte[] toKey, Comparator<byte[]> order,
+      ReadOnlyVisitor visitor) {
+    try {
+      if (toKey == null) {
+        cursor.scanBackwardsFromEnd();
+      } else {
+        cursor.scanBackwardsFromKey(toKey);
+      }
+      byte[][] entry;
+      while ((entry = cursor.getEntry(CursorStep.NO_STEP)) != null) {
+        if (fromKey != null && order.compare(entry[0], fromKey) < 0) {
+          return;
+        }
+        // the cursor may be positioned on the exclusive upper bound itself
+        if (before(entry[0], toKey, order)) {
+          visitor.record(entry[0], entry[1]);
+        }
+        cursor.stepBackwards();
+      }
+    } finally {
+      close(cursor);
+    }
+  }
+
+  /**
+   * Counts keys without reading values.
+   */
+  static long count(KyotoCursor cursor, byte[] fromKey, byte[] toKey, Comparator<byte[]> order) {
+    long count = 0;
+    try {
+      position(cursor, fromKey);
+      byte[] key;
+      while ((key = cursor.getKey(CursorStep.NEXT_RECORD)) != null && before(key, toKey, order)) {
+        count++;
+      }
+    } finally {
+      close(cursor);
+    }
+    return count;
+  }
+
+  /**
+   * Removes the range with the cursor in place, committing a transaction every {@code transactionSize} records so that
+   * removing a large range neither holds one long transaction nor builds a large write-ahead log. Must not be called
+   * within a transaction.
+   * 
+   * @return the number of records removed.
+   * @throws KyotoException on failure - records removed by transactions that were already committed stay removed.
+   */
+  static long remove(KyotoDb db, byte[] fromKey, byte[] toKey, Comparator<byte[]> order, int transactionSize) {
+    long removed = 0;
+    boolean exhausted = false;
+    while (!exhausted) {
+      int chunk = 0;
+      db.begin(Synchronization.LOGICAL);
+      try {
+        KyotoCursor cursor = db.cursor();
+        try {
+          position(cursor, fromKey);
+          while (chunk < transactionSize) {
+            byte[] key = cursor.getKey(CursorStep.NO_STEP);
+            if (key == null || !before(key, toKey, order)) {
+              exhausted = true;
+              break;
+            }
+            cursor.remove();
+            chunk++;
+          }
+        } finally {
+          close(cursor);
+        }
+        db.commit();
+      } catch (RuntimeException e) {
+        rollback(db);
+        throw e;
+      }
+      removed += chunk;
+    }
+    return removed;
+  }
+
+  /**
+   * @return a visitor that decodes records and passes them to the given visitor.
+   */
+  static ReadOnlyVisitor decoding(final ReadOnlyStringVisitor visitor, final StringCodec codec) {
+    return new ReadOnlyVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        visitor.record(codec.decode(key), codec.decode(value));
+      }
+
+      @Override
+      public void emptyRecord(byte[] key) {
+        visitor.emptyRecord(codec.decode(key));
+      }
+    };
+  }
+
+  private static void position(KyotoCursor cursor, byte[] fromKey) {
+    if (fromKey == null) {
+      cursor.scanForwardFromStart();
+    } else {
+      cursor.scanForwardFromKey(fromKey);
+    }
+  }
+
+  private static boolean before(byte[] key, byte[] toKey, Comparator<byte[]> order) {
+    return toKey == null || order.compare(key, toKey) < 0;
+  }
+
+  private static void rollback(KyotoDb db) {
+    try {
+      db.rollback();
+    } catch (RuntimeException e) {
+      log.warn("Could not roll back failed range removal transaction.", e);
+    }
+  }
+
+  private static void close(KyotoCursor cursor) {
+    try {
+      cursor.close();
+    } catch (IOException e) {
+      throw new KyotoException("Could not close cursor", e);
+    }
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded on-heap cache of record values. The cache is split into segments, each with its own lock, least recently
+ * used ordering and {@link FrequencySketch}. A new entry is only admitted if it has been requested more often than the
+ * entries it would evict (TinyLFU admission) so that one-off scans do not flush out the hot keys.
+ * <p/>
+ * To avoid caching a value that was overwritten while it was being read, readers take an
+ * {@link #invalidationToken(ByteArrayKey) invalidation token} before reading from the database and the value is only
+ * cached if no invalidation has happened in the segment since.
+ */
+final class ReadCache {
+
+  private static final int MAXIMUM_SEGMENTS = 16;
+
+  private final Segment[] segments;
+  private final long maximumEntries;
+  private final long maximumBytes;
+
+  ReadCache(long maximumEntries, long maximumBytes) {
+    if (maximumEntries < 1) {
+      throw new IllegalArgumentException("maximumEntries must be > 0");
+    }
+    if (maximumBytes < 1) {
+      throw new IllegalArgumentException("maximumBytes must be > 0");
+    }
+    this.maximumEntries = maximumEntries;
+    this.maximumBytes = maximumBytes;
+    int segmentCount = (int) Math.min(MAXIMUM_SEGMENTS, Long.highestOneBit(Math.max(1, maximumEntries / 64)));
+    segments = new Segment[segmentCount];
+    for (int index = 0; index < segmentCount; index++) {
+      segments[index] = new Segment(Math.max(1, maximumEntries / segmentCount), Math.max(1, maximumBytes
+          / segmentCount));
+    }
+  }
+
+  byte[] get(ByteArrayKey key) {
+    return segmentFor(key).get(key);
+  }
+
+  /**
+   * Looks up a value without recording the access.
+   */
+  byte[] peek(ByteArrayKey key) {
+    return segmentFor(key).peek(key);
+  }
+
+  long invalidationToken(ByteArrayKey key) {
+    return segmentFor(key).invalidationToken();
+  }
+
+  /**
+   * @param key a key that is owned by the cache.
+   * @param value a value that is owned by the cache.
+   * @param token the token obtained before the value was read from the database.
+   */
+  void put(ByteArrayKey key, byte[] value, long token) {
+    segmentFor(key).put(key, value, token);
+  }
+
+  void invalidate(ByteArrayKey key) {
+    segmentFor(key).invalidate(key);
+  }
+
+  void invalidateAll() {
+    for (Segment segment : segments) {
+      segment.invalidateAll();
+    }
+  }
+
+  CacheStatistics statistics() {
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    long rejections = 0;
+    long entries = 0;
+    long bytes = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+        misses += segment.misses;
+        evictions += segment.evictions;
+        rejections += segment.rejections;
+        entries += segment.entries.size();
+        bytes += segment.bytes;
+      }
+    }
+    return new CacheStatistics(hits, misses, evictions, rejections, entries, bytes, maximumEntries, maximumBytes);
+  }
+
+  private Segment segmentFor(ByteArrayKey key) {
+    int hash = key.hashCode();
+    hash ^= hash >>> 16;
+    return segments[hash & (segments.length - 1)];
+  }
+
+  private static final class Segment {
+
+    private final LinkedHashMap<ByteArrayKey, byte[]> entries;
+    private final FrequencySketch sketch;
+    private final long maximumEntries;
+    private final long maximumBytes;
+    private long bytes;
+    private long invalidations;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long rejections;
+
+    Segment(long maximumEntries, long maximumBytes) {
+      this.maximumEntries = maximumEntries;
+      this.maximumBytes = maximumBytes;
+      entries = new LinkedHashMap<ByteArrayKey, byte[]>(16, 0.75f, true);
+      sketch = new FrequencySketch(maximumEntries);
+    }
+
+    synchronized byte[] get(ByteArrayKey key) {
+      sketch.increment(key.hashCode());
+      byte[] value = entries.get(key);
+      if (value == null) {
+        misses++;
+      } else {
+        hits++;
+      }
+      return value;
+    }
+
+    synchronized byte[] peek(ByteArrayKey key) {
+      return entries.get(key);
+    }
+
+    synchronized long invalidationToken() {
+      return invalidations;
+    }
+
+    synchronized void put(ByteArrayKey key, byte[] value, long token) {
+      if (token != invalidations) {
+        return;
+      }
+      long weight = weight(key, value);
+      byte[] previous = entries.remove(key);
+      if (previous != null) {
+        bytes -= weight(key, previous);
+      }
+      if (weight > maximumBytes) {
+        rejections++;
+        return;
+      }
+      List<ByteArrayKey> victims = new ArrayList<ByteArrayKey>();
+      long freedEntries = 0;
+      long freedBytes = 0;
+      int frequency = sketch.frequency(key.hashCode());
+      Iterator<Map.Entry<ByteArrayKey, byte[]>> eldest = entries.entrySet().iterator();
+      while (entries.size() - freedEntries + 1 > maximumEntries || bytes - freedBytes + weight > maximumBytes) {
+        Map.Entry<ByteArrayKey, byte[]> victim = eldest.next();
+        if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+          rejections++;
+          return;
+        }
+        victims.add(victim.getKey());
+        freedEntries++;
+        freedBytes += weight(victim.getKey(), victim.getValue());
+      }
+      for (ByteArrayKey victim : victims) {
+        entries.remove(victim);
+        evictions++;
+      }
+      bytes -= freedBytes;
+      entries.put(key, value);
+      bytes += weight;
+    }
+
+    synchronized void invalidate(ByteArrayKey key) {
+      invalidations++;
+      byte[] previous = entries.remove(key);
+      if (previous != null) {
+        bytes -= weight(key, previous);
+      }
+    }
+
+    synchronized void invalidateAll() {
+      invalidations++;
+      entries.clear();
+      bytes = 0;
+    }
+
+    private static long weight(ByteArrayKey key, byte[] value) {
+      return key.length() + value.length;
+    }
+
+  }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import kyotocabinet.Visitor;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+
+class ReadOnlyCharSequenceVisitorAdapter implements Visitor {
+
+  private final ReadOnlyCharSequenceVisitor delegate;
+  private final StringCodec codec;
+
+  ReadOnlyCharSequenceVisitorAdapter(ReadOnlyCharSequenceVisitor delegate, StringCodec codec) {
+    this.delegate = delegate;
+    this.codec = codec;
+  }
+
+  @Override
+  public byte[] visit_empty(byte[] key) {
+    delegate.emptyRecord(new LazyCharSequence(key, codec));
+    return Visitor.NOP;
+  }
+
+  @Override
+  public byte[] visit_full(byte[] key, byte[] value) {
+    delegate.record(new LazyCharSequence(key, codec), new LazyCharSequence(value, codec));
+    return Visitor.NOP;
+  }
+
+}
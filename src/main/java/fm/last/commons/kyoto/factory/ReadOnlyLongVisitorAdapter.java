@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+
+class ReadOnlyLongVisitorAdapter implements ReadOnlyVisitor {
+
+  private final ReadOnlyLongVisitor delegate;
+
+  ReadOnlyLongVisitorAdapter(ReadOnlyLongVisitor delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public void record(byte[] key, byte[] value) {
+    delegate.record(key, Codec.toLong(value));
+  }
+
+  @Override
+  public void emptyRecord(byte[] key) {
+    delegate.emptyRecord(key);
+  }
+
+}
@@ -0,0 +1,1077 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableLongVisitor;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+
+/**
+ * A read only {@link KyotoDb} that opens the same file several times and spreads reads over the handles (replicas).
+ * Each native handle has its own locks, so reads that contend on a single handle scale with the number of replicas.
+ * <p/>
+ * A read goes to a replica chosen by the calling thread, unless that replica has calls in progress, in which case the
+ * least busy replica is used. Writes throw {@link UnsupportedOperationException}.
+ * <p/>
+ * {@link #reopen()} opens a new set of replicas - picking up a new version of the file that has been moved into place -
+ * and switches reads to them before closing the old set. Calls in progress finish on the old replicas and are never
+ * rejected. Cursors and iterators are bound to the replica that created them and fail once it has been closed.
+ * 
+ * @see KyotoDbBuilder#readReplicas(int)
+ */
+public class ReadReplicaKyotoDb implements KyotoDb {
+
+  /** Creates the unopened handles of a replica set. */
+  interface ReplicaFactory {
+    KyotoDb newReplica(ErrorListener errorListener);
+  }
+
+  private static final Replica[] CLOSED = new Replica[0];
+
+  private final ReplicaFactory factory;
+  private final int replicaCount;
+  private final DbType dbType;
+  private final File file;
+  private volatile Replica[] replicas = CLOSED;
+  private volatile String encoding;
+  private volatile ErrorListener errorListener;
+
+  ReadReplicaKyotoDb(DbType dbType, File file, int replicaCount, ReplicaFactory factory) {
+    if (replicaCount < 1) {
+      throw new IllegalArgumentException("At least one replica is required.");
+    }
+    this.dbType = dbType;
+    this.file = file;
+    this.replicaCount = replicaCount;
+    this.factory = factory;
+  }
+
+  /**
+   * Opens a new set of replicas of the file, switches reads to them and closes the current set once the calls in
+   * progress on it have finished. If the new set cannot be opened the current set stays in use.
+   * 
+   * @throws IllegalStateException if the database is not open.
+   * @throws IOException if the new replicas could not be opened, or the old ones could not be closed.
+   */
+  public synchronized void reopen() throws IOException {
+    if (replicas == CLOSED) {
+      throw new IllegalStateException("Database is not open: " + this);
+    }
+    Replica[] previous = replicas;
+    replicas = openReplicas();
+    closeReplicas(previous);
+  }
+
+  /**
+   * @return the number of calls in progress on each replica of the current set.
+   */
+  public long[] inFlightCounts() {
+    Replica[] current = replicas;
+    long[] counts = new long[current.length];
+    for (int index = 0; index < current.length; index++) {
+      counts[index] = current[index].gate.inFlightCount();
+    }
+    return counts;
+  }
+
+  void setErrorListener(ErrorListener errorListener) {
+    this.errorListener = errorListener;
+  }
+
+  @Override
+  public synchronized void open() throws IOException {
+    if (replicas != CLOSED) {
+      throw new IllegalStateException("Connection already open: " + this);
+    }
+    replicas = openReplicas();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (replicas == CLOSED) {
+      throw new IOException("Connection already closed: " + this);
+    }
+    Replica[] previous = replicas;
+    replicas = CLOSED;
+    closeReplicas(previous);
+  }
+
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public DbType getType() {
+    return dbType;
+  }
+
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    if (accessType == AccessType.READ_WRITE) {
+      throw readOnly();
+    }
+    Replica replica = acquire();
+    try {
+      return replica.db.occupy(accessType, fileProcessor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public synchronized void setEncoding(String encoding) {
+    Charset.forName(encoding); // fails fast on an unsupported encoding
+    this.encoding = encoding;
+    for (Replica replica : replicas) {
+      replica.db.setEncoding(encoding);
+    }
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.exists(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public boolean exists(String key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.exists(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.valueSize(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public int valueSize(String key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.valueSize(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(key, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(keys, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(key, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(keys, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyLongVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(keys, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.accept(keys, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableLongVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableDoubleVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void append(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void begin(Synchronization synchronization) {
+    throw readOnly();
+  }
+
+  @Override
+  public void clear() {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void copyTo(File destination) throws IOException {
+    Replica replica = acquire();
+    try {
+      replica.db.copyTo(destination);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long recordCount() {
+    Replica replica = acquire();
+    try {
+      return replica.db.recordCount();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    Replica replica = acquire();
+    try {
+      return replica.db.cursor();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    Replica replica = acquire();
+    try {
+      replica.db.dumpSnapshotTo(destination);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void commit() {
+    throw readOnly();
+  }
+
+  @Override
+  public void rollback() {
+    throw readOnly();
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.get(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    Replica replica = acquire();
+    try {
+      return replica.db.get(keys, atomicity);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    Replica replica = acquire();
+    try {
+      return replica.db.get(keys, atomicity);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.get(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getOrDefault(key, defaultValue);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getOrDefault(key, defaultValue);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getDouble(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public double getDouble(String key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getDouble(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getLong(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long getLong(String key) {
+    Replica replica = acquire();
+    try {
+      return replica.db.getLong(key);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterate(visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterate(visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterate(visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(ReadOnlyLongVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterate(visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyDoubleVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterate(visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(WritableLongVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(WritableDoubleVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterateParallel(visitor, parallelism);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    Replica replica = acquire();
+    try {
+      replica.db.iterateParallel(visitor, parallelism);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    Replica replica = acquire();
+    try {
+      return replica.db.entries();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    Replica replica = acquire();
+    try {
+      return replica.db.keys();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    Replica replica = acquire();
+    try {
+      return replica.db.values();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    Replica replica = acquire();
+    try {
+      return replica.db.partitionedEntries(maximumPartitions);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.scanRange(fromKey, toKey, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.scanRange(fromKey, toKey, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.scanRangeDescending(fromKey, toKey, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.scanRangeDescending(fromKey, toKey, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    Replica replica = acquire();
+    try {
+      return replica.db.countRange(fromKey, toKey);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    Replica replica = acquire();
+    try {
+      return replica.db.countRange(fromKey, toKey);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    throw readOnly();
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    throw readOnly();
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByPrefix(prefix, limit);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByPrefix(prefix);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.matchKeysByPrefix(prefix, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.matchKeysByPrefix(prefix, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByRegex(regex, limit);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    Replica replica = acquire();
+    try {
+      return replica.db.matchKeysByRegex(regex);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    Replica replica = acquire();
+    try {
+      replica.db.matchKeysByRegex(regex, visitor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean remove(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long sizeInBytes() {
+    Replica replica = acquire();
+    try {
+      return replica.db.sizeInBytes();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public Map<String, String> status() {
+    Replica replica = acquire();
+    try {
+      return replica.db.status();
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    Replica replica = acquire();
+    try {
+      replica.db.synchronize(synchronization, fileProcessor);
+    } finally {
+      replica.gate.exit();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("ReadReplicaKyotoDb [dbType=");
+    builder.append(dbType);
+    builder.append(", file=");
+    builder.append(file);
+    builder.append(", replicas=");
+    builder.append(replicaCount);
+    builder.append("]");
+    return builder.toString();
+  }
+
+  /**
+   * Enters a replica of the current set. A replica is only closed after the set it belongs to has been replaced, so if
+   * entering fails the current set is read again.
+   */
+  private Replica acquire() {
+    while (true) {
+      Replica[] current = replicas;
+      if (current == CLOSED) {
+        throw new IllegalStateException("Database is not open: " + this);
+      }
+      Replica replica = choose(current);
+      if (replica.gate.enter()) {
+        return replica;
+      }
+    }
+  }
+
+  /** Prefers the calling thread's replica, so that a thread keeps reading through the same handle while it is idle. */
+  static Replica choose(Replica[] current) {
+    Replica preferred = current[(StripedCounter.stripe() & Integer.MAX_VALUE) % current.length];
+    long fewest = preferred.gate.inFlightCount();
+    if (fewest == 0 || current.length == 1) {
+      return preferred;
+    }
+    Replica chosen = preferred;
+    for (Replica replica : current) {
+      long inFlight = replica.gate.inFlightCount();
+      if (inFlight < fewest) {
+        fewest = inFlight;
+        chosen = replica;
+        if (inFlight == 0) {
+          break;
+        }
+      }
+    }
+    return chosen;
+  }
+
+  private Replica[] openReplicas() throws IOException {
+    Replica[] opened = new Replica[replicaCount];
+    int count = 0;
+    try {
+      for (; count < replicaCount; count++) {
+        KyotoDb db = factory.newReplica(errorListener);
+        String currentEncoding = encoding;
+        if (currentEncoding != null) {
+          db.setEncoding(currentEncoding);
+        }
+        db.open();
+        opened[count] = new Replica(db);
+      }
+    } catch (IOException e) {
+      closeQuietly(opened, count);
+      throw e;
+    } catch (RuntimeException e) {
+      closeQuietly(opened, count);
+      throw e;
+    }
+    return opened;
+  }
+
+  /** Rejects new calls on each replica, waits for those in progress and then closes it. */
+  private static void closeReplicas(Replica[] closing) throws IOException {
+    IOException failure = null;
+    for (Replica replica : closing) {
+      replica.gate.close();
+      try {
+        replica.db.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private static void closeQuietly(Replica[] opened, int count) {
+    for (int index = 0; index < count; index++) {
+      try {
+        opened[index].db.close();
+      } catch (IOException ignored) {
+        // closing after a failure to open
+      }
+    }
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("Read replicas do not support writes.");
+  }
+
+  static final class Replica {
+
+    final KyotoDb db;
+    final InFlightGate gate = new InFlightGate();
+
+    Replica(KyotoDb db) {
+      this.db = db;
+      gate.open();
+    }
+
+  }
+
+}
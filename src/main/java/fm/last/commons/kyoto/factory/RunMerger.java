@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.mapreduce.Reducer;
+
+/**
+ * Merges {@link SortedRun}s and hands each key with all of its values to a {@link Reducer}. Values are streamed from
+ * the runs rather than collected, so a key may have more values than fit in memory.
+ */
+class RunMerger {
+
+  private final Comparator<byte[]> keyOrder;
+  private final PriorityQueue<Source> heap;
+
+  RunMerger(List<SortedRun> runs) throws IOException {
+    this(runs, KeyOrder.LEXICAL);
+  }
+
+  /**
+   * @param keyOrder the order the runs are sorted in.
+   */
+  RunMerger(List<SortedRun> runs, Comparator<byte[]> keyOrder) throws IOException {
+    this.keyOrder = keyOrder;
+    heap = new PriorityQueue<Source>(Math.max(1, runs.size()), new Comparator<Source>() {
+      @Override
+      public int compare(Source a, Source b) {
+        int comparison = RunMerger.this.keyOrder.compare(a.reader.key(), b.reader.key());
+        if (comparison != 0) {
+          return comparison;
+        }
+        return a.index - b.index;
+      }
+    });
+    try {
+      for (int index = 0; index < runs.size(); index++) {
+        Source source = new Source(runs.get(index).reader(), index);
+        if (source.reader.advance()) {
+          heap.add(source);
+        } else {
+          source.reader.close();
+        }
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Calls the reducer once for each distinct key, in key order.
+   */
+  void reduceAll(Reducer reducer) throws IOException {
+    while (!heap.isEmpty()) {
+      Group group = new Group(heap.peek().reader.key());
+      reducer.reduce(group.key, group);
+      group.skipRemaining();
+    }
+  }
+
+  void close() throws IOException {
+    IOException failure = null;
+    for (Source source : heap) {
+      try {
+        source.reader.close();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    heap.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return the value of the next pair, moving the source on.
+   */
+  private byte[] pollValue() throws IOException {
+    Source source = heap.poll();
+    byte[] value = source.reader.value();
+    if (source.reader.advance()) {
+      heap.add(source);
+    } else {
+      source.reader.close();
+    }
+    return value;
+  }
+
+  private boolean hasValueFor(byte[] key) {
+    return !heap.isEmpty() && keyOrder.compare(heap.peek().reader.key(), key) == 0;
+  }
+
+  private static final class Source {
+
+    private final SortedRun.Reader reader;
+    private final int index;
+
+    Source(SortedRun.Reader reader, int index) {
+      this.reader = reader;
+      this.index = index;
+    }
+
+  }
+
+  /**
+   * The values of a key, which can be iterated only once.
+   */
+  private final class Group implements Iterable<byte[]>, Iterator<byte[]> {
+
+    private final byte[] key;
+    private boolean iteratorReturned;
+
+    Group(byte[] key) {
+      this.key = key;
+    }
+
+    @Override
+    public Iterator<byte[]> iterator() {
+      if (iteratorReturned) {
+        throw new IllegalStateException("You may only create one iterator from this iterable.");
+      }
+      iteratorReturned = true;
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasValueFor(key);
+    }
+
+    @Override
+    public byte[] next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      try {
+        return pollValue();
+      } catch (IOException e) {
+        throw new KyotoException("Could not read map output.", e);
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException("remove() not supported by this Iterator.");
+    }
+
+    void skipRemaining() throws IOException {
+      while (hasValueFor(key)) {
+        pollValue();
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * Cursor over a {@link ShardedKyotoDb} that visits each shard in turn. When the cursor runs off the end (or start) of a
+ * shard it moves to the first (or last) record of the next (or previous) shard.
+ */
+class ShardedCursor implements KyotoCursor {
+
+  private final List<KyotoDb> shards;
+  private final ShardedKyotoDb shardedDb;
+  private final KyotoCursor[] cursors;
+  private int current;
+  private boolean forwards = true;
+  private boolean positioned;
+
+  ShardedCursor(ShardedKyotoDb shardedDb) {
+    this.shardedDb = shardedDb;
+    shards = shardedDb.getShards();
+    cursors = new KyotoCursor[shards.size()];
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (KyotoCursor cursor : cursors) {
+      if (cursor != null) {
+        try {
+          cursor.close();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public void accept(ReadOnlyVisitor visitor, CursorStep step) {
+    if (positionOnRecord()) {
+      cursor(current).accept(visitor, step);
+    }
+  }
+
+  @Override
+  public void accept(WritableVisitor visitor, CursorStep step) {
+    if (positionOnRecord()) {
+      cursor(current).accept(visitor, step);
+    }
+  }
+
+  @Override
+  public void setValue(byte[] value, CursorStep step) {
+    if (positionOnRecord()) {
+      cursor(current).setValue(value, step);
+    }
+  }
+
+  @Override
+  public void setValue(String value, CursorStep step) {
+    if (positionOnRecord()) {
+      cursor(current).setValue(value, step);
+    }
+  }
+
+  @Override
+  public void remove() {
+    if (positionOnRecord()) {
+      cursor(current).remove();
+    }
+  }
+
+  @Override
+  public byte[] getKey(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      byte[] result = cursor(current).getKey(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  @Override
+  public String getKeyAsString(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      String result = cursor(current).getKeyAsString(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  @Override
+  public byte[] getValue(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      byte[] result = cursor(current).getValue(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  @Override
+  public String getValueAsString(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      String result = cursor(current).getValueAsString(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  @Override
+  public byte[][] getEntry(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      byte[][] result = cursor(current).getEntry(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  /**
+   * Reads on into the following shards when the current shard is exhausted.
+   */
+  @Override
+  public List<byte[][]> nextBatch(int maximumRecords) {
+    List<byte[][]> batch = new ArrayList<byte[][]>();
+    if (!positioned) {
+      return batch;
+    }
+    forwards = true;
+    do {
+      batch.addAll(cursor(current).nextBatch(maximumRecords - batch.size()));
+    } while (batch.size() < maximumRecords && advance());
+    return batch;
+  }
+
+  @Override
+  public String[] getEntryAsString(CursorStep step) {
+    if (!positioned) {
+      return null;
+    }
+    do {
+      String[] result = cursor(current).getEntryAsString(step);
+      if (result != null) {
+        return result;
+      }
+    } while (advance());
+    return null;
+  }
+
+  @Override
+  public void scanForwardFromStart() {
+    forwards = true;
+    positioned = true;
+    current = 0;
+    cursor(current).scanForwardFromStart();
+  }
+
+  /**
+   * Jumps to the key in the shard that owns it. Subsequent steps continue through the remaining shards.
+   */
+  @Override
+  public void scanForwardFromKey(byte[] key) {
+    forwards = true;
+    positioned = true;
+    current = ShardedKyotoDb.shardIndex(key, shards.size());
+    cursor(current).scanForwardFromKey(key);
+  }
+
+  @Override
+  public void scanForwardFromKey(String key) {
+    scanForwardFromKey(shardedDb.getCodec().encode(key));
+  }
+
+  @Override
+  public void scanBackwardsFromEnd() {
+    forwards = false;
+    positioned = true;
+    current = cursors.length - 1;
+    cursor(current).scanBackwardsFromEnd();
+  }
+
+  @Override
+  public void scanBackwardsFromKey(byte[] key) {
+    forwards = false;
+    positioned = true;
+    current = ShardedKyotoDb.shardIndex(key, shards.size());
+    cursor(current).scanBackwardsFromKey(key);
+  }
+
+  @Override
+  public void scanBackwardsFromKey(String key) {
+    scanBackwardsFromKey(shardedDb.getCodec().encode(key));
+  }
+
+  @Override
+  public void stepForwards() {
+    forwards = true;
+    if (positionOnRecord()) {
+      cursor(current).stepForwards();
+    }
+  }
+
+  @Override
+  public void stepBackwards() {
+    forwards = false;
+    if (positionOnRecord()) {
+      cursor(current).stepBackwards();
+    }
+  }
+
+  /**
+   * Moves on to the next (or previous) shard while the current shard cursor is exhausted. Used before operations that
+   * do not report whether the cursor was on a record.
+   * 
+   * @return {@code false} if all shards have been exhausted.
+   */
+  private boolean positionOnRecord() {
+    if (!positioned) {
+      return false;
+    }
+    do {
+      if (cursor(current).getKey(CursorStep.NO_STEP) != null) {
+        return true;
+      }
+    } while (advance());
+    return false;
+  }
+
+  /**
+   * Moves to the start of the next shard, or the end of the previous shard when scanning backwards.
+   * 
+   * @return {@code false} if there are no more shards in the scan direction.
+   */
+  private boolean advance() {
+    if (forwards) {
+      if (current + 1 >= cursors.length) {
+        return false;
+      }
+      current++;
+      cursor(current).scanForwardFromStart();
+    } else {
+      if (current == 0) {
+        return false;
+      }
+      current--;
+      cursor(current).scanBackwardsFromEnd();
+    }
+    return true;
+  }
+
+  private KyotoCursor cursor(int index) {
+    if (cursors[index] == null) {
+      cursors[index] = shards.get(index).cursor();
+    }
+    return cursors[index];
+  }
+
+}
@@ -0,0 +1,1334 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableLongVisitor;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that stripes records across a number of underlying databases (shards) by a hash of the record key.
+ * Kyoto serialises writers per database so striping allows writes to scale with the number of shards. Bulk operations
+ * are fanned out to the shards in parallel.
+ * <p/>
+ * Only single record operations keep the semantics of a single database. Transactions, {@link Atomicity#ATOMIC} bulk
+ * operations and whole database operations such as {@link #iterate(ReadOnlyVisitor)} are applied to each shard in turn
+ * and are not atomic across shards. Cursors visit the shards one after another so records are not returned in key
+ * order, even for tree databases.
+ * <p/>
+ * The shard of a key is a function of the key bytes and the number of shards only, so a sharded database must always be
+ * opened with the same number of shards.
+ * 
+ * @see KyotoDbBuilder#shards(int)
+ */
+public class ShardedKyotoDb implements KyotoDb {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int HASH_SEED = 0x9747b28c;
+
+  private final List<KyotoDb> shards;
+  private final DbType dbType;
+  private final File file;
+  private final int parallelism;
+  private volatile StringCodec codec;
+  private volatile ExecutorService executor;
+
+  ShardedKyotoDb(DbType dbType, File file, List<KyotoDb> shards) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard is required.");
+    }
+    this.dbType = dbType;
+    this.file = file;
+    this.shards = Collections.unmodifiableList(new ArrayList<KyotoDb>(shards));
+    parallelism = Math.min(shards.size(), Runtime.getRuntime().availableProcessors());
+    codec = new StringCodec(UTF_8);
+  }
+
+  /**
+   * @return the underlying databases in shard order.
+   */
+  public List<KyotoDb> getShards() {
+    return shards;
+  }
+
+  /**
+   * @return the shard that stores the record with the given key.
+   */
+  public KyotoDb shardFor(byte[] key) {
+    return shards.get(shardIndex(key, shards.size()));
+  }
+
+  /**
+   * @return the shard that stores the record with the given key.
+   */
+  public KyotoDb shardFor(String key) {
+    return shardFor(codec.encode(key));
+  }
+
+  @Override
+  public synchronized void open() throws IOException {
+    List<KyotoDb> opened = new ArrayList<KyotoDb>();
+    try {
+      for (KyotoDb shard : shards) {
+        shard.open();
+        opened.add(shard);
+      }
+    } catch (IOException e) {
+      closeQuietly(opened);
+      throw e;
+    } catch (RuntimeException e) {
+      closeQuietly(opened);
+      throw e;
+    }
+    startExecutor();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    Exception failure = null;
+    try {
+      for (KyotoDb shard : shards) {
+        try {
+          shard.close();
+        } catch (IOException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        } catch (RuntimeException e) {
+          if (failure == null) {
+            failure = e;
+          }
+        }
+      }
+    } finally {
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure != null) {
+      throw (RuntimeException) failure;
+    }
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    return shardFor(key).exists(key);
+  }
+
+  @Override
+  public boolean exists(String key) {
+    return shardFor(key).exists(key);
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    return shardFor(key).valueSize(key);
+  }
+
+  @Override
+  public int valueSize(String key) {
+    return shardFor(key).valueSize(key);
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    return shardFor(key).getAndRemove(key);
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    return shardFor(key).getAndRemove(key);
+  }
+
+  /**
+   * Occupies each shard in turn. The file processor is called once per shard.
+   */
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    boolean success = true;
+    for (KyotoDb shard : shards) {
+      success &= shard.occupy(accessType, fileProcessor);
+    }
+    return success;
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      addAll(matches, shard.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset));
+    }
+    return matches;
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be > 0");
+    }
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      if (matches.size() >= limit) {
+        break;
+      }
+      addAll(matches, shard.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit - matches.size()));
+    }
+    return matches;
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    shardFor(key).accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    byte[][][] keysByShard = partitionKeys(keys);
+    for (int index = 0; index < keysByShard.length; index++) {
+      if (keysByShard[index].length > 0) {
+        shards.get(index).accept(keysByShard[index], visitor);
+      }
+    }
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    shardFor(key).accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    List<List<String>> keysByShard = partitionKeys(keys);
+    for (int index = 0; index < keysByShard.size(); index++) {
+      if (!keysByShard.get(index).isEmpty()) {
+        shards.get(index).accept(keysByShard.get(index), visitor);
+      }
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    shardFor(key).accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    byte[][][] keysByShard = partitionKeys(keys);
+    for (int index = 0; index < keysByShard.length; index++) {
+      if (keysByShard[index].length > 0) {
+        shards.get(index).accept(keysByShard[index], visitor);
+      }
+    }
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    shardFor(key).accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    List<List<String>> keysByShard = partitionKeys(keys);
+    for (int index = 0; index < keysByShard.size(); index++) {
+      if (!keysByShard.get(index).isEmpty()) {
+        shards.get(index).accept(keysByShard.get(index), visitor);
+      }
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyLongVisitor visitor) {
+    accept(keys, new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor) {
+    accept(keys, new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableLongVisitor visitor) {
+    accept(keys, new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableDoubleVisitor visitor) {
+    accept(keys, new WritableDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    return shardFor(key).putIfAbsent(key, value);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    return shardFor(key).putIfAbsent(key, value);
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    shardFor(key).append(key, value);
+  }
+
+  @Override
+  public void append(String key, String value) {
+    shardFor(key).append(key, value);
+  }
+
+  /**
+   * Begins a transaction on every shard. Transactions are not atomic across shards: a failure while committing may
+   * leave some shards committed.
+   */
+  @Override
+  public void begin(Synchronization synchronization) {
+    List<KyotoDb> begun = new ArrayList<KyotoDb>();
+    try {
+      for (KyotoDb shard : shards) {
+        shard.begin(synchronization);
+        begun.add(shard);
+      }
+    } catch (RuntimeException e) {
+      for (KyotoDb shard : begun) {
+        try {
+          shard.rollback();
+        } catch (RuntimeException ignored) {
+          // the original failure is more interesting
+        }
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (KyotoDb shard : shards) {
+      shard.clear();
+    }
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    return shardFor(key).compareAndSwap(key, oldValue, newValue);
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    return shardFor(key).compareAndSwap(key, oldValue, newValue);
+  }
+
+  /**
+   * Copies each shard to a file named after the destination with the shard number appended.
+   * 
+   * @see KyotoDbBuilder#shardFile(File, int, int)
+   */
+  @Override
+  public void copyTo(File destination) throws IOException {
+    for (int index = 0; index < shards.size(); index++) {
+      shards.get(index).copyTo(KyotoDbBuilder.shardFile(destination, index, shards.size()));
+    }
+  }
+
+  @Override
+  public long recordCount() {
+    long count = 0;
+    for (KyotoDb shard : shards) {
+      count += shard.recordCount();
+    }
+    return count;
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    return new ShardedCursor(this);
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    return CursorRecordIterator.entries(cursor());
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    return CursorRecordIterator.keys(cursor());
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    return CursorRecordIterator.values(cursor());
+  }
+
+  /**
+   * Returns at least one partition per shard when {@code maximumPartitions} is the number of shards or more, with
+   * ordered shards further split by key range. Otherwise whole shards are grouped together.
+   */
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    int partitionCount = Math.max(1, maximumPartitions);
+    List<RecordIterator<byte[][]>> partitions = new ArrayList<RecordIterator<byte[][]>>(partitionCount);
+    if (partitionCount >= shards.size()) {
+      for (int index = 0; index < shards.size(); index++) {
+        int partitionsForShard = partitionCount / shards.size() + (index < partitionCount % shards.size() ? 1 : 0);
+        partitions.addAll(shards.get(index).partitionedEntries(partitionsForShard));
+      }
+      return partitions;
+    }
+    List<List<RecordIterator<byte[][]>>> groups = new ArrayList<List<RecordIterator<byte[][]>>>(partitionCount);
+    for (int index = 0; index < partitionCount; index++) {
+      groups.add(new ArrayList<RecordIterator<byte[][]>>());
+    }
+    for (int index = 0; index < shards.size(); index++) {
+      groups.get(index % partitionCount).add(shards.get(index).entries());
+    }
+    for (List<RecordIterator<byte[][]>> group : groups) {
+      partitions.add(new ConcatenatedRecordIterator<byte[][]>(group));
+    }
+    return partitions;
+  }
+
+  /**
+   * Shards are scanned one after another, so records are in order within each shard but not across shards.
+   */
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.scanRange(fromKey, toKey, visitor);
+    }
+  }
+
+  /**
+   * Shards are scanned one after another, so records are in order within each shard but not across shards.
+   */
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.scanRange(fromKey, toKey, visitor);
+    }
+  }
+
+  /**
+   * Shards are scanned one after another, so records are in order within each shard but not across shards.
+   */
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.scanRangeDescending(fromKey, toKey, visitor);
+    }
+  }
+
+  /**
+   * Shards are scanned one after another, so records are in order within each shard but not across shards.
+   */
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.scanRangeDescending(fromKey, toKey, visitor);
+    }
+  }
+
+  @Override
+  public long countRange(final byte[] fromKey, final byte[] toKey) {
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.countRange(fromKey, toKey);
+      }
+    }, everyShard()));
+  }
+
+  @Override
+  public long countRange(final String fromKey, final String toKey) {
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.countRange(fromKey, toKey);
+      }
+    }, everyShard()));
+  }
+
+  /**
+   * Each shard removes its part of the range in its own series of transactions.
+   */
+  @Override
+  public long removeRange(final byte[] fromKey, final byte[] toKey) {
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.removeRange(fromKey, toKey);
+      }
+    }, everyShard()));
+  }
+
+  /**
+   * Each shard removes its part of the range in its own series of transactions.
+   */
+  @Override
+  public long removeRange(final String fromKey, final String toKey) {
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.removeRange(fromKey, toKey);
+      }
+    }, everyShard()));
+  }
+
+  /**
+   * Dumps each shard to a snapshot file named after the destination with the shard number appended.
+   */
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    for (int index = 0; index < shards.size(); index++) {
+      shards.get(index).dumpSnapshotTo(KyotoDbBuilder.shardFile(destination, index, shards.size()));
+    }
+  }
+
+  @Override
+  public void commit() {
+    for (KyotoDb shard : shards) {
+      shard.commit();
+    }
+  }
+
+  @Override
+  public void rollback() {
+    RuntimeException failure = null;
+    for (KyotoDb shard : shards) {
+      try {
+        shard.rollback();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    return shardFor(key).get(key);
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, final Atomicity atomicity) {
+    final byte[][][] keysByShard = partitionKeys(keys);
+    List<byte[][]> results = fanOut(new ShardTask<byte[][]>() {
+      @Override
+      public byte[][] call(KyotoDb shard, int index) {
+        return shard.get(keysByShard[index], atomicity);
+      }
+    }, hasWork(keysByShard));
+    return concat(results);
+  }
+
+  @Override
+  public Map<String, String> get(final List<String> keys, final Atomicity atomicity) {
+    final List<List<String>> keysByShard = partitionKeys(keys);
+    List<Map<String, String>> results = fanOut(new ShardTask<Map<String, String>>() {
+      @Override
+      public Map<String, String> call(KyotoDb shard, int index) {
+        return shard.get(keysByShard.get(index), atomicity);
+      }
+    }, hasWork(keysByShard));
+    Map<String, String> values = new HashMap<String, String>();
+    for (Map<String, String> result : results) {
+      values.putAll(result);
+    }
+    return values;
+  }
+
+  @Override
+  public String get(String key) {
+    return shardFor(key).get(key);
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    return shardFor(key).getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    return shardFor(key).getOrDefault(key, defaultValue);
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    return shardFor(key).getDouble(key);
+  }
+
+  @Override
+  public double getDouble(String key) {
+    return shardFor(key).getDouble(key);
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    return shardFor(key).getLong(key);
+  }
+
+  @Override
+  public long getLong(String key) {
+    return shardFor(key).getLong(key);
+  }
+
+  /**
+   * @return the template file from which the shard file names are derived.
+   */
+  @Override
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public DbType getType() {
+    return dbType;
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    return shardFor(key).increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    return shardFor(key).incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    return shardFor(key).increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    return shardFor(key).incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    return shardFor(key).increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, double value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    return shardFor(key).incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    return shardFor(key).increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, long value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    return shardFor(key).incrementWithDefault(key, delta, defaultValue);
+  }
+
+  /**
+   * Visits each shard in turn. The visitor is only ever called from the calling thread.
+   */
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.iterate(visitor);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.iterate(visitor);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.iterate(visitor);
+    }
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.iterate(visitor);
+    }
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    for (KyotoDb shard : shards) {
+      shard.iterate(visitor);
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyLongVisitor visitor) {
+    iterate(new ReadOnlyLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(ReadOnlyDoubleVisitor visitor) {
+    iterate(new ReadOnlyDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableLongVisitor visitor) {
+    iterate(new WritableLongVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterate(WritableDoubleVisitor visitor) {
+    iterate(new WritableDoubleVisitorAdapter(visitor));
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    ParallelIteration.iterate(partitionedEntries(parallelism * ParallelIteration.PARTITIONS_PER_THREAD), visitor,
+        parallelism);
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    iterateParallel(RangeScanner.decoding(visitor, codec), parallelism);
+  }
+
+  /**
+   * Loads each shard from a snapshot file named after the source with the shard number appended.
+   */
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    for (int index = 0; index < shards.size(); index++) {
+      shards.get(index).loadSnapshotFrom(KyotoDbBuilder.shardFile(source, index, shards.size()));
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be > 0");
+    }
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      if (matches.size() >= limit) {
+        break;
+      }
+      addAll(matches, shard.matchKeysByPrefix(prefix, limit - matches.size()));
+    }
+    return matches;
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      addAll(matches, shard.matchKeysByPrefix(prefix));
+    }
+    return matches;
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    if (limit < 1) {
+      throw new IllegalArgumentException("limit must be > 0");
+    }
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      if (matches.size() >= limit) {
+        break;
+      }
+      addAll(matches, shard.matchKeysByRegex(regex, limit - matches.size()));
+    }
+    return matches;
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    List<String> matches = new ArrayList<String>();
+    for (KyotoDb shard : shards) {
+      addAll(matches, shard.matchKeysByRegex(regex));
+    }
+    return matches;
+  }
+
+  /**
+   * Shards are matched one after another, so keys are not in order across shards.
+   */
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    StopTrackingVisitor tracking = new StopTrackingVisitor(visitor, null);
+    for (int index = 0; index < shards.size() && !tracking.stopped; index++) {
+      shards.get(index).matchKeysByPrefix(prefix, (KeyVisitor) tracking);
+    }
+  }
+
+  /**
+   * Shards are matched one after another, so keys are not in order across shards.
+   */
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    StopTrackingVisitor tracking = new StopTrackingVisitor(null, visitor);
+    for (int index = 0; index < shards.size() && !tracking.stopped; index++) {
+      shards.get(index).matchKeysByPrefix(prefix, (KeyStringVisitor) tracking);
+    }
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    StopTrackingVisitor tracking = new StopTrackingVisitor(null, visitor);
+    for (int index = 0; index < shards.size() && !tracking.stopped; index++) {
+      shards.get(index).matchKeysByRegex(regex, tracking);
+    }
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    StopTrackingVisitor tracking = new StopTrackingVisitor(null, visitor);
+    for (int index = 0; index < shards.size() && !tracking.stopped; index++) {
+      shards.get(index).matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, tracking);
+    }
+  }
+
+  /**
+   * Merges sharded databases with the same number of shards shard by shard. Records from any other database are routed
+   * to their shard individually.
+   */
+  @Override
+  public void mergeWith(final MergeType mergeType, KyotoDb... dbs) {
+    for (KyotoDb db : dbs) {
+      if (db instanceof ShardedKyotoDb && ((ShardedKyotoDb) db).shards.size() == shards.size()) {
+        List<KyotoDb> sourceShards = ((ShardedKyotoDb) db).shards;
+        for (int index = 0; index < shards.size(); index++) {
+          shards.get(index).mergeWith(mergeType, sourceShards.get(index));
+        }
+      } else {
+        db.iterate(new ReadOnlyVisitor() {
+          @Override
+          public void record(byte[] key, byte[] value) {
+            merge(mergeType, key, value);
+          }
+
+          @Override
+          public void emptyRecord(byte[] key) {
+          }
+        });
+      }
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    return shardFor(key).remove(key);
+  }
+
+  @Override
+  public boolean remove(String key) {
+    return shardFor(key).remove(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    return shardFor(key).removeIfPresent(key);
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    return shardFor(key).removeIfPresent(key);
+  }
+
+  @Override
+  public long remove(byte[][] keys, final Atomicity atomicity) {
+    final byte[][][] keysByShard = partitionKeys(keys);
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.remove(keysByShard[index], atomicity);
+      }
+    }, hasWork(keysByShard)));
+  }
+
+  @Override
+  public long remove(List<String> keys, final Atomicity atomicity) {
+    final List<List<String>> keysByShard = partitionKeys(keys);
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.remove(keysByShard.get(index), atomicity);
+      }
+    }, hasWork(keysByShard)));
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    return shardFor(key).replace(key, newValue);
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    return shardFor(key).replace(key, newValue);
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public long set(byte[][] keyValues, final Atomicity atomicity) {
+    final byte[][][] keyValuesByShard = partitionKeyValues(keyValues);
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.set(keyValuesByShard[index], atomicity);
+      }
+    }, hasWork(keyValuesByShard)));
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, final Atomicity atomicity) {
+    final List<Map<String, String>> keyValuesByShard = new ArrayList<Map<String, String>>(shards.size());
+    for (int index = 0; index < shards.size(); index++) {
+      keyValuesByShard.add(new HashMap<String, String>());
+    }
+    for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+      keyValuesByShard.get(shardIndex(codec.encode(entry.getKey()), shards.size())).put(entry.getKey(),
+          entry.getValue());
+    }
+    return sum(fanOut(new ShardTask<Long>() {
+      @Override
+      public Long call(KyotoDb shard, int index) {
+        return shard.set(keyValuesByShard.get(index), atomicity);
+      }
+    }, hasWorkInMaps(keyValuesByShard)));
+  }
+
+  @Override
+  public void set(String key, String value) {
+    shardFor(key).set(key, value);
+  }
+
+  @Override
+  public long sizeInBytes() {
+    long size = 0;
+    for (KyotoDb shard : shards) {
+      size += shard.sizeInBytes();
+    }
+    return size;
+  }
+
+  /**
+   * The status of the first shard with {@code count} and {@code size} summed across all shards. The status of each
+   * shard is also included with keys prefixed with {@code shard.<number>.}.
+   */
+  @Override
+  public Map<String, String> status() {
+    Map<String, String> status = new HashMap<String, String>();
+    long count = 0;
+    long size = 0;
+    for (int index = shards.size() - 1; index >= 0; index--) {
+      Map<String, String> shardStatus = shards.get(index).status();
+      status.putAll(shardStatus);
+      count += parseLong(shardStatus.get("count"));
+      size += parseLong(shardStatus.get("size"));
+      for (Map.Entry<String, String> entry : shardStatus.entrySet()) {
+        status.put("shard." + index + "." + entry.getKey(), entry.getValue());
+      }
+    }
+    status.put("count", String.valueOf(count));
+    status.put("size", String.valueOf(size));
+    status.put("shards", String.valueOf(shards.size()));
+    if (file != null) {
+      status.put("path", file.getAbsolutePath());
+    }
+    return status;
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    for (KyotoDb shard : shards) {
+      shard.synchronize(synchronization, fileProcessor);
+    }
+  }
+
+  @Override
+  public void setEncoding(String encoding) {
+    Charset charset = Charset.forName(encoding);
+    for (KyotoDb shard : shards) {
+      shard.setEncoding(encoding);
+    }
+    codec = new StringCodec(charset);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("ShardedKyotoDb [dbType=");
+    builder.append(dbType);
+    builder.append(", file=");
+    builder.append(file);
+    builder.append(", shards=");
+    builder.append(shards);
+    builder.append("]");
+    return builder.toString();
+  }
+
+  StringCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Murmur3 (x86, 32 bit) hash of the key. The hash must never change as it determines where records are stored.
+   */
+  static int shardIndex(byte[] key, int shardCount) {
+    int hash = HASH_SEED;
+    int length = key.length;
+    int blocks = length >>> 2;
+    for (int block = 0; block < blocks; block++) {
+      int offset = block << 2;
+      int k = (key[offset] & 0xff) | (key[offset + 1] & 0xff) << 8 | (key[offset + 2] & 0xff) << 16
+          | (key[offset + 3] & 0xff) << 24;
+      k *= 0xcc9e2d51;
+      k = Integer.rotateLeft(k, 15);
+      k *= 0x1b873593;
+      hash ^= k;
+      hash = Integer.rotateLeft(hash, 13);
+      hash = hash * 5 + 0xe6546b64;
+    }
+    int tail = blocks << 2;
+    int remaining = length & 3;
+    if (remaining > 0) {
+      int k = 0;
+      if (remaining == 3) {
+        k ^= (key[tail + 2] & 0xff) << 16;
+      }
+      if (remaining >= 2) {
+        k ^= (key[tail + 1] & 0xff) << 8;
+      }
+      k ^= key[tail] & 0xff;
+      k *= 0xcc9e2d51;
+      k = Integer.rotateLeft(k, 15);
+      k *= 0x1b873593;
+      hash ^= k;
+    }
+    hash ^= length;
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    return (hash & Integer.MAX_VALUE) % shardCount;
+  }
+
+  private void merge(MergeType mergeType, byte[] key, byte[] value) {
+    switch (mergeType) {
+      case SET:
+        set(key, value);
+        break;
+      case ADD:
+        putIfAbsent(key, value);
+        break;
+      case APPEND:
+        append(key, value);
+        break;
+      case REPLACE:
+        replace(key, value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported merge type: " + mergeType);
+    }
+  }
+
+  private byte[][][] partitionKeys(byte[][] keys) {
+    int[] counts = new int[shards.size()];
+    int[] shardOfKey = new int[keys.length];
+    for (int index = 0; index < keys.length; index++) {
+      shardOfKey[index] = shardIndex(keys[index], shards.size());
+      counts[shardOfKey[index]]++;
+    }
+    byte[][][] keysByShard = new byte[shards.size()][][];
+    for (int shard = 0; shard < counts.length; shard++) {
+      keysByShard[shard] = new byte[counts[shard]][];
+      counts[shard] = 0;
+    }
+    for (int index = 0; index < keys.length; index++) {
+      int shard = shardOfKey[index];
+      keysByShard[shard][counts[shard]++] = keys[index];
+    }
+    return keysByShard;
+  }
+
+  private byte[][][] partitionKeyValues(byte[][] keyValues) {
+    int[] counts = new int[shards.size()];
+    int[] shardOfPair = new int[keyValues.length / 2];
+    for (int index = 0; index < shardOfPair.length; index++) {
+      shardOfPair[index] = shardIndex(keyValues[index * 2], shards.size());
+      counts[shardOfPair[index]] += 2;
+    }
+    byte[][][] keyValuesByShard = new byte[shards.size()][][];
+    for (int shard = 0; shard < counts.length; shard++) {
+      keyValuesByShard[shard] = new byte[counts[shard]][];
+      counts[shard] = 0;
+    }
+    for (int index = 0; index < shardOfPair.length; index++) {
+      int shard = shardOfPair[index];
+      keyValuesByShard[shard][counts[shard]++] = keyValues[index * 2];
+      keyValuesByShard[shard][counts[shard]++] = keyValues[index * 2 + 1];
+    }
+    return keyValuesByShard;
+  }
+
+  private List<List<String>> partitionKeys(List<String> keys) {
+    List<List<String>> keysByShard = new ArrayList<List<String>>(shards.size());
+    for (int index = 0; index < shards.size(); index++) {
+      keysByShard.add(new ArrayList<String>());
+    }
+    for (String key : keys) {
+      keysByShard.get(shardIndex(codec.encode(key), shards.size())).add(key);
+    }
+    return keysByShard;
+  }
+
+  /**
+   * Runs the task against each shard that has work. Shards are processed on the executor when more than one shard is
+   * involved, otherwise on the calling thread.
+   */
+  private <T> List<T> fanOut(final ShardTask<T> task, boolean[] hasWork) {
+    List<Integer> involved = new ArrayList<Integer>();
+    for (int index = 0; index < hasWork.length; index++) {
+      if (hasWork[index]) {
+        involved.add(index);
+      }
+    }
+    List<T> results = new ArrayList<T>(involved.size());
+    ExecutorService executor = this.executor;
+    if (involved.size() < 2 || executor == null) {
+      for (int index : involved) {
+        results.add(task.call(shards.get(index), index));
+      }
+      return results;
+    }
+    List<Future<T>> futures = new ArrayList<Future<T>>(involved.size());
+    for (final int index : involved) {
+      futures.add(executor.submit(new Callable<T>() {
+        @Override
+        public T call() {
+          return task.call(shards.get(index), index);
+        }
+      }));
+    }
+    for (Future<T> future : futures) {
+      results.add(await(future));
+    }
+    return results;
+  }
+
+  private boolean[] everyShard() {
+    boolean[] hasWork = new boolean[shards.size()];
+    Arrays.fill(hasWork, true);
+    return hasWork;
+  }
+
+  private static boolean[] hasWork(byte[][][] partitions) {
+    boolean[] hasWork = new boolean[partitions.length];
+    for (int index = 0; index < partitions.length; index++) {
+      hasWork[index] = partitions[index].length > 0;
+    }
+    return hasWork;
+  }
+
+  private static boolean[] hasWork(List<List<String>> partitions) {
+    boolean[] hasWork = new boolean[partitions.size()];
+    for (int index = 0; index < hasWork.length; index++) {
+      hasWork[index] = !partitions.get(index).isEmpty();
+    }
+    return hasWork;
+  }
+
+  private static boolean[] hasWorkInMaps(List<Map<String, String>> partitions) {
+    boolean[] hasWork = new boolean[partitions.size()];
+    for (int index = 0; index < hasWork.length; index++) {
+      hasWork[index] = !partitions.get(index).isEmpty();
+    }
+    return hasWork;
+  }
+
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KyotoException("Interrupted while waiting for shard.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new KyotoException(cause);
+    }
+  }
+
+  private void startExecutor() {
+    if (parallelism < 2) {
+      return;
+    }
+    final String name = file == null ? dbType.name() : file.getName();
+    executor = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("kyoto-shard-" + name));
+  }
+
+  private static byte[][] concat(List<byte[][]> arrays) {
+    int length = 0;
+    for (byte[][] array : arrays) {
+      length += array.length;
+    }
+    byte[][] result = new byte[length][];
+    int offset = 0;
+    for (byte[][] array : arrays) {
+      System.arraycopy(array, 0, result, offset, array.length);
+      offset += array.length;
+    }
+    return result;
+  }
+
+  private static long sum(List<Long> values) {
+    long sum = 0;
+    for (Long value : values) {
+      sum += value;
+    }
+    return sum;
+  }
+
+  private static long parseLong(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static void addAll(List<String> matches, List<String> shardMatches) {
+    if (shardMatches != null) {
+      matches.addAll(shardMatches);
+    }
+  }
+
+  private static void closeQuietly(List<KyotoDb> dbs) {
+    for (KyotoDb db : dbs) {
+      try {
+        db.close();
+      } catch (IOException ignored) {
+        // closing after a failure to open
+      }
+    }
+  }
+
+  /** Passes keys on to a visitor and remembers whether it stopped the match, so that later shards can be skipped. */
+  private static final class StopTrackingVisitor implements KeyVisitor, KeyStringVisitor {
+
+    private final KeyVisitor visitor;
+    private final KeyStringVisitor stringVisitor;
+    private boolean stopped;
+
+    StopTrackingVisitor(KeyVisitor visitor, KeyStringVisitor stringVisitor) {
+      this.visitor = visitor;
+      this.stringVisitor = stringVisitor;
+    }
+
+    @Override
+    public boolean key(byte[] key) {
+      stopped = !visitor.key(key);
+      return !stopped;
+    }
+
+    @Override
+    public boolean key(String key) {
+      stopped = !stringVisitor.key(key);
+      return !stopped;
+    }
+
+  }
+
+  private interface ShardTask<T> {
+    T call(KyotoDb shard, int index);
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A run of key/value pairs sorted by key, by default in {@link PageComparator#LEXICAL lexical} order, either held in
+ * memory or spilled to a temporary file. Pairs with equal keys keep the order in which they were added.
+ */
+abstract class SortedRun {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  static final Comparator<byte[][]> KEY_ORDER = pairOrder(KeyOrder.LEXICAL);
+
+  /**
+   * @return a comparator of key/value pairs that orders them by key.
+   */
+  static Comparator<byte[][]> pairOrder(final Comparator<byte[]> keyOrder) {
+    return new Comparator<byte[][]>() {
+      @Override
+      public int compare(byte[][] a, byte[][] b) {
+        return keyOrder.compare(a[0], b[0]);
+      }
+    };
+  }
+
+  /**
+   * Sorts the pairs in place and keeps them in memory.
+   */
+  static SortedRun inMemory(List<byte[][]> pairs) {
+    return inMemory(pairs, KeyOrder.LEXICAL);
+  }
+
+  static SortedRun inMemory(List<byte[][]> pairs, Comparator<byte[]> keyOrder) {
+    Collections.sort(pairs, pairOrder(keyOrder));
+    return new InMemoryRun(pairs);
+  }
+
+  /**
+   * Sorts the pairs in place and writes them to a new file in the given folder.
+   */
+  static SortedRun spill(List<byte[][]> pairs, File folder, boolean compress) throws IOException {
+    return spill(pairs, folder, compress, KeyOrder.LEXICAL);
+  }
+
+  static SortedRun spill(List<byte[][]> pairs, File folder, boolean compress, Comparator<byte[]> order)
+      throws IOException {
+    Collections.sort(pairs, pairOrder(order));
+    File file = File.createTempFile("kyoto-run-", ".tmp", folder);
+    OutputStream stream = new FileOutputStream(file);
+    boolean written = false;
+    try {
+      if (compress) {
+        stream = new DeflaterOutputStream(stream);
+      }
+      DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+      for (byte[][] pair : pairs) {
+        output.writeInt(pair[0].length);
+        output.write(pair[0]);
+        output.writeInt(pair[1].length);
+        output.write(pair[1]);
+      }
+      output.close();
+      written = true;
+    } finally {
+      if (!written) {
+        stream.close();
+        file.delete();
+      }
+    }
+    return new FileRun(file, compress);
+  }
+
+  abstract Reader reader() throws IOException;
+
+  /**
+   * Releases any resources held by the run.
+   */
+  abstract void delete();
+
+  /**
+   * Reads the pairs of a run in order.
+   */
+  interface Reader {
+
+    /**
+     * @return {@code false} if there are no more pairs.
+     */
+    boolean advance() throws IOException;
+
+    byte[] key();
+
+    byte[] value();
+
+    void close() throws IOException;
+
+  }
+
+  private static final class InMemoryRun extends SortedRun {
+
+    private List<byte[][]> pairs;
+
+    InMemoryRun(List<byte[][]> pairs) {
+      this.pairs = pairs;
+    }
+
+    @Override
+    Reader reader() {
+      final List<byte[][]> pairs = this.pairs;
+      return new Reader() {
+        private int index = -1;
+
+        @Override
+        public boolean advance() {
+          return ++index < pairs.size();
+        }
+
+        @Override
+        public byte[] key() {
+          return pairs.get(index)[0];
+        }
+
+        @Override
+        public byte[] value() {
+          return pairs.get(index)[1];
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+    }
+
+    @Override
+    void delete() {
+      pairs = Collections.emptyList();
+    }
+
+  }
+
+  private static final class FileRun extends SortedRun {
+
+    private final File file;
+    private final boolean compressed;
+
+    FileRun(File file, boolean compressed) {
+      this.file = file;
+      this.compressed = compressed;
+    }
+
+    @Override
+    Reader reader() throws IOException {
+      InputStream stream = new FileInputStream(file);
+      if (compressed) {
+        stream = new InflaterInputStream(stream);
+      }
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(stream, BUFFER_SIZE));
+      return new Reader() {
+        private byte[] key;
+        private byte[] value;
+
+        @Override
+        public boolean advance() throws IOException {
+          int keyLength;
+          try {
+            keyLength = input.readInt();
+          } catch (EOFException e) {
+            return false;
+          }
+          key = new byte[keyLength];
+          input.readFully(key);
+          value = new byte[input.readInt()];
+          input.readFully(value);
+          return true;
+        }
+
+        @Override
+        public byte[] key() {
+          return key;
+        }
+
+        @Override
+        public byte[] value() {
+          return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+          input.close();
+        }
+      };
+    }
+
+    @Override
+    void delete() {
+      file.delete();
+    }
+
+  }
+
+}
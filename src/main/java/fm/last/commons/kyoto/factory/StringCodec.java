@@ -0,0 +1,197 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Converts between {@code String}s and record bytes. Unlike {@link String#getBytes(Charset)} and
+ * {@link String#String(byte[], Charset)} the conversion creates no garbage other than the result: ASCII (and for
+ * ISO-8859-1 all) text is copied byte for byte, and anything else is coded with an encoder/decoder and scratch buffer
+ * that are reused by each thread. Malformed input is replaced, as with the {@code String} methods.
+ */
+final class StringCodec {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset US_ASCII = Charset.forName("US-ASCII");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private final Charset charset;
+  /** Highest char that is represented by a single byte of the same value. */
+  private final int singleByteLimit;
+
+  StringCodec(Charset charset) {
+    this.charset = charset;
+    if (ISO_8859_1.equals(charset)) {
+      singleByteLimit = 0xFF;
+    } else if (UTF_8.equals(charset) || US_ASCII.equals(charset)) {
+      singleByteLimit = 0x7F;
+    } else {
+      singleByteLimit = -1;
+    }
+  }
+
+  Charset charset() {
+    return charset;
+  }
+
+  /**
+   * @return true if the bytes can be read as chars one for one, without decoding.
+   */
+  boolean isSingleByte(byte[] bytes) {
+    if (singleByteLimit == 0xFF) {
+      return true;
+    }
+    if (singleByteLimit < 0) {
+      return false;
+    }
+    for (byte b : bytes) {
+      if (b < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("deprecation")
+  String decode(byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    if (isSingleByte(bytes)) {
+      // Copies the bytes straight into the String's char array
+      return new String(bytes, 0, 0, bytes.length);
+    }
+    Scratch scratch = SCRATCH.get();
+    CharsetDecoder decoder = scratch.decoder(charset);
+    CharBuffer chars = scratch.chars((int) (bytes.length * (double) decoder.maxCharsPerByte()) + 1);
+    decoder.reset();
+    ByteBuffer in = ByteBuffer.wrap(bytes);
+    CoderResult result = decoder.decode(in, chars, true);
+    if (result.isUnderflow()) {
+      result = decoder.flush(chars);
+    }
+    if (!result.isUnderflow()) {
+      return new String(bytes, charset);
+    }
+    return new String(chars.array(), 0, chars.position());
+  }
+
+  @SuppressWarnings("deprecation")
+  byte[] encode(String value) {
+    if (value == null) {
+      return null;
+    }
+    int length = value.length();
+    if (singleByteLimit > 0 && isSingleByte(value, length)) {
+      byte[] bytes = new byte[length];
+      value.getBytes(0, length, bytes, 0);
+      return bytes;
+    }
+    Scratch scratch = SCRATCH.get();
+    CharsetEncoder encoder = scratch.encoder(charset);
+    ByteBuffer bytes = scratch.bytes((int) (length * (double) encoder.maxBytesPerChar()) + 1);
+    encoder.reset();
+    CoderResult result = encoder.encode(CharBuffer.wrap(value), bytes, true);
+    if (result.isUnderflow()) {
+      result = encoder.flush(bytes);
+    }
+    if (!result.isUnderflow()) {
+      return value.getBytes(charset);
+    }
+    byte[] encoded = new byte[bytes.position()];
+    System.arraycopy(bytes.array(), 0, encoded, 0, encoded.length);
+    return encoded;
+  }
+
+  private boolean isSingleByte(String value, int length) {
+    for (int index = 0; index < length; index++) {
+      if (value.charAt(index) > singleByteLimit) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Per thread coders and buffers, grown on demand. Very large values get a buffer that is not retained. */
+  private static final class Scratch {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAXIMUM_RETAINED_CAPACITY = 64 * 1024;
+
+    private Charset encoderCharset;
+    private CharsetEncoder encoder;
+    private Charset decoderCharset;
+    private CharsetDecoder decoder;
+    private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+    CharsetEncoder encoder(Charset charset) {
+      if (!charset.equals(encoderCharset)) {
+        encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        encoderCharset = charset;
+      }
+      return encoder;
+    }
+
+    CharsetDecoder decoder(Charset charset) {
+      if (!charset.equals(decoderCharset)) {
+        decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        decoderCharset = charset;
+      }
+      return decoder;
+    }
+
+    ByteBuffer bytes(int capacity) {
+      if (capacity > MAXIMUM_RETAINED_CAPACITY) {
+        return ByteBuffer.allocate(capacity);
+      }
+      if (bytes.capacity() < capacity) {
+        bytes = ByteBuffer.allocate(Math.min(MAXIMUM_RETAINED_CAPACITY, Math.max(capacity, bytes.capacity() * 2)));
+      }
+      bytes.clear();
+      return bytes;
+    }
+
+    CharBuffer chars(int capacity) {
+      if (capacity > MAXIMUM_RETAINED_CAPACITY) {
+        return CharBuffer.allocate(capacity);
+      }
+      if (chars.capacity() < capacity) {
+        chars = CharBuffer.allocate(Math.min(MAXIMUM_RETAINED_CAPACITY, Math.max(capacity, chars.capacity() * 2)));
+      }
+      chars.clear();
+      return chars;
+    }
+
+  }
+
+}
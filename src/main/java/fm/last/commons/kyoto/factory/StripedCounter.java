@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter that spreads updates over several cells, each on its own cache line, so that threads updating
+ * the counter concurrently rarely contend. Cells are chosen by thread id. Reading the sum is comparatively expensive.
+ */
+final class StripedCounter {
+
+  /** Longs per cell - 64 bytes, so that neighbouring cells do not share a cache line. */
+  static final int PADDING = 8;
+  static final int STRIPES = stripeCount(8);
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.addAndGet((stripe() & (STRIPES - 1)) * PADDING, delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      sum += cells.get(stripe * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * @return a stripe number for the current thread - callers mask it to their number of stripes.
+   */
+  static int stripe() {
+    return (int) Thread.currentThread().getId();
+  }
+
+  /**
+   * @return the smallest power of two that is at least the number of processors, but no greater than the given limit.
+   */
+  static int stripeCount(int maximum) {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int stripes = 1;
+    while (stripes < processors && stripes < maximum) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+
+}
@@ -0,0 +1,1040 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyLongVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableLongVisitor;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+
+/**
+ * A {@link KyotoDb} whose file can be replaced while it is in use, for datasets that are built offline and then
+ * deployed to running servers. {@link #swap(File, boolean)} opens the new file alongside the current one, optionally
+ * reads it into the page cache, switches calls to it and then closes the old file once the calls in progress on it
+ * have finished. Calls are never rejected during a swap and only the swapping thread waits.
+ * <p/>
+ * Writes and transactions throw {@link UnsupportedOperationException}: each call is routed to the file that is
+ * current when it is made, so a transaction could begin on one file and commit on another, and writes would be lost
+ * when their file is swapped out. Cursors and iterators are bound to the file that created them and fail once it has
+ * been swapped out and closed.
+ * 
+ * @see KyotoDbBuilder#swappable()
+ */
+public class SwappableKyotoDb implements KyotoDb {
+
+  /** Creates an unopened database over a file, configured like the original. */
+  interface DbFactory {
+    KyotoDb newDb(File file, ErrorListener errorListener);
+  }
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final DbFactory factory;
+  private final DbType dbType;
+  private final File initialFile;
+  private volatile Handle current;
+  private volatile String encoding;
+  private volatile ErrorListener errorListener;
+  private long swapCount;
+
+  SwappableKyotoDb(DbType dbType, File initialFile, DbFactory factory) {
+    this.dbType = dbType;
+    this.initialFile = initialFile;
+    this.factory = factory;
+  }
+
+  /**
+   * Replaces the current file with another, reading the new file into the page cache first.
+   * 
+   * @see #swap(File, boolean)
+   */
+  public void swap(File replacement) throws IOException {
+    swap(replacement, true);
+  }
+
+  /**
+   * Opens the replacement file, switches calls to it and closes the current file once the calls in progress on it have
+   * finished. If the replacement cannot be opened the current file stays in use.
+   * 
+   * @param replacement a database file of the same {@link DbType}.
+   * @param warm read the replacement sequentially before switching, so that the first reads of it do not go to disk.
+   * @throws IllegalStateException if the database is not open.
+   * @throws IOException if the replacement could not be opened, or the current file could not be closed.
+   */
+  public synchronized void swap(File replacement, boolean warm) throws IOException {
+    Handle previous = current;
+    if (previous == null) {
+      throw new IllegalStateException("Database is not open: " + this);
+    }
+    dbType.validateFileForType(replacement);
+    if (warm) {
+      long start = System.nanoTime();
+      long bytes = PageCacheWarmer.warm(replacement);
+      log.info("Read {} bytes of {} in {}ms", new Object[] { bytes, replacement,
+        (System.nanoTime() - start) / 1000000 });
+    }
+    current = openHandle(replacement);
+    swapCount++;
+    log.info("Swapped {} for {}", replacement, previous.file);
+    closeHandle(previous);
+  }
+
+  /**
+   * @return the number of completed swaps since this instance was created.
+   */
+  public synchronized long getSwapCount() {
+    return swapCount;
+  }
+
+  void setErrorListener(ErrorListener errorListener) {
+    this.errorListener = errorListener;
+  }
+
+  @Override
+  public synchronized void open() throws IOException {
+    if (current != null) {
+      throw new IllegalStateException("Connection already open: " + this);
+    }
+    current = openHandle(initialFile);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    Handle previous = current;
+    if (previous == null) {
+      throw new IOException("Connection already closed: " + this);
+    }
+    current = null;
+    closeHandle(previous);
+  }
+
+  /**
+   * @return the file currently in use - the initial file if the database is closed and has never been swapped.
+   */
+  @Override
+  public File getFile() {
+    Handle handle = current;
+    return handle == null ? initialFile : handle.file;
+  }
+
+  @Override
+  public DbType getType() {
+    return dbType;
+  }
+
+  @Override
+  public synchronized void setEncoding(String encoding) {
+    Charset.forName(encoding); // fails fast on an unsupported encoding
+    this.encoding = encoding;
+    Handle handle = current;
+    if (handle != null) {
+      handle.db.setEncoding(encoding);
+    }
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.exists(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public boolean exists(String key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.exists(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.valueSize(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public int valueSize(String key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.valueSize(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    if (accessType == AccessType.READ_WRITE) {
+      throw readOnly();
+    }
+    Handle handle = acquire();
+    try {
+      return handle.db.occupy(accessType, fileProcessor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      long limit) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(key, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(keys, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(key, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(keys, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyLongVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(keys, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyDoubleVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.accept(keys, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableLongVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableDoubleVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void append(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public void begin(Synchronization synchronization) {
+    throw readOnly();
+  }
+
+  @Override
+  public void clear() {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void copyTo(File destination) throws IOException {
+    Handle handle = acquire();
+    try {
+      handle.db.copyTo(destination);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long recordCount() {
+    Handle handle = acquire();
+    try {
+      return handle.db.recordCount();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    Handle handle = acquire();
+    try {
+      return handle.db.cursor();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    Handle handle = acquire();
+    try {
+      handle.db.dumpSnapshotTo(destination);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void commit() {
+    throw readOnly();
+  }
+
+  @Override
+  public void rollback() {
+    throw readOnly();
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.get(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    Handle handle = acquire();
+    try {
+      return handle.db.get(keys, atomicity);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    Handle handle = acquire();
+    try {
+      return handle.db.get(keys, atomicity);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public String get(String key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.get(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getOrDefault(key, defaultValue);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getOrDefault(key, defaultValue);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getDouble(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public double getDouble(String key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getDouble(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getLong(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long getLong(String key) {
+    Handle handle = acquire();
+    try {
+      return handle.db.getLong(key);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, double value) {
+    throw readOnly();
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, long value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterate(visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterate(visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterate(visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(ReadOnlyLongVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterate(visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(ReadOnlyDoubleVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterate(visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterate(WritableLongVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterate(WritableDoubleVisitor visitor) {
+    throw readOnly();
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterateParallel(visitor, parallelism);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    Handle handle = acquire();
+    try {
+      handle.db.iterateParallel(visitor, parallelism);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    Handle handle = acquire();
+    try {
+      return handle.db.entries();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    Handle handle = acquire();
+    try {
+      return handle.db.keys();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    Handle handle = acquire();
+    try {
+      return handle.db.values();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    Handle handle = acquire();
+    try {
+      return handle.db.partitionedEntries(maximumPartitions);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.scanRange(fromKey, toKey, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.scanRange(fromKey, toKey, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.scanRangeDescending(fromKey, toKey, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.scanRangeDescending(fromKey, toKey, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    Handle handle = acquire();
+    try {
+      return handle.db.countRange(fromKey, toKey);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    Handle handle = acquire();
+    try {
+      return handle.db.countRange(fromKey, toKey);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    throw readOnly();
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    throw readOnly();
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    throw readOnly();
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByPrefix(prefix, limit);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByPrefix(prefix);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.matchKeysByPrefix(prefix, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.matchKeysByPrefix(prefix, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByRegex(regex, limit);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    Handle handle = acquire();
+    try {
+      return handle.db.matchKeysByRegex(regex);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    Handle handle = acquire();
+    try {
+      handle.db.matchKeysByRegex(regex, visitor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean remove(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    throw readOnly();
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    throw readOnly();
+  }
+
+  @Override
+  public void set(String key, String value) {
+    throw readOnly();
+  }
+
+  @Override
+  public long sizeInBytes() {
+    Handle handle = acquire();
+    try {
+      return handle.db.sizeInBytes();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public Map<String, String> status() {
+    Handle handle = acquire();
+    try {
+      return handle.db.status();
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    Handle handle = acquire();
+    try {
+      handle.db.synchronize(synchronization, fileProcessor);
+    } finally {
+      handle.gate.exit();
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("SwappableKyotoDb [dbType=");
+    builder.append(dbType);
+    builder.append(", file=");
+    builder.append(getFile());
+    builder.append("]");
+    return builder.toString();
+  }
+
+  /**
+   * Enters the current handle. A handle is only closed after it has been replaced, so if entering fails the current
+   * handle is read again.
+   */
+  private Handle acquire() {
+    while (true) {
+      Handle handle = current;
+      if (handle == null) {
+        throw new IllegalStateException("Database is not open: " + this);
+      }
+      if (handle.gate.enter()) {
+        return handle;
+      }
+    }
+  }
+
+  private Handle openHandle(File file) throws IOException {
+    KyotoDb db = factory.newDb(file, errorListener);
+    String currentEncoding = encoding;
+    if (currentEncoding != null) {
+      db.setEncoding(currentEncoding);
+    }
+    db.open();
+    return new Handle(db, file);
+  }
+
+  /** Rejects new calls on the handle, waits for those in progress and then closes it. */
+  private static void closeHandle(Handle handle) throws IOException {
+    handle.gate.close();
+    handle.db.close();
+  }
+
+  private static final class Handle {
+
+    final KyotoDb db;
+    final File file;
+    final InFlightGate gate = new InFlightGate();
+
+    Handle(KyotoDb db, File file) {
+      this.db = db;
+      this.file = file;
+      gate.open();
+    }
+
+  }
+
+  private static UnsupportedOperationException readOnly() {
+    return new UnsupportedOperationException("Swappable databases do not support writes.");
+  }
+
+}
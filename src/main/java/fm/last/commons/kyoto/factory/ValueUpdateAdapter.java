@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.ValueUpdate;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * Adapts a primitive visitor to a {@link WritableVisitor}, passing itself as the {@link ValueUpdate} so that no object
+ * is allocated per record. Visits must not overlap, which holds for the single visiting thread of an iterate or accept
+ * call.
+ */
+abstract class ValueUpdateAdapter implements WritableVisitor, ValueUpdate {
+
+  private byte[] result;
+
+  abstract void visit(byte[] key, byte[] value);
+
+  abstract void visitEmpty(byte[] key);
+
+  @Override
+  public byte[] record(byte[] key, byte[] value) {
+    result = null;
+    visit(key, value);
+    return result();
+  }
+
+  @Override
+  public byte[] emptyRecord(byte[] key) {
+    result = null;
+    visitEmpty(key);
+    return result();
+  }
+
+  @Override
+  public void set(long value) {
+    result = Codec.fromLong(value);
+  }
+
+  @Override
+  public void set(double value) {
+    result = Codec.toBytes(value);
+  }
+
+  @Override
+  public void remove() {
+    result = WritableVisitor.REMOVE;
+  }
+
+  private byte[] result() {
+    byte[] update = result;
+    result = null;
+    return update == null ? WritableVisitor.NOP : update;
+  }
+
+}
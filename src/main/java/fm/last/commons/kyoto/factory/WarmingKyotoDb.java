@@ -0,0 +1,253 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.KyotoDb;
+
+/**
+ * A {@link KyotoDb} that warms itself up on a background thread each time it is opened, so that the first requests
+ * after a restart do not wait on cold pages. Either the database files are read sequentially into the page cache, or a
+ * recorded list of hot keys is replayed through {@link KyotoDb#getOrDefault(String, String)}. Both are rate limited so
+ * that the warmup does not starve the requests it is meant to speed up. The database can be used while it is warming.
+ * 
+ * @see KyotoDbBuilder#warmup(long, WarmupListener)
+ * @see KyotoDbBuilder#warmupKeys(File, long, WarmupListener)
+ */
+class WarmingKyotoDb extends ForwardingKyotoDb {
+
+  static final int KEY_PROGRESS_INTERVAL = 1000;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final ThreadFactory THREAD_FACTORY = new DaemonThreadFactory("kyoto-warmup");
+
+  /** The work done by the warmup thread. */
+  interface Warmup {
+    /**
+     * @return the number of bytes read or keys replayed.
+     */
+    long warm(KyotoDb db, WarmupListener listener) throws IOException;
+  }
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb delegate;
+  private final Warmup warmup;
+  private final WarmupListener listener;
+  private Thread thread;
+
+  WarmingKyotoDb(KyotoDb delegate, Warmup warmup, WarmupListener listener) {
+    this.delegate = delegate;
+    this.warmup = warmup;
+    this.listener = new GuardedListener(listener);
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  @Override
+  public synchronized void open() throws IOException {
+    delegate.open();
+    thread = THREAD_FACTORY.newThread(new Runnable() {
+      @Override
+      public void run() {
+        warm();
+      }
+    });
+    thread.start();
+  }
+
+  /**
+   * Stops a warmup that is still running and then closes the database.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (thread != null) {
+      thread.interrupt();
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while stopping the warmup of " + delegate);
+      }
+      thread = null;
+    }
+    delegate.close();
+  }
+
+  /**
+   * @return true while the warmup thread is running.
+   */
+  synchronized boolean isWarming() {
+    return thread != null && thread.isAlive();
+  }
+
+  private void warm() {
+    long start = System.nanoTime();
+    try {
+      long completed = warmup.warm(delegate, listener);
+      log.info("Warmed {} with {} in {}ms", new Object[] { delegate, completed,
+        (System.nanoTime() - start) / 1000000 });
+      listener.completed(completed);
+    } catch (Exception e) {
+      log.warn("Warmup of " + delegate + " stopped", e);
+      listener.failed(e);
+    }
+  }
+
+  /**
+   * Reads the database files into the page cache. Shards are read one after another within the same limit.
+   */
+  static final class FileWarmup implements Warmup {
+
+    private final long maximumBytesPerSecond;
+
+    FileWarmup(long maximumBytesPerSecond) {
+      this.maximumBytesPerSecond = maximumBytesPerSecond;
+    }
+
+    @Override
+    public long warm(KyotoDb db, WarmupListener listener) throws IOException {
+      List<File> files = files(db);
+      long total = 0;
+      for (File file : files) {
+        total += PageCacheWarmer.size(file);
+      }
+      Pacer pacer = new Pacer(maximumBytesPerSecond);
+      for (File file : files) {
+        PageCacheWarmer.warm(file, pacer, listener, total);
+      }
+      return pacer.completed();
+    }
+
+    private static List<File> files(KyotoDb db) {
+      if (!(db instanceof ShardedKyotoDb)) {
+        return Collections.singletonList(db.getFile());
+      }
+      List<File> files = new ArrayList<File>();
+      for (KyotoDb shard : ((ShardedKyotoDb) db).getShards()) {
+        files.add(shard.getFile());
+      }
+      return files;
+    }
+
+  }
+
+  /**
+   * Replays a UTF-8 text file of keys, one per line, through {@link KyotoDb#getOrDefault(String, String)} so that the
+   * pages holding them are faulted in. Blank lines are skipped.
+   */
+  static final class KeyWarmup implements Warmup {
+
+    private final File keyFile;
+    private final long maximumKeysPerSecond;
+
+    KeyWarmup(File keyFile, long maximumKeysPerSecond) {
+      this.keyFile = keyFile;
+      this.maximumKeysPerSecond = maximumKeysPerSecond;
+    }
+
+    @Override
+    public long warm(KyotoDb db, WarmupListener listener) throws IOException {
+      Pacer pacer = new Pacer(maximumKeysPerSecond);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(keyFile), UTF_8));
+      try {
+        String key;
+        while ((key = reader.readLine()) != null) {
+          if (key.length() == 0) {
+            continue;
+          }
+          if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Interrupted while replaying keys from " + keyFile);
+          }
+          db.getOrDefault(key, null);
+          pace(pacer);
+          if (pacer.completed() % KEY_PROGRESS_INTERVAL == 0) {
+            listener.progress(pacer.completed(), -1);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      return pacer.completed();
+    }
+
+    private void pace(Pacer pacer) throws InterruptedIOException {
+      try {
+        pacer.completed(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while replaying keys from " + keyFile);
+      }
+    }
+
+  }
+
+  /** Keeps a misbehaving listener from ending the warmup early. */
+  private final class GuardedListener implements WarmupListener {
+
+    private final WarmupListener listener;
+
+    GuardedListener(WarmupListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void progress(long completed, long total) {
+      try {
+        listener.progress(completed, total);
+      } catch (RuntimeException e) {
+        log.warn("Warmup listener failed", e);
+      }
+    }
+
+    @Override
+    public void completed(long completed) {
+      try {
+        listener.completed(completed);
+      } catch (RuntimeException e) {
+        log.warn("Warmup listener failed", e);
+      }
+    }
+
+    @Override
+    public void failed(Exception cause) {
+      try {
+        listener.failed(cause);
+      } catch (RuntimeException e) {
+        log.warn("Warmup listener failed", e);
+      }
+    }
+
+  }
+
+}
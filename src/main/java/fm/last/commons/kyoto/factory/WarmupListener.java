@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+/**
+ * Follows the warmup of a database after it is opened, for example to report a service as healthy only once its
+ * database is warm. Called on the warmup thread.
+ * 
+ * @see KyotoDbBuilder#warmup(long, WarmupListener)
+ * @see KyotoDbBuilder#warmupKeys(java.io.File, long, WarmupListener)
+ */
+public interface WarmupListener {
+
+  /**
+   * @param completed bytes read or keys replayed so far.
+   * @param total bytes to read, or -1 when replaying keys as their number is not known in advance.
+   */
+  void progress(long completed, long total);
+
+  /**
+   * @param completed bytes read or keys replayed in total.
+   */
+  void completed(long completed);
+
+  /** The warmup stopped early because of an error, or because the database was closed. */
+  void failed(Exception cause);
+
+}
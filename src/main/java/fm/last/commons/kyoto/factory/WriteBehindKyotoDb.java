@@ -0,0 +1,1002 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.MergeType;
+import fm.last.commons.kyoto.ReadOnlyCharSequenceVisitor;
+import fm.last.commons.kyoto.ReadOnlyStringVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.WritableStringVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+/**
+ * A {@link KyotoDb} that buffers {@link #set(byte[], byte[])} and {@link #remove(byte[])} calls, and their
+ * {@link String} equivalents, in memory and writes them in batches with {@link #set(byte[][], Atomicity)} and
+ * {@link #remove(byte[][], Atomicity)} on a background thread. Repeated writes to a key between flushes are collapsed
+ * so only the last is written. A batch is flushed when it holds a number of records or bytes, or when its oldest write
+ * has waited for a maximum delay. If batches are configured to be written in a transaction a batch is either written
+ * completely or not at all.
+ * <p/>
+ * Single key reads - {@link #get(byte[])}, {@link #exists(byte[])} and {@link #valueSize(byte[])} - see pending writes.
+ * All other operations flush pending writes first. Writers block while one batch is being flushed and another is full.
+ * If a flush fails its writes are returned to the buffer, unless they have since been overwritten, and retried after
+ * the maximum delay. While the buffer is full and the last flush failed, writes throw {@link KyotoException} rather
+ * than grow the buffer without bound. Writes are only buffered while the database is open, and are flushed by
+ * {@link #close()}.
+ * <p/>
+ * {@link #remove(byte[])} returns whether the record existed when it was called. Under concurrent writes to the same
+ * key this is less precise than an unbuffered remove.
+ * 
+ * @see KyotoDbBuilder#writeBehind(int, long, long, TimeUnit)
+ */
+public class WriteBehindKyotoDb extends ForwardingKyotoDb {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  /** Marks a pending remove. Compared by identity, so distinct from any empty value. */
+  private static final byte[] REMOVED = new byte[0];
+  /** Approximate heap used by a pending write in addition to its key and value. */
+  private static final int ENTRY_OVERHEAD = 64;
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private final KyotoDb delegate;
+  private final int maximumBatchRecords;
+  private final long maximumBatchBytes;
+  private final long maximumDelayNanoseconds;
+  private final Synchronization transactionSynchronization;
+  /** Guards the buffers and counters. */
+  private final Object lock = new Object();
+  /** Held while a batch is written, so that batches are written in order. */
+  private final Object flushMutex = new Object();
+  private Map<ByteArrayKey, byte[]> pending = new HashMap<ByteArrayKey, byte[]>();
+  private Map<ByteArrayKey, byte[]> flushing;
+  private long pendingBytes;
+  private long flushingBytes;
+  private long firstPendingNanoseconds;
+  private long flushedRecords;
+  private long failedFlushCount;
+  /** Why the last flush failed, or null if it succeeded. */
+  private RuntimeException flushFailure;
+  private boolean running;
+  private Thread flusher;
+  private final LatencyHistogram flushLatency = new LatencyHistogram();
+  private volatile StringCodec codec;
+
+  /**
+   * @param transactionSynchronization write each batch in a transaction with this synchronization, or null to write
+   *          batches without a transaction.
+   */
+  WriteBehindKyotoDb(KyotoDb delegate, int maximumBatchRecords, long maximumBatchBytes, long maximumDelay,
+      TimeUnit unit, Synchronization transactionSynchronization) {
+    this.delegate = delegate;
+    this.maximumBatchRecords = maximumBatchRecords;
+    this.maximumBatchBytes = maximumBatchBytes;
+    this.transactionSynchronization = transactionSynchronization;
+    maximumDelayNanoseconds = unit.toNanos(maximumDelay);
+    codec = new StringCodec(UTF_8);
+  }
+
+  @Override
+  protected KyotoDb delegate() {
+    return delegate;
+  }
+
+  public WriteBehindStatistics getWriteBehindStatistics() {
+    synchronized (lock) {
+      long records = pending.size();
+      if (flushing != null) {
+        records += flushing.size();
+      }
+      return new WriteBehindStatistics(records, pendingBytes + flushingBytes, flushedRecords, failedFlushCount,
+          new OperationStatistics(OperationType.SET_BULK, flushLatency.bucketCounts(), flushLatency
+              .totalNanoseconds(), failedFlushCount));
+    }
+  }
+
+  /**
+   * Writes all pending writes to the database now.
+   * 
+   * @throws KyotoException if the writes could not be made - they remain pending.
+   */
+  public void flush() {
+    synchronized (flushMutex) {
+      Map<ByteArrayKey, byte[]> batch;
+      synchronized (lock) {
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = pending;
+        flushing = batch;
+        flushingBytes = pendingBytes;
+        pending = new HashMap<ByteArrayKey, byte[]>();
+        pendingBytes = 0;
+        firstPendingNanoseconds = 0;
+      }
+      long start = System.nanoTime();
+      boolean written = false;
+      RuntimeException failure = null;
+      try {
+        write(batch);
+        written = true;
+      } catch (RuntimeException e) {
+        failure = e;
+        throw e;
+      } finally {
+        flushLatency.record(System.nanoTime() - start);
+        synchronized (lock) {
+          if (written) {
+            flushedRecords += batch.size();
+            flushFailure = null;
+          } else {
+            failedFlushCount++;
+            flushFailure = failure;
+            requeue(batch);
+          }
+          flushing = null;
+          flushingBytes = 0;
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void open() throws IOException {
+    delegate.open();
+    synchronized (lock) {
+      running = true;
+      flusher = new DaemonThreadFactory("kyoto-write-behind").newThread(new Flusher());
+      flusher.start();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    Thread stopping;
+    synchronized (lock) {
+      running = false;
+      stopping = flusher;
+      flusher = null;
+      lock.notifyAll();
+    }
+    if (stopping != null) {
+      try {
+        stopping.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      flush();
+    } finally {
+      delegate.close();
+    }
+  }
+
+  @Override
+  public void set(byte[] key, byte[] value) {
+    if (!buffer(key, value, true)) {
+      delegate.set(key, value);
+    }
+  }
+
+  @Override
+  public void set(String key, String value) {
+    if (!buffer(codec.encode(key), codec.encode(value), false)) {
+      delegate.set(key, value);
+    }
+  }
+
+  @Override
+  public boolean remove(byte[] key) {
+    if (!isRunning()) {
+      flush();
+      return delegate.remove(key);
+    }
+    byte[] buffered = lookup(key);
+    boolean existed = buffered == null ? delegate.exists(key) : buffered != REMOVED;
+    if (!buffer(key, REMOVED, true)) {
+      return delegate.remove(key);
+    }
+    return existed;
+  }
+
+  @Override
+  public boolean remove(String key) {
+    return remove(codec.encode(key));
+  }
+
+  @Override
+  public boolean removeIfPresent(byte[] key) {
+    if (!isRunning()) {
+      flush();
+      return delegate.removeIfPresent(key);
+    }
+    byte[] buffered = lookup(key);
+    boolean existed = buffered == null ? delegate.getOrDefault(key, null) != null : buffered != REMOVED;
+    if (!buffer(key, REMOVED, true)) {
+      return delegate.removeIfPresent(key);
+    }
+    return existed;
+  }
+
+  @Override
+  public boolean removeIfPresent(String key) {
+    return removeIfPresent(codec.encode(key));
+  }
+
+  @Override
+  public byte[] get(byte[] key) {
+    byte[] buffered = lookup(key);
+    if (buffered == null) {
+      return delegate.get(key);
+    }
+    return buffered == REMOVED ? null : buffered.clone();
+  }
+
+  @Override
+  public String get(String key) {
+    byte[] buffered = lookup(codec.encode(key));
+    if (buffered == null) {
+      return delegate.get(key);
+    }
+    return buffered == REMOVED ? null : codec.decode(buffered);
+  }
+
+  @Override
+  public byte[] getOrDefault(byte[] key, byte[] defaultValue) {
+    byte[] buffered = lookup(key);
+    if (buffered == null) {
+      return delegate.getOrDefault(key, defaultValue);
+    }
+    return buffered == REMOVED ? defaultValue : buffered.clone();
+  }
+
+  @Override
+  public String getOrDefault(String key, String defaultValue) {
+    byte[] buffered = lookup(codec.encode(key));
+    if (buffered == null) {
+      return delegate.getOrDefault(key, defaultValue);
+    }
+    return buffered == REMOVED ? defaultValue : codec.decode(buffered);
+  }
+
+  @Override
+  public boolean exists(byte[] key) {
+    byte[] buffered = lookup(key);
+    if (buffered == null) {
+      return delegate.exists(key);
+    }
+    return buffered != REMOVED;
+  }
+
+  @Override
+  public boolean exists(String key) {
+    return exists(codec.encode(key));
+  }
+
+  @Override
+  public int valueSize(byte[] key) {
+    byte[] buffered = lookup(key);
+    if (buffered == null) {
+      return delegate.valueSize(key);
+    }
+    return buffered == REMOVED ? -1 : buffered.length;
+  }
+
+  @Override
+  public int valueSize(String key) {
+    return valueSize(codec.encode(key));
+  }
+
+  @Override
+  public void setEncoding(String encoding) {
+    delegate.setEncoding(encoding);
+    codec = new StringCodec(Charset.forName(encoding));
+  }
+
+  @Override
+  public byte[] getAndRemove(byte[] key) {
+    flush();
+    return delegate.getAndRemove(key);
+  }
+
+  @Override
+  public String getAndRemove(String key) {
+    flush();
+    return delegate.getAndRemove(key);
+  }
+
+  @Override
+  public boolean occupy(AccessType accessType, KyotoFileProcessor fileProcessor) {
+    flush();
+    return delegate.occupy(accessType, fileProcessor);
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset) {
+    flush();
+    return delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset);
+  }
+
+  @Override
+  public List<String> matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset, long limit) {
+    flush();
+    return delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, limit);
+  }
+
+  @Override
+  public void accept(byte[] key, ReadOnlyVisitor visitor) {
+    flush();
+    delegate.accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, ReadOnlyVisitor visitor) {
+    flush();
+    delegate.accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(String key, ReadOnlyStringVisitor visitor) {
+    flush();
+    delegate.accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, ReadOnlyStringVisitor visitor) {
+    flush();
+    delegate.accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(byte[] key, WritableVisitor visitor) {
+    flush();
+    delegate.accept(key, visitor);
+  }
+
+  @Override
+  public void accept(byte[][] keys, WritableVisitor visitor) {
+    flush();
+    delegate.accept(keys, visitor);
+  }
+
+  @Override
+  public void accept(String key, WritableStringVisitor visitor) {
+    flush();
+    delegate.accept(key, visitor);
+  }
+
+  @Override
+  public void accept(List<String> keys, WritableStringVisitor visitor) {
+    flush();
+    delegate.accept(keys, visitor);
+  }
+
+  @Override
+  public boolean putIfAbsent(byte[] key, byte[] value) {
+    flush();
+    return delegate.putIfAbsent(key, value);
+  }
+
+  @Override
+  public boolean putIfAbsent(String key, String value) {
+    flush();
+    return delegate.putIfAbsent(key, value);
+  }
+
+  @Override
+  public void append(byte[] key, byte[] value) {
+    flush();
+    delegate.append(key, value);
+  }
+
+  @Override
+  public void append(String key, String value) {
+    flush();
+    delegate.append(key, value);
+  }
+
+  @Override
+  public void begin(Synchronization synchronization) {
+    flush();
+    delegate.begin(synchronization);
+  }
+
+  @Override
+  public void clear() {
+    flush();
+    delegate.clear();
+  }
+
+  @Override
+  public boolean compareAndSwap(byte[] key, byte[] oldValue, byte[] newValue) {
+    flush();
+    return delegate.compareAndSwap(key, oldValue, newValue);
+  }
+
+  @Override
+  public boolean compareAndSwap(String key, String oldValue, String newValue) {
+    flush();
+    return delegate.compareAndSwap(key, oldValue, newValue);
+  }
+
+  @Override
+  public void copyTo(File destination) throws IOException {
+    flush();
+    delegate.copyTo(destination);
+  }
+
+  @Override
+  public long recordCount() {
+    flush();
+    return delegate.recordCount();
+  }
+
+  @Override
+  public KyotoCursor cursor() {
+    flush();
+    return delegate.cursor();
+  }
+
+  @Override
+  public RecordIterator<byte[][]> entries() {
+    flush();
+    return delegate.entries();
+  }
+
+  @Override
+  public RecordIterator<byte[]> keys() {
+    flush();
+    return delegate.keys();
+  }
+
+  @Override
+  public RecordIterator<byte[]> values() {
+    flush();
+    return delegate.values();
+  }
+
+  @Override
+  public List<RecordIterator<byte[][]>> partitionedEntries(int maximumPartitions) {
+    flush();
+    return delegate.partitionedEntries(maximumPartitions);
+  }
+
+  @Override
+  public void scanRange(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    flush();
+    delegate.scanRange(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRange(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    flush();
+    delegate.scanRange(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRangeDescending(byte[] fromKey, byte[] toKey, ReadOnlyVisitor visitor) {
+    flush();
+    delegate.scanRangeDescending(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public void scanRangeDescending(String fromKey, String toKey, ReadOnlyStringVisitor visitor) {
+    flush();
+    delegate.scanRangeDescending(fromKey, toKey, visitor);
+  }
+
+  @Override
+  public long countRange(byte[] fromKey, byte[] toKey) {
+    flush();
+    return delegate.countRange(fromKey, toKey);
+  }
+
+  @Override
+  public long countRange(String fromKey, String toKey) {
+    flush();
+    return delegate.countRange(fromKey, toKey);
+  }
+
+  @Override
+  public long removeRange(byte[] fromKey, byte[] toKey) {
+    flush();
+    return delegate.removeRange(fromKey, toKey);
+  }
+
+  @Override
+  public long removeRange(String fromKey, String toKey) {
+    flush();
+    return delegate.removeRange(fromKey, toKey);
+  }
+
+  @Override
+  public void dumpSnapshotTo(File destination) throws IOException {
+    flush();
+    delegate.dumpSnapshotTo(destination);
+  }
+
+  @Override
+  public void commit() {
+    flush();
+    delegate.commit();
+  }
+
+  @Override
+  public void rollback() {
+    flush();
+    delegate.rollback();
+  }
+
+  @Override
+  public byte[][] get(byte[][] keys, Atomicity atomicity) {
+    flush();
+    return delegate.get(keys, atomicity);
+  }
+
+  @Override
+  public Map<String, String> get(List<String> keys, Atomicity atomicity) {
+    flush();
+    return delegate.get(keys, atomicity);
+  }
+
+  @Override
+  public double getDouble(byte[] key) {
+    flush();
+    return delegate.getDouble(key);
+  }
+
+  @Override
+  public double getDouble(String key) {
+    flush();
+    return delegate.getDouble(key);
+  }
+
+  @Override
+  public long getLong(byte[] key) {
+    flush();
+    return delegate.getLong(key);
+  }
+
+  @Override
+  public long getLong(String key) {
+    flush();
+    return delegate.getLong(key);
+  }
+
+  @Override
+  public double increment(byte[] key, double delta) {
+    flush();
+    return delegate.increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, double value) {
+    flush();
+    delegate.set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(byte[] key, double delta, double defaultValue) {
+    flush();
+    return delegate.incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(byte[] key, long delta) {
+    flush();
+    return delegate.increment(key, delta);
+  }
+
+  @Override
+  public void set(byte[] key, long value) {
+    flush();
+    delegate.set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(byte[] key, long delta, long defaultValue) {
+    flush();
+    return delegate.incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public double increment(String key, double delta) {
+    flush();
+    return delegate.increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, double value) {
+    flush();
+    delegate.set(key, value);
+  }
+
+  @Override
+  public double incrementWithDefault(String key, double delta, double defaultValue) {
+    flush();
+    return delegate.incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public long increment(String key, long delta) {
+    flush();
+    return delegate.increment(key, delta);
+  }
+
+  @Override
+  public void set(String key, long value) {
+    flush();
+    delegate.set(key, value);
+  }
+
+  @Override
+  public long incrementWithDefault(String key, long delta, long defaultValue) {
+    flush();
+    return delegate.incrementWithDefault(key, delta, defaultValue);
+  }
+
+  @Override
+  public void iterate(ReadOnlyVisitor visitor) {
+    flush();
+    delegate.iterate(visitor);
+  }
+
+  @Override
+  public void iterate(ReadOnlyStringVisitor visitor) {
+    flush();
+    delegate.iterate(visitor);
+  }
+
+  @Override
+  public void iterate(ReadOnlyCharSequenceVisitor visitor) {
+    flush();
+    delegate.iterate(visitor);
+  }
+
+  @Override
+  public void iterate(WritableVisitor visitor) {
+    flush();
+    delegate.iterate(visitor);
+  }
+
+  @Override
+  public void iterate(WritableStringVisitor visitor) {
+    flush();
+    delegate.iterate(visitor);
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyVisitor visitor, int parallelism) {
+    flush();
+    delegate.iterateParallel(visitor, parallelism);
+  }
+
+  @Override
+  public void iterateParallel(ReadOnlyStringVisitor visitor, int parallelism) {
+    flush();
+    delegate.iterateParallel(visitor, parallelism);
+  }
+
+  @Override
+  public void loadSnapshotFrom(File source) throws IOException {
+    flush();
+    delegate.loadSnapshotFrom(source);
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix, long limit) {
+    flush();
+    return delegate.matchKeysByPrefix(prefix, limit);
+  }
+
+  @Override
+  public List<String> matchKeysByPrefix(String prefix) {
+    flush();
+    return delegate.matchKeysByPrefix(prefix);
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex, long limit) {
+    flush();
+    return delegate.matchKeysByRegex(regex, limit);
+  }
+
+  @Override
+  public List<String> matchKeysByRegex(String regex) {
+    flush();
+    return delegate.matchKeysByRegex(regex);
+  }
+
+  @Override
+  public void matchKeysByPrefix(byte[] prefix, KeyVisitor visitor) {
+    flush();
+    delegate.matchKeysByPrefix(prefix, visitor);
+  }
+
+  @Override
+  public void matchKeysByPrefix(String prefix, KeyStringVisitor visitor) {
+    flush();
+    delegate.matchKeysByPrefix(prefix, visitor);
+  }
+
+  @Override
+  public void matchKeysByRegex(String regex, KeyStringVisitor visitor) {
+    flush();
+    delegate.matchKeysByRegex(regex, visitor);
+  }
+
+  @Override
+  public void matchKeysByLevenshtein(String query, long maxLevenshteinDistance, Charset keyCharset,
+      KeyStringVisitor visitor) {
+    flush();
+    delegate.matchKeysByLevenshtein(query, maxLevenshteinDistance, keyCharset, visitor);
+  }
+
+  @Override
+  public void mergeWith(MergeType mergeType, KyotoDb... dbs) {
+    flush();
+    delegate.mergeWith(mergeType, dbs);
+  }
+
+  @Override
+  public long remove(byte[][] keys, Atomicity atomicity) {
+    flush();
+    return delegate.remove(keys, atomicity);
+  }
+
+  @Override
+  public long remove(List<String> keys, Atomicity atomicity) {
+    flush();
+    return delegate.remove(keys, atomicity);
+  }
+
+  @Override
+  public boolean replace(byte[] key, byte[] newValue) {
+    flush();
+    return delegate.replace(key, newValue);
+  }
+
+  @Override
+  public boolean replace(String key, String newValue) {
+    flush();
+    return delegate.replace(key, newValue);
+  }
+
+  @Override
+  public long set(byte[][] keyValues, Atomicity atomicity) {
+    flush();
+    return delegate.set(keyValues, atomicity);
+  }
+
+  @Override
+  public long set(Map<String, String> keyValues, Atomicity atomicity) {
+    flush();
+    return delegate.set(keyValues, atomicity);
+  }
+
+  @Override
+  public long sizeInBytes() {
+    flush();
+    return delegate.sizeInBytes();
+  }
+
+  @Override
+  public Map<String, String> status() {
+    flush();
+    return delegate.status();
+  }
+
+  @Override
+  public void synchronize(Synchronization synchronization, KyotoFileProcessor fileProcessor) {
+    flush();
+    delegate.synchronize(synchronization, fileProcessor);
+  }
+
+  /**
+   * @return false if writes are not being buffered and so must be made directly.
+   */
+  private boolean buffer(byte[] key, byte[] value, boolean copy) {
+    ByteArrayKey bufferedKey = new ByteArrayKey(copy ? key.clone() : key);
+    byte[] bufferedValue = value == REMOVED || !copy ? value : value.clone();
+    synchronized (lock) {
+      while (running && flushing != null && isFull()) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new KyotoException("Interrupted while waiting for pending writes to be flushed.", e);
+        }
+      }
+      if (!running) {
+        return false;
+      }
+      if (flushFailure != null && isFull()) {
+        // Nothing is being flushed to wait for - the flusher is pausing before it retries
+        throw new KyotoException("Pending writes are full and could not be flushed to " + delegate, flushFailure);
+      }
+      byte[] previous = pending.put(bufferedKey, bufferedValue);
+      if (previous == null) {
+        pendingBytes += key.length + ENTRY_OVERHEAD;
+        if (pending.size() == 1) {
+          firstPendingNanoseconds = System.nanoTime();
+          lock.notifyAll();
+        }
+      } else {
+        pendingBytes -= previous.length;
+      }
+      pendingBytes += bufferedValue.length;
+      if (isFull()) {
+        lock.notifyAll();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * @return the pending value, {@link #REMOVED} for a pending remove, or null if there is no pending write.
+   */
+  private byte[] lookup(byte[] key) {
+    ByteArrayKey bufferedKey = new ByteArrayKey(key);
+    synchronized (lock) {
+      byte[] value = pending.get(bufferedKey);
+      if (value == null && flushing != null) {
+        value = flushing.get(bufferedKey);
+      }
+      return value;
+    }
+  }
+
+  private boolean isRunning() {
+    synchronized (lock) {
+      return running;
+    }
+  }
+
+  private boolean isFull() {
+    return pending.size() >= maximumBatchRecords || pendingBytes >= maximumBatchBytes;
+  }
+
+  private boolean isFlushDue() {
+    return !pending.isEmpty() && (isFull() || System.nanoTime() - firstPendingNanoseconds >= maximumDelayNanoseconds);
+  }
+
+  private void write(Map<ByteArrayKey, byte[]> batch) {
+    List<byte[]> keyValues = new ArrayList<byte[]>(batch.size() * 2);
+    List<byte[]> removedKeys = new ArrayList<byte[]>();
+    for (Map.Entry<ByteArrayKey, byte[]> entry : batch.entrySet()) {
+      if (entry.getValue() == REMOVED) {
+        removedKeys.add(entry.getKey().bytes());
+      } else {
+        keyValues.add(entry.getKey().bytes());
+        keyValues.add(entry.getValue());
+      }
+    }
+    if (transactionSynchronization != null) {
+      delegate.begin(transactionSynchronization);
+    }
+    boolean written = false;
+    try {
+      if (!keyValues.isEmpty()) {
+        delegate.set(keyValues.toArray(new byte[keyValues.size()][]), Atomicity.NONE);
+      }
+      if (!removedKeys.isEmpty()) {
+        delegate.remove(removedKeys.toArray(new byte[removedKeys.size()][]), Atomicity.NONE);
+      }
+      if (transactionSynchronization != null) {
+        delegate.commit();
+      }
+      written = true;
+    } finally {
+      if (transactionSynchronization != null && !written) {
+        try {
+          delegate.rollback();
+        } catch (RuntimeException e) {
+          log.warn("Could not roll back failed write-behind batch.", e);
+        }
+      }
+    }
+  }
+
+  /** Called with the lock held. Returns a failed batch to the buffer without overwriting newer writes. */
+  private void requeue(Map<ByteArrayKey, byte[]> batch) {
+    for (Map.Entry<ByteArrayKey, byte[]> entry : batch.entrySet()) {
+      if (!pending.containsKey(entry.getKey())) {
+        pending.put(entry.getKey(), entry.getValue());
+        pendingBytes += entry.getKey().length() + entry.getValue().length + ENTRY_OVERHEAD;
+      }
+    }
+    firstPendingNanoseconds = System.nanoTime();
+  }
+
+  private class Flusher implements Runnable {
+
+    @Override
+    public void run() {
+      while (true) {
+        synchronized (lock) {
+          try {
+            while (running && !isFlushDue()) {
+              lock.wait(waitMilliseconds());
+            }
+          } catch (InterruptedException e) {
+            return;
+          }
+          if (!running) {
+            return;
+          }
+        }
+        try {
+          flush();
+        } catch (RuntimeException e) {
+          log.error("Could not flush pending writes to " + delegate + ", will retry.", e);
+          if (!pauseAfterFailure()) {
+            return;
+          }
+        }
+      }
+    }
+
+    /** Called with the lock held. */
+    private long waitMilliseconds() {
+      if (pending.isEmpty()) {
+        return 0;
+      }
+      long remaining = maximumDelayNanoseconds - (System.nanoTime() - firstPendingNanoseconds);
+      return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining));
+    }
+
+    private boolean pauseAfterFailure() {
+      long until = System.nanoTime() + Math.max(maximumDelayNanoseconds, TimeUnit.MILLISECONDS.toNanos(1));
+      synchronized (lock) {
+        try {
+          long remaining;
+          while (running && (remaining = until - System.nanoTime()) > 0) {
+            lock.wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+          }
+        } catch (InterruptedException e) {
+          return false;
+        }
+        return running;
+      }
+    }
+
+  }
+
+}
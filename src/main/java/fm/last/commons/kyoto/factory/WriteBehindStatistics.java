@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the state of the write buffer of a {@link WriteBehindKyotoDb}.
+ */
+public final class WriteBehindStatistics {
+
+  private final long pendingRecords;
+  private final long pendingBytes;
+  private final long flushedRecords;
+  private final long failedFlushCount;
+  private final OperationStatistics flushes;
+
+  WriteBehindStatistics(long pendingRecords, long pendingBytes, long flushedRecords, long failedFlushCount,
+      OperationStatistics flushes) {
+    this.pendingRecords = pendingRecords;
+    this.pendingBytes = pendingBytes;
+    this.flushedRecords = flushedRecords;
+    this.failedFlushCount = failedFlushCount;
+    this.flushes = flushes;
+  }
+
+  /**
+   * @return the number of keys with writes that have not yet been flushed, including any being flushed now.
+   */
+  public long pendingRecords() {
+    return pendingRecords;
+  }
+
+  /**
+   * @return the combined size of the keys and values waiting to be flushed.
+   */
+  public long pendingBytes() {
+    return pendingBytes;
+  }
+
+  /**
+   * @return the number of batches written to the database, including those that failed.
+   */
+  public long flushCount() {
+    return flushes.count();
+  }
+
+  /**
+   * @return the number of keys written to the database - repeated writes to a key between flushes count once.
+   */
+  public long flushedRecords() {
+    return flushedRecords;
+  }
+
+  public long failedFlushCount() {
+    return failedFlushCount;
+  }
+
+  public double meanFlushLatency(TimeUnit unit) {
+    return flushes.meanLatency(unit);
+  }
+
+  /**
+   * @see OperationStatistics#latencyPercentile(double, TimeUnit)
+   */
+  public double flushLatencyPercentile(double percentile, TimeUnit unit) {
+    return flushes.latencyPercentile(percentile, unit);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("WriteBehindStatistics [pendingRecords=");
+    builder.append(pendingRecords);
+    builder.append(", pendingBytes=");
+    builder.append(pendingBytes);
+    builder.append(", flushCount=");
+    builder.append(flushCount());
+    builder.append(", flushedRecords=");
+    builder.append(flushedRecords);
+    builder.append(", failedFlushCount=");
+    builder.append(failedFlushCount);
+    builder.append("]");
+    return builder.toString();
+  }
+
+}
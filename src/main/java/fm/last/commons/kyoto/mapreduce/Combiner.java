@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.mapreduce;
+
+import fm.last.commons.kyoto.KyotoException;
+
+/**
+ * Pre-aggregates {@link Mapper} output before it is written to temporary storage, for example summing the counts of
+ * a word count job. A combiner may be called any number of times for a key, including not at all, and its output may
+ * be combined again - so it must write pairs in the same form as the {@link Mapper} and the operation must be
+ * associative and commutative. A combiner should only write pairs for the key that it was given.
+ */
+public interface Combiner {
+
+  /**
+   * Combine map output values.
+   * 
+   * @param key specifies the key.
+   * @param values the values written for the key since it was last combined.
+   * @param context a collector to capture the combined output.
+   * @throws KyotoException on failure.
+   */
+  void combine(byte[] key, Iterable<byte[]> values, Context context);
+
+}
@@ -25,6 +25,18 @@ public interface Job {
 
   Reducer getReducer();
 
+  /**
+   * @return the {@link Combiner} applied to map output, or {@code null} if map output is not combined.
+   */
+  Combiner getCombiner();
+
+  /**
+   * Sets a {@link Combiner} to apply to map output before it is written to temporary storage.
+   * 
+   * @param combiner the combiner, or {@code null} to write map output as is.
+   */
+  void setCombiner(Combiner combiner);
+
   File getTemporaryDbFolder();
 
   void setTemporaryDbFolder(File folder);
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+public class CodecOffsetTest {
+
+  @Test
+  public void longAtOffsetMatchesWholeArray() {
+    byte[] bytes = new byte[11];
+    Codec.putLong(0x0102030405060708L, bytes, 3);
+    assertThat(copy(bytes, 3, 8), is(Codec.fromLong(0x0102030405060708L)));
+    assertThat(Codec.toLong(bytes, 3), is(0x0102030405060708L));
+  }
+
+  @Test
+  public void doubleAtOffsetMatchesWholeArray() {
+    byte[] bytes = new byte[18];
+    Codec.putDouble(-1.1d, bytes, 2);
+    assertThat(copy(bytes, 2, 16), is(Codec.toBytes(-1.1d)));
+    assertThat(Codec.toDouble(bytes, 2), is(Codec.toDouble(Codec.toBytes(-1.1d))));
+  }
+
+  @Test
+  public void intAndShort() {
+    byte[] bytes = new byte[6];
+    Codec.putInt(-123456789, bytes, 0);
+    Codec.putShort((short) -1234, bytes, 4);
+    assertThat(copy(bytes, 0, 4), is(ByteBuffer.allocate(4).putInt(-123456789).array()));
+    assertThat(Codec.toInt(bytes, 0), is(-123456789));
+    assertThat(Codec.toShort(bytes, 4), is((short) -1234));
+  }
+
+  @Test
+  public void byteBufferIsBigEndianWhateverItsOrder() {
+    ByteBuffer buffer = ByteBuffer.allocate(30).order(ByteOrder.LITTLE_ENDIAN);
+    Codec.putLong(42L, buffer);
+    Codec.putInt(7, buffer);
+    Codec.putShort((short) 3, buffer);
+    Codec.putDouble(10.0001d, buffer);
+    assertThat(buffer.position(), is(30));
+
+    byte[] bytes = buffer.array();
+    assertThat(Codec.toLong(bytes, 0), is(42L));
+    assertThat(Codec.toInt(bytes, 8), is(7));
+    assertThat(Codec.toShort(bytes, 12), is((short) 3));
+    assertThat(copy(bytes, 14, 16), is(Codec.toBytes(10.0001d)));
+
+    buffer.flip();
+    assertThat(Codec.toLong(buffer), is(42L));
+    assertThat(Codec.toInt(buffer), is(7));
+    assertThat(Codec.toShort(buffer), is((short) 3));
+    assertThat(Codec.toDouble(buffer), is(Codec.toDouble(Codec.toBytes(10.0001d))));
+    assertThat(buffer.remaining(), is(0));
+  }
+
+  private static byte[] copy(byte[] bytes, int offset, int length) {
+    byte[] copy = new byte[length];
+    System.arraycopy(bytes, offset, copy, 0, length);
+    return copy;
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class CodecOrderedTest {
+
+  private static final long[] LONGS = { Long.MIN_VALUE, -1000L, -1L, 0L, 1L, 255L, 256L, Long.MAX_VALUE };
+  private static final int[] INTS = { Integer.MIN_VALUE, -70000, -1, 0, 1, 70000, Integer.MAX_VALUE };
+  private static final double[] DOUBLES = { Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.5d, -Double.MIN_VALUE,
+      -0.0d, 0.0d, Double.MIN_VALUE, 1.0d, 1.5d, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN };
+
+  @Test
+  public void longsSortLexically() {
+    byte[] previous = null;
+    for (long value : LONGS) {
+      byte[] bytes = new byte[8];
+      Codec.putOrderedLong(value, bytes, 0);
+      assertThat(Codec.toOrderedLong(bytes, 0), is(value));
+      assertThat(Codec.toOrderedLong(ByteBuffer.wrap(bytes)), is(value));
+      assertSorted(previous, bytes);
+      previous = bytes;
+    }
+  }
+
+  @Test
+  public void intsSortLexically() {
+    byte[] previous = null;
+    for (int value : INTS) {
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      Codec.putOrderedInt(value, buffer);
+      byte[] bytes = buffer.array();
+      assertThat(Codec.toOrderedInt(bytes, 0), is(value));
+      assertSorted(previous, bytes);
+      previous = bytes;
+    }
+  }
+
+  @Test
+  public void doublesSortLexically() {
+    byte[] previous = null;
+    for (double value : DOUBLES) {
+      byte[] bytes = new byte[8];
+      Codec.putOrderedDouble(value, bytes, 0);
+      assertThat(Double.doubleToRawLongBits(Codec.toOrderedDouble(bytes, 0)), is(Double.doubleToLongBits(value)));
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      Codec.putOrderedDouble(value, buffer);
+      assertThat(buffer.array(), is(bytes));
+      assertSorted(previous, bytes);
+      previous = bytes;
+    }
+  }
+
+  @Test
+  public void compositeKeysSortByEachPartInTurn() {
+    byte[] a = compositeKey(-1, 5L);
+    byte[] b = compositeKey(-1, 6L);
+    byte[] c = compositeKey(0, Long.MIN_VALUE);
+    assertSorted(a, b);
+    assertSorted(b, c);
+  }
+
+  private static byte[] compositeKey(int first, long second) {
+    byte[] key = new byte[12];
+    Codec.putOrderedInt(first, key, 0);
+    Codec.putOrderedLong(second, key, 4);
+    return key;
+  }
+
+  private static void assertSorted(byte[] previous, byte[] next) {
+    if (previous != null) {
+      assertTrue(compareUnsigned(previous, next) < 0);
+    }
+  }
+
+  private static int compareUnsigned(byte[] a, byte[] b) {
+    for (int index = 0; index < Math.min(a.length, b.length); index++) {
+      int difference = (a[index] & 0xFF) - (b[index] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return a.length - b.length;
+  }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class CodecToLongTest {
+
+  private static final long[] VALUES = { 0L, 1L, -1L, 255L, 256L, Long.MAX_VALUE, Long.MIN_VALUE, 0x0102030405060708L };
+
+  @Test
+  public void matchesBigEndianByteBuffer() {
+    for (long value : VALUES) {
+      byte[] expected = ByteBuffer.allocate(8).putLong(value).array();
+      assertThat(Codec.fromLong(value), is(expected));
+      assertThat(Codec.toLong(expected), is(value));
+    }
+  }
+
+  @Test
+  public void trailingBytesAreIgnored() {
+    byte[] bytes = new byte[] { 0, 0, 0, 0, 0, 0, 1, 2, 3 };
+    assertThat(Codec.toLong(bytes), is(258L));
+  }
+
+  @Test(expected = BufferUnderflowException.class)
+  public void tooFewBytes() {
+    Codec.toLong(new byte[7]);
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class CodecVarLongTest {
+
+  private static final long[] VALUES = { 0L, 1L, 127L, 128L, 300L, 16383L, 16384L, Integer.MAX_VALUE, Long.MAX_VALUE,
+      -1L, Long.MIN_VALUE };
+
+  @Test
+  public void roundTrip() {
+    byte[] bytes = new byte[12];
+    for (long value : VALUES) {
+      int size = Codec.putVarLong(value, bytes, 1);
+      assertThat(size, is(Codec.varLongSize(value)));
+      assertThat(Codec.toVarLong(bytes, 1), is(value));
+    }
+  }
+
+  @Test
+  public void sizes() {
+    assertThat(Codec.varLongSize(0L), is(1));
+    assertThat(Codec.varLongSize(127L), is(1));
+    assertThat(Codec.varLongSize(128L), is(2));
+    assertThat(Codec.varLongSize(Long.MAX_VALUE), is(9));
+    assertThat(Codec.varLongSize(-1L), is(10));
+  }
+
+  @Test
+  public void knownEncoding() {
+    byte[] bytes = new byte[2];
+    Codec.putVarLong(300L, bytes, 0);
+    assertThat(bytes, is(new byte[] { (byte) 0xAC, 0x02 }));
+  }
+
+  @Test
+  public void byteBufferSequence() {
+    ByteBuffer buffer = ByteBuffer.allocate(64);
+    for (long value : VALUES) {
+      Codec.putVarLong(value, buffer);
+    }
+    buffer.flip();
+    for (long value : VALUES) {
+      assertThat(Codec.toVarLong(buffer), is(value));
+    }
+    assertThat(buffer.remaining(), is(0));
+  }
+
+  @Test
+  public void zigZag() {
+    assertThat(Codec.encodeZigZag(0L), is(0L));
+    assertThat(Codec.encodeZigZag(-1L), is(1L));
+    assertThat(Codec.encodeZigZag(1L), is(2L));
+    assertThat(Codec.encodeZigZag(-2L), is(3L));
+    assertThat(Codec.encodeZigZag(Long.MIN_VALUE), is(-1L));
+    for (long value : VALUES) {
+      assertThat(Codec.decodeZigZag(Codec.encodeZigZag(value)), is(value));
+    }
+    assertThat(Codec.varLongSize(Codec.encodeZigZag(-1L)), is(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void malformed() {
+    byte[] bytes = new byte[11];
+    Arrays.fill(bytes, (byte) 0x80);
+    Codec.toVarLong(bytes, 0);
+  }
+
+}
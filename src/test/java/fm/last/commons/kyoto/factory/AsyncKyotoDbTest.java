@@ -0,0 +1,214 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.factory.AsyncKyotoDb.Backpressure;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AsyncKyotoDbTest {
+
+  @Mock
+  private KyotoDb mockDb;
+
+  private AsyncKyotoDb asyncDb;
+
+  @Before
+  public void setup() {
+    asyncDb = new AsyncKyotoDb(mockDb, 2, 4, Backpressure.REJECT);
+  }
+
+  @After
+  public void teardown() {
+    asyncDb.close();
+  }
+
+  @Test
+  public void get() throws Exception {
+    when(mockDb.get("key")).thenReturn("value");
+    assertThat(asyncDb.get("key").get(1, TimeUnit.SECONDS), is("value"));
+  }
+
+  @Test
+  public void set() throws Exception {
+    assertThat(asyncDb.set("key", "value").get(1, TimeUnit.SECONDS), is(nullValue()));
+    verify(mockDb).set("key", "value");
+  }
+
+  @Test
+  public void callbackReceivesResult() throws Exception {
+    when(mockDb.increment("counter", 2L)).thenReturn(5L);
+    final CountDownLatch called = new CountDownLatch(1);
+    final AtomicReference<Long> result = new AtomicReference<Long>();
+
+    asyncDb.increment("counter", 2L).addCallback(new KyotoCallback<Long>() {
+      @Override
+      public void onSuccess(Long value) {
+        result.set(value);
+        called.countDown();
+      }
+
+      @Override
+      public void onFailure(Throwable cause) {
+        fail();
+      }
+    });
+
+    assertThat(called.await(1, TimeUnit.SECONDS), is(true));
+    assertThat(result.get(), is(5L));
+  }
+
+  @Test
+  public void callbackReceivesFailure() throws Exception {
+    final KyotoException failure = new KyotoException("broken");
+    when(mockDb.remove("key")).thenThrow(failure);
+    KyotoFuture<Boolean> future = asyncDb.remove("key");
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() == failure, is(true));
+    }
+
+    final AtomicReference<Throwable> cause = new AtomicReference<Throwable>();
+    future.addCallback(new KyotoCallback<Boolean>() {
+      @Override
+      public void onSuccess(Boolean result) {
+        fail();
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        cause.set(throwable);
+      }
+    });
+    assertThat(cause.get() == failure, is(true));
+  }
+
+  @Test
+  public void callbackAddedBeforeDoneRunsOnCallingThread() throws Exception {
+    final Thread caller = Thread.currentThread();
+    final AtomicReference<Thread> notified = new AtomicReference<Thread>();
+    final KyotoCallback<String> callback = new KyotoCallback<String>() {
+      @Override
+      public void onSuccess(String result) {
+        assertThat(notified.getAndSet(Thread.currentThread()), is(nullValue()));
+      }
+
+      @Override
+      public void onFailure(Throwable throwable) {
+        fail();
+      }
+    };
+    // The task is complete when done() runs, which is the window in which get() has already returned to other threads
+    KyotoFuture<String> future = new KyotoFuture<String>(new Callable<String>() {
+      @Override
+      public String call() {
+        return "value";
+      }
+    }) {
+      @Override
+      protected void done() {
+        addCallback(callback);
+        assertThat(notified.get() == caller, is(true));
+        super.done();
+      }
+    };
+    future.run();
+    assertThat(notified.get() == caller, is(true));
+  }
+
+  @Test
+  public void rejectsWhenFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Callable<Void> blocked = new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        release.await();
+        return null;
+      }
+    };
+    for (int i = 0; i < 4; i++) {
+      asyncDb.submit(blocked);
+    }
+    assertThat(asyncDb.getPendingCount(), is(4));
+    try {
+      asyncDb.get("key");
+      fail();
+    } catch (RejectedExecutionException e) {
+    }
+
+    release.countDown();
+    asyncDb.close();
+    assertThat(asyncDb.getPendingCount(), is(0));
+  }
+
+  @Test
+  public void blocksWhenFull() throws Exception {
+    asyncDb.close();
+    asyncDb = new AsyncKyotoDb(mockDb, 1, 1, Backpressure.BLOCK);
+    final CountDownLatch release = new CountDownLatch(1);
+    asyncDb.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        release.await();
+        return null;
+      }
+    });
+    final CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter = new Thread() {
+      @Override
+      public void run() {
+        asyncDb.get("key");
+        submitted.countDown();
+      }
+    };
+    submitter.start();
+
+    assertThat(submitted.await(100, TimeUnit.MILLISECONDS), is(false));
+    release.countDown();
+    assertThat(submitted.await(1, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void rejectsWhenClosed() {
+    asyncDb.close();
+    asyncDb.get("key");
+  }
+
+}
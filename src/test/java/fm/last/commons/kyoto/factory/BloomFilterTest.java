@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void addedKeysAreAlwaysFound() {
+    BloomFilter filter = BloomFilter.create(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add(bytes("key" + i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      assertThat(filter.mightContain(bytes("key" + i)), is(true));
+    }
+  }
+
+  @Test
+  public void falsePositiveRateIsNearTarget() {
+    BloomFilter filter = BloomFilter.create(10000, 0.01);
+    for (int i = 0; i < 10000; i++) {
+      filter.add(bytes("key" + i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 100000; i++) {
+      if (filter.mightContain(bytes("absent" + i))) {
+        falsePositives++;
+      }
+    }
+    assertThat("false positives: " + falsePositives, falsePositives < 2000, is(true));
+    assertThat(filter.expectedFalsePositiveProbability() < 0.02, is(true));
+  }
+
+  @Test
+  public void addReportsNewKeys() {
+    BloomFilter filter = BloomFilter.create(1000, 0.01);
+    assertThat(filter.add(bytes("key")), is(true));
+    assertThat(filter.add(bytes("key")), is(false));
+  }
+
+  @Test
+  public void emptyAndShortKeys() {
+    BloomFilter filter = BloomFilter.create(1000, 0.01);
+    filter.add(new byte[0]);
+    filter.add(new byte[] { 1 });
+    assertThat(filter.mightContain(new byte[0]), is(true));
+    assertThat(filter.mightContain(new byte[] { 1 }), is(true));
+  }
+
+  @Test
+  public void hashDependsOnEveryByte() {
+    byte[] key = bytes("a longer key spanning several words");
+    long hash = BloomFilter.hash(key);
+    for (int index = 0; index < key.length; index++) {
+      byte[] changed = key.clone();
+      changed[index]++;
+      assertThat(BloomFilter.hash(changed) == hash, is(false));
+    }
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    BloomFilter filter = BloomFilter.create(1000, 0.01);
+    filter.add(bytes("key"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    filter.writeTo(new DataOutputStream(bytes));
+
+    BloomFilter read = BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertThat(read.mightContain(bytes("key")), is(true));
+    assertThat(read.capacity(), is(1000L));
+    assertThat(read.sizeInBytes(), is(filter.sizeInBytes()));
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsCorruptInput() throws IOException {
+    BloomFilter.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] { -1, -1, -1, -1, 0, 0, 0, 0, 0, 0,
+      0, 0, 0, 0, 0, 0 })));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BloomFilteredKyotoDbTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] EXISTING = bytes("existing");
+  private static final byte[] ABSENT = bytes("absent");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock
+  private KyotoDb mockDelegate;
+  @Mock
+  private RecordIterator<byte[]> mockKeys;
+
+  private File file;
+  private BloomFilteredKyotoDb filteredDb;
+
+  @Before
+  public void setup() throws IOException {
+    file = new File(folder.getRoot(), "test.kch");
+    when(mockDelegate.getFile()).thenReturn(file);
+    when(mockDelegate.recordCount()).thenReturn(1L);
+    when(mockDelegate.sizeInBytes()).thenReturn(4096L);
+    when(mockDelegate.get(EXISTING)).thenReturn(bytes("value"));
+    when(mockDelegate.exists(EXISTING)).thenReturn(true);
+    when(mockDelegate.keys()).thenReturn(mockKeys);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ((ReadOnlyVisitor) invocation.getArguments()[0]).record(EXISTING, bytes("value"));
+        return null;
+      }
+    }).when(mockDelegate).iterate(any(ReadOnlyVisitor.class));
+    filteredDb = new BloomFilteredKyotoDb(mockDelegate, 0.001);
+    filteredDb.open();
+  }
+
+  @Test
+  public void filterIsBuiltByIteratingOnOpen() {
+    verify(mockDelegate).iterate(any(ReadOnlyVisitor.class));
+    assertThat(filteredDb.get(EXISTING), is(bytes("value")));
+    assertThat(filteredDb.exists(EXISTING), is(true));
+  }
+
+  @Test
+  public void absentKeysDoNotReachTheDatabase() {
+    assertThat(filteredDb.get(ABSENT), is(nullValue()));
+    assertThat(filteredDb.get("absent"), is(nullValue()));
+    assertThat(filteredDb.exists(ABSENT), is(false));
+    assertThat(filteredDb.valueSize(ABSENT), is(-1));
+    assertThat(filteredDb.remove(ABSENT), is(false));
+    verify(mockDelegate, never()).get(ABSENT);
+    verify(mockDelegate, never()).exists(ABSENT);
+    verify(mockDelegate, never()).valueSize(ABSENT);
+    verify(mockDelegate, never()).remove(ABSENT);
+    assertThat(filteredDb.getShortCircuitedLookupCount(), is(5L));
+  }
+
+  @Test
+  public void absentKeysReturnDefaultsWithoutReachingTheDatabase() {
+    byte[] fallback = bytes("default");
+    assertThat(filteredDb.getOrDefault(ABSENT, fallback), is(fallback));
+    assertThat(filteredDb.getOrDefault("absent", "default"), is("default"));
+    assertThat(filteredDb.removeIfPresent(ABSENT), is(false));
+    verify(mockDelegate, never()).getOrDefault(ABSENT, fallback);
+    verify(mockDelegate, never()).removeIfPresent(ABSENT);
+  }
+
+  @Test
+  public void writtenKeysAreFound() {
+    filteredDb.set(ABSENT, bytes("value"));
+    filteredDb.get(ABSENT);
+    filteredDb.set("counter", 1L);
+    filteredDb.get("counter");
+    verify(mockDelegate).get(ABSENT);
+    verify(mockDelegate).get("counter");
+  }
+
+  @Test
+  public void bulkWrittenKeysAreFound() {
+    filteredDb.set(new byte[][] { ABSENT, bytes("value") }, Atomicity.NONE);
+    filteredDb.exists(ABSENT);
+    verify(mockDelegate).exists(ABSENT);
+  }
+
+  @Test
+  public void bulkGetOnlyRequestsPossibleKeys() {
+    when(mockDelegate.get(any(byte[][].class), any(Atomicity.class))).thenReturn(new byte[0][]);
+    filteredDb.get(new byte[][] { EXISTING, ABSENT }, Atomicity.NONE);
+    verify(mockDelegate).get(new byte[][] { EXISTING }, Atomicity.NONE);
+
+    assertThat(filteredDb.get(new byte[][] { ABSENT }, Atomicity.NONE).length, is(0));
+    verify(mockDelegate, times(1)).get(any(byte[][].class), any(Atomicity.class));
+  }
+
+  @Test
+  public void sidecarIsWrittenOnCloseAndReadOnOpen() throws IOException {
+    filteredDb.set(ABSENT, bytes("value"));
+    filteredDb.close();
+    File sidecar = new File(file.getPath() + BloomFilteredKyotoDb.SIDECAR_SUFFIX);
+    assertThat(sidecar.isFile(), is(true));
+
+    filteredDb.open();
+    verify(mockDelegate, times(1)).iterate(any(ReadOnlyVisitor.class));
+    assertThat(sidecar.exists(), is(false));
+    filteredDb.get(ABSENT);
+    verify(mockDelegate).get(ABSENT);
+  }
+
+  @Test
+  public void staleSidecarIsIgnored() throws IOException {
+    filteredDb.close();
+    when(mockDelegate.recordCount()).thenReturn(2L);
+    filteredDb.open();
+    verify(mockDelegate, times(2)).iterate(any(ReadOnlyVisitor.class));
+  }
+
+  @Test
+  public void clearEmptiesTheFilter() {
+    filteredDb.clear();
+    assertThat(filteredDb.get(EXISTING), is(nullValue()));
+    verify(mockDelegate).clear();
+  }
+
+  @Test
+  public void filterGrowsWhenFull() throws Exception {
+    when(mockKeys.hasNext()).thenReturn(true, false);
+    when(mockKeys.next()).thenReturn(EXISTING);
+    for (int i = 0; i <= BloomFilteredKyotoDb.MINIMUM_CAPACITY; i++) {
+      filteredDb.set(bytes("key" + i), bytes("value"));
+    }
+    filteredDb.close();
+    verify(mockDelegate).keys();
+    verify(mockKeys).close();
+  }
+
+  @Test
+  public void keysOfMergedDatabasesAreFound() {
+    when(mockKeys.hasNext()).thenReturn(true, true, false);
+    when(mockKeys.next()).thenReturn(EXISTING, ABSENT);
+    filteredDb.mergeWith(null, new KyotoDb[0]);
+    filteredDb.get(ABSENT);
+    verify(mockDelegate).get(ABSENT);
+    assertThat(Arrays.equals(filteredDb.get(EXISTING), bytes("value")), is(true));
+  }
+
+  @Test
+  public void keysWrittenDuringRebuildAreFound() throws Exception {
+    final CountDownLatch iterating = new CountDownLatch(1);
+    final CountDownLatch written = new CountDownLatch(1);
+    when(mockDelegate.get(any(byte[].class))).thenReturn(bytes("value"));
+    when(mockKeys.hasNext()).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+        iterating.countDown();
+        written.await();
+        return false;
+      }
+    });
+    Thread rebuilder = new Thread() {
+      @Override
+      public void run() {
+        filteredDb.mergeWith(null, new KyotoDb[0]);
+      }
+    };
+    rebuilder.start();
+    iterating.await();
+
+    // Stay below the filter capacity so no growth rebuild runs against the mocked keys
+    final int keyCount = (int) BloomFilteredKyotoDb.MINIMUM_CAPACITY / 2;
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; i < keyCount; i++) {
+          filteredDb.set(bytes("key" + i), bytes("value"));
+          if (i == keyCount / 4) {
+            written.countDown();
+          }
+        }
+      }
+    };
+    writer.start();
+    writer.join();
+    rebuilder.join();
+
+    for (int i = 0; i < keyCount; i++) {
+      assertThat(Arrays.equals(filteredDb.get(bytes("key" + i)), bytes("value")), is(true));
+    }
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+}
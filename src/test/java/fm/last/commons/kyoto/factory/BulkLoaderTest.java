@@ -0,0 +1,204 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.Synchronization;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BulkLoaderTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Mock
+  private KyotoDb mockDb;
+  @Mock
+  private BulkLoader.ProgressListener mockListener;
+
+  private final List<String> writtenKeys = new ArrayList<String>();
+  private final List<String> writtenValues = new ArrayList<String>();
+  private BulkLoader loader;
+
+  @Before
+  public void setup() {
+    doAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) {
+        byte[][] keyValues = (byte[][]) invocation.getArguments()[0];
+        for (int index = 0; index < keyValues.length; index += 2) {
+          writtenKeys.add(new String(keyValues[index], UTF_8));
+          writtenValues.add(new String(keyValues[index + 1], UTF_8));
+        }
+        return (long) keyValues.length / 2;
+      }
+    }).when(mockDb).set(any(byte[][].class), eq(Atomicity.NONE));
+    loader = new BulkLoader(mockDb);
+    loader.setTemporaryFolder(folder.getRoot());
+  }
+
+  @Test
+  public void recordsAreWrittenInKeyOrder() throws IOException {
+    loader.add("c", "3");
+    loader.add("a", "1");
+    loader.add("b", "2");
+
+    assertThat(loader.load(), is(3L));
+    assertThat(writtenKeys, is(Arrays.asList("a", "b", "c")));
+    assertThat(writtenValues, is(Arrays.asList("1", "2", "3")));
+  }
+
+  @Test
+  public void spilledRunsAreMerged() throws IOException {
+    loader.setBufferSize(1000);
+    loader.setCompressRuns(true);
+    List<String> keys = new ArrayList<String>();
+    for (int i = 0; i < 5000; i++) {
+      keys.add(String.format("key%05d", i));
+    }
+    List<String> shuffled = new ArrayList<String>(keys);
+    Collections.shuffle(shuffled, new Random(1));
+    for (String key : shuffled) {
+      loader.add(key, "value");
+    }
+
+    assertThat(loader.load(), is(5000L));
+    assertThat(writtenKeys, is(keys));
+    assertThat(folder.getRoot().list().length, is(0));
+  }
+
+  @Test
+  public void lastValueOfRepeatedKeyIsWritten() throws IOException {
+    loader.setBufferSize(200);
+    for (int i = 0; i < 20; i++) {
+      loader.add("key", "value" + i);
+    }
+
+    assertThat(loader.load(), is(1L));
+    assertThat(writtenValues, is(Arrays.asList("value19")));
+  }
+
+  @Test
+  public void decimalOrder() throws IOException {
+    loader = new BulkLoader(mockDb, PageComparator.DECIMAL);
+    loader.add("10", "");
+    loader.add("9", "");
+    loader.add("-1", "");
+    loader.add("9.5", "");
+    loader.load();
+
+    assertThat(writtenKeys, is(Arrays.asList("-1", "9", "9.5", "10")));
+  }
+
+  @Test
+  public void recordsAreWrittenInTransactionsAndSynchronized() throws IOException {
+    loader.setTransactionSize(BulkLoader.WRITE_BATCH_SIZE);
+    loader.setProgressListener(mockListener);
+    for (int i = 0; i < BulkLoader.WRITE_BATCH_SIZE + 1; i++) {
+      loader.add("key" + i, "value");
+    }
+    loader.load();
+
+    InOrder inOrder = inOrder(mockDb, mockListener);
+    inOrder.verify(mockDb).begin(Synchronization.LOGICAL);
+    inOrder.verify(mockDb).set(any(byte[][].class), eq(Atomicity.NONE));
+    inOrder.verify(mockDb).commit();
+    inOrder.verify(mockListener).progress(BulkLoader.WRITE_BATCH_SIZE, BulkLoader.WRITE_BATCH_SIZE + 1);
+    inOrder.verify(mockDb).begin(Synchronization.LOGICAL);
+    inOrder.verify(mockDb).set(any(byte[][].class), eq(Atomicity.NONE));
+    inOrder.verify(mockDb).commit();
+    inOrder.verify(mockListener).progress(BulkLoader.WRITE_BATCH_SIZE + 1, BulkLoader.WRITE_BATCH_SIZE + 1);
+    inOrder.verify(mockDb).synchronize(eq(Synchronization.PHYSICAL), (KyotoFileProcessor) isNull());
+  }
+
+  @Test
+  public void transactionsCanBeDisabled() throws IOException {
+    loader.setTransactionSize(0);
+    loader.add("key", "value");
+    loader.load();
+
+    verify(mockDb, never()).begin(any(Synchronization.class));
+    verify(mockDb, never()).commit();
+  }
+
+  @Test
+  public void failedWriteRollsBack() throws IOException {
+    doThrow(new KyotoException("failed")).when(mockDb).set(any(byte[][].class), eq(Atomicity.NONE));
+    loader.setBufferSize(100);
+    loader.add("key1", "value");
+    loader.add("key2", "value");
+    try {
+      loader.load();
+    } catch (KyotoException e) {
+    }
+    verify(mockDb).rollback();
+    verify(mockDb, never()).commit();
+    assertThat(folder.getRoot().list().length, is(0));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotAddAfterLoad() throws IOException {
+    loader.load();
+    loader.add("key", "value");
+  }
+
+  @Test
+  public void closeDeletesSpilledRuns() throws IOException {
+    loader.setBufferSize(1);
+    loader.add("key", "value");
+    assertThat(folder.getRoot().list().length, is(1));
+    loader.close();
+    assertThat(folder.getRoot().list().length, is(0));
+    verify(mockDb, times(0)).set(any(byte[][].class), eq(Atomicity.NONE));
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CachingKyotoDbTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] KEY = bytes("key");
+  private static final byte[] VALUE = bytes("value");
+
+  @Mock
+  private KyotoDb mockDelegate;
+  @Mock
+  private KyotoCursor mockCursor;
+
+  private CachingKyotoDb cachingDb;
+
+  @Before
+  public void setup() {
+    cachingDb = new CachingKyotoDb(mockDelegate, 100, 10000);
+    when(mockDelegate.get(KEY)).thenReturn(VALUE);
+  }
+
+  @Test
+  public void repeatedGetIsServedFromCache() {
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    verify(mockDelegate, times(1)).get(KEY);
+    CacheStatistics statistics = cachingDb.getCacheStatistics();
+    assertThat(statistics.hitCount(), is(1L));
+    assertThat(statistics.missCount(), is(1L));
+    assertThat(statistics.entryCount(), is(1L));
+  }
+
+  @Test
+  public void getOrDefaultFillsCacheOnHitOnly() {
+    byte[] absent = bytes("absent");
+    byte[] fallback = bytes("default");
+    when(mockDelegate.getOrDefault(KEY, null)).thenReturn(VALUE);
+    assertThat(cachingDb.getOrDefault(KEY, fallback), is(VALUE));
+    assertThat(cachingDb.getOrDefault(KEY, fallback), is(VALUE));
+    assertThat(cachingDb.getOrDefault(absent, fallback), is(fallback));
+    assertThat(cachingDb.getOrDefault(absent, null), is(nullValue()));
+    verify(mockDelegate, times(1)).getOrDefault(KEY, null);
+    verify(mockDelegate, times(2)).getOrDefault(absent, null);
+    assertThat(cachingDb.getCacheStatistics().entryCount(), is(1L));
+  }
+
+  @Test
+  public void removeIfPresentInvalidates() {
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    cachingDb.removeIfPresent(KEY);
+    cachingDb.get(KEY);
+    verify(mockDelegate, times(2)).get(KEY);
+  }
+
+  @Test
+  public void cachedValuesAreNotSharedWithCallers() {
+    cachingDb.get(KEY);
+    cachingDb.get(KEY)[0] = 'X';
+    assertThat(cachingDb.get(KEY), is(bytes("value")));
+  }
+
+  @Test
+  public void missesAreNotCached() {
+    assertThat(cachingDb.get(bytes("absent")), is(nullValue()));
+    assertThat(cachingDb.get(bytes("absent")), is(nullValue()));
+    verify(mockDelegate, times(2)).get(bytes("absent"));
+  }
+
+  @Test
+  public void stringGetSharesCacheWithByteGet() {
+    assertThat(cachingDb.get("key"), is("value"));
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    verify(mockDelegate, times(1)).get(KEY);
+  }
+
+  @Test
+  public void setInvalidates() {
+    cachingDb.get(KEY);
+    cachingDb.set(KEY, bytes("new"));
+    when(mockDelegate.get(KEY)).thenReturn(bytes("new"));
+    assertThat(cachingDb.get(KEY), is(bytes("new")));
+    verify(mockDelegate).set(KEY, bytes("new"));
+  }
+
+  @Test
+  public void stringRemoveInvalidates() {
+    cachingDb.get(KEY);
+    cachingDb.remove("key");
+    when(mockDelegate.get(KEY)).thenReturn(null);
+    assertThat(cachingDb.get(KEY), is(nullValue()));
+  }
+
+  @Test
+  public void incrementInvalidates() {
+    cachingDb.get(KEY);
+    cachingDb.increment(KEY, 1L);
+    cachingDb.get(KEY);
+    verify(mockDelegate, times(2)).get(KEY);
+  }
+
+  @Test
+  public void cursorWriteInvalidatesAll() {
+    when(mockDelegate.cursor()).thenReturn(mockCursor);
+    cachingDb.get(KEY);
+    cachingDb.cursor().setValue(bytes("new"), CursorStep.NEXT_RECORD);
+    cachingDb.get(KEY);
+    verify(mockDelegate, times(2)).get(KEY);
+    verify(mockCursor).setValue(bytes("new"), CursorStep.NEXT_RECORD);
+  }
+
+  @Test
+  public void clearInvalidatesAll() {
+    cachingDb.get(KEY);
+    cachingDb.clear();
+    assertThat(cachingDb.getCacheStatistics().entryCount(), is(0L));
+  }
+
+  @Test
+  public void removeRangeInvalidates() {
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    when(mockDelegate.removeRange(bytes("a"), bytes("z"))).thenReturn(1L);
+    when(mockDelegate.get(KEY)).thenReturn(null);
+
+    assertThat(cachingDb.removeRange(bytes("a"), bytes("z")), is(1L));
+    assertThat(cachingDb.get(KEY), is(nullValue()));
+    verify(mockDelegate, times(2)).get(KEY);
+  }
+
+  @Test
+  public void removeRangeOfStringsInvalidates() {
+    assertThat(cachingDb.get(KEY), is(VALUE));
+    when(mockDelegate.get(KEY)).thenReturn(null);
+
+    cachingDb.removeRange("a", "z");
+    assertThat(cachingDb.get(KEY), is(nullValue()));
+    assertThat(cachingDb.getCacheStatistics().missCount(), is(2L));
+  }
+
+  @Test
+  public void existsAnsweredFromCache() {
+    cachingDb.get(KEY);
+    assertThat(cachingDb.exists(KEY), is(true));
+    assertThat(cachingDb.valueSize(KEY), is(VALUE.length));
+    verify(mockDelegate, times(0)).exists(KEY);
+    verify(mockDelegate, times(0)).valueSize(KEY);
+  }
+
+  @Test
+  public void bulkGetOnlyFetchesMisses() {
+    byte[] otherKey = bytes("other");
+    cachingDb.get(KEY);
+    when(mockDelegate.get(new byte[][] { otherKey }, Atomicity.NONE)).thenReturn(
+        new byte[][] { otherKey, bytes("otherValue") });
+
+    byte[][] result = cachingDb.get(new byte[][] { KEY, otherKey }, Atomicity.NONE);
+
+    assertThat(result.length, is(4));
+    assertThat(result[1], is(VALUE));
+    assertThat(result[3], is(bytes("otherValue")));
+    assertThat(cachingDb.get(otherKey), is(bytes("otherValue")));
+    verify(mockDelegate, times(0)).get(otherKey);
+  }
+
+  @Test
+  public void atomicBulkGetBypassesCache() {
+    cachingDb.get(KEY);
+    cachingDb.get(Arrays.asList("key"), Atomicity.ATOMIC);
+    verify(mockDelegate).get(Arrays.asList("key"), Atomicity.ATOMIC);
+  }
+
+  @Test
+  public void stringBulkGetServedFromCache() {
+    cachingDb.get(KEY);
+    Map<String, String> result = cachingDb.get(Arrays.asList("key"), Atomicity.NONE);
+    assertThat(result.get("key"), is("value"));
+  }
+
+  @Test
+  public void frequentlyReadEntriesAreNotEvictedByScans() {
+    ReadCache cache = new ReadCache(2, 1000);
+    ByteArrayKey hot = new ByteArrayKey(bytes("hot"));
+    for (int i = 0; i < 5; i++) {
+      cache.get(hot);
+    }
+    cache.put(hot, VALUE, cache.invalidationToken(hot));
+    for (int i = 0; i < 10; i++) {
+      ByteArrayKey cold = new ByteArrayKey(bytes("cold" + i));
+      cache.get(cold);
+      cache.put(cold, VALUE, cache.invalidationToken(cold));
+    }
+    assertThat(cache.get(hot), is(VALUE));
+    assertThat(cache.statistics().entryCount(), is(2L));
+  }
+
+  @Test
+  public void staleValueIsNotCachedAfterInvalidation() {
+    ReadCache cache = new ReadCache(10, 1000);
+    ByteArrayKey key = new ByteArrayKey(KEY);
+    long token = cache.invalidationToken(key);
+    cache.invalidate(key);
+    cache.put(key, VALUE, token);
+    assertThat(cache.get(key), is(nullValue()));
+  }
+
+  @Test
+  public void entriesLargerThanTheCacheAreRejected() {
+    ReadCache cache = new ReadCache(10, 4);
+    ByteArrayKey key = new ByteArrayKey(KEY);
+    cache.put(key, VALUE, cache.invalidationToken(key));
+    assertThat(cache.get(key), is(nullValue()));
+    assertThat(cache.statistics().rejectionCount(), is(1L));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import fm.last.commons.kyoto.mapreduce.Combiner;
+import fm.last.commons.kyoto.mapreduce.Context;
+
+public class CombiningBufferTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private List<String> output;
+  private Context outputContext;
+  private Combiner concatenatingCombiner;
+
+  @Before
+  public void setup() {
+    output = new ArrayList<String>();
+    outputContext = new Context() {
+      @Override
+      public void write(byte[] key, byte[] value) {
+        output.add(new String(key, UTF_8) + "=" + new String(value, UTF_8));
+      }
+    };
+    concatenatingCombiner = new Combiner() {
+      @Override
+      public void combine(byte[] key, Iterable<byte[]> values, Context context) {
+        StringBuilder combined = new StringBuilder();
+        for (byte[] value : values) {
+          combined.append(new String(value, UTF_8));
+        }
+        context.write(key, combined.toString().getBytes(UTF_8));
+      }
+    };
+  }
+
+  @Test
+  public void holdsOutputUntilFlushed() {
+    CombiningBuffer buffer = new CombiningBuffer(concatenatingCombiner, 1024 * 1024, outputContext);
+    write(buffer, "a", "1");
+    write(buffer, "b", "2");
+    write(buffer, "a", "3");
+    assertThat(output.isEmpty(), is(true));
+
+    buffer.flush();
+
+    assertThat(output.size(), is(2));
+    assertThat(output.contains("a=13"), is(true));
+    assertThat(output.contains("b=2"), is(true));
+  }
+
+  @Test
+  public void flushesWhenFull() {
+    CombiningBuffer buffer = new CombiningBuffer(concatenatingCombiner, 1, outputContext);
+    write(buffer, "a", "1");
+    write(buffer, "a", "2");
+
+    assertThat(output, is(Arrays.asList("a=1", "a=2")));
+  }
+
+  @Test
+  public void copiesReusedArrays() {
+    CombiningBuffer buffer = new CombiningBuffer(concatenatingCombiner, 1024 * 1024, outputContext);
+    byte[] key = "a".getBytes(UTF_8);
+    byte[] value = "1".getBytes(UTF_8);
+    buffer.write(key, value);
+    key[0] = 'b';
+    value[0] = '2';
+    buffer.write(key, value);
+
+    buffer.flush();
+
+    assertThat(output.size(), is(2));
+    assertThat(output.contains("a=1"), is(true));
+    assertThat(output.contains("b=2"), is(true));
+  }
+
+  @Test
+  public void combinesSortedRuns() {
+    List<byte[][]> pairs = new ArrayList<byte[][]>();
+    pairs.add(pair("a", "1"));
+    pairs.add(pair("a", "2"));
+    pairs.add(pair("b", "3"));
+    pairs.add(pair("c", "4"));
+    pairs.add(pair("c", "5"));
+
+    List<byte[][]> combined = CombiningBuffer.combineSorted(pairs, concatenatingCombiner);
+
+    assertThat(combined.size(), is(3));
+    assertThat(new String(combined.get(0)[1], UTF_8), is("12"));
+    assertThat(new String(combined.get(1)[1], UTF_8), is("3"));
+    assertThat(new String(combined.get(2)[1], UTF_8), is("45"));
+  }
+
+  private static void write(Context context, String key, String value) {
+    context.write(key.getBytes(UTF_8), value.getBytes(UTF_8));
+  }
+
+  private static byte[][] pair(String key, String value) {
+    return new byte[][] { key.getBytes(UTF_8), value.getBytes(UTF_8) };
+  }
+
+}
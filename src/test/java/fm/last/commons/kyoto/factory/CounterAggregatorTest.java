@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.WritableVisitor;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CounterAggregatorTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+  @Mock
+  private KyotoDb mockDb;
+
+  private final Map<String, byte[]> records = new HashMap<String, byte[]>();
+  private CounterAggregator aggregator;
+
+  @Before
+  public void setup() {
+    applyVisitorsToRecords();
+    aggregator = new CounterAggregator(mockDb, 1000, 1, TimeUnit.HOURS);
+  }
+
+  private void applyVisitorsToRecords() {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        byte[][] keys = (byte[][]) invocation.getArguments()[0];
+        WritableVisitor visitor = (WritableVisitor) invocation.getArguments()[1];
+        for (byte[] key : keys) {
+          String name = new String(key, UTF_8);
+          byte[] value = records.get(name);
+          records.put(name, value == null ? visitor.emptyRecord(key) : visitor.record(key, value));
+        }
+        return null;
+      }
+    }).when(mockDb).accept(any(byte[][].class), any(WritableVisitor.class));
+  }
+
+  @After
+  public void teardown() {
+    aggregator.close();
+  }
+
+  @Test
+  public void incrementsOfAKeyAreAppliedOnce() {
+    for (int i = 0; i < 1000; i++) {
+      aggregator.increment("key", 1L);
+    }
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("key")), is(1000L));
+    verify(mockDb, times(1)).accept(any(byte[][].class), any(WritableVisitor.class));
+    assertThat(aggregator.getFlushedKeyCount(), is(1L));
+  }
+
+  @Test
+  public void existingCountersAreIncremented() {
+    records.put("key", Codec.fromLong(5L));
+    aggregator.increment("key", 3L);
+    aggregator.increment("key".getBytes(UTF_8), -1L);
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("key")), is(7L));
+  }
+
+  @Test
+  public void doubleIncrements() {
+    records.put("key", Codec.toBytes(1.5d));
+    aggregator.increment("key", 0.25d);
+    aggregator.increment("key", 0.25d);
+    aggregator.increment("other", 2.5d);
+    aggregator.flush();
+
+    assertThat(Codec.toDouble(records.get("key")), is(2.0d));
+    assertThat(Codec.toDouble(records.get("other")), is(2.5d));
+  }
+
+  @Test
+  public void stringKeysUseTheDatabaseEncoding() {
+    aggregator.setEncoding("UTF-16");
+    aggregator.increment("key", 1L);
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get(new String("key".getBytes(UTF_16), UTF_8))), is(1L));
+  }
+
+  @Test
+  public void emptyFlushDoesNotTouchDatabase() {
+    aggregator.flush();
+    verify(mockDb, times(0)).accept(any(byte[][].class), any(WritableVisitor.class));
+  }
+
+  @Test
+  public void idleKeysAreDropped() {
+    aggregator.increment("key", 1L);
+    aggregator.flush();
+    assertThat(aggregator.getKeyCount(), is(1));
+    aggregator.flush();
+    assertThat(aggregator.getKeyCount(), is(0));
+    aggregator.increment("key", 1L);
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("key")), is(2L));
+  }
+
+  @Test
+  public void concurrentIncrementsAreNotLost() throws InterruptedException {
+    final int threads = 8;
+    final int increments = 20000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int thread = 0; thread < threads; thread++) {
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < increments; i++) {
+            aggregator.increment("hot", 1L);
+            aggregator.increment("key" + (i % 100), 1L);
+            if (i % 5000 == 0) {
+              aggregator.flush();
+            }
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("hot")), is((long) threads * increments));
+    long total = 0;
+    for (int i = 0; i < 100; i++) {
+      total += Codec.toLong(records.get("key" + i));
+    }
+    assertThat(total, is((long) threads * increments));
+  }
+
+  @Test
+  public void leastRecentlyIncrementedKeysAreFlushedEarly() {
+    aggregator.close();
+    aggregator = new CounterAggregator(mockDb, 8, 1, TimeUnit.HOURS);
+    for (int i = 0; i < 8; i++) {
+      aggregator.increment("cold" + i, 1L);
+    }
+    aggregator.flush();
+    aggregator.increment("hot", 1L);
+
+    assertThat(aggregator.getKeyCount() <= 8, is(true));
+    assertThat(Codec.toLong(records.get("cold0")), is(1L));
+    aggregator.flush();
+    assertThat(Codec.toLong(records.get("hot")), is(1L));
+  }
+
+  @Test
+  public void incrementsAreKeptWhenFlushFails() {
+    doThrow(new KyotoException("failed")).when(mockDb).accept(any(byte[][].class), any(WritableVisitor.class));
+    aggregator.increment("key", 2L);
+    try {
+      aggregator.flush();
+      fail();
+    } catch (KyotoException e) {
+    }
+    assertThat(aggregator.getKeyCount(), is(1));
+    applyVisitorsToRecords();
+    aggregator.increment("key", 1L);
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("key")), is(3L));
+  }
+
+  @Test
+  public void incrementsAreKeptWhenEvictionFails() {
+    aggregator.close();
+    aggregator = new CounterAggregator(mockDb, 4, 1, TimeUnit.HOURS);
+    aggregator.increment("long0", 1L);
+    aggregator.increment("double0", 0.5d);
+    aggregator.increment("double1", 0.5d);
+    aggregator.increment("double2", 0.5d);
+    doThrow(new KyotoException("failed")).when(mockDb).accept(any(byte[][].class), any(WritableVisitor.class));
+    try {
+      // Evicts the long counter and at least one of the double counters
+      aggregator.increment("double3", 0.5d);
+      fail();
+    } catch (KyotoException e) {
+    }
+    applyVisitorsToRecords();
+    aggregator.flush();
+
+    assertThat(Codec.toLong(records.get("long0")), is(1L));
+    assertThat(Codec.toDouble(records.get("double0")), is(0.5d));
+    assertThat(Codec.toDouble(records.get("double1")), is(0.5d));
+    assertThat(Codec.toDouble(records.get("double2")), is(0.5d));
+  }
+
+  @Test(expected = KyotoException.class)
+  public void incompatibleRecordsAreReported() {
+    records.put("key", "text".getBytes(UTF_8));
+    aggregator.increment("key", 1L);
+    aggregator.flush();
+  }
+
+  @Test
+  public void closeFlushes() {
+    aggregator.increment("key", 1L);
+    aggregator.close();
+    assertThat(Codec.toLong(records.get("key")), is(1L));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void cannotIncrementWhenClosed() {
+    aggregator.close();
+    aggregator.increment("key", 1L);
+  }
+
+}
@@ -20,6 +20,7 @@ import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -80,6 +81,25 @@ public class CursorAdapterTest {
     when(mockDelegate.step_back()).thenReturn(true);
   }
 
+  @Test
+  public void nextBatchReadsUpToMaximum() {
+    assertThat(adapter.nextBatch(3).size(), is(3));
+    verify(mockDelegate, times(3)).get(true);
+  }
+
+  @Test
+  public void nextBatchStopsAtLastRecord() {
+    when(mockDelegate.get(true)).thenReturn(BYTE_2D_ARRAY_VALUE, BYTE_2D_ARRAY_VALUE, null);
+    when(mockDelegate.error()).thenReturn(new Error(Error.NOREC, ""));
+    assertThat(adapter.nextBatch(5).size(), is(2));
+  }
+
+  @Test(expected = KyotoException.class)
+  public void nextBatchError() {
+    when(mockDelegate.get(true)).thenReturn(null);
+    adapter.nextBatch(5);
+  }
+
   @Test
   public void close() throws IOException {
     adapter.close();
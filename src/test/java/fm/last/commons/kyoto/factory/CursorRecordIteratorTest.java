@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.RecordIterator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CursorRecordIteratorTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Mock
+  private KyotoCursor mockCursor;
+  @Mock
+  private KyotoCursor mockCursor2;
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void entriesScanFromStartAndCloseWhenExhausted() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch(entry("a", "1"), entry("b", "2")),
+        batch());
+
+    RecordIterator<byte[][]> iterator = CursorRecordIterator.entries(mockCursor);
+
+    assertThat(iterator.hasNext(), is(true));
+    assertThat(iterator.next(), is(entry("a", "1")));
+    assertThat(iterator.next(), is(entry("b", "2")));
+    assertThat(iterator.hasNext(), is(false));
+    verify(mockCursor).scanForwardFromStart();
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void keysUseKeyOnlyReads() throws IOException {
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenReturn(bytes("a"), (byte[]) null);
+
+    RecordIterator<byte[]> iterator = CursorRecordIterator.keys(mockCursor);
+
+    assertThat(iterator.next(), is(bytes("a")));
+    assertThat(iterator.hasNext(), is(false));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void valuesAreReadInBatches() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch(entry("a", "1")), batch());
+
+    RecordIterator<byte[]> iterator = CursorRecordIterator.values(mockCursor);
+
+    assertThat(iterator.next(), is(bytes("1")));
+    assertThat(iterator.hasNext(), is(false));
+  }
+
+  @Test
+  public void rangeStartsAtFromKeyAndStopsBeforeToKey() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(
+        batch(entry("b", "2"), entry("c", "3"), entry("d", "4")));
+
+    RecordIterator<byte[][]> iterator = CursorRecordIterator.entries(mockCursor, bytes("b"), bytes("d"));
+
+    assertThat(iterator.next(), is(entry("b", "2")));
+    assertThat(iterator.next(), is(entry("c", "3")));
+    assertThat(iterator.hasNext(), is(false));
+    verify(mockCursor).scanForwardFromKey(bytes("b"));
+    verify(mockCursor).close();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void batchesAreReadUntilEmpty() {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch(entry("a", "1")),
+        batch(entry("b", "2")), batch());
+
+    RecordIterator<byte[][]> iterator = CursorRecordIterator.entries(mockCursor);
+
+    assertThat(iterator.next(), is(entry("a", "1")));
+    assertThat(iterator.next(), is(entry("b", "2")));
+    assertThat(iterator.hasNext(), is(false));
+    verify(mockCursor, times(3)).nextBatch(CursorRecordIterator.BATCH_SIZE);
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void nextPastEnd() {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch());
+    CursorRecordIterator.entries(mockCursor).next();
+  }
+
+  @Test
+  public void closeIsIdempotent() throws IOException {
+    RecordIterator<byte[][]> iterator = CursorRecordIterator.entries(mockCursor);
+    iterator.close();
+    iterator.close();
+    assertThat(iterator.hasNext(), is(false));
+    verify(mockCursor, times(1)).close();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void concatenatedIteratorsAreReadInTurn() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch(entry("a", "1")), batch());
+    when(mockCursor2.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch(entry("b", "2")), batch());
+    RecordIterator<byte[][]> iterator = new ConcatenatedRecordIterator<byte[][]>(Arrays.asList(
+        CursorRecordIterator.entries(mockCursor), CursorRecordIterator.entries(mockCursor2)));
+
+    assertThat(iterator.next(), is(entry("a", "1")));
+    assertThat(iterator.next(), is(entry("b", "2")));
+    assertThat(iterator.hasNext(), is(false));
+    verify(mockCursor).close();
+    verify(mockCursor2).close();
+  }
+
+  @Test
+  public void lexicalComparisonIsUnsigned() {
+    assertThat(CursorRecordIterator.compareLexically(new byte[] { 1 }, new byte[] { (byte) 0xFF }) < 0, is(true));
+    assertThat(CursorRecordIterator.compareLexically(bytes("ab"), bytes("abc")) < 0, is(true));
+    assertThat(CursorRecordIterator.compareLexically(bytes("abc"), bytes("abc")), is(0));
+  }
+
+  @Test
+  public void interpolatedSplitPointsAreAscendingAndWithinRange() {
+    byte[] first = bytes("key-00000000");
+    byte[] last = bytes("key-99999999");
+    byte[] previous = first;
+    int count = 0;
+    for (byte[] point : KeyRanges.interpolate(first, last, 8)) {
+      assertThat(CursorRecordIterator.compareLexically(point, previous) > 0, is(true));
+      assertThat(CursorRecordIterator.compareLexically(point, last) <= 0, is(true));
+      previous = point;
+      count++;
+    }
+    assertThat(count, is(7));
+  }
+
+  @Test
+  public void noSplitPointsForSingleKey() {
+    assertThat(KeyRanges.interpolate(bytes("a"), bytes("a"), 4).isEmpty(), is(true));
+  }
+
+  @Test
+  public void splitPointsReadFirstAndLastKeys() throws IOException {
+    when(mockCursor.getKey(CursorStep.NO_STEP)).thenReturn(bytes("a"), bytes("z"));
+
+    assertThat(KeyRanges.splitPoints(mockCursor, 2).size(), is(1));
+    verify(mockCursor).scanForwardFromStart();
+    verify(mockCursor).scanBackwardsFromEnd();
+    verify(mockCursor).close();
+  }
+
+  private static List<byte[][]> batch(byte[][]... entries) {
+    return Arrays.asList(entries);
+  }
+
+  private static byte[][] entry(String key, String value) {
+    return new byte[][] { bytes(key), bytes(value) };
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+}
@@ -19,6 +19,8 @@ import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
@@ -33,6 +35,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
 import fm.last.commons.kyoto.factory.ErrorHandler.ErrorSource;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -40,6 +43,8 @@ public class ErrorHandlerTest {
 
   @Mock
   private ErrorSource mockErrorSource;
+  @Mock
+  private ErrorListener mockErrorListener;
 
   private ErrorHandler errorHandler;
 
@@ -159,6 +164,26 @@ public class ErrorHandlerTest {
     errorHandler.processError();
   }
 
+  @Test
+  public void noRecordIsReportedToListenerWithoutThrowing() {
+    errorHandler.setErrorListener(mockErrorListener);
+    when(mockErrorSource.getError()).thenReturn(new Error(Error.NOREC, ""));
+    errorHandler.processError("m");
+    verify(mockErrorListener).error(ErrorType.NO_RECORD);
+  }
+
+  @Test
+  public void unreadableErrorIsNotThrownAsIoException() throws IOException {
+    when(mockErrorSource.getError()).thenReturn(null);
+    try {
+      errorHandler.processIoError("m");
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getMessage(), is("m"));
+      assertThat(e.getCause(), is(instanceOf(UnexpectedException.class)));
+    }
+  }
+
   @Test
   public void processNotImplementedError() {
     when(mockErrorSource.getError()).thenReturn(new Error(Error.NOIMPL, ""));
@@ -247,4 +272,30 @@ public class ErrorHandlerTest {
     }
   }
 
+  @Test
+  public void listenerIsNotifiedOfThrownErrors() {
+    errorHandler.setErrorListener(mockErrorListener);
+    try {
+      errorHandler.wrapBooleanCall(false);
+      fail();
+    } catch (KyotoException e) {
+    }
+    verify(mockErrorListener).error(ErrorType.UNKNOWN_ERROR);
+  }
+
+  @Test
+  public void listenerIsNotifiedOfMissingRecords() {
+    when(mockErrorSource.getError()).thenReturn(new Error(Error.NOREC, "no record"));
+    errorHandler.setErrorListener(mockErrorListener);
+    errorHandler.wrapObjectCall(null);
+    verify(mockErrorListener).error(ErrorType.NO_RECORD);
+  }
+
+  @Test
+  public void listenerIsNotNotifiedOfSuccess() {
+    errorHandler.setErrorListener(mockErrorListener);
+    errorHandler.wrapBooleanCall(true);
+    verifyZeroInteractions(mockErrorListener);
+  }
+
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import kyotocabinet.Error;
+
+import org.junit.Test;
+
+public class ErrorTypeTest {
+
+  @Test
+  public void everyTypeIsFoundByItsCode() {
+    for (ErrorType errorType : ErrorType.values()) {
+      assertThat(ErrorType.valueOf(errorType.code()), is(errorType));
+    }
+  }
+
+  @Test
+  public void recordOutcomesAreFound() {
+    assertThat(ErrorType.valueOf(new Error(Error.NOREC, "")), is(ErrorType.NO_RECORD));
+    assertThat(ErrorType.valueOf(new Error(Error.DUPREC, "")), is(ErrorType.RECORD_DUPLICATION));
+  }
+
+  @Test
+  public void unknownCodesAreNull() {
+    assertThat(ErrorType.valueOf(-1), is(nullValue()));
+    assertThat(ErrorType.valueOf(12), is(nullValue()));
+    assertThat(ErrorType.valueOf(883787832), is(nullValue()));
+  }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class InFlightGateTest {
+
+  private InFlightGate gate;
+
+  @Before
+  public void setup() {
+    gate = new InFlightGate();
+  }
+
+  @Test
+  public void closedUntilOpened() {
+    assertThat(gate.isOpen(), is(false));
+    assertThat(gate.enter(), is(false));
+    assertThat(gate.inFlightCount(), is(0L));
+  }
+
+  @Test
+  public void entriesAreCounted() {
+    gate.open();
+    assertThat(gate.enter(), is(true));
+    assertThat(gate.enter(), is(true));
+    assertThat(gate.inFlightCount(), is(2L));
+    gate.exit();
+    gate.exit();
+    assertThat(gate.inFlightCount(), is(0L));
+  }
+
+  @Test
+  public void closeRejectsNewEntries() {
+    gate.open();
+    gate.close();
+    assertThat(gate.isOpen(), is(false));
+    assertThat(gate.enter(), is(false));
+    assertThat(gate.inFlightCount(), is(0L));
+  }
+
+  @Test
+  public void canBeReopened() {
+    gate.open();
+    gate.close();
+    gate.open();
+    assertThat(gate.enter(), is(true));
+  }
+
+  @Test(timeout = 10000)
+  public void closeWaitsForEntriesInProgress() throws InterruptedException {
+    gate.open();
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicBoolean exited = new AtomicBoolean();
+    Thread operation = new Thread() {
+      @Override
+      public void run() {
+        gate.enter();
+        entered.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        exited.set(true);
+        gate.exit();
+      }
+    };
+    operation.start();
+    entered.await();
+
+    Thread closer = new Thread() {
+      @Override
+      public void run() {
+        gate.close();
+      }
+    };
+    closer.start();
+    closer.join(TimeUnit.MILLISECONDS.toMillis(100));
+    assertThat(closer.isAlive(), is(true));
+    assertThat(gate.enter(), is(false));
+
+    release.countDown();
+    closer.join();
+    assertThat(exited.get(), is(true));
+    assertThat(gate.inFlightCount(), is(0L));
+  }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class InstrumentedKyotoDbTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] KEY = "key".getBytes(UTF_8);
+  private static final byte[] VALUE = "value".getBytes(UTF_8);
+
+  @Mock
+  private KyotoDb mockDelegate;
+  @Mock
+  private KyotoCursor mockCursor;
+
+  private InstrumentedKyotoDb instrumentedDb;
+
+  @Before
+  public void setup() {
+    instrumentedDb = new InstrumentedKyotoDb(mockDelegate);
+  }
+
+  @Test
+  public void countsCallsAndBytes() {
+    when(mockDelegate.get(KEY)).thenReturn(VALUE);
+
+    assertThat(instrumentedDb.get(KEY), is(VALUE));
+    instrumentedDb.get(KEY);
+    instrumentedDb.set(KEY, VALUE);
+
+    MetricsSnapshot snapshot = instrumentedDb.getMetricsSnapshot();
+    assertThat(snapshot.operation(OperationType.GET).count(), is(2L));
+    assertThat(snapshot.operation(OperationType.SET).count(), is(1L));
+    assertThat(snapshot.operation(OperationType.REMOVE).count(), is(0L));
+    assertThat(snapshot.bytesRead(), is(10L));
+    assertThat(snapshot.bytesWritten(), is(8L));
+  }
+
+  @Test
+  public void stringsAreCountedInEncodedBytes() {
+    // 1 + 2 + 3 + 4 bytes in UTF-8
+    String value = "a\u00e9\u20ac\ud83d\ude00";
+    when(mockDelegate.get("key")).thenReturn(value);
+
+    instrumentedDb.get("key");
+    instrumentedDb.set("key", value);
+
+    MetricsSnapshot snapshot = instrumentedDb.getMetricsSnapshot();
+    assertThat(snapshot.bytesRead(), is((long) value.getBytes(UTF_8).length));
+    assertThat(snapshot.bytesWritten(), is(3L + value.getBytes(UTF_8).length));
+  }
+
+  @Test
+  public void countsFailures() {
+    when(mockDelegate.get(KEY)).thenThrow(new KyotoException("broken"));
+
+    try {
+      instrumentedDb.get(KEY);
+      fail();
+    } catch (KyotoException e) {
+    }
+
+    OperationStatistics statistics = instrumentedDb.getMetricsSnapshot().operation(OperationType.GET);
+    assertThat(statistics.count(), is(1L));
+    assertThat(statistics.failureCount(), is(1L));
+  }
+
+  @Test
+  public void countsErrorsByType() {
+    instrumentedDb.getErrorListener().error(ErrorType.NO_RECORD);
+    instrumentedDb.getErrorListener().error(ErrorType.NO_RECORD);
+    instrumentedDb.getErrorListener().error(ErrorType.BROKEN_FILE);
+
+    MetricsSnapshot snapshot = instrumentedDb.getMetricsSnapshot();
+    assertThat(snapshot.errorCount(ErrorType.NO_RECORD), is(2L));
+    assertThat(snapshot.errorCount(ErrorType.BROKEN_FILE), is(1L));
+    assertThat(snapshot.errorCount(ErrorType.SYSTEM_ERROR), is(0L));
+  }
+
+  @Test
+  public void measuresCursors() {
+    when(mockDelegate.cursor()).thenReturn(mockCursor);
+    when(mockCursor.getEntry(CursorStep.NEXT_RECORD)).thenReturn(new byte[][] { KEY, VALUE });
+    List<byte[][]> batch = new ArrayList<byte[][]>();
+    batch.add(new byte[][] { KEY, VALUE });
+    when(mockCursor.nextBatch(10)).thenReturn(batch);
+
+    KyotoCursor cursor = instrumentedDb.cursor();
+    cursor.scanForwardFromStart();
+    cursor.getEntry(CursorStep.NEXT_RECORD);
+    cursor.nextBatch(10);
+    cursor.remove();
+
+    MetricsSnapshot snapshot = instrumentedDb.getMetricsSnapshot();
+    assertThat(snapshot.operation(OperationType.CURSOR_STEP).count(), is(3L));
+    assertThat(snapshot.operation(OperationType.CURSOR_WRITE).count(), is(1L));
+    assertThat(snapshot.bytesRead(), is(16L));
+  }
+
+  @Test
+  public void snapshotsCanBeSubtracted() {
+    instrumentedDb.remove(KEY);
+    MetricsSnapshot earlier = instrumentedDb.getMetricsSnapshot();
+    instrumentedDb.remove(KEY);
+    instrumentedDb.remove(KEY);
+    instrumentedDb.getErrorListener().error(ErrorType.NO_RECORD);
+
+    MetricsSnapshot period = instrumentedDb.getMetricsSnapshot().since(earlier);
+
+    assertThat(period.operation(OperationType.REMOVE).count(), is(2L));
+    assertThat(period.errorCount(ErrorType.NO_RECORD), is(1L));
+  }
+
+  @Test
+  public void publishesToSinkWhileOpen() throws Exception {
+    final List<MetricsSnapshot> published = Collections.synchronizedList(new ArrayList<MetricsSnapshot>());
+    instrumentedDb = new InstrumentedKyotoDb(mockDelegate, new MetricsSink() {
+      @Override
+      public void publish(MetricsSnapshot snapshot) {
+        published.add(snapshot);
+      }
+    }, 10);
+
+    instrumentedDb.open();
+    instrumentedDb.exists(KEY);
+    Thread.sleep(100);
+    instrumentedDb.close();
+    int publishedOnClose = published.size();
+    Thread.sleep(50);
+
+    assertThat(publishedOnClose > 1, is(true));
+    assertThat(published.size(), is(publishedOnClose));
+    MetricsSnapshot last = published.get(published.size() - 1);
+    assertThat(last.operation(OperationType.OPEN).count(), is(1L));
+    assertThat(last.operation(OperationType.EXISTS).count(), is(1L));
+    assertThat(last.operation(OperationType.CLOSE).count(), is(1L));
+  }
+
+  @Test
+  public void measuresLatency() {
+    instrumentedDb.clear();
+    OperationStatistics statistics = instrumentedDb.getMetricsSnapshot().operation(OperationType.CLEAR);
+    assertThat(statistics.count(), is(1L));
+    assertThat(statistics.maximumLatency(TimeUnit.NANOSECONDS) >= statistics.meanLatency(TimeUnit.NANOSECONDS),
+        is(true));
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+
+@RunWith(MockitoJUnitRunner.class)
+public class KeyMatcherTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  @Mock
+  private KyotoCursor mockCursor;
+
+  @Test
+  public void prefixRangeScanStopsAtFirstNonMatchingKey() throws IOException {
+    keys("ab", "abc", "b", "abd");
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    assertThat(KeyMatcher.matchPrefix(mockCursor, bytes("ab"), true, visitor), is(true));
+
+    assertThat(visitor.keys, is(Arrays.asList("ab", "abc")));
+    verify(mockCursor).scanForwardFromKey(bytes("ab"));
+    verify(mockCursor, times(3)).getKey(CursorStep.NEXT_RECORD);
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void prefixFullScanVisitsAllMatchingKeys() throws IOException {
+    keys("xab", "ab", "b", "abd");
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    assertThat(KeyMatcher.matchPrefix(mockCursor, bytes("ab"), false, visitor), is(true));
+
+    assertThat(visitor.keys, is(Arrays.asList("ab", "abd")));
+    verify(mockCursor).scanForwardFromStart();
+    verify(mockCursor, never()).scanForwardFromKey(bytes("ab"));
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void prefixStopsWhenVisitorReturnsFalse() throws IOException {
+    keys("ab", "abc", "abd");
+    CollectingVisitor visitor = new CollectingVisitor(1);
+
+    assertThat(KeyMatcher.matchPrefix(mockCursor, bytes("ab"), true, visitor), is(false));
+
+    assertThat(visitor.keys, is(Arrays.asList("ab")));
+    verify(mockCursor, times(1)).getKey(CursorStep.NEXT_RECORD);
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void prefixClosesCursorOnFailure() throws IOException {
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenThrow(new IllegalStateException());
+    try {
+      KeyMatcher.matchPrefix(mockCursor, bytes("ab"), true, new CollectingVisitor(Integer.MAX_VALUE));
+    } catch (IllegalStateException expected) {
+    }
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void regexFindsMatchesAnywhereInKey() throws IOException {
+    keys("apple", "banana", "cherry");
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    assertThat(KeyMatcher.matchRegex(mockCursor, Pattern.compile("an+"), new StringCodec(UTF_8), visitor), is(true));
+
+    assertThat(visitor.keys, is(Arrays.asList("banana")));
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void regexStopsWhenVisitorReturnsFalse() throws IOException {
+    keys("a1", "a2", "a3");
+    CollectingVisitor visitor = new CollectingVisitor(2);
+
+    assertThat(KeyMatcher.matchRegex(mockCursor, Pattern.compile("^a"), new StringCodec(UTF_8), visitor), is(false));
+
+    assertThat(visitor.keys, is(Arrays.asList("a1", "a2")));
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void levenshteinMatchesWithinDistance() throws IOException {
+    keys("fun", "fan", "bun", "far");
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    assertThat(KeyMatcher.matchLevenshtein(mockCursor, "fun", 1, UTF_8, visitor), is(true));
+
+    assertThat(visitor.keys, is(Arrays.asList("fun", "fan", "bun")));
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void levenshteinMeasuresCodePointsForUtf8() throws IOException {
+    keys("caf\u00e9");
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    KeyMatcher.matchLevenshtein(mockCursor, "cafe", 1, UTF_8, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("caf\u00e9")));
+  }
+
+  @Test
+  public void levenshteinMeasuresBytesForOtherCharsets() throws IOException {
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenReturn("cafe".getBytes(ISO_8859_1), (byte[]) null);
+    CollectingVisitor visitor = new CollectingVisitor(Integer.MAX_VALUE);
+
+    KeyMatcher.matchLevenshtein(mockCursor, "caf", 1, ISO_8859_1, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("cafe")));
+  }
+
+  @Test
+  public void distance() {
+    assertThat(KeyMatcher.distance(ints("kitten"), ints("sitting"), 5), is(3));
+    assertThat(KeyMatcher.distance(ints(""), ints("abc"), 5), is(3));
+    assertThat(KeyMatcher.distance(ints("abc"), ints("abc"), 0), is(0));
+  }
+
+  @Test
+  public void distanceIsCutOffAboveBound() {
+    assertThat(KeyMatcher.distance(ints("kitten"), ints("sitting"), 2), is(3));
+    assertThat(KeyMatcher.distance(ints("a"), ints("abcdef"), 1), is(2));
+  }
+
+  @Test
+  public void startsWith() {
+    assertThat(KeyMatcher.startsWith(bytes("abc"), bytes("ab")), is(true));
+    assertThat(KeyMatcher.startsWith(bytes("abc"), bytes("")), is(true));
+    assertThat(KeyMatcher.startsWith(bytes("a"), bytes("ab")), is(false));
+    assertThat(KeyMatcher.startsWith(bytes("ba"), bytes("ab")), is(false));
+  }
+
+  private void keys(String... keys) {
+    byte[][] values = new byte[keys.length][];
+    for (int index = 1; index < keys.length; index++) {
+      values[index - 1] = bytes(keys[index]);
+    }
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenReturn(bytes(keys[0]), values);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  private static int[] ints(String value) {
+    int[] ints = new int[value.length()];
+    for (int index = 0; index < ints.length; index++) {
+      ints[index] = value.charAt(index);
+    }
+    return ints;
+  }
+
+  private static class CollectingVisitor implements KeyVisitor, KeyStringVisitor {
+
+    private final List<String> keys = new ArrayList<String>();
+    private final int limit;
+
+    CollectingVisitor(int limit) {
+      this.limit = limit;
+    }
+
+    @Override
+    public boolean key(byte[] key) {
+      return key(new String(key, UTF_8));
+    }
+
+    @Override
+    public boolean key(String key) {
+      keys.add(key);
+      return keys.size() < limit;
+    }
+
+  }
+
+}
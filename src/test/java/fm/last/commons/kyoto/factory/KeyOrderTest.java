@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class KeyOrderTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void lexical() {
+    assertThat(sort(KeyOrder.LEXICAL, "b", "ab", "a", "\u00e9"), is(Arrays.asList("a", "ab", "b", "\u00e9")));
+  }
+
+  @Test
+  public void lexicalDescending() {
+    assertThat(sort(KeyOrder.LEXICAL_DESCENDING, "b", "ab", "a"), is(Arrays.asList("b", "ab", "a")));
+  }
+
+  @Test
+  public void decimalComparesNumbers() {
+    assertThat(sort(KeyOrder.DECIMAL, "10", "9", "-3", "0", " 5"), is(Arrays.asList("-3", "0", " 5", "9", "10")));
+  }
+
+  @Test
+  public void decimalComparesFractions() {
+    assertThat(sort(KeyOrder.DECIMAL, "1.5", "1.25", "1", "-1.5", "-1.25"), is(Arrays.asList("-1.5", "-1.25", "1",
+        "1.25", "1.5")));
+  }
+
+  @Test
+  public void decimalFallsBackToLexical() {
+    assertThat(sort(KeyOrder.DECIMAL, "2b", "2a", "b", "a"), is(Arrays.asList("a", "b", "2a", "2b")));
+  }
+
+  @Test
+  public void decimalDescending() {
+    assertThat(sort(KeyOrder.DECIMAL_DESCENDING, "9", "10", "1"), is(Arrays.asList("10", "9", "1")));
+  }
+
+  @Test
+  public void pageComparatorsMapToKeyOrders() {
+    assertThat(PageComparator.LEXICAL.keyOrder(), is(KeyOrder.LEXICAL));
+    assertThat(PageComparator.DECIMAL.keyOrder(), is(KeyOrder.DECIMAL));
+    assertThat(PageComparator.LEXICAL_DESCENDING.keyOrder(), is(KeyOrder.LEXICAL_DESCENDING));
+    assertThat(PageComparator.DECIMAL_DESCENDING.keyOrder(), is(KeyOrder.DECIMAL_DESCENDING));
+  }
+
+  private static List<String> sort(final Comparator<byte[]> order, String... keys) {
+    List<String> sorted = Arrays.asList(keys);
+    Collections.sort(sorted, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        return order.compare(a.getBytes(UTF_8), b.getBytes(UTF_8));
+      }
+    });
+    return sorted;
+  }
+
+}
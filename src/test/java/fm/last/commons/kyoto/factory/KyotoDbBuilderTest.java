@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fm.last.commons.kyoto.KyotoDb;
+
+public class KyotoDbBuilderTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File file;
+
+  @Before
+  public void setup() throws IOException {
+    file = temporaryFolder.newFile("db.kch");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readReplicasCannotBeSharded() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).shards(4).readReplicas(2).build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readReplicasCannotWriteBehind() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).readReplicas(2).writeBehind(10, 100, 1, TimeUnit.SECONDS)
+        .build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readReplicasCannotBeCached() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).readReplicas(2).readCache(100, 1024).build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readReplicasCannotBeBloomFiltered() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).readReplicas(2).bloomFilter(0.01).build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void readReplicasCannotWrite() {
+    new KyotoDbBuilder(file).modes(Mode.READ_WRITE).readReplicas(2).build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void swappableCannotWrite() {
+    new KyotoDbBuilder(file).modes(Mode.READ_WRITE).swappable().build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void swappableCannotBeSharded() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).shards(4).swappable().build();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void swappableCannotHaveReadReplicas() {
+    new KyotoDbBuilder(file).modes(Mode.READ_ONLY).readReplicas(2).swappable().build();
+  }
+
+  @Test
+  public void swappableIsFoundUnderDecorators() {
+    KyotoDb db = new KyotoDbBuilder(file).modes(Mode.READ_ONLY).swappable().jmx().instrumented().build();
+    assertThat(db, instanceOf(InstrumentedKyotoDb.class));
+    assertThat(ForwardingKyotoDb.unwrap(db, SwappableKyotoDb.class), instanceOf(SwappableKyotoDb.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unwrapWithoutMatch() {
+    KyotoDb db = new KyotoDbBuilder(file).modes(Mode.READ_ONLY).swappable().instrumented().build();
+    ForwardingKyotoDb.unwrap(db, ReadReplicaKyotoDb.class);
+  }
+
+}
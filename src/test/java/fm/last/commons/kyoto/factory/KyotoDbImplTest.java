@@ -100,6 +100,17 @@ public class KyotoDbImplTest {
     kyotoDb.close();
   }
 
+  @Test(expected = IllegalStateException.class)
+  public void statusAfterCloseIsRejected() throws IOException {
+    File file = temporaryFolder.newFile("KyotoDbImplTest-statusAfterClose.kch");
+    db = new DB();
+    kyotoDb = new KyotoDbImpl(DbType.FILE_HASH, db, file.getAbsolutePath(), EnumSet.of(Mode.CREATE, Mode.READ_WRITE),
+        file);
+    kyotoDb.open();
+    kyotoDb.close();
+    kyotoDb.status();
+  }
+
   @Test
   public void open() throws IOException {
     File file = temporaryFolder.newFile("KyotoDbImplTest-open.kch");
@@ -408,4 +419,9 @@ public class KyotoDbImplTest {
     assertThat(kyotoDb.recordCount(), is(0L));
   }
 
+  @Test(expected = UnsupportedOperationException.class)
+  public void countRangeRequiresOrderedDatabase() {
+    kyotoDb.countRange("a", "b");
+  }
+
 }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class KyotoStatusTest {
+
+  @Test
+  public void parsesFigures() {
+    Map<String, String> status = new HashMap<String, String>();
+    status.put("count", "10");
+    status.put("size", "2048");
+    status.put("frgcnt", "3");
+    status.put("cusage", "512");
+
+    KyotoStatus kyotoStatus = new KyotoStatus(status);
+
+    assertThat(kyotoStatus.recordCount(), is(10L));
+    assertThat(kyotoStatus.sizeInBytes(), is(2048L));
+    assertThat(kyotoStatus.fragmentCount(), is(3L));
+    assertThat(kyotoStatus.pageCacheUsage(), is(512L));
+  }
+
+  @Test
+  public void missingAndInvalidFiguresAreUnknown() {
+    Map<String, String> status = new HashMap<String, String>();
+    status.put("bnum", "lots");
+
+    KyotoStatus kyotoStatus = new KyotoStatus(status);
+
+    assertThat(kyotoStatus.bucketCount(), is(KyotoStatus.UNKNOWN));
+    assertThat(kyotoStatus.memoryMapSize(), is(KyotoStatus.UNKNOWN));
+    assertThat(kyotoStatus.get("bnum"), is("lots"));
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void smallLatenciesHaveTheirOwnBuckets() {
+    for (int nanoseconds = 0; nanoseconds < LatencyHistogram.SUB_BUCKETS; nanoseconds++) {
+      assertThat(LatencyHistogram.bucketFor(nanoseconds), is(nanoseconds));
+      assertThat(LatencyHistogram.upperBound(nanoseconds), is((long) nanoseconds));
+    }
+  }
+
+  @Test
+  public void bucketsAreContiguous() {
+    long expectedLowerBound = 0;
+    for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+      assertThat(LatencyHistogram.bucketFor(expectedLowerBound), is(bucket));
+      long upperBound = LatencyHistogram.upperBound(bucket);
+      assertThat(LatencyHistogram.bucketFor(upperBound), is(bucket));
+      expectedLowerBound = upperBound + 1;
+    }
+  }
+
+  @Test
+  public void bucketsAreWithinAnEighth() {
+    for (long nanoseconds = 8; nanoseconds < 1000000; nanoseconds += 997) {
+      long upperBound = LatencyHistogram.upperBound(LatencyHistogram.bucketFor(nanoseconds));
+      assertThat(upperBound >= nanoseconds, is(true));
+      assertThat(upperBound - nanoseconds <= nanoseconds / 8, is(true));
+    }
+  }
+
+  @Test
+  public void hugeLatenciesShareTheLastBucket() {
+    assertThat(LatencyHistogram.bucketFor(Long.MAX_VALUE), is(LatencyHistogram.BUCKETS - 1));
+  }
+
+  @Test
+  public void percentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int micros = 1; micros <= 100; micros++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+    OperationStatistics statistics = new OperationStatistics(OperationType.GET, histogram.bucketCounts(), histogram
+        .totalNanoseconds(), 0);
+
+    assertThat(statistics.count(), is(100L));
+    assertThat(statistics.meanLatency(TimeUnit.NANOSECONDS), is(50500.0d));
+    assertWithinAnEighth(statistics.latencyPercentile(50, TimeUnit.MICROSECONDS), 50);
+    assertWithinAnEighth(statistics.latencyPercentile(99, TimeUnit.MICROSECONDS), 99);
+    assertWithinAnEighth(statistics.maximumLatency(TimeUnit.MICROSECONDS), 100);
+  }
+
+  @Test
+  public void emptyStatistics() {
+    OperationStatistics statistics = new OperationStatistics(OperationType.GET,
+        new LatencyHistogram().bucketCounts(), 0, 0);
+    assertThat(statistics.count(), is(0L));
+    assertThat(statistics.meanLatency(TimeUnit.NANOSECONDS), is(0.0d));
+    assertThat(statistics.latencyPercentile(99, TimeUnit.NANOSECONDS), is(0.0d));
+  }
+
+  private static void assertWithinAnEighth(double actual, double expected) {
+    assertThat(actual >= expected && actual <= expected * 1.125, is(true));
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.Synchronization;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ManagedKyotoDbTest {
+
+  @Mock
+  private KyotoDb mockDelegate;
+
+  private MBeanServer server;
+  private ManagedKyotoDb managedDb;
+  private ObjectName objectName;
+  private Map<String, String> status;
+
+  @Before
+  public void setup() {
+    server = MBeanServerFactory.newMBeanServer();
+    status = new HashMap<String, String>();
+    status.put("count", "42");
+    status.put("size", "1024");
+    status.put("bnum", "1048583");
+    status.put("realtype", "48");
+    when(mockDelegate.status()).thenReturn(status);
+    when(mockDelegate.getType()).thenReturn(DbType.FILE_HASH);
+    managedDb = new ManagedKyotoDb(mockDelegate, "/data/test.kch", 60000, server);
+    objectName = managedDb.getObjectName();
+  }
+
+  @Test
+  public void objectName() {
+    assertThat(objectName.toString(), is("fm.last.commons.kyoto:type=KyotoDb,name=\"/data/test.kch\""));
+  }
+
+  @Test
+  public void registeredWhileOpen() throws Exception {
+    assertThat(server.isRegistered(objectName), is(false));
+    managedDb.open();
+    assertThat(server.isRegistered(objectName), is(true));
+    managedDb.close();
+    assertThat(server.isRegistered(objectName), is(false));
+    verify(mockDelegate).close();
+  }
+
+  @Test
+  public void statusAttributesAreTyped() throws Exception {
+    managedDb.open();
+
+    assertThat((Long) server.getAttribute(objectName, "RecordCount"), is(42L));
+    assertThat((Long) server.getAttribute(objectName, "SizeInBytes"), is(1024L));
+    assertThat((Long) server.getAttribute(objectName, "BucketCount"), is(1048583L));
+    assertThat((Long) server.getAttribute(objectName, "PageCacheUsage"), is(-1L));
+    assertThat((String) server.getAttribute(objectName, "Type"), is("FILE_HASH"));
+    assertThat(((TabularData) server.getAttribute(objectName, "Status")).size(), is(4));
+  }
+
+  @Test
+  public void statusIsReadFromCopy() throws Exception {
+    managedDb.open();
+    status.put("count", "43");
+    assertThat((Long) server.getAttribute(objectName, "RecordCount"), is(42L));
+
+    server.invoke(objectName, "refreshStatus", new Object[0], new String[0]);
+
+    assertThat((Long) server.getAttribute(objectName, "RecordCount"), is(43L));
+  }
+
+  @Test(timeout = 10000)
+  public void closeWaitsForRefreshInProgress() throws Exception {
+    final CountDownLatch refreshing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(mockDelegate.status()).thenReturn(status).thenAnswer(new Answer<Map<String, String>>() {
+      @Override
+      public Map<String, String> answer(InvocationOnMock invocation) throws Throwable {
+        refreshing.countDown();
+        release.await();
+        return status;
+      }
+    });
+    managedDb = new ManagedKyotoDb(mockDelegate, "/data/test.kch", 1, server);
+    managedDb.open();
+    refreshing.await();
+
+    Thread closer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          managedDb.close();
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    closer.start();
+    closer.join(100);
+    assertThat(closer.isAlive(), is(true));
+    verify(mockDelegate, never()).close();
+
+    release.countDown();
+    closer.join();
+    verify(mockDelegate).close();
+  }
+
+  @Test
+  public void operations() throws Exception {
+    managedDb.open();
+
+    server.invoke(objectName, "synchronize", new Object[] { true }, new String[] { boolean.class.getName() });
+    server.invoke(objectName, "copyTo", new Object[] { "/tmp/copy.kch" }, new String[] { String.class.getName() });
+
+    verify(mockDelegate).synchronize(Synchronization.PHYSICAL, null);
+    verify(mockDelegate).copyTo(new File("/tmp/copy.kch"));
+  }
+
+  @Test
+  public void exposesWrapperMetrics() throws Exception {
+    InstrumentedKyotoDb instrumentedDb = new InstrumentedKyotoDb(managedDb);
+    managedDb.setMetricSources(instrumentedDb, null);
+    instrumentedDb.open();
+    instrumentedDb.get("key");
+
+    TabularData counts = (TabularData) server.getAttribute(objectName, "OperationCounts");
+    assertThat((Long) counts.get(new Object[] { "GET" }).get("value"), is(1L));
+    assertThat((Double) server.getAttribute(objectName, "ReadCacheHitRate"), is(-1.0d));
+  }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PacerTest {
+
+  @Test
+  public void unlimitedNeverSleeps() throws InterruptedException {
+    Pacer pacer = new Pacer(0);
+    long start = System.nanoTime();
+    pacer.completed(Long.MAX_VALUE / 2);
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertThat(pacer.completed(), is(Long.MAX_VALUE / 2));
+  }
+
+  @Test
+  public void sleepsWhenAheadOfRate() throws InterruptedException {
+    Pacer pacer = new Pacer(1000);
+    long start = System.nanoTime();
+    for (int i = 0; i < 10; i++) {
+      pacer.completed(20);
+    }
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(190));
+    assertThat(pacer.completed(), is(200L));
+  }
+
+  @Test(expected = InterruptedException.class)
+  public void interruptedWhileSleeping() throws InterruptedException {
+    Pacer pacer = new Pacer(1);
+    Thread.currentThread().interrupt();
+    pacer.completed(10);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeRate() {
+    new Pacer(-1);
+  }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PageCacheWarmerTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void readsWholeFile() throws IOException {
+    File file = write(temporaryFolder.newFile("db.kch"), PageCacheWarmer.READ_SIZE * 2 + 17);
+    assertThat(PageCacheWarmer.warm(file), is(PageCacheWarmer.READ_SIZE * 2 + 17L));
+  }
+
+  @Test
+  public void readsEveryFileInDirectory() throws IOException {
+    File directory = temporaryFolder.newFolder("db.kcd");
+    write(new File(directory, "a"), 100);
+    write(new File(directory, "b"), 23);
+    assertThat(PageCacheWarmer.warm(directory), is(123L));
+  }
+
+  @Test
+  public void emptyFile() throws IOException {
+    assertThat(PageCacheWarmer.warm(temporaryFolder.newFile("empty.kch")), is(0L));
+  }
+
+  @Test
+  public void reportsCumulativeProgress() throws Exception {
+    File directory = temporaryFolder.newFolder("db.kcd");
+    write(new File(directory, "a"), PageCacheWarmer.READ_SIZE + 1);
+    WarmupListener listener = mock(WarmupListener.class);
+    Pacer pacer = new Pacer(0);
+    pacer.completed(5);
+    assertThat(PageCacheWarmer.warm(directory, pacer, listener, 99L), is(PageCacheWarmer.READ_SIZE + 1L));
+    verify(listener).progress(PageCacheWarmer.READ_SIZE + 5L, 99L);
+    verify(listener).progress(PageCacheWarmer.READ_SIZE + 6L, 99L);
+  }
+
+  @Test
+  public void sizeOfDirectory() throws IOException {
+    File directory = temporaryFolder.newFolder("db.kcd");
+    write(new File(directory, "a"), 100);
+    write(new File(directory, "b"), 23);
+    assertThat(PageCacheWarmer.size(directory), is(123L));
+    assertThat(PageCacheWarmer.size(new File(directory, "a")), is(100L));
+  }
+
+  private static File write(File file, int length) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[length]);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+}
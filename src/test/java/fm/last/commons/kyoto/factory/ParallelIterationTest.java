@@ -0,0 +1,268 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.RecordIterator;
+
+public class ParallelIterationTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Test
+  public void partitionsAreVisitedByWorkerThreads() {
+    List<ListRecordIterator> partitions = partitions(8, 1000);
+    CountingVisitor visitor = new CountingVisitor();
+
+    ParallelIteration.iterate(iterators(partitions), visitor, 3);
+
+    assertThat(visitor.counts.size(), is(8000));
+    assertThat(visitor.duplicates.get(), is(0));
+    for (String thread : visitor.threads.keySet()) {
+      assertTrue(thread, thread.startsWith("kyoto-iterate"));
+    }
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void singlePartitionIsSpreadAcrossThreads() throws InterruptedException {
+    List<ListRecordIterator> partitions = partitions(1, 5000);
+    final CountDownLatch concurrent = new CountDownLatch(2);
+    CountingVisitor visitor = new CountingVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        if (concurrent.getCount() > 0 && !threads.containsKey(Thread.currentThread().getName())) {
+          concurrent.countDown();
+          try {
+            concurrent.await(5, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        super.record(key, value);
+      }
+    };
+
+    ParallelIteration.iterate(iterators(partitions), visitor, 4);
+
+    assertThat(concurrent.getCount(), is(0L));
+    assertThat(visitor.counts.size(), is(5000));
+    assertThat(visitor.duplicates.get(), is(0));
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void fewerPartitionsThanThreads() {
+    List<ListRecordIterator> partitions = partitions(2, 3000);
+    CountingVisitor visitor = new CountingVisitor();
+
+    ParallelIteration.iterate(iterators(partitions), visitor, 4);
+
+    assertThat(visitor.counts.size(), is(6000));
+    assertThat(visitor.duplicates.get(), is(0));
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void parallelismOfOneVisitsOnCallingThread() {
+    List<ListRecordIterator> partitions = partitions(3, 10);
+    CountingVisitor visitor = new CountingVisitor();
+
+    ParallelIteration.iterate(iterators(partitions), visitor, 1);
+
+    assertThat(visitor.counts.size(), is(30));
+    assertThat(visitor.threads.keySet().iterator().next(), is(Thread.currentThread().getName()));
+    assertThat(visitor.threads.size(), is(1));
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void visitorFailureIsReported() {
+    List<ListRecordIterator> partitions = partitions(1, 5000);
+    final IllegalStateException failure = new IllegalStateException();
+    ReadOnlyVisitor visitor = new CountingVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        if (new String(key, UTF_8).equals("0-1234")) {
+          throw failure;
+        }
+      }
+    };
+
+    try {
+      ParallelIteration.iterate(iterators(partitions), visitor, 4);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause(), is((Throwable) failure));
+    }
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void failureOnCallingThreadIsReported() {
+    List<ListRecordIterator> partitions = partitions(3, 10);
+    final IllegalStateException failure = new IllegalStateException();
+    ReadOnlyVisitor visitor = new CountingVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        if (new String(key, UTF_8).equals("0-5")) {
+          throw failure;
+        }
+      }
+    };
+
+    try {
+      ParallelIteration.iterate(iterators(partitions), visitor, 1);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause(), is((Throwable) failure));
+    }
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void interruptedCallerFails() {
+    List<ListRecordIterator> partitions = partitions(3, 10);
+    CountingVisitor visitor = new CountingVisitor();
+
+    Thread.currentThread().interrupt();
+    try {
+      ParallelIteration.iterate(iterators(partitions), visitor, 1);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause(), instanceOf(InterruptedException.class));
+    } finally {
+      assertThat(Thread.interrupted(), is(true));
+    }
+    assertThat(visitor.counts.size(), is(0));
+    assertClosed(partitions);
+  }
+
+  @Test
+  public void failureInPartitionedModeIsReported() {
+    List<ListRecordIterator> partitions = partitions(4, 100);
+    final IllegalStateException failure = new IllegalStateException();
+    ReadOnlyVisitor visitor = new CountingVisitor() {
+      @Override
+      public void record(byte[] key, byte[] value) {
+        if (new String(key, UTF_8).equals("2-50")) {
+          throw failure;
+        }
+      }
+    };
+
+    try {
+      ParallelIteration.iterate(iterators(partitions), visitor, 2);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause(), is((Throwable) failure));
+    }
+    assertClosed(partitions);
+  }
+
+  private static List<ListRecordIterator> partitions(int count, int recordsPerPartition) {
+    List<ListRecordIterator> partitions = new ArrayList<ListRecordIterator>(count);
+    for (int partition = 0; partition < count; partition++) {
+      List<byte[][]> entries = new ArrayList<byte[][]>(recordsPerPartition);
+      for (int record = 0; record < recordsPerPartition; record++) {
+        byte[] key = (partition + "-" + record).getBytes(UTF_8);
+        entries.add(new byte[][] { key, key });
+      }
+      partitions.add(new ListRecordIterator(entries));
+    }
+    return partitions;
+  }
+
+  private static List<RecordIterator<byte[][]>> iterators(List<ListRecordIterator> partitions) {
+    return new ArrayList<RecordIterator<byte[][]>>(partitions);
+  }
+
+  private static void assertClosed(List<ListRecordIterator> partitions) {
+    for (ListRecordIterator partition : partitions) {
+      assertThat(partition.closed, is(true));
+    }
+  }
+
+  private static class CountingVisitor implements ReadOnlyVisitor {
+
+    final ConcurrentHashMap<String, Boolean> counts = new ConcurrentHashMap<String, Boolean>();
+    final ConcurrentHashMap<String, Boolean> threads = new ConcurrentHashMap<String, Boolean>();
+    final AtomicInteger duplicates = new AtomicInteger();
+
+    @Override
+    public void record(byte[] key, byte[] value) {
+      threads.put(Thread.currentThread().getName(), Boolean.TRUE);
+      if (counts.put(new String(key, UTF_8), Boolean.TRUE) != null) {
+        duplicates.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void emptyRecord(byte[] key) {
+      fail();
+    }
+
+  }
+
+  private static class ListRecordIterator implements RecordIterator<byte[][]> {
+
+    private final Iterator<byte[][]> delegate;
+    private volatile boolean closed;
+
+    ListRecordIterator(List<byte[][]> entries) {
+      delegate = entries.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public byte[][] next() {
+      return delegate.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+}
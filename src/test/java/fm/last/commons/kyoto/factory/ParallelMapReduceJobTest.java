@@ -0,0 +1,299 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.RecordIterator;
+import fm.last.commons.kyoto.mapreduce.Combiner;
+import fm.last.commons.kyoto.mapreduce.Context;
+import fm.last.commons.kyoto.mapreduce.Mapper;
+import fm.last.commons.kyoto.mapreduce.Reducer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ParallelMapReduceJobTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Mock
+  private KyotoDb mockDb;
+
+  private File temporaryFolder;
+  private ConcurrentMap<String, Integer> wordCounts;
+  private ParallelMapReduceJob job;
+
+  @Before
+  public void setup() throws IOException {
+    temporaryFolder = File.createTempFile("ParallelMapReduceJobTest", "");
+    temporaryFolder.delete();
+    temporaryFolder.mkdir();
+    wordCounts = new ConcurrentHashMap<String, Integer>();
+    job = new ParallelMapReduceJob(new WordMapper(), new CountReducer(wordCounts));
+    job.setTemporaryDbFolder(temporaryFolder);
+    job.setParallelism(3);
+  }
+
+  @After
+  public void teardown() {
+    temporaryFolder.delete();
+  }
+
+  @Test
+  public void wordCount() {
+    givenInput(3, "some words in here", "words are great", "some words are great in books");
+
+    job.executeWith(mockDb);
+
+    assertThat(wordCounts.size(), is(7));
+    assertThat(wordCounts.get("words"), is(3));
+    assertThat(wordCounts.get("books"), is(1));
+    assertThat(wordCounts.get("are"), is(2));
+  }
+
+  @Test
+  public void spillsToDisk() {
+    job.setMapBufferSize(100);
+    job.setPartitions(5);
+    givenManyRecords(2, 2000);
+
+    job.executeWith(mockDb);
+
+    assertCountsOfManyRecords(2000);
+    assertThat(temporaryFolder.list().length, is(0));
+  }
+
+  @Test
+  public void spillsCompressed() {
+    job.setMapBufferSize(100);
+    job.setCompressTemporaryDb(true);
+    givenManyRecords(1, 500);
+
+    job.executeWith(mockDb);
+
+    assertCountsOfManyRecords(500);
+  }
+
+  @Test
+  public void combinerCollapsesMapOutput() {
+    final Map<String, Integer> valuesSeen = new ConcurrentHashMap<String, Integer>();
+    job = new ParallelMapReduceJob(new WordMapper(), new Reducer() {
+      private final Reducer counter = new CountReducer(wordCounts);
+
+      @Override
+      public void reduce(byte[] key, Iterable<byte[]> values) {
+        List<byte[]> list = new ArrayList<byte[]>();
+        for (byte[] value : values) {
+          list.add(value);
+        }
+        valuesSeen.put(new String(key, UTF_8), list.size());
+        counter.reduce(key, list);
+      }
+    });
+    job.setParallelism(1);
+    job.setCombiner(new SumCombiner());
+    givenInput(1, "a a a b", "a b c", "a");
+
+    job.executeWith(mockDb);
+
+    assertThat(wordCounts.get("a"), is(5));
+    assertThat(wordCounts.get("b"), is(2));
+    assertThat(wordCounts.get("c"), is(1));
+    assertThat(valuesSeen.get("a"), is(1));
+    assertThat(valuesSeen.get("b"), is(1));
+  }
+
+  @Test
+  public void combinesBeforeSpilling() {
+    job.setMapBufferSize(100);
+    job.setPartitions(5);
+    job.setCombiner(new SumCombiner());
+    givenManyRecords(2, 1000);
+
+    job.executeWith(mockDb);
+
+    assertCountsOfManyRecords(1000);
+    assertThat(temporaryFolder.list().length, is(0));
+  }
+
+  @Test
+  public void reducerSeesKeysInOrderWithinPartition() {
+    final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+    job = new ParallelMapReduceJob(new WordMapper(), new Reducer() {
+      @Override
+      public void reduce(byte[] key, Iterable<byte[]> values) {
+        keys.add(new String(key, UTF_8));
+      }
+    });
+    job.setParallelism(2);
+    job.setPartitions(1);
+    job.setMapBufferSize(64);
+    job.setTemporaryDbFolder(temporaryFolder);
+    givenInput(2, "d c b a", "b e a f", "g a");
+
+    job.executeWith(mockDb);
+
+    assertThat(keys, is(Arrays.asList("a", "b", "c", "d", "e", "f", "g")));
+  }
+
+  @Test
+  public void mapperFailureIsReported() {
+    job = new ParallelMapReduceJob(new Mapper() {
+      @Override
+      public void map(byte[] key, byte[] value, Context context) {
+        throw new IllegalStateException("boom");
+      }
+    }, new CountReducer(wordCounts));
+    givenManyRecords(2, 5000);
+
+    try {
+      job.executeWith(mockDb);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause() instanceof IllegalStateException, is(true));
+    }
+  }
+
+  @Test
+  public void partitionsAreStable() {
+    byte[] key = "word".getBytes(UTF_8);
+    assertThat(ParallelMapReduceJob.partitionFor(key, 7), is(ParallelMapReduceJob.partitionFor(key.clone(), 7)));
+  }
+
+  private void givenManyRecords(int inputs, int records) {
+    String[] lines = new String[records];
+    for (int i = 0; i < records; i++) {
+      lines[i] = "word-" + (i % 10) + " other-" + (i % 3);
+    }
+    givenInput(inputs, lines);
+  }
+
+  private void assertCountsOfManyRecords(int records) {
+    assertThat(wordCounts.size(), is(13));
+    int total = 0;
+    for (int i = 0; i < 10; i++) {
+      total += wordCounts.get("word-" + i);
+    }
+    assertThat(total, is(records));
+  }
+
+  private void givenInput(int inputs, String... lines) {
+    List<List<byte[][]>> partitions = new ArrayList<List<byte[][]>>();
+    for (int i = 0; i < inputs; i++) {
+      partitions.add(new ArrayList<byte[][]>());
+    }
+    for (int i = 0; i < lines.length; i++) {
+      partitions.get(i % inputs).add(new byte[][] { ("key-" + i).getBytes(UTF_8), lines[i].getBytes(UTF_8) });
+    }
+    List<RecordIterator<byte[][]>> iterators = new ArrayList<RecordIterator<byte[][]>>();
+    for (List<byte[][]> partition : partitions) {
+      iterators.add(new ListRecordIterator(partition));
+    }
+    when(mockDb.partitionedEntries(job.getParallelism())).thenReturn(iterators);
+  }
+
+  private static class WordMapper implements Mapper {
+    @Override
+    public void map(byte[] key, byte[] value, Context context) {
+      for (String word : new String(value, UTF_8).split(" ")) {
+        context.write(word.getBytes(UTF_8), new byte[] { 1 });
+      }
+    }
+  }
+
+  private static class SumCombiner implements Combiner {
+    @Override
+    public void combine(byte[] key, Iterable<byte[]> values, Context context) {
+      int count = 0;
+      for (byte[] value : values) {
+        count += value[0];
+      }
+      context.write(key, new byte[] { (byte) count });
+    }
+  }
+
+  private static class CountReducer implements Reducer {
+
+    private final Map<String, Integer> counts;
+
+    CountReducer(Map<String, Integer> counts) {
+      this.counts = counts;
+    }
+
+    @Override
+    public void reduce(byte[] key, Iterable<byte[]> values) {
+      int count = 0;
+      for (byte[] value : values) {
+        count += value[0];
+      }
+      if (counts.put(new String(key, UTF_8), count) != null) {
+        throw new IllegalStateException("Key reduced twice: " + new String(key, UTF_8));
+      }
+    }
+  }
+
+  private static class ListRecordIterator implements RecordIterator<byte[][]> {
+
+    private final Iterator<byte[][]> delegate;
+
+    ListRecordIterator(List<byte[][]> entries) {
+      delegate = entries.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return delegate.hasNext();
+    }
+
+    @Override
+    public byte[][] next() {
+      return delegate.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+import fm.last.commons.kyoto.Synchronization;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RangeScannerTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Mock
+  private KyotoCursor mockCursor;
+  @Mock
+  private KyotoDb mockDb;
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void scanStopsAtUpperBound() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch("b", "c"), batch("d", "e"));
+    CollectingVisitor visitor = new CollectingVisitor();
+
+    RangeScanner.scan(mockCursor, bytes("b"), bytes("e"), KeyOrder.LEXICAL, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("b", "c", "d")));
+    verify(mockCursor).scanForwardFromKey(bytes("b"));
+    verify(mockCursor, times(2)).nextBatch(CursorRecordIterator.BATCH_SIZE);
+    verify(mockCursor).close();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void scanOpenRange() throws IOException {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch("a", "b"), batch());
+    CollectingVisitor visitor = new CollectingVisitor();
+
+    RangeScanner.scan(mockCursor, null, null, KeyOrder.LEXICAL, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("a", "b")));
+    verify(mockCursor).scanForwardFromStart();
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void scanFollowsDatabaseKeyOrder() {
+    when(mockCursor.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(batch("c", "b", "a"));
+    CollectingVisitor visitor = new CollectingVisitor();
+
+    RangeScanner.scan(mockCursor, bytes("c"), bytes("a"), KeyOrder.LEXICAL_DESCENDING, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("c", "b")));
+  }
+
+  @Test
+  public void scanDescendingExcludesUpperBoundAndStopsBelowLowerBound() throws IOException {
+    when(mockCursor.getEntry(CursorStep.NO_STEP)).thenReturn(entry("d"), entry("c"), entry("b"), entry("a"));
+    CollectingVisitor visitor = new CollectingVisitor();
+
+    RangeScanner.scanDescending(mockCursor, bytes("b"), bytes("d"), KeyOrder.LEXICAL, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("c", "b")));
+    verify(mockCursor).scanBackwardsFromKey(bytes("d"));
+    verify(mockCursor, times(3)).stepBackwards();
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void scanDescendingOpenRange() throws IOException {
+    when(mockCursor.getEntry(CursorStep.NO_STEP)).thenReturn(entry("b"), entry("a"), null);
+    CollectingVisitor visitor = new CollectingVisitor();
+
+    RangeScanner.scanDescending(mockCursor, null, null, KeyOrder.LEXICAL, visitor);
+
+    assertThat(visitor.keys, is(Arrays.asList("b", "a")));
+    verify(mockCursor).scanBackwardsFromEnd();
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void countReadsKeysOnly() throws IOException {
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenReturn(bytes("b"), bytes("c"), bytes("d"));
+
+    assertThat(RangeScanner.count(mockCursor, bytes("b"), bytes("d"), KeyOrder.LEXICAL), is(2L));
+
+    verify(mockCursor, never()).nextBatch(CursorRecordIterator.BATCH_SIZE);
+    verify(mockCursor).close();
+  }
+
+  @Test
+  public void countEmptyRange() {
+    when(mockCursor.getKey(CursorStep.NEXT_RECORD)).thenReturn(null);
+
+    assertThat(RangeScanner.count(mockCursor, bytes("b"), null, KeyOrder.LEXICAL), is(0L));
+  }
+
+  @Test
+  public void removeCommitsInChunks() throws IOException {
+    when(mockDb.cursor()).thenReturn(mockCursor);
+    when(mockCursor.getKey(CursorStep.NO_STEP)).thenReturn(bytes("a"), bytes("b"), bytes("c"), bytes("d"),
+        bytes("e"));
+
+    assertThat(RangeScanner.remove(mockDb, bytes("a"), bytes("e"), KeyOrder.LEXICAL, 2), is(4L));
+
+    verify(mockDb, times(3)).begin(Synchronization.LOGICAL);
+    verify(mockDb, times(3)).commit();
+    verify(mockCursor, times(4)).remove();
+    verify(mockCursor, times(3)).scanForwardFromKey(bytes("a"));
+    verify(mockCursor, times(3)).close();
+    verify(mockDb, never()).rollback();
+  }
+
+  @Test
+  public void removeRollsBackFailedChunk() throws IOException {
+    when(mockDb.cursor()).thenReturn(mockCursor);
+    when(mockCursor.getKey(CursorStep.NO_STEP)).thenReturn(bytes("a"));
+    IllegalStateException failure = new IllegalStateException();
+    doThrow(failure).when(mockCursor).remove();
+
+    try {
+      RangeScanner.remove(mockDb, null, null, KeyOrder.LEXICAL, 2);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e, is(failure));
+    }
+
+    verify(mockDb).rollback();
+    verify(mockDb, never()).commit();
+    verify(mockCursor).close();
+  }
+
+  private static List<byte[][]> batch(String... keys) {
+    if (keys.length == 0) {
+      return Collections.emptyList();
+    }
+    List<byte[][]> batch = new ArrayList<byte[][]>();
+    for (String key : keys) {
+      batch.add(entry(key));
+    }
+    return batch;
+  }
+
+  private static byte[][] entry(String key) {
+    return new byte[][] { bytes(key), bytes(key.toUpperCase()) };
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+  private static class CollectingVisitor implements ReadOnlyVisitor {
+
+    private final List<String> keys = new ArrayList<String>();
+
+    @Override
+    public void record(byte[] key, byte[] value) {
+      assertThat(new String(value, UTF_8), is(new String(key, UTF_8).toUpperCase()));
+      keys.add(new String(key, UTF_8));
+    }
+
+    @Override
+    public void emptyRecord(byte[] key) {
+      fail();
+    }
+
+  }
+
+}
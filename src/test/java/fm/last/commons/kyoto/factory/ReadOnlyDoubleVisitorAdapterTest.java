@@ -0,0 +1,51 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.mockito.Mockito.verify;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.ReadOnlyDoubleVisitor;
+import fm.last.commons.kyoto.ReadOnlyVisitor;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReadOnlyDoubleVisitorAdapterTest {
+
+  private static final byte[] KEY = new byte[3];
+
+  @Mock
+  private ReadOnlyDoubleVisitor mockVisitor;
+
+  @Test
+  public void record() {
+    ReadOnlyVisitor adapter = new ReadOnlyDoubleVisitorAdapter(mockVisitor);
+    adapter.record(KEY, Codec.toBytes(-1.5d));
+    verify(mockVisitor).record(KEY, -1.5d);
+  }
+
+  @Test
+  public void emptyRecord() {
+    ReadOnlyVisitor adapter = new ReadOnlyDoubleVisitorAdapter(mockVisitor);
+    adapter.emptyRecord(KEY);
+    verify(mockVisitor).emptyRecord(KEY);
+  }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.WritableVisitor;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+import fm.last.commons.kyoto.factory.ReadReplicaKyotoDb.Replica;
+import fm.last.commons.kyoto.factory.ReadReplicaKyotoDb.ReplicaFactory;
+
+public class ReadReplicaKyotoDbTest {
+
+  private static final byte[] KEY = new byte[] { 1 };
+  private static final byte[] VALUE = new byte[] { 2 };
+
+  private final List<KyotoDb> created = new ArrayList<KyotoDb>();
+  private ReadReplicaKyotoDb replicaDb;
+
+  @Before
+  public void setup() throws IOException {
+    replicaDb = new ReadReplicaKyotoDb(DbType.FILE_HASH, new File("db.kch"), 3, new ReplicaFactory() {
+      @Override
+      public KyotoDb newReplica(ErrorListener errorListener) {
+        KyotoDb replica = mock(KyotoDb.class);
+        when(replica.get(KEY)).thenReturn(VALUE);
+        created.add(replica);
+        return replica;
+      }
+    });
+    replicaDb.open();
+  }
+
+  @Test
+  public void openOpensEveryReplica() throws IOException {
+    assertThat(created.size(), is(3));
+    for (KyotoDb replica : created) {
+      verify(replica).open();
+    }
+    assertThat(replicaDb.inFlightCounts(), is(new long[] { 0, 0, 0 }));
+  }
+
+  @Test
+  public void readsAreRoutedToAReplica() {
+    assertThat(replicaDb.get(KEY), is(VALUE));
+    assertThat(replicaDb.inFlightCounts(), is(new long[] { 0, 0, 0 }));
+  }
+
+  @Test
+  public void writesAreRejected() {
+    try {
+      replicaDb.set(KEY, VALUE);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      replicaDb.remove(KEY);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      replicaDb.iterate((WritableVisitor) null);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      replicaDb.occupy(AccessType.READ_WRITE, mock(KyotoFileProcessor.class));
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    for (KyotoDb replica : created) {
+      verify(replica, never()).set(KEY, VALUE);
+      verify(replica, never()).iterate(any(WritableVisitor.class));
+    }
+  }
+
+  @Test
+  public void closeClosesEveryReplica() throws IOException {
+    replicaDb.close();
+    for (KyotoDb replica : created) {
+      verify(replica).close();
+    }
+    try {
+      replicaDb.get(KEY);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void closeTwiceFails() throws IOException {
+    replicaDb.close();
+    replicaDb.close();
+  }
+
+  @Test
+  public void reopenSwitchesToNewReplicas() throws IOException {
+    List<KyotoDb> previous = new ArrayList<KyotoDb>(created);
+    replicaDb.reopen();
+    assertThat(created.size(), is(6));
+    for (KyotoDb replica : previous) {
+      verify(replica).close();
+    }
+    replicaDb.get(KEY);
+    for (KyotoDb replica : previous) {
+      verify(replica, never()).get(KEY);
+    }
+  }
+
+  @Test
+  public void failedReopenKeepsCurrentReplicas() throws IOException {
+    final KyotoDb unreadable = mock(KyotoDb.class);
+    doThrow(new IOException("corrupt")).when(unreadable).open();
+    final List<KyotoDb> replicas = new ArrayList<KyotoDb>();
+    ReadReplicaKyotoDb db = new ReadReplicaKyotoDb(DbType.FILE_HASH, new File("db.kch"), 2, new ReplicaFactory() {
+      @Override
+      public KyotoDb newReplica(ErrorListener errorListener) {
+        KyotoDb replica = replicas.size() == 3 ? unreadable : mock(KyotoDb.class);
+        replicas.add(replica);
+        return replica;
+      }
+    });
+    db.open();
+    try {
+      db.reopen();
+      fail();
+    } catch (IOException expected) {
+    }
+    verify(replicas.get(0), never()).close();
+    verify(replicas.get(1), never()).close();
+    verify(replicas.get(2)).close();
+    verify(unreadable, never()).close();
+    db.get(KEY);
+  }
+
+  @Test(timeout = 10000)
+  public void reopenWaitsForReadsInProgress() throws Exception {
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    Answer<byte[]> blockingRead = new Answer<byte[]>() {
+      @Override
+      public byte[] answer(InvocationOnMock invocation) throws Throwable {
+        reading.countDown();
+        release.await();
+        return VALUE;
+      }
+    };
+    for (KyotoDb replica : created) {
+      when(replica.get(KEY)).thenAnswer(blockingRead);
+    }
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          result.set(replicaDb.get(KEY));
+        } catch (RuntimeException e) {
+          result.set(e);
+        }
+      }
+    };
+    reader.start();
+    reading.await();
+
+    Thread reopener = new Thread() {
+      @Override
+      public void run() {
+        try {
+          replicaDb.reopen();
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    reopener.start();
+    reopener.join(100);
+    assertThat(reopener.isAlive(), is(true));
+    assertThat(replicaDb.get(KEY), is(VALUE));
+
+    release.countDown();
+    reopener.join();
+    reader.join();
+    assertThat(result.get(), is((Object) VALUE));
+  }
+
+  @Test
+  public void busyPreferredReplicaIsAvoided() {
+    Replica[] replicas = new Replica[] { new Replica(mock(KyotoDb.class)), new Replica(mock(KyotoDb.class)) };
+    Replica preferred = ReadReplicaKyotoDb.choose(replicas);
+    preferred.gate.enter();
+    Replica other = replicas[0] == preferred ? replicas[1] : replicas[0];
+    assertThat(ReadReplicaKyotoDb.choose(replicas), is(sameInstance(other)));
+    preferred.gate.exit();
+    assertThat(ReadReplicaKyotoDb.choose(replicas), is(sameInstance(preferred)));
+  }
+
+  @Test
+  public void encodingIsAppliedToNewReplicas() throws IOException {
+    replicaDb.setEncoding("ISO-8859-1");
+    for (KyotoDb replica : created) {
+      verify(replica).setEncoding("ISO-8859-1");
+    }
+    replicaDb.reopen();
+    verify(created.get(5)).setEncoding("ISO-8859-1");
+  }
+
+}
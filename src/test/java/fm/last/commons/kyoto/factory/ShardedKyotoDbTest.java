@@ -0,0 +1,310 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.arrayContainingInAnyOrder;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.CursorStep;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KeyStringVisitor;
+import fm.last.commons.kyoto.KeyVisitor;
+import fm.last.commons.kyoto.KyotoCursor;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.RecordIterator;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ShardedKyotoDbTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  @Mock
+  private KyotoDb mockShard0;
+  @Mock
+  private KyotoDb mockShard1;
+  @Mock
+  private KyotoCursor mockCursor0;
+  @Mock
+  private KyotoCursor mockCursor1;
+
+  private ShardedKyotoDb shardedDb;
+  private byte[] keyInShard0;
+  private byte[] keyInShard1;
+
+  @Before
+  public void setup() throws IOException {
+    shardedDb = new ShardedKyotoDb(DbType.FILE_HASH, new File("db.kch"), Arrays.asList(mockShard0, mockShard1));
+    keyInShard0 = keyForShard(0);
+    keyInShard1 = keyForShard(1);
+    when(mockShard0.cursor()).thenReturn(mockCursor0);
+    when(mockShard1.cursor()).thenReturn(mockCursor1);
+    shardedDb.open();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    shardedDb.close();
+  }
+
+  @Test
+  public void remainingShardsAreClosedWhenOneFails() throws IOException {
+    IllegalStateException failure = new IllegalStateException();
+    doThrow(failure).when(mockShard0).close();
+    try {
+      shardedDb.close();
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e, is(sameInstance(failure)));
+    }
+    verify(mockShard1).close();
+    doNothing().when(mockShard0).close();
+  }
+
+  @Test
+  public void shardIndexIsDeterministic() {
+    byte[] key = "scrobble".getBytes(UTF_8);
+    assertThat(ShardedKyotoDb.shardIndex(key, 16), is(ShardedKyotoDb.shardIndex(key.clone(), 16)));
+  }
+
+  @Test
+  public void shardIndexSpreadsKeys() {
+    int shardCount = 8;
+    int[] counts = new int[shardCount];
+    for (int i = 0; i < 8000; i++) {
+      counts[ShardedKyotoDb.shardIndex(("key-" + i).getBytes(UTF_8), shardCount)]++;
+    }
+    for (int count : counts) {
+      assertThat(count, is(greaterThan(800)));
+    }
+  }
+
+  @Test
+  public void shardFileNames() {
+    File template = new File("/data", "db.kch");
+    assertThat(KyotoDbBuilder.shardFile(template, 3, 16), is(new File("/data", "db-03.kch")));
+    assertThat(KyotoDbBuilder.shardFile(template, 3, 200), is(new File("/data", "db-003.kch")));
+  }
+
+  @Test
+  public void singleRecordOperationsAreRouted() {
+    when(mockShard1.get(keyInShard1)).thenReturn(keyInShard1);
+    assertThat(shardedDb.get(keyInShard1), is(keyInShard1));
+    shardedDb.set(keyInShard0, keyInShard0);
+    verify(mockShard0).set(keyInShard0, keyInShard0);
+    verify(mockShard1, never()).set(any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void bulkGetIsFannedOut() {
+    when(mockShard0.get(any(byte[][].class), eq(Atomicity.NONE))).thenReturn(new byte[][] { keyInShard0, keyInShard0 });
+    when(mockShard1.get(any(byte[][].class), eq(Atomicity.NONE))).thenReturn(new byte[][] { keyInShard1, keyInShard1 });
+
+    byte[][] values = shardedDb.get(new byte[][] { keyInShard0, keyInShard1 }, Atomicity.NONE);
+
+    assertThat(values, is(arrayContainingInAnyOrder(keyInShard0, keyInShard0, keyInShard1, keyInShard1)));
+    verify(mockShard0).get(new byte[][] { keyInShard0 }, Atomicity.NONE);
+    verify(mockShard1).get(new byte[][] { keyInShard1 }, Atomicity.NONE);
+  }
+
+  @Test
+  public void bulkSetPartitionsPairs() {
+    byte[] value0 = new byte[] { 0 };
+    byte[] value1 = new byte[] { 1 };
+    when(mockShard0.set(any(byte[][].class), eq(Atomicity.ATOMIC))).thenReturn(1L);
+    when(mockShard1.set(any(byte[][].class), eq(Atomicity.ATOMIC))).thenReturn(1L);
+
+    long count = shardedDb.set(new byte[][] { keyInShard1, value1, keyInShard0, value0 }, Atomicity.ATOMIC);
+
+    assertThat(count, is(2L));
+    verify(mockShard0).set(new byte[][] { keyInShard0, value0 }, Atomicity.ATOMIC);
+    verify(mockShard1).set(new byte[][] { keyInShard1, value1 }, Atomicity.ATOMIC);
+  }
+
+  @Test
+  public void bulkRemoveSkipsShardsWithoutKeys() {
+    when(mockShard0.remove(any(byte[][].class), eq(Atomicity.NONE))).thenReturn(1L);
+    assertThat(shardedDb.remove(new byte[][] { keyInShard0 }, Atomicity.NONE), is(1L));
+    verify(mockShard1, never()).remove(any(byte[][].class), any(Atomicity.class));
+  }
+
+  @Test
+  public void aggregates() {
+    when(mockShard0.recordCount()).thenReturn(3L);
+    when(mockShard1.recordCount()).thenReturn(4L);
+    when(mockShard0.sizeInBytes()).thenReturn(100L);
+    when(mockShard1.sizeInBytes()).thenReturn(200L);
+    Map<String, String> status0 = new HashMap<String, String>();
+    status0.put("count", "3");
+    status0.put("size", "100");
+    when(mockShard0.status()).thenReturn(status0);
+    when(mockShard1.status()).thenReturn(Collections.singletonMap("count", "4"));
+
+    assertThat(shardedDb.recordCount(), is(7L));
+    assertThat(shardedDb.sizeInBytes(), is(300L));
+    Map<String, String> status = shardedDb.status();
+    assertThat(status.get("count"), is("7"));
+    assertThat(status.get("size"), is("100"));
+    assertThat(status.get("shards"), is("2"));
+    assertThat(status.get("shard.1.count"), is("4"));
+  }
+
+  @Test
+  public void cursorVisitsShardsInTurn() throws IOException {
+    byte[][] entry0 = new byte[][] { keyInShard0, keyInShard0 };
+    byte[][] entry1 = new byte[][] { keyInShard1, keyInShard1 };
+    when(mockCursor0.getEntry(CursorStep.NEXT_RECORD)).thenReturn(entry0, (byte[][]) null);
+    when(mockCursor1.getEntry(CursorStep.NEXT_RECORD)).thenReturn(entry1, (byte[][]) null);
+
+    KyotoCursor cursor = shardedDb.cursor();
+    cursor.scanForwardFromStart();
+    assertThat(cursor.getEntry(CursorStep.NEXT_RECORD), is(entry0));
+    assertThat(cursor.getEntry(CursorStep.NEXT_RECORD), is(entry1));
+    assertThat(cursor.getEntry(CursorStep.NEXT_RECORD), is(nullValue()));
+    cursor.close();
+
+    verify(mockCursor1).scanForwardFromStart();
+    verify(mockCursor0).close();
+    verify(mockCursor1).close();
+  }
+
+  @Test
+  public void cursorBatchContinuesIntoNextShard() {
+    byte[][] entry0 = new byte[][] { keyInShard0, keyInShard0 };
+    byte[][] entry1 = new byte[][] { keyInShard1, keyInShard1 };
+    when(mockCursor0.nextBatch(3)).thenReturn(Collections.singletonList(entry0));
+    when(mockCursor1.nextBatch(2)).thenReturn(Collections.singletonList(entry1));
+
+    KyotoCursor cursor = shardedDb.cursor();
+    cursor.scanForwardFromStart();
+
+    assertThat(cursor.nextBatch(3), is(Arrays.asList(entry0, entry1)));
+    verify(mockCursor1).scanForwardFromStart();
+  }
+
+  @Test
+  public void unpositionedCursorReturnsNull() {
+    assertThat(shardedDb.cursor().getKey(CursorStep.NO_STEP), is(nullValue()));
+  }
+
+  @Test
+  public void partitionsPerShard() {
+    RecordIterator<byte[][]> partition0 = CursorRecordIterator.entries(mockCursor0);
+    RecordIterator<byte[][]> partition1 = CursorRecordIterator.entries(mockCursor1);
+    when(mockShard0.partitionedEntries(2)).thenReturn(Collections.singletonList(partition0));
+    when(mockShard1.partitionedEntries(1)).thenReturn(Collections.singletonList(partition1));
+
+    assertThat(shardedDb.partitionedEntries(3), is(Arrays.asList(partition0, partition1)));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void shardsGroupedWhenFewerPartitionsThanShards() {
+    when(mockShard0.entries()).thenReturn(CursorRecordIterator.entries(mockCursor0));
+    when(mockShard1.entries()).thenReturn(CursorRecordIterator.entries(mockCursor1));
+    byte[][] entry0 = new byte[][] { keyInShard0, keyInShard0 };
+    byte[][] entry1 = new byte[][] { keyInShard1, keyInShard1 };
+    when(mockCursor0.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(Collections.singletonList(entry0),
+        Collections.<byte[][]> emptyList());
+    when(mockCursor1.nextBatch(CursorRecordIterator.BATCH_SIZE)).thenReturn(Collections.singletonList(entry1),
+        Collections.<byte[][]> emptyList());
+
+    List<RecordIterator<byte[][]>> partitions = shardedDb.partitionedEntries(1);
+
+    assertThat(partitions.size(), is(1));
+    RecordIterator<byte[][]> partition = partitions.get(0);
+    assertThat(partition.next(), is(entry0));
+    assertThat(partition.next(), is(entry1));
+    assertThat(partition.hasNext(), is(false));
+  }
+
+  @Test
+  public void matchStopsVisitingShardsWhenVisitorStops() {
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        ((KeyStringVisitor) invocation.getArguments()[1]).key("a");
+        return null;
+      }
+    }).when(mockShard0).matchKeysByRegex(eq("a"), any(KeyStringVisitor.class));
+    KeyStringVisitor visitor = new KeyStringVisitor() {
+      @Override
+      public boolean key(String key) {
+        return false;
+      }
+    };
+
+    shardedDb.matchKeysByRegex("a", visitor);
+
+    verify(mockShard1, never()).matchKeysByRegex(eq("a"), any(KeyStringVisitor.class));
+  }
+
+  @Test
+  public void matchVisitsEveryShardWhileVisitorContinues() {
+    KeyVisitor visitor = new KeyVisitor() {
+      @Override
+      public boolean key(byte[] key) {
+        return true;
+      }
+    };
+
+    shardedDb.matchKeysByPrefix(keyInShard0, visitor);
+
+    verify(mockShard0).matchKeysByPrefix(eq(keyInShard0), any(KeyVisitor.class));
+    verify(mockShard1).matchKeysByPrefix(eq(keyInShard0), any(KeyVisitor.class));
+  }
+
+  private static byte[] keyForShard(int shard) {
+    for (int i = 0;; i++) {
+      byte[] key = ("key-" + i).getBytes(UTF_8);
+      if (ShardedKyotoDb.shardIndex(key, 2) == shard) {
+        return key;
+      }
+    }
+  }
+
+}
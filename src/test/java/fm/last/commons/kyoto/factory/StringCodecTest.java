@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class StringCodecTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+  private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+  private static final String ASCII = "plain ascii key 123";
+  private static final String MULTI_BYTE = "caf\u00e9 \u65e5\u672c \ud83c\udfb5";
+
+  @Test
+  public void nulls() {
+    StringCodec codec = new StringCodec(UTF_8);
+    assertThat(codec.encode(null), is(nullValue()));
+    assertThat(codec.decode(null), is(nullValue()));
+  }
+
+  @Test
+  public void asciiMatchesStringMethods() {
+    assertRoundTrip(UTF_8, ASCII);
+  }
+
+  @Test
+  public void multiByteMatchesStringMethods() {
+    assertRoundTrip(UTF_8, MULTI_BYTE);
+  }
+
+  @Test
+  public void latin1MatchesStringMethods() {
+    assertRoundTrip(ISO_8859_1, "caf\u00e9 \u00ff");
+  }
+
+  @Test
+  public void otherCharsetsMatchStringMethods() {
+    assertRoundTrip(UTF_16, MULTI_BYTE);
+  }
+
+  @Test
+  public void emptyString() {
+    assertRoundTrip(UTF_8, "");
+  }
+
+  @Test
+  public void largeValuesExceedingScratchBuffer() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      builder.append(MULTI_BYTE);
+    }
+    assertRoundTrip(UTF_8, builder.toString());
+  }
+
+  @Test
+  public void unmappableCharactersAreReplaced() {
+    StringCodec codec = new StringCodec(ISO_8859_1);
+    assertThat(codec.encode(MULTI_BYTE), is(MULTI_BYTE.getBytes(ISO_8859_1)));
+  }
+
+  @Test
+  public void malformedBytesAreReplaced() {
+    byte[] malformed = new byte[] { 'a', (byte) 0xC3, 'b', (byte) 0xFF };
+    assertThat(new StringCodec(UTF_8).decode(malformed), is(new String(malformed, UTF_8)));
+  }
+
+  @Test
+  public void lazyCharSequenceReadsAsciiWithoutDecoding() {
+    LazyCharSequence sequence = new LazyCharSequence(ASCII.getBytes(UTF_8), new StringCodec(UTF_8));
+    assertThat(sequence.length(), is(ASCII.length()));
+    assertThat(sequence.charAt(6), is('a'));
+    assertThat(sequence.subSequence(0, 5).toString(), is("plain"));
+    assertThat(sequence.toString(), is(ASCII));
+  }
+
+  @Test
+  public void lazyCharSequenceDecodesMultiByte() {
+    LazyCharSequence sequence = new LazyCharSequence(MULTI_BYTE.getBytes(UTF_8), new StringCodec(UTF_8));
+    assertThat(sequence.length(), is(MULTI_BYTE.length()));
+    assertThat(sequence.charAt(3), is('\u00e9'));
+    assertThat(sequence.toString(), is(MULTI_BYTE));
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void lazyCharSequenceBounds() {
+    new LazyCharSequence(ASCII.getBytes(UTF_8), new StringCodec(UTF_8)).charAt(ASCII.length());
+  }
+
+  private static void assertRoundTrip(Charset charset, String value) {
+    StringCodec codec = new StringCodec(charset);
+    byte[] encoded = codec.encode(value);
+    assertThat(encoded, is(value.getBytes(charset)));
+    assertThat(codec.decode(encoded), is(new String(encoded, charset)));
+    assertThat(codec.decode(encoded), is(value));
+  }
+
+}
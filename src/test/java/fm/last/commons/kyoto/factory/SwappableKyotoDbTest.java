@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import fm.last.commons.kyoto.AccessType;
+import fm.last.commons.kyoto.DbType;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoFileProcessor;
+import fm.last.commons.kyoto.Synchronization;
+import fm.last.commons.kyoto.factory.ErrorHandler.ErrorListener;
+import fm.last.commons.kyoto.factory.SwappableKyotoDb.DbFactory;
+
+public class SwappableKyotoDbTest {
+
+  private static final byte[] KEY = new byte[] { 1 };
+  private static final byte[] OLD_VALUE = new byte[] { 2 };
+  private static final byte[] NEW_VALUE = new byte[] { 3 };
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final Map<File, KyotoDb> dbs = new HashMap<File, KyotoDb>();
+  private File oldFile;
+  private File newFile;
+  private KyotoDb oldDb;
+  private KyotoDb newDb;
+  private SwappableKyotoDb swappableDb;
+
+  @Before
+  public void setup() throws IOException {
+    oldFile = temporaryFolder.newFile("old.kct");
+    newFile = temporaryFolder.newFile("new.kct");
+    oldDb = mock(KyotoDb.class);
+    newDb = mock(KyotoDb.class);
+    when(oldDb.get(KEY)).thenReturn(OLD_VALUE);
+    when(newDb.get(KEY)).thenReturn(NEW_VALUE);
+    dbs.put(oldFile, oldDb);
+    dbs.put(newFile, newDb);
+    swappableDb = new SwappableKyotoDb(DbType.FILE_TREE, oldFile, new DbFactory() {
+      @Override
+      public KyotoDb newDb(File file, ErrorListener errorListener) {
+        return dbs.get(file);
+      }
+    });
+    swappableDb.open();
+  }
+
+  @Test
+  public void openOpensInitialFile() throws IOException {
+    verify(oldDb).open();
+    assertThat(swappableDb.getFile(), is(oldFile));
+    assertThat(swappableDb.get(KEY), is(OLD_VALUE));
+  }
+
+  @Test
+  public void swapSwitchesToReplacementAndClosesOldFile() throws IOException {
+    swappableDb.swap(newFile);
+    verify(newDb).open();
+    verify(oldDb).close();
+    assertThat(swappableDb.getFile(), is(newFile));
+    assertThat(swappableDb.get(KEY), is(NEW_VALUE));
+    assertThat(swappableDb.getSwapCount(), is(1L));
+  }
+
+  @Test
+  public void failedOpenKeepsCurrentFile() throws IOException {
+    doThrow(new IOException("corrupt")).when(newDb).open();
+    try {
+      swappableDb.swap(newFile, false);
+      fail();
+    } catch (IOException expected) {
+    }
+    verify(oldDb, never()).close();
+    assertThat(swappableDb.get(KEY), is(OLD_VALUE));
+    assertThat(swappableDb.getSwapCount(), is(0L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void replacementMustExist() throws IOException {
+    swappableDb.swap(new File(temporaryFolder.getRoot(), "missing.kct"));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void swapRequiresOpenDatabase() throws IOException {
+    swappableDb.close();
+    swappableDb.swap(newFile);
+  }
+
+  @Test
+  public void closeClosesCurrentFile() throws IOException {
+    swappableDb.swap(newFile, false);
+    swappableDb.close();
+    verify(newDb).close();
+    try {
+      swappableDb.get(KEY);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void encodingIsAppliedToReplacement() throws IOException {
+    swappableDb.setEncoding("ISO-8859-1");
+    swappableDb.swap(newFile, false);
+    verify(oldDb).setEncoding("ISO-8859-1");
+    verify(newDb).setEncoding("ISO-8859-1");
+  }
+
+  @Test
+  public void writesAndTransactionsAreRejected() {
+    try {
+      swappableDb.set(KEY, NEW_VALUE);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      swappableDb.begin(Synchronization.PHYSICAL);
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      swappableDb.commit();
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    try {
+      swappableDb.occupy(AccessType.READ_WRITE, mock(KyotoFileProcessor.class));
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+    verify(oldDb, never()).set(KEY, NEW_VALUE);
+    verify(oldDb, never()).begin(Synchronization.PHYSICAL);
+  }
+
+  @Test(timeout = 10000)
+  public void swapWaitsForCallsInProgressWithoutBlockingNewCalls() throws Exception {
+    final CountDownLatch reading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(oldDb.get(KEY)).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(InvocationOnMock invocation) throws Throwable {
+        reading.countDown();
+        release.await();
+        return OLD_VALUE;
+      }
+    });
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        result.set(swappableDb.get(KEY));
+      }
+    };
+    reader.start();
+    reading.await();
+
+    Thread swapper = new Thread() {
+      @Override
+      public void run() {
+        try {
+          swappableDb.swap(newFile, false);
+        } catch (IOException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    swapper.start();
+    while (swappableDb.getFile() != newFile) {
+      Thread.sleep(1);
+    }
+    assertThat(swappableDb.get(KEY), is(NEW_VALUE));
+    swapper.join(100);
+    assertThat(swapper.isAlive(), is(true));
+    verify(oldDb, never()).close();
+
+    release.countDown();
+    swapper.join();
+    reader.join();
+    assertThat(result.get(), is((Object) OLD_VALUE));
+    verify(oldDb).close();
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.InOrder;
+
+import fm.last.commons.kyoto.KyotoDb;
+
+public class WarmingKyotoDbTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private KyotoDb delegate;
+  private RecordingListener listener;
+
+  @Before
+  public void setup() {
+    delegate = mock(KyotoDb.class);
+    listener = new RecordingListener();
+  }
+
+  @Test
+  public void fileWarmupReadsFileAfterOpen() throws Exception {
+    when(delegate.getFile()).thenReturn(write(temporaryFolder.newFile("db.kch"), "0123456789"));
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(delegate, new WarmingKyotoDb.FileWarmup(0), listener);
+    warmingDb.open();
+    verify(delegate).open();
+    listener.await();
+    assertThat(listener.completed, is(10L));
+    assertThat(listener.lastProgress, is(10L));
+    assertThat(listener.lastTotal, is(10L));
+    assertThat(listener.failure, is(nullValue()));
+  }
+
+  @Test
+  public void fileWarmupReadsEveryShard() throws Exception {
+    KyotoDb shard0 = mock(KyotoDb.class);
+    KyotoDb shard1 = mock(KyotoDb.class);
+    when(shard0.getFile()).thenReturn(write(temporaryFolder.newFile("db-0.kch"), "0123"));
+    when(shard1.getFile()).thenReturn(write(temporaryFolder.newFile("db-1.kch"), "456"));
+    ShardedKyotoDb shardedDb = mock(ShardedKyotoDb.class);
+    when(shardedDb.getShards()).thenReturn(Arrays.asList(shard0, shard1));
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(shardedDb, new WarmingKyotoDb.FileWarmup(0), listener);
+    warmingDb.open();
+    listener.await();
+    assertThat(listener.completed, is(7L));
+    assertThat(listener.lastTotal, is(7L));
+  }
+
+  @Test
+  public void keyWarmupReplaysKeys() throws Exception {
+    File keyFile = write(temporaryFolder.newFile("keys.txt"), "a\n\nb\n");
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(delegate, new WarmingKyotoDb.KeyWarmup(keyFile, 0), listener);
+    warmingDb.open();
+    listener.await();
+    InOrder inOrder = inOrder(delegate);
+    inOrder.verify(delegate).open();
+    inOrder.verify(delegate).getOrDefault("a", null);
+    inOrder.verify(delegate).getOrDefault("b", null);
+    assertThat(listener.completed, is(2L));
+  }
+
+  @Test
+  public void missingKeyFileFails() throws Exception {
+    File keyFile = new File(temporaryFolder.getRoot(), "missing.txt");
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(delegate, new WarmingKyotoDb.KeyWarmup(keyFile, 0), listener);
+    warmingDb.open();
+    listener.await();
+    assertThat(listener.failure, instanceOf(FileNotFoundException.class));
+    assertThat(listener.completed, is(-1L));
+  }
+
+  @Test
+  public void closeStopsWarmup() throws Exception {
+    File keyFile = write(temporaryFolder.newFile("keys.txt"), "a\nb\nc\nd\n");
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(delegate, new WarmingKyotoDb.KeyWarmup(keyFile, 1), listener);
+    warmingDb.open();
+    assertThat(warmingDb.isWarming(), is(true));
+    warmingDb.close();
+    assertThat(warmingDb.isWarming(), is(false));
+    listener.await();
+    assertThat(listener.failure, instanceOf(InterruptedIOException.class));
+    verify(delegate).close();
+  }
+
+  @Test
+  public void failingListenerDoesNotStopWarmup() throws Exception {
+    when(delegate.getFile()).thenReturn(write(temporaryFolder.newFile("db.kch"), "0123456789"));
+    listener.failOnProgress = true;
+    WarmingKyotoDb warmingDb = new WarmingKyotoDb(delegate, new WarmingKyotoDb.FileWarmup(0), listener);
+    warmingDb.open();
+    listener.await();
+    assertThat(listener.completed, is(10L));
+  }
+
+  private static File write(File file, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private static class RecordingListener implements WarmupListener {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean failOnProgress;
+    private volatile long lastProgress = -1;
+    private volatile long lastTotal;
+    private volatile long completed = -1;
+    private volatile Exception failure;
+
+    @Override
+    public void progress(long completed, long total) {
+      lastProgress = completed;
+      lastTotal = total;
+      if (failOnProgress) {
+        throw new IllegalStateException("Listener failure");
+      }
+    }
+
+    @Override
+    public void completed(long completed) {
+      this.completed = completed;
+      done.countDown();
+    }
+
+    @Override
+    public void failed(Exception cause) {
+      failure = cause;
+      done.countDown();
+    }
+
+    void await() throws InterruptedException {
+      assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+    }
+
+  }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.ValueUpdate;
+import fm.last.commons.kyoto.WritableDoubleVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+public class WritableDoubleVisitorAdapterTest {
+
+  private static final byte[] KEY = new byte[3];
+
+  @Test
+  public void recordSetsDouble() {
+    WritableVisitor adapter = new WritableDoubleVisitorAdapter(new WritableDoubleVisitor() {
+      @Override
+      public void record(byte[] key, double value, ValueUpdate update) {
+        update.set(value + 0.25d);
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+      }
+    });
+    assertThat(Codec.toDouble(adapter.record(KEY, Codec.toBytes(1.5d))), is(1.75d));
+  }
+
+  @Test
+  public void emptyRecordCreatesLong() {
+    WritableVisitor adapter = new WritableDoubleVisitorAdapter(new WritableDoubleVisitor() {
+      @Override
+      public void record(byte[] key, double value, ValueUpdate update) {
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+        update.set(7L);
+      }
+    });
+    assertThat(Codec.toLong(adapter.emptyRecord(KEY)), is(7L));
+  }
+
+}
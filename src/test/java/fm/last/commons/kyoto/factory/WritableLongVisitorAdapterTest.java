@@ -0,0 +1,115 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import fm.last.commons.kyoto.Codec;
+import fm.last.commons.kyoto.ValueUpdate;
+import fm.last.commons.kyoto.WritableLongVisitor;
+import fm.last.commons.kyoto.WritableVisitor;
+
+public class WritableLongVisitorAdapterTest {
+
+  private static final byte[] KEY = new byte[3];
+
+  @Test
+  public void recordSetsLong() {
+    WritableVisitor adapter = new WritableLongVisitorAdapter(new WritableLongVisitor() {
+      @Override
+      public void record(byte[] key, long value, ValueUpdate update) {
+        update.set(value * 2);
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+      }
+    });
+    assertThat(Codec.toLong(adapter.record(KEY, Codec.fromLong(21L))), is(42L));
+  }
+
+  @Test
+  public void emptyRecordCreatesDouble() {
+    WritableVisitor adapter = new WritableLongVisitorAdapter(new WritableLongVisitor() {
+      @Override
+      public void record(byte[] key, long value, ValueUpdate update) {
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+        update.set(0.5d);
+      }
+    });
+    assertThat(Codec.toDouble(adapter.emptyRecord(KEY)), is(0.5d));
+  }
+
+  @Test
+  public void lastUpdateWins() {
+    WritableVisitor adapter = new WritableLongVisitorAdapter(new WritableLongVisitor() {
+      @Override
+      public void record(byte[] key, long value, ValueUpdate update) {
+        update.set(1L);
+        update.set(2L);
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+      }
+    });
+    assertThat(Codec.toLong(adapter.record(KEY, Codec.fromLong(0L))), is(2L));
+  }
+
+  @Test
+  public void untouchedRecordIsLeftUnchanged() {
+    WritableVisitor adapter = new WritableLongVisitorAdapter(new WritableLongVisitor() {
+      private boolean first = true;
+
+      @Override
+      public void record(byte[] key, long value, ValueUpdate update) {
+        if (first) {
+          update.set(value);
+          first = false;
+        }
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+      }
+    });
+    adapter.record(KEY, Codec.fromLong(1L));
+    assertThat(adapter.record(KEY, Codec.fromLong(1L)), is(sameInstance(WritableVisitor.NOP)));
+  }
+
+  @Test
+  public void recordRemoved() {
+    WritableVisitor adapter = new WritableLongVisitorAdapter(new WritableLongVisitor() {
+      @Override
+      public void record(byte[] key, long value, ValueUpdate update) {
+        update.remove();
+      }
+
+      @Override
+      public void emptyRecord(byte[] key, ValueUpdate update) {
+      }
+    });
+    assertThat(adapter.record(KEY, Codec.fromLong(1L)), is(sameInstance(WritableVisitor.REMOVE)));
+  }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012 Last.fm
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package fm.last.commons.kyoto.factory;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import fm.last.commons.kyoto.Atomicity;
+import fm.last.commons.kyoto.KyotoDb;
+import fm.last.commons.kyoto.KyotoException;
+import fm.last.commons.kyoto.Synchronization;
+
+@RunWith(MockitoJUnitRunner.class)
+public class WriteBehindKyotoDbTest {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] KEY = bytes("key");
+  private static final byte[] VALUE = bytes("value");
+
+  @Mock
+  private KyotoDb mockDelegate;
+
+  private WriteBehindKyotoDb writeBehindDb;
+
+  @Before
+  public void setup() throws IOException {
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 1000, 1000000, 1, TimeUnit.HOURS, null);
+    writeBehindDb.open();
+  }
+
+  @After
+  public void teardown() throws IOException {
+    writeBehindDb.close();
+  }
+
+  @Test
+  public void readsSeePendingWrites() {
+    writeBehindDb.set(KEY, VALUE);
+    assertThat(writeBehindDb.get(KEY), is(VALUE));
+    assertThat(writeBehindDb.exists(KEY), is(true));
+    assertThat(writeBehindDb.valueSize(KEY), is(VALUE.length));
+    verify(mockDelegate, never()).set(KEY, VALUE);
+    verify(mockDelegate, never()).get(KEY);
+  }
+
+  @Test
+  public void readsSeePendingStringWrites() {
+    writeBehindDb.set("key", "value");
+    assertThat(writeBehindDb.get("key"), is("value"));
+    assertThat(writeBehindDb.get(KEY), is(VALUE));
+  }
+
+  @Test
+  public void readsSeePendingRemoves() {
+    when(mockDelegate.exists(KEY)).thenReturn(true);
+    assertThat(writeBehindDb.remove(KEY), is(true));
+    assertThat(writeBehindDb.get(KEY), is(nullValue()));
+    assertThat(writeBehindDb.exists(KEY), is(false));
+    assertThat(writeBehindDb.valueSize(KEY), is(-1));
+    assertThat(writeBehindDb.remove(KEY), is(false));
+  }
+
+  @Test
+  public void getOrDefaultSeesPendingWrites() {
+    byte[] fallback = bytes("default");
+    writeBehindDb.set(KEY, VALUE);
+    assertThat(writeBehindDb.getOrDefault(KEY, fallback), is(VALUE));
+    writeBehindDb.remove(KEY);
+    assertThat(writeBehindDb.getOrDefault(KEY, fallback), is(fallback));
+    assertThat(writeBehindDb.getOrDefault("key", "default"), is("default"));
+    verify(mockDelegate, never()).getOrDefault(any(byte[].class), any(byte[].class));
+  }
+
+  @Test
+  public void removeIfPresentChecksExistenceWithoutErrorLookup() {
+    when(mockDelegate.getOrDefault(KEY, null)).thenReturn(VALUE);
+    assertThat(writeBehindDb.removeIfPresent(KEY), is(true));
+    assertThat(writeBehindDb.removeIfPresent(KEY), is(false));
+    verify(mockDelegate, never()).exists(KEY);
+  }
+
+  @Test
+  public void pendingValuesAreNotSharedWithCallers() {
+    byte[] value = bytes("value");
+    writeBehindDb.set(KEY, value);
+    value[0] = 'X';
+    writeBehindDb.get(KEY)[0] = 'Y';
+    assertThat(writeBehindDb.get(KEY), is(VALUE));
+  }
+
+  @Test
+  public void repeatedWritesAreCollapsed() {
+    writeBehindDb.set(KEY, bytes("first"));
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.flush();
+
+    ArgumentCaptor<byte[][]> keyValues = ArgumentCaptor.forClass(byte[][].class);
+    verify(mockDelegate).set(keyValues.capture(), eq(Atomicity.NONE));
+    assertThat(keyValues.getValue(), is(new byte[][] { KEY, VALUE }));
+    assertThat(writeBehindDb.getWriteBehindStatistics().flushedRecords(), is(1L));
+  }
+
+  @Test
+  public void removesAreFlushedInBulk() {
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.remove(KEY);
+    writeBehindDb.remove(bytes("other"));
+    writeBehindDb.flush();
+
+    ArgumentCaptor<byte[][]> keys = ArgumentCaptor.forClass(byte[][].class);
+    verify(mockDelegate).remove(keys.capture(), eq(Atomicity.NONE));
+    assertThat(keys.getValue().length, is(2));
+    verify(mockDelegate, never()).set(any(byte[][].class), any(Atomicity.class));
+  }
+
+  @Test
+  public void flushesWhenBatchIsFull() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 2, 1000000, 1, TimeUnit.HOURS, null);
+    writeBehindDb.open();
+
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.set(bytes("other"), VALUE);
+    verify(mockDelegate, timeout(5000)).set(any(byte[][].class), eq(Atomicity.NONE));
+  }
+
+  @Test
+  public void flushesAfterMaximumDelay() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 1000, 1000000, 10, TimeUnit.MILLISECONDS, null);
+    writeBehindDb.open();
+
+    writeBehindDb.set(KEY, VALUE);
+    verify(mockDelegate, timeout(5000)).set(any(byte[][].class), eq(Atomicity.NONE));
+  }
+
+  @Test
+  public void otherOperationsFlushFirst() {
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.recordCount();
+
+    InOrder inOrder = inOrder(mockDelegate);
+    inOrder.verify(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+    inOrder.verify(mockDelegate).recordCount();
+  }
+
+  @Test
+  public void batchesAreWrittenInTransaction() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 1000, 1000000, 1, TimeUnit.HOURS, Synchronization.PHYSICAL);
+    writeBehindDb.open();
+
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.flush();
+
+    InOrder inOrder = inOrder(mockDelegate);
+    inOrder.verify(mockDelegate).begin(Synchronization.PHYSICAL);
+    inOrder.verify(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+    inOrder.verify(mockDelegate).commit();
+  }
+
+  @Test
+  public void failedBatchIsRolledBackAndKept() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 1000, 1000000, 1, TimeUnit.HOURS, Synchronization.PHYSICAL);
+    writeBehindDb.open();
+    doThrow(new KyotoException("failed")).when(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+
+    writeBehindDb.set(KEY, VALUE);
+    try {
+      writeBehindDb.flush();
+      fail();
+    } catch (KyotoException e) {
+    }
+    verify(mockDelegate).rollback();
+    assertThat(writeBehindDb.get(KEY), is(VALUE));
+    WriteBehindStatistics statistics = writeBehindDb.getWriteBehindStatistics();
+    assertThat(statistics.pendingRecords(), is(1L));
+    assertThat(statistics.failedFlushCount(), is(1L));
+    assertThat(statistics.flushCount(), is(1L));
+    stopFailing();
+  }
+
+  @Test
+  public void newerWritesAreNotReplacedByFailedBatch() {
+    doThrow(new KyotoException("failed")).when(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+    writeBehindDb.set(KEY, bytes("old"));
+    try {
+      writeBehindDb.flush();
+      fail();
+    } catch (KyotoException e) {
+    }
+    writeBehindDb.set(KEY, VALUE);
+    assertThat(writeBehindDb.get(KEY), is(VALUE));
+    stopFailing();
+  }
+
+  @Test
+  public void writesAreRejectedWhenFullAndFlushFailed() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb = new WriteBehindKyotoDb(mockDelegate, 2, 1000000, 1, TimeUnit.HOURS, null);
+    doThrow(new KyotoException("failed")).when(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+    writeBehindDb.open();
+
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.set(bytes("other"), VALUE);
+    try {
+      writeBehindDb.flush();
+      fail();
+    } catch (KyotoException e) {
+    }
+    try {
+      writeBehindDb.set(bytes("third"), VALUE);
+      fail();
+    } catch (KyotoException e) {
+      assertThat(e.getCause().getMessage(), is("failed"));
+    }
+    assertThat(writeBehindDb.getWriteBehindStatistics().pendingRecords(), is(2L));
+
+    stopFailing();
+    writeBehindDb.flush();
+    writeBehindDb.set(bytes("third"), VALUE);
+    assertThat(writeBehindDb.getWriteBehindStatistics().pendingRecords(), is(1L));
+  }
+
+  @Test
+  public void statisticsReportQueueDepth() {
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.set(bytes("other"), VALUE);
+    WriteBehindStatistics statistics = writeBehindDb.getWriteBehindStatistics();
+    assertThat(statistics.pendingRecords(), is(2L));
+    assertThat(statistics.pendingBytes() > 0, is(true));
+    assertThat(statistics.flushCount(), is(0L));
+  }
+
+  @Test
+  public void closeFlushesPendingWrites() throws IOException {
+    writeBehindDb.set(KEY, VALUE);
+    writeBehindDb.close();
+
+    InOrder inOrder = inOrder(mockDelegate);
+    inOrder.verify(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+    inOrder.verify(mockDelegate).close();
+  }
+
+  @Test
+  public void writesAreNotBufferedWhenClosed() throws IOException {
+    writeBehindDb.close();
+    writeBehindDb.set(KEY, VALUE);
+    verify(mockDelegate).set(KEY, VALUE);
+  }
+
+  private void stopFailing() {
+    doReturn(1L).when(mockDelegate).set(any(byte[][].class), eq(Atomicity.NONE));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(UTF_8);
+  }
+
+}
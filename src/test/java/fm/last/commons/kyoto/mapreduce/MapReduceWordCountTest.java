@@ -76,4 +76,49 @@ public class MapReduceWordCountTest {
         contains(equalTo(2), equalTo(1), equalTo(2), equalTo(1), equalTo(2), equalTo(2), equalTo(3)));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void wordCountWithCombiner() {
+    final SortedMap<String, Integer> wordCounts = new TreeMap<String, Integer>();
+    final SortedMap<String, Integer> valueCounts = new TreeMap<String, Integer>();
+    kyotoDb.set("a", "words words words");
+    kyotoDb.set("b", "more words");
+
+    MapReduceJob job = new MapReduceJob(new Mapper() {
+      @Override
+      public void map(byte[] key, byte[] value, Context context) {
+        for (String word : new String(value).split(" ")) {
+          context.write(word.getBytes(), new byte[] { 1 });
+        }
+      }
+    }, new Reducer() {
+      @Override
+      public void reduce(byte[] key, Iterable<byte[]> values) {
+        int count = 0;
+        int valueCount = 0;
+        for (byte[] value : values) {
+          count += value[0];
+          valueCount++;
+        }
+        wordCounts.put(new String(key), count);
+        valueCounts.put(new String(key), valueCount);
+      }
+    });
+    job.setCombiner(new Combiner() {
+      @Override
+      public void combine(byte[] key, Iterable<byte[]> values, Context context) {
+        int count = 0;
+        for (byte[] value : values) {
+          count += value[0];
+        }
+        context.write(key, new byte[] { (byte) count });
+      }
+    });
+    job.executeWith(kyotoDb);
+
+    assertThat(wordCounts.keySet(), contains(equalTo("more"), equalTo("words")));
+    assertThat(wordCounts.values(), contains(equalTo(1), equalTo(4)));
+    assertThat(valueCounts.values(), contains(equalTo(1), equalTo(1)));
+  }
+
 }